@@ -99,6 +99,8 @@ public abstract class Channel implements Runnable{
   volatile int lwsize_max=0x100000;
   volatile int lwsize=lwsize_max;     // local initial window size
   volatile int lmpsize=0x4000;     // local maximum packet size
+  volatile int lwsize_auto=0;      // upper bound for window auto-tuning, 0 - disabled
+  long last_adjust=0;              // time of last window adjust sent, nanoseconds
 
   volatile long rwsize=0;         // remote initial window size
   volatile int rmpsize=0;        // remote maximum packet size
@@ -312,6 +314,7 @@ public abstract class Channel implements Runnable{
   void setLocalWindowSizeMax(int foo){ this.lwsize_max=foo; }
   void setLocalWindowSize(int foo){ this.lwsize=foo; }
   void setLocalPacketSize(int foo){ this.lmpsize=foo; }
+  void setLocalWindowSizeAuto(int foo){ this.lwsize_auto=foo; }
   synchronized void setRemoteWindowSize(long foo){ this.rwsize=foo; }
   synchronized void addRemoteWindowSize(int foo){ 
     this.rwsize+=foo; 
@@ -131,6 +131,8 @@ public class ChannelSftp extends ChannelSession{
       operation).
 */
   private static final int MAX_MSG_LENGTH = 256* 1024;
+  // replies of a batch should fit into channel's input pipe
+  private static final int STAT_BATCH = 64;
 
   public static final int OVERWRITE=0;
   public static final int RESUME=1;
@@ -2018,6 +2020,51 @@ public class ChannelSftp extends ChannelSession{
     return _stat(Util.str2byte(path, fEncoding));
   }
 
+  /**
+   * Stats several files, requests are pipelined, so it takes
+   * a round trip per batch instead of one per file.
+   * Paths should be absolute, they are not globbed.
+   * @return attributes per path, <code>null</code> if file cannot be stat'ed
+   */
+  public SftpATTRS[] stat(String[] paths) throws SftpException{
+    SftpATTRS[] result=new SftpATTRS[paths.length];
+    try{
+      Header header=new Header();
+      int n=0;
+      while(n<paths.length){
+        int batch=Math.min(paths.length-n, STAT_BATCH);
+        int first=seq;
+        for(int i=0; i<batch; i++){
+          sendSTAT(Util.str2byte(paths[n+i], fEncoding));
+        }
+        for(int i=0; i<batch; i++){
+          header=header(buf, header);
+          int length=header.length;
+          int type=header.type;
+          fill(buf, length);
+          int k=header.rid-first;
+          if(k<0 || k>=batch){
+            throw new SftpException(SSH_FX_FAILURE, "unexpected reply id "+header.rid);
+          }
+          if(type==SSH_FXP_ATTRS){
+            result[n+k]=SftpATTRS.getATTR(buf);
+          }
+          else if(type!=SSH_FXP_STATUS){
+            throw new SftpException(SSH_FX_FAILURE, "");
+          }
+        }
+        n+=batch;
+      }
+      return result;
+    }
+    catch(Exception e){
+      if(e instanceof SftpException) throw (SftpException)e;
+      if(e instanceof Throwable)
+        throw new SftpException(SSH_FX_FAILURE, "", (Throwable)e);
+      throw new SftpException(SSH_FX_FAILURE, "");
+    }
+  }
+
   public SftpATTRS lstat(String path) throws SftpException{
     try{
 
@@ -0,0 +1,251 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2008-2012 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.gridkit.internal.com.jcraft.jsch;
+
+/**
+ * Elliptic curve Diffie-Hellman key exchange (RFC 5656),
+ * curve and hash are defined by subclass.
+ */
+@SuppressWarnings("rawtypes")
+public abstract class DHECN extends KeyExchange{
+
+  private static final int SSH_MSG_KEX_ECDH_INIT=                  30;
+  private static final int SSH_MSG_KEX_ECDH_REPLY=                 31;
+
+  static final int RSA=0;
+  static final int DSS=1;
+  private int type=0;
+
+  private int state;
+
+  protected String sha_name;
+  protected int key_size;
+
+  ECDH ecdh;
+
+  byte[] V_S;
+  byte[] V_C;
+  byte[] I_S;
+  byte[] I_C;
+
+  byte[] Q_C;
+
+  private Buffer buf;
+  private Packet packet;
+
+  public void init(Session session,
+		   byte[] V_S, byte[] V_C, byte[] I_S, byte[] I_C) throws Exception{
+    this.session=session;
+    this.V_S=V_S;      
+    this.V_C=V_C;      
+    this.I_S=I_S;      
+    this.I_C=I_C;      
+
+    Class c=Class.forName(session.getConfig(sha_name));
+    sha=(HASH)(c.newInstance());
+    sha.init();
+
+    buf=new Buffer();
+    packet=new Packet(buf);
+
+    c=Class.forName(session.getConfig("ecdh-sha2-nistp"));
+    ecdh=(ECDH)(c.newInstance());
+    ecdh.init(key_size);
+
+    // The client responds with:
+    // byte     SSH_MSG_KEX_ECDH_INIT(30)
+    // string   Q_C, client's ephemeral public key octet string
+
+    Q_C=ecdh.getQ();
+    packet.reset();
+    buf.putByte((byte)SSH_MSG_KEX_ECDH_INIT);
+    buf.putString(Q_C);
+
+    if(V_S==null){  // This is a really ugly hack for Session.checkKexes ;-(
+      return;
+    }
+
+    session.write(packet);
+
+    if(JSch.getLogger().isEnabled(Logger.INFO)){
+      JSch.getLogger().log(Logger.INFO, 
+                           "SSH_MSG_KEX_ECDH_INIT sent");
+      JSch.getLogger().log(Logger.INFO, 
+                           "expecting SSH_MSG_KEX_ECDH_REPLY");
+    }
+
+    state=SSH_MSG_KEX_ECDH_REPLY;
+  }
+
+  public boolean next(Buffer _buf) throws Exception{
+    int i,j;
+
+    switch(state){
+    case SSH_MSG_KEX_ECDH_REPLY:
+      // The server responds with:
+      // byte     SSH_MSG_KEX_ECDH_REPLY(31)
+      // string   K_S, server's public host key
+      // string   Q_S, server's ephemeral public key octet string
+      // string   the signature on the exchange hash
+      j=_buf.getInt();
+      j=_buf.getByte();
+      j=_buf.getByte();
+      if(j!=31){
+        if(JSch.getLogger().isEnabled(Logger.ERROR)){
+          JSch.getLogger().log(Logger.ERROR, 
+                               "type: must be 31 "+j);
+        }
+	return false;
+      }
+
+      K_S=_buf.getString();
+      byte[] Q_S=_buf.getString();
+      byte[] sig_of_H=_buf.getString();
+
+      K=ecdh.getSecret(Q_S);
+
+      //The hash H is computed as the HASH hash of the concatenation of the
+      //following:
+      // string   V_C, client's identification string (CR and LF excluded)
+      // string   V_S, server's identification string (CR and LF excluded)
+      // string   I_C, payload of client's SSH_MSG_KEXINIT
+      // string   I_S, payload of server's SSH_MSG_KEXINIT
+      // string   K_S, server's public host key
+      // string   Q_C, client's ephemeral public key octet string
+      // string   Q_S, server's ephemeral public key octet string
+      // mpint    K,   shared secret
+      buf.reset();
+      buf.putString(V_C); buf.putString(V_S);
+      buf.putString(I_C); buf.putString(I_S);
+      buf.putString(K_S);
+      buf.putString(Q_C); buf.putString(Q_S);
+      buf.putMPInt(K);
+      byte[] foo=new byte[buf.getLength()];
+      buf.getByte(foo);
+      sha.update(foo, 0, foo.length);
+      H=sha.digest();
+
+      i=0;
+      j=0;
+      j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+      String alg=Util.byte2str(K_S, i, j);
+      i+=j;
+
+      boolean result=false;
+
+      if(alg.equals("ssh-rsa")){
+	byte[] tmp;
+	byte[] ee;
+	byte[] n;
+
+	type=RSA;
+
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	ee=tmp;
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	n=tmp;
+	
+	// failure to load signature fails key exchange
+	Class c=Class.forName(session.getConfig("signature.rsa"));
+	SignatureRSA sig=(SignatureRSA)(c.newInstance());
+	sig.init();
+
+	sig.setPubKey(ee, n);   
+	sig.update(H);
+	result=sig.verify(sig_of_H);
+
+        if(JSch.getLogger().isEnabled(Logger.INFO)){
+          JSch.getLogger().log(Logger.INFO, 
+                               "ssh_rsa_verify: signature "+result);
+        }
+
+      }
+      else if(alg.equals("ssh-dss")){
+	byte[] q=null;
+	byte[] tmp;
+	byte[] p;
+	byte[] g;
+      
+	type=DSS;
+
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	p=tmp;
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	q=tmp;
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	g=tmp;
+	j=((K_S[i++]<<24)&0xff000000)|((K_S[i++]<<16)&0x00ff0000)|
+	  ((K_S[i++]<<8)&0x0000ff00)|((K_S[i++])&0x000000ff);
+	tmp=new byte[j]; System.arraycopy(K_S, i, tmp, 0, j); i+=j;
+	byte[] f=tmp;
+
+	Class c=Class.forName(session.getConfig("signature.dss"));
+	SignatureDSA sig=(SignatureDSA)(c.newInstance());
+	sig.init();
+	sig.setPubKey(f, p, q, g);   
+	sig.update(H);
+	result=sig.verify(sig_of_H);
+
+        if(JSch.getLogger().isEnabled(Logger.INFO)){
+          JSch.getLogger().log(Logger.INFO, 
+                               "ssh_dss_verify: signature "+result);
+        }
+
+      }
+      else{
+        if(JSch.getLogger().isEnabled(Logger.ERROR)){
+          JSch.getLogger().log(Logger.ERROR, 
+                               "unknown alg: "+alg);
+        }
+      }	    
+      state=STATE_END;
+      return result;
+    }
+    return false;
+  }
+
+  public String getKeyType(){
+    if(type==DSS) return "DSA";
+    return "RSA";
+  }
+
+  public int getState(){return state; }
+}
@@ -41,13 +41,13 @@ public class JSch{
 
   static java.util.Hashtable config=new java.util.Hashtable();
   static{
-    config.put("kex", "diffie-hellman-group1-sha1,diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha1");
+    config.put("kex", "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,diffie-hellman-group1-sha1,diffie-hellman-group14-sha1,diffie-hellman-group-exchange-sha1");
     config.put("server_host_key", "ssh-rsa,ssh-dss");
 
     config.put("cipher.s2c", 
-               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-cbc,aes256-cbc");
+               "aes128-gcm@openssh.com,aes256-gcm@openssh.com,aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-cbc,aes256-cbc");
     config.put("cipher.c2s",
-               "aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-cbc,aes256-cbc");
+               "aes128-gcm@openssh.com,aes256-gcm@openssh.com,aes128-ctr,aes128-cbc,3des-ctr,3des-cbc,blowfish-cbc,aes192-cbc,aes256-cbc");
 
     config.put("mac.s2c", "hmac-md5,hmac-sha1,hmac-sha1-96,hmac-md5-96");
     config.put("mac.c2s", "hmac-md5,hmac-sha1,hmac-sha1-96,hmac-md5-96");
@@ -65,8 +65,12 @@ public class JSch{
 	                        "org.gridkit.internal.com.jcraft.jsch.DHG1");
     config.put("diffie-hellman-group14-sha1", 
 	                        "org.gridkit.internal.com.jcraft.jsch.DHG14");
+    config.put("ecdh-sha2-nistp256", "org.gridkit.internal.com.jcraft.jsch.DHEC256");
+    config.put("ecdh-sha2-nistp384", "org.gridkit.internal.com.jcraft.jsch.DHEC384");
+    config.put("ecdh-sha2-nistp521", "org.gridkit.internal.com.jcraft.jsch.DHEC521");
 
     config.put("dh",            "org.gridkit.internal.com.jcraft.jsch.jce.DH");
+    config.put("ecdh-sha2-nistp", "org.gridkit.internal.com.jcraft.jsch.jce.ECDHN");
     config.put("3des-cbc",      "org.gridkit.internal.com.jcraft.jsch.jce.TripleDESCBC");
     config.put("blowfish-cbc",  "org.gridkit.internal.com.jcraft.jsch.jce.BlowfishCBC");
     config.put("hmac-sha1",     "org.gridkit.internal.com.jcraft.jsch.jce.HMACSHA1");
@@ -74,6 +78,9 @@ public class JSch{
     config.put("hmac-md5",      "org.gridkit.internal.com.jcraft.jsch.jce.HMACMD5");
     config.put("hmac-md5-96",   "org.gridkit.internal.com.jcraft.jsch.jce.HMACMD596");
     config.put("sha-1",         "org.gridkit.internal.com.jcraft.jsch.jce.SHA1");
+    config.put("sha-256",       "org.gridkit.internal.com.jcraft.jsch.jce.SHA256");
+    config.put("sha-384",       "org.gridkit.internal.com.jcraft.jsch.jce.SHA384");
+    config.put("sha-512",       "org.gridkit.internal.com.jcraft.jsch.jce.SHA512");
     config.put("md5",           "org.gridkit.internal.com.jcraft.jsch.jce.MD5");
     config.put("signature.dss", "org.gridkit.internal.com.jcraft.jsch.jce.SignatureDSA");
     config.put("signature.rsa", "org.gridkit.internal.com.jcraft.jsch.jce.SignatureRSA");
@@ -90,6 +97,8 @@ public class JSch{
     config.put("aes128-ctr",    "org.gridkit.internal.com.jcraft.jsch.jce.AES128CTR");
     config.put("aes192-ctr",    "org.gridkit.internal.com.jcraft.jsch.jce.AES192CTR");
     config.put("aes256-ctr",    "org.gridkit.internal.com.jcraft.jsch.jce.AES256CTR");
+    config.put("aes128-gcm@openssh.com", "org.gridkit.internal.com.jcraft.jsch.jce.AES128GCM");
+    config.put("aes256-gcm@openssh.com", "org.gridkit.internal.com.jcraft.jsch.jce.AES256GCM");
     config.put("3des-ctr",      "org.gridkit.internal.com.jcraft.jsch.jce.TripleDESCTR");
     config.put("arcfour",      "org.gridkit.internal.com.jcraft.jsch.jce.ARCFOUR");
     config.put("arcfour128",      "org.gridkit.internal.com.jcraft.jsch.jce.ARCFOUR128");
@@ -102,6 +111,7 @@ public class JSch{
     config.put("userauth.gssapi-with-mic",    "org.gridkit.internal.com.jcraft.jsch.UserAuthGSSAPIWithMIC");
     config.put("gssapi-with-mic.krb5",    "org.gridkit.internal.com.jcraft.jsch.jgss.GSSContextKrb5");
 
+    // JDK based org.gridkit.internal.com.jcraft.jsch.jce.Compression could be configured instead
     config.put("zlib",             "org.gridkit.internal.com.jcraft.jsch.jcraft.Compression");
     config.put("zlib@openssh.com", "org.gridkit.internal.com.jcraft.jsch.jcraft.Compression");
 
@@ -110,8 +120,9 @@ public class JSch{
 
     config.put("PreferredAuthentications", "gssapi-with-mic,publickey,keyboard-interactive,password");
 
-    config.put("CheckCiphers", "aes256-ctr,aes192-ctr,aes128-ctr,aes256-cbc,aes192-cbc,aes128-cbc,3des-ctr,arcfour,arcfour128,arcfour256");
-    config.put("CheckKexes", "diffie-hellman-group14-sha1");
+    // algorithms not supported by JVM (e.g. GCM and EC before Java 7) are removed from proposal
+    config.put("CheckCiphers", "aes128-gcm@openssh.com,aes256-gcm@openssh.com,aes256-ctr,aes192-ctr,aes128-ctr,aes256-cbc,aes192-cbc,aes128-cbc,3des-ctr,arcfour,arcfour128,arcfour256");
+    config.put("CheckKexes", "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521,diffie-hellman-group14-sha1");
 
     config.put("MaxAuthTries", "6");
   }
@@ -44,12 +44,22 @@ public class Packet{
     buffer.index=5;
   }
   void padding(int bsize){
+    padding(bsize, false);
+  }
+  /**
+   * @param aead if <code>true</code>, packet length field is not encrypted
+   *             and is not counted for block alignment
+   */
+  void padding(int bsize, boolean aead){
     int len=buffer.index;
+    if(aead){
+      len-=4;
+    }
     int pad=(-len)&(bsize-1);
     if(pad<bsize){
       pad+=bsize;
     }
-    len=len+pad-4;
+    len=buffer.index+pad-4;
     ba4[0]=(byte)(len>>>24);
     ba4[1]=(byte)(len>>>16);
     ba4[2]=(byte)(len>>>8);
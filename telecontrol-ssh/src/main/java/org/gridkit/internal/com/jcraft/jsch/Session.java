@@ -69,6 +69,12 @@ public class Session implements Runnable{
   static final int SSH_MSG_CHANNEL_FAILURE=               100;
 
   private static final int PACKET_MAX_SIZE = 256 * 1024;
+  private static final int MAX_WINDOW_SIZE = 1 << 30;
+
+  /** Round trip is probed again after this period, while window is auto-tuned */
+  private static final long RTT_PROBE_INTERVAL=60L*1000*1000*1000;
+
+  private final RoundTripMeter rtt_meter=new RoundTripMeter();
 
   private byte[] V_S;                                 // server version
   private byte[] V_C=Util.str2byte("SSH-2.0-JSCH-"+JSch.VERSION); // client version
@@ -794,10 +800,14 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
     if(!isConnected){
       throw new JSchException("session is down");
     }
+    int wsize=getIntConfig("ChannelWindowSize", 0);
+    int wmax=getIntConfig("ChannelWindowMax", 0);
+    int psize=getIntConfig("ChannelPacketSize", 0);
     try{
       Channel channel=Channel.getChannel(type);
       addChannel(channel);
       channel.init();
+      configureChannel(channel, wsize, wmax, psize);
       return channel;
     }
     catch(Exception e){
@@ -806,6 +816,97 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
     return null;
   }
 
+  private int getIntConfig(String key, int defaultValue) throws JSchException{
+    String s=getConfig(key);
+    if(s==null || s.length()==0){
+      return defaultValue;
+    }
+    try{
+      int n=Integer.parseInt(s.trim());
+      return n>MAX_WINDOW_SIZE ? MAX_WINDOW_SIZE : n;
+    }
+    catch(NumberFormatException e){
+      throw new JSchException(key+": "+s, e);
+    }
+  }
+
+  /**
+   * Forwarding channels keep their smaller defaults, configured size
+   * is meant for bulk transfer channels (exec, sftp).
+   * Auto-tuning starts from whatever initial window channel has.
+   */
+  static void configureChannel(Channel channel, int wsize, int wmax, int psize){
+    boolean forwarding=channel instanceof ChannelDirectTCPIP;
+    if(wsize>0 && !forwarding){
+      channel.setLocalWindowSizeMax(wsize);
+      channel.setLocalWindowSize(wsize);
+    }
+    if(wmax>channel.lwsize_max){
+      channel.setLocalWindowSizeAuto(wmax);
+    }
+    if(psize>0 && !forwarding){
+      channel.setLocalPacketSize(Math.min(psize, PACKET_MAX_SIZE-0x400));
+    }
+  }
+
+  /**
+   * @return smallest observed keepalive round trip time, nanoseconds, or -1
+   */
+  public long getRoundTripNanos(){
+    return rtt_meter.getRoundTrip();
+  }
+
+  /**
+   * @param sinceAdjust time since previous window adjust, nanoseconds
+   * @return new window size, doubled if half of window was consumed within two round trips
+   */
+  static int tuneWindow(int wsize, int wmax, long sinceAdjust, long rtt){
+    if(rtt>0 && sinceAdjust<2*rtt){
+      return (int)Math.min(2L*wsize, wmax);
+    }
+    return wsize;
+  }
+
+  /**
+   * Sends window adjust after half of the window is consumed.
+   * <br/>
+   * If auto-tuning is enabled and half of the window was consumed in less
+   * than two round trips since previous adjust, the sender is likely stalled
+   * waiting for window, so window is doubled (up to configured maximum).
+   */
+  private void consumeWindow(Packet packet, Channel channel, int len) throws Exception{
+    channel.setLocalWindowSize(channel.lwsize-len);
+    if(channel.lwsize<channel.lwsize_max/2){
+      if(channel.lwsize_auto>channel.lwsize_max){
+        long now=System.nanoTime();
+        long rtt=rtt_meter.getRoundTrip();
+        int wsize=channel.last_adjust==0 ? channel.lwsize_max : tuneWindow(channel.lwsize_max, channel.lwsize_auto, now-channel.last_adjust, rtt);
+        if(wsize!=channel.lwsize_max){
+          if(JSch.getLogger().isEnabled(Logger.INFO)){
+            JSch.getLogger().log(Logger.INFO, 
+                                 "Channel "+channel.id+" window grows to "+wsize);
+          }
+          channel.setLocalWindowSizeMax(wsize);
+        }
+        channel.last_adjust=now;
+      }
+      Buffer buf=packet.getBuffer();
+      packet.reset();
+      buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
+      buf.putInt(channel.getRecipient());
+      buf.putInt(channel.lwsize_max-channel.lwsize);
+      synchronized(channel){
+        if(!channel.close)
+          write(packet);
+      }
+      channel.setLocalWindowSize(channel.lwsize_max);
+      if(channel.lwsize_auto>channel.lwsize_max &&
+         rtt_meter.isProbeDue(System.nanoTime(), RTT_PROBE_INTERVAL)){
+        sendKeepAliveMsg();
+      }
+    }
+  }
+
   // encode will bin invoked in write with synchronization.
   public void encode(Packet packet) throws Exception{
 //System.err.println("encode: "+packet.buffer.getCommand());
@@ -819,6 +920,16 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
                                              5, compress_len);
       packet.buffer.index=compress_len[0];
     }
+    if(c2scipher instanceof AEADCipher){
+      AEADCipher aead=(AEADCipher)c2scipher;
+      packet.padding(c2scipher_size, true);
+      byte[] buf=packet.buffer.buffer;
+      // packet length is authenticated, but not encrypted
+      aead.updateAAD(buf, 0, 4);
+      aead.doFinal(buf, 4, packet.buffer.index-4, buf, 4);
+      packet.buffer.skip(aead.getTagSize());
+      return;
+    }
     if(c2scipher!=null){
       //packet.padding(c2scipher.getIVSize());
       packet.padding(c2scipher_size);
@@ -848,12 +959,17 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
   int[] uncompress_len=new int[1];
   int[] compress_len=new int[1];
 
+  private static final int AEAD_BLOCK_SIZE=16;
   private int s2ccipher_size=8;
   private int c2scipher_size=8;
   public Buffer read(Buffer buf) throws Exception{
     int j=0;
     while(true){
       buf.reset();
+      if(s2ccipher instanceof AEADCipher){
+        readAEAD(buf, (AEADCipher)s2ccipher);
+      }
+      else{
       io.getByte(buf.buffer, buf.index, s2ccipher_size); 
       buf.index+=s2ccipher_size;
       if(s2ccipher!=null){
@@ -906,6 +1022,7 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
           continue;
 	}
       }
+      }
 
       seqi++;
 
@@ -919,8 +1036,8 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
 	  buf.index=5+uncompress_len[0];
 	}
 	else{
-	  System.err.println("fail in inflater");
-	  break;
+	  // packet could not be decoded, stream is out of sync
+	  throw new JSchException("fail in inflater");
 	}
       }
 
@@ -990,6 +1107,36 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
     return buf;
   }
 
+  /**
+   * AEAD packet: clear text length, encrypted payload and tag.
+   * Any corruption is fatal as there is no way to resynchronize.
+   */
+  private void readAEAD(Buffer buf, AEADCipher cipher) throws Exception{
+    io.getByte(buf.buffer, buf.index, 4);
+    buf.index+=4;
+    int j=((buf.buffer[0]<<24)&0xff000000)|
+          ((buf.buffer[1]<<16)&0x00ff0000)|
+          ((buf.buffer[2]<< 8)&0x0000ff00)|
+          ((buf.buffer[3]    )&0x000000ff);
+    if(j<5 || j>PACKET_MAX_SIZE || (j%s2ccipher_size)!=0){
+      throw new JSchException("Packet corrupt");
+    }
+    int need=j+cipher.getTagSize();
+    if((buf.index+need)>buf.buffer.length){
+      byte[] foo=new byte[buf.index+need];
+      System.arraycopy(buf.buffer, 0, foo, 0, buf.index);
+      buf.buffer=foo;
+    }
+    io.getByte(buf.buffer, buf.index, need);
+    cipher.updateAAD(buf.buffer, 0, 4);
+    try{
+      buf.index+=cipher.doFinal(buf.buffer, 4, need, buf.buffer, 4);
+    }
+    catch(java.security.GeneralSecurityException e){
+      throw new JSchException("MAC Error", e);
+    }
+  }
+
   private void start_discard(Buffer buf, Cipher cipher, MAC mac, 
                              int packet_length, int discard) throws JSchException, IOException{
     MAC discard_mac = null;
@@ -1102,6 +1249,12 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
       s2ccipher.init(Cipher.DECRYPT_MODE, Es2c, IVs2c);
       s2ccipher_size=s2ccipher.getIVSize();
 
+      if(s2ccipher instanceof AEADCipher){
+        // negotiated MAC is not used, AES block alignment
+        s2ccipher_size=AEAD_BLOCK_SIZE;
+        s2cmac=null;
+      }
+      else{
       method=guess[KeyExchange.PROPOSAL_MAC_ALGS_STOC];
       c=Class.forName(getConfig(method));
       s2cmac=(MAC)(c.newInstance());
@@ -1109,6 +1262,7 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
       //mac_buf=new byte[s2cmac.getBlockSize()];
       s2cmac_result1=new byte[s2cmac.getBlockSize()];
       s2cmac_result2=new byte[s2cmac.getBlockSize()];
+      }
 
       method=guess[KeyExchange.PROPOSAL_ENC_ALGS_CTOS];
       c=Class.forName(getConfig(method));
@@ -1128,10 +1282,16 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
       c2scipher.init(Cipher.ENCRYPT_MODE, Ec2s, IVc2s);
       c2scipher_size=c2scipher.getIVSize();
 
+      if(c2scipher instanceof AEADCipher){
+        c2scipher_size=AEAD_BLOCK_SIZE;
+        c2smac=null;
+      }
+      else{
       method=guess[KeyExchange.PROPOSAL_MAC_ALGS_CTOS];
       c=Class.forName(getConfig(method));
       c2smac=(MAC)(c.newInstance());
       c2smac.init(MACc2s);
+      }
 
       method=guess[KeyExchange.PROPOSAL_COMP_ALGS_CTOS];
       initDeflater(method);
@@ -1195,7 +1355,8 @@ key_type+" key fingerprint is "+key_fprint+".\n"+
           if(len!=length){
             s=packet.shift((int)len, 
                            (c2scipher!=null ? c2scipher_size : 8),
-                           (c2smac!=null ? c2smac.getBlockSize() : 0));
+                           (c2smac!=null ? c2smac.getBlockSize() :
+                            c2scipher instanceof AEADCipher ? ((AEADCipher)c2scipher).getTagSize() : 0));
           }
 	  command=packet.buffer.getCommand();
 	  recipient=c.getRecipient();
@@ -1354,18 +1515,7 @@ catch(Exception e){
 break;
 }
 	  int len=length[0];
-	  channel.setLocalWindowSize(channel.lwsize-len);
- 	  if(channel.lwsize<channel.lwsize_max/2){
-            packet.reset();
-	    buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
-	    buf.putInt(channel.getRecipient());
-	    buf.putInt(channel.lwsize_max-channel.lwsize);
-            synchronized(channel){
-              if(!channel.close)
-                write(packet);
-            }
-	    channel.setLocalWindowSize(channel.lwsize_max);
-	  }
+	  consumeWindow(packet, channel, len);
 	  break;
 
         case SSH_MSG_CHANNEL_EXTENDED_DATA:
@@ -1387,18 +1537,7 @@ break;
 	  channel.write_ext(foo, start[0], length[0]);
 
 	  len=length[0];
-	  channel.setLocalWindowSize(channel.lwsize-len);
- 	  if(channel.lwsize<channel.lwsize_max/2){
-            packet.reset();
-	    buf.putByte((byte)SSH_MSG_CHANNEL_WINDOW_ADJUST);
-	    buf.putInt(channel.getRecipient());
-	    buf.putInt(channel.lwsize_max-channel.lwsize);
-            synchronized(channel){
-              if(!channel.close)
-                write(packet);
-            }
-	    channel.setLocalWindowSize(channel.lwsize_max);
-	  }
+	  consumeWindow(packet, channel, len);
 	  break;
 
 	case SSH_MSG_CHANNEL_WINDOW_ADJUST:
@@ -1566,6 +1705,7 @@ break;
 	  break;
 	case SSH_MSG_REQUEST_FAILURE:
 	case SSH_MSG_REQUEST_SUCCESS:
+          rtt_meter.replied(System.nanoTime());
           Thread t=grr.getThread();
           if(t!=null){
             grr.setReply(msgType==SSH_MSG_REQUEST_SUCCESS? 1 : 0);
@@ -1730,6 +1870,57 @@ break;
     int getReply(){ return this.reply; }
   }
   private GlobalRequestReply grr=new GlobalRequestReply();
+
+  /**
+   * Global requests are answered in order, so replies are matched
+   * to pending requests by position. Only requests server answers
+   * without doing any work (keepalive) are used as round trip samples,
+   * unlike channel open, which includes server side processing.
+   */
+  static class RoundTripMeter{
+    private final java.util.LinkedList<Long> pending=new java.util.LinkedList<Long>();
+    private long rtt=-1;
+    private long last_probe=0;
+    private boolean probed=false;
+
+    /**
+     * @param probe <code>false</code> if reply is not a round trip sample
+     */
+    synchronized void sent(long now, boolean probe){
+      pending.addLast(probe ? now : 0L);
+      if(probe){
+        last_probe=now;
+        probed=true;
+      }
+    }
+    synchronized void replied(long now){
+      if(pending.isEmpty()){
+        return;
+      }
+      long t=pending.removeFirst();
+      if(t!=0){
+        long sample=now-t;
+        if(rtt<0 || sample<rtt){
+          rtt=sample;
+        }
+      }
+    }
+    /**
+     * @return smallest observed round trip, nanoseconds, or -1
+     */
+    synchronized long getRoundTrip(){
+      return rtt;
+    }
+    synchronized boolean isProbeDue(long now, long interval){
+      if(!probed){
+        return true;
+      }
+      if(pending.contains(last_probe)){
+        return false;
+      }
+      return now-last_probe>=interval;
+    }
+  }
   private void setPortForwarding(String bind_address, int rport) throws JSchException{
     synchronized(grr){
     Buffer buf=new Buffer(100); // ??
@@ -1751,6 +1942,8 @@ break;
       buf.putByte((byte)1);
       buf.putString(Util.str2byte(address_to_bind));
       buf.putInt(rport);
+      // reply requires server side work, so it is not a round trip sample
+      rtt_meter.sent(System.nanoTime(), false);
       write(packet);
     }
     catch(Exception e){
@@ -1935,6 +2128,8 @@ break;
     buf.putByte((byte)SSH_MSG_GLOBAL_REQUEST);
     buf.putString(keepalivemsg);
     buf.putByte((byte)1);
+    // server answers unknown request right away, so it is a round trip sample
+    rtt_meter.sent(System.nanoTime(), true);
     write(packet);
   }
   
@@ -2012,6 +2207,10 @@ break;
     catch(Exception e){
       return false;
     }
+    catch(LinkageError e){
+      // e.g. GCMParameterSpec is missing on Java 6
+      return false;
+    }
   }
 
   private String[] checkKexes(String kexes){
@@ -2053,6 +2252,7 @@ break;
       return true;
     }
     catch(Exception e){ return false; }
+    catch(LinkageError e){ return false; }
   }
 
   /**
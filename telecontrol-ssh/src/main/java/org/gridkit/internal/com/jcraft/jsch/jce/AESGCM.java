@@ -0,0 +1,121 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2008-2012 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.gridkit.internal.com.jcraft.jsch.jce;
+
+import javax.crypto.spec.*;
+
+import org.gridkit.internal.com.jcraft.jsch.AEADCipher;
+
+/**
+ * AES-GCM as defined for OpenSSH (RFC 5647 with implicit MAC).
+ * <br/>
+ * Nonce is 4 byte fixed field followed by 8 byte invocation counter,
+ * counter is incremented after each packet. JCE does not allow to reuse
+ * nonce, so cipher is initialized for every packet.
+ */
+public abstract class AESGCM implements AEADCipher{
+  private static final int ivsize=12;
+  private static final int tagsize=16;
+  private final int bsize;
+  private javax.crypto.Cipher cipher;
+  private SecretKeySpec keyspec;
+  private int mode;
+  private byte[] iv;
+  private boolean initialized;
+
+  protected AESGCM(int keysize){
+    this.bsize=keysize;
+  }
+
+  public int getIVSize(){return ivsize;}
+  public int getBlockSize(){return bsize;}
+  public int getTagSize(){return tagsize;}
+  public void init(int mode, byte[] key, byte[] iv) throws Exception{
+    byte[] tmp;
+    tmp=new byte[ivsize];
+    System.arraycopy(iv, 0, tmp, 0, tmp.length);
+    this.iv=tmp;
+    if(key.length>bsize){
+      tmp=new byte[bsize];
+      System.arraycopy(key, 0, tmp, 0, tmp.length);
+      key=tmp;
+    }
+    this.mode=(mode==ENCRYPT_MODE?
+               javax.crypto.Cipher.ENCRYPT_MODE:
+               javax.crypto.Cipher.DECRYPT_MODE);
+    try{
+      keyspec=new SecretKeySpec(key, "AES");
+      cipher=javax.crypto.Cipher.getInstance("AES/GCM/NoPadding");
+      initPacket();
+    }
+    catch(Exception e){
+      cipher=null;
+      throw e;
+    }
+  }
+
+  private void initPacket() throws Exception{
+    cipher.init(mode, keyspec, new javax.crypto.spec.GCMParameterSpec(tagsize*8, iv));
+    initialized=true;
+  }
+
+  private void nextNonce(){
+    for(int i=ivsize-1; i>=4; i--){
+      if(++iv[i]!=0) break;
+    }
+    initialized=false;
+  }
+
+  public void updateAAD(byte[] foo, int s1, int len) throws Exception{
+    if(!initialized){
+      initPacket();
+    }
+    cipher.updateAAD(foo, s1, len);
+  }
+  public void update(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    if(!initialized){
+      initPacket();
+    }
+    cipher.update(foo, s1, len, bar, s2);
+  }
+  public int doFinal(byte[] foo, int s1, int len, byte[] bar, int s2) throws Exception{
+    if(!initialized){
+      initPacket();
+    }
+    try{
+      return cipher.doFinal(foo, s1, len, bar, s2);
+    }
+    finally{
+      nextNonce();
+    }
+  }
+
+  public boolean isCBC(){return false; }
+}
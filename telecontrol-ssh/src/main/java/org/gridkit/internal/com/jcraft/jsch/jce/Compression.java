@@ -0,0 +1,152 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2008-2012 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.gridkit.internal.com.jcraft.jsch.jce;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression based on java.util.zip, no need for jzlib on classpath.
+ * <br/>
+ * Each packet is terminated by sync flush (partial flush is not available
+ * in JDK), which is understood by any zlib peer.
+ * <br/>
+ * Flush modes of {@link Deflater} are available since Java 7, check
+ * {@link #isSupported()} before use.
+ * <br/>
+ * Not a default, used by sessions with compression enabled by
+ * <code>remote-runtime:ssh-compression</code> pragma.
+ */
+public class Compression implements org.gridkit.internal.com.jcraft.jsch.Compression {
+  static private final int BUF_SIZE=4096;
+  private final int buffer_margin=32+20; // AES256 + HMACSHA1
+  private Deflater deflater;
+  private Inflater inflater;
+  private byte[] tmpbuf=new byte[BUF_SIZE];
+  private byte[] inbuf=new byte[BUF_SIZE];
+  private byte[] inflated_buf;
+
+  private static final boolean SUPPORTED=checkSyncFlush();
+
+  /**
+   * @return <code>false</code> if JDK cannot flush deflater (Java 6)
+   */
+  public static boolean isSupported(){
+    return SUPPORTED;
+  }
+
+  private static boolean checkSyncFlush(){
+    try{
+      Deflater.class.getMethod("deflate", new Class[]{byte[].class, int.class, int.class, int.class});
+      return true;
+    }
+    catch(Exception e){
+      return false;
+    }
+  }
+
+  public void init(int type, int level){
+    if(type==DEFLATER){
+      deflater=new Deflater(level);
+    }
+    else if(type==INFLATER){
+      inflater=new Inflater();
+      inflated_buf=new byte[BUF_SIZE];
+    }
+  }
+
+  public byte[] compress(byte[] buf, int start, int[] len){
+    // output overwrites input, so input is copied
+    int inlen=len[0]-start;
+    if(inbuf.length<inlen){
+      inbuf=new byte[inlen];
+    }
+    System.arraycopy(buf, start, inbuf, 0, inlen);
+    deflater.setInput(inbuf, 0, inlen);
+
+    int outputlen=start;
+    byte[] outputbuf=buf;
+    int tmp=0;
+    do{
+      tmp=deflater.deflate(tmpbuf, 0, BUF_SIZE, Deflater.SYNC_FLUSH);
+      if(outputbuf.length<outputlen+tmp+buffer_margin){
+        byte[] foo=new byte[(outputlen+tmp+buffer_margin)*2];
+        System.arraycopy(outputbuf, 0, foo, 0, outputbuf.length);
+        outputbuf=foo;
+      }
+      System.arraycopy(tmpbuf, 0, outputbuf, outputlen, tmp);
+      outputlen+=tmp;
+    }
+    while(tmp==BUF_SIZE);
+
+    len[0]=outputlen;
+    return outputbuf;
+  }
+
+  public byte[] uncompress(byte[] buffer, int start, int[] length){
+    int inflated_end=0;
+
+    inflater.setInput(buffer, start, length[0]);
+    try{
+      while(true){
+        int n=inflater.inflate(tmpbuf, 0, BUF_SIZE);
+        if(n==0){
+          break;
+        }
+        if(inflated_buf.length<inflated_end+n){
+          int len=inflated_buf.length*2;
+          if(len<inflated_end+n)
+            len=inflated_end+n;
+          byte[] foo=new byte[len];
+          System.arraycopy(inflated_buf, 0, foo, 0, inflated_end);
+          inflated_buf=foo;
+        }
+        System.arraycopy(tmpbuf, 0, inflated_buf, inflated_end, n);
+        inflated_end+=n;
+      }
+    }
+    catch(DataFormatException e){
+      // session fails instead of processing corrupted packet
+      throw new IllegalStateException("uncompress: "+e, e);
+    }
+    if(inflated_end>buffer.length-start){
+      byte[] foo=new byte[inflated_end+start];
+      System.arraycopy(buffer, 0, foo, 0, start);
+      System.arraycopy(inflated_buf, 0, foo, start, inflated_end);
+      buffer=foo;
+    }
+    else{
+      System.arraycopy(inflated_buf, 0, buffer, start, inflated_end);
+    }
+    length[0]=inflated_end;
+    return buffer;
+  }
+}
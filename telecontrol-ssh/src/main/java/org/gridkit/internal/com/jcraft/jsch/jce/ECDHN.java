@@ -0,0 +1,109 @@
+/* -*-mode:java; c-basic-offset:2; indent-tabs-mode:nil -*- */
+/*
+Copyright (c) 2008-2012 ymnk, JCraft,Inc. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+  1. Redistributions of source code must retain the above copyright notice,
+     this list of conditions and the following disclaimer.
+
+  2. Redistributions in binary form must reproduce the above copyright 
+     notice, this list of conditions and the following disclaimer in 
+     the documentation and/or other materials provided with the distribution.
+
+  3. The names of the authors may not be used to endorse or promote products
+     derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JCRAFT,
+INC. OR ANY CONTRIBUTORS TO THIS SOFTWARE BE LIABLE FOR ANY DIRECT, INDIRECT,
+INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.gridkit.internal.com.jcraft.jsch.jce;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.interfaces.*;
+import java.security.spec.*;
+import javax.crypto.*;
+
+/**
+ * Elliptic curve Diffie-Hellman over NIST prime curves (RFC 5656).
+ * Points are encoded uncompressed, 0x04 || X || Y.
+ */
+public class ECDHN implements org.gridkit.internal.com.jcraft.jsch.ECDH{
+  private byte[] Q_array;
+  private ECParameterSpec params;
+  private KeyAgreement myKeyAgree;
+
+  public void init(int size) throws Exception{
+    String name="secp"+size+"r1";
+    KeyPairGenerator kpg=KeyPairGenerator.getInstance("EC");
+    kpg.initialize(new ECGenParameterSpec(name));
+    KeyPair kp=kpg.generateKeyPair();
+    ECPublicKey pub=(ECPublicKey)kp.getPublic();
+    params=pub.getParams();
+    Q_array=toPoint(pub.getW(), fieldSize());
+    myKeyAgree=KeyAgreement.getInstance("ECDH");
+    myKeyAgree.init(kp.getPrivate());
+  }
+
+  public byte[] getQ() throws Exception{
+    return Q_array;
+  }
+
+  public byte[] getSecret(byte[] Q) throws Exception{
+    ECPoint w=fromPoint(Q, fieldSize());
+    KeyFactory kf=KeyFactory.getInstance("EC");
+    // key agreement rejects points which are not on the curve
+    PublicKey yourPubKey=kf.generatePublic(new ECPublicKeySpec(w, params));
+    myKeyAgree.doPhase(yourPubKey, true);
+    byte[] secret=myKeyAgree.generateSecret();
+    // shared secret is encoded as mpint, so leading zeros should go
+    int i=0;
+    while(i<secret.length-1 && secret[i]==0) i++;
+    if(i>0){
+      byte[] tmp=new byte[secret.length-i];
+      System.arraycopy(secret, i, tmp, 0, tmp.length);
+      secret=tmp;
+    }
+    return secret;
+  }
+
+  private int fieldSize(){
+    return (params.getCurve().getField().getFieldSize()+7)/8;
+  }
+
+  static byte[] toPoint(ECPoint w, int len){
+    byte[] r=new byte[1+2*len];
+    r[0]=0x04;
+    put(w.getAffineX(), r, 1, len);
+    put(w.getAffineY(), r, 1+len, len);
+    return r;
+  }
+
+  static ECPoint fromPoint(byte[] Q, int len) throws Exception{
+    if(Q.length!=1+2*len || Q[0]!=0x04){
+      throw new InvalidKeyException("Unsupported EC point encoding");
+    }
+    byte[] x=new byte[len];
+    byte[] y=new byte[len];
+    System.arraycopy(Q, 1, x, 0, len);
+    System.arraycopy(Q, 1+len, y, 0, len);
+    return new ECPoint(new BigInteger(1, x), new BigInteger(1, y));
+  }
+
+  private static void put(BigInteger v, byte[] r, int offs, int len){
+    byte[] b=v.toByteArray();
+    int n=Math.min(b.length, len);
+    System.arraycopy(b, b.length-n, r, offs+len-n, n);
+  }
+}
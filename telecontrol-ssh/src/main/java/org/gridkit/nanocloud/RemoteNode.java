@@ -127,4 +127,179 @@ public class RemoteNode extends ViConfigurable.Delegate {
 		config.setProp(SshSpiConf.REMOTE_JAR_CACHE, jarCachePath);
 		return this;
 	}	
+
+	/**
+	 * Limits size of remote jar cache, least recently used jars not in use
+	 * by running nodes are removed. Applied when connection to host is established.
+	 */
+	public RemoteNode setRemoteJarCacheLimit(long bytes) {
+		config.setProp(SshSpiConf.REMOTE_JAR_CACHE_LIMIT, String.valueOf(bytes));
+		return this;
+	}	
+
+	/**
+	 * Number of parallel tunnels to host, may improve throughput on high latency links.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setTunnelStripes(int stripes) {
+		config.setProp(SshSpiConf.REMOTE_TUNNEL_STRIPES, String.valueOf(stripes));
+		return this;
+	}	
+
+	/**
+	 * Enables compression of tunnel traffic, may improve throughput on constrained links.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setTunnelCompression(boolean enabled) {
+		config.setProp(SshSpiConf.REMOTE_TUNNEL_COMPRESSION, String.valueOf(enabled));
+		return this;
+	}	
+
+	/**
+	 * Number of SFTP channels used for uploads to host.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSftpParallelFactor(int channels) {
+		config.setProp(SshSpiConf.REMOTE_SFTP_PARALLEL_FACTOR, String.valueOf(channels));
+		return this;
+	}	
+
+	/**
+	 * Number of write requests kept in flight by each SFTP channel.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSftpBulkRequests(int requests) {
+		config.setProp(SshSpiConf.REMOTE_SFTP_BULK_REQUESTS, String.valueOf(requests));
+		return this;
+	}	
+
+	/**
+	 * SSH connections are shared by clouds in same JVM, unused connection
+	 * is closed after this timeout, 0 - close with last cloud using it.
+	 */
+	public RemoteNode setConsolePoolIdleTimeout(long millis) {
+		config.setProp(SshSpiConf.REMOTE_CONSOLE_POOL_IDLE_TIMEOUT, String.valueOf(millis));
+		return this;
+	}	
+
+	/**
+	 * Remote JVM version is cached on local disk and validated by Java binary
+	 * timestamp, disabling cache forces probe each time host is connected.
+	 */
+	public RemoteNode setHostProbeCache(boolean enabled) {
+		config.setProp(SshSpiConf.REMOTE_HOST_PROBE_CACHE, String.valueOf(enabled));
+		return this;
+	}	
+
+	/**
+	 * Hosts already having a jar serve it to other hosts, master uploads
+	 * each jar only to a few hosts. Hosts should be able to connect to each other.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setPeerDistribution(boolean enabled) {
+		config.setProp(SshSpiConf.REMOTE_PEER_DISTRIBUTION, String.valueOf(enabled));
+		return this;
+	}	
+
+	/**
+	 * Number of hosts this host serves at once in peer distribution.
+	 */
+	public RemoteNode setPeerFanOut(int fanOut) {
+		config.setProp(SshSpiConf.REMOTE_PEER_FAN_OUT, String.valueOf(fanOut));
+		return this;
+	}	
+
+	/**
+	 * Local address this host's peer file server is bound to, all interfaces by default.
+	 */
+	public RemoteNode setPeerBindAddress(String address) {
+		config.setProp(SshSpiConf.REMOTE_PEER_BIND_ADDRESS, address);
+		return this;
+	}	
+
+	/**
+	 * Port range (e.g. <code>40000-40100</code>) for this host's peer file server, e.g. to match firewall rules.
+	 */
+	public RemoteNode setPeerPortRange(String range) {
+		config.setProp(SshSpiConf.REMOTE_PEER_PORT_RANGE, range);
+		return this;
+	}	
+
+	/**
+	 * Address other hosts connect this host by, if host is known to master by a name
+	 * other hosts cannot resolve and address SSH connection is accepted on is not reachable either.
+	 */
+	public RemoteNode setPeerAddress(String address) {
+		config.setProp(SshSpiConf.REMOTE_PEER_ADDRESS, address);
+		return this;
+	}	
+
+	/**
+	 * Limits number of hosts connected simultaneously by cloud.
+	 * Applied when cloud connects its first host.
+	 */
+	public RemoteNode setConnectConcurrency(int hosts) {
+		config.setProp(SshSpiConf.REMOTE_CONNECT_CONCURRENCY, String.valueOf(hosts));
+		return this;
+	}	
+
+	/**
+	 * Connection to host failed due to network error is retried, delay is doubled after each retry.
+	 * Authentication failures are not retried.
+	 * Applied when cloud connects its first host.
+	 */
+	public RemoteNode setConnectRetries(int retries, long delayMillis) {
+		config.setProp(SshSpiConf.REMOTE_CONNECT_RETRIES, String.valueOf(retries));
+		config.setProp(SshSpiConf.REMOTE_CONNECT_RETRY_DELAY, String.valueOf(delayMillis));
+		return this;
+	}	
+
+	/**
+	 * Enables SSH transport compression with given zlib level (1-9), 0 - disables it.
+	 * Useful for slow links, CPU cost outweighs saving on fast network.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSshCompression(int level) {
+		config.setProp(SshSpiConf.REMOTE_SSH_COMPRESSION, String.valueOf(level));
+		return this;
+	}	
+
+	/**
+	 * Marks host as reached over slow link, SSH compression is enabled
+	 * unless configured explicitly.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setLowBandwidth(boolean lowBandwidth) {
+		config.setProp(SshSpiConf.REMOTE_LOW_BANDWIDTH, String.valueOf(lowBandwidth));
+		return this;
+	}	
+
+	/**
+	 * Initial flow control window of SSH channels, default window limits
+	 * throughput on links with large bandwidth-delay product.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSshWindowSize(int bytes) {
+		config.setProp(SshSpiConf.SSH_JSCH_OPTION + SshSpiConf.JSCH_CHANNEL_WINDOW_SIZE, String.valueOf(bytes));
+		return this;
+	}	
+
+	/**
+	 * Enables window auto-tuning, window grows (up to given limit) while
+	 * data arrives faster than round trip time allows for current window.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSshWindowAutoTune(int maxBytes) {
+		config.setProp(SshSpiConf.SSH_JSCH_OPTION + SshSpiConf.JSCH_CHANNEL_WINDOW_MAX, String.valueOf(maxBytes));
+		return this;
+	}	
+
+	/**
+	 * Maximum SSH packet size for channels.
+	 * Applied when connection to host is established.
+	 */
+	public RemoteNode setSshPacketSize(int bytes) {
+		config.setProp(SshSpiConf.SSH_JSCH_OPTION + SshSpiConf.JSCH_CHANNEL_PACKET_SIZE, String.valueOf(bytes));
+		return this;
+	}	
 }
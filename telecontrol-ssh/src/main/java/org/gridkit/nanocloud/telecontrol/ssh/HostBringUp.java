@@ -0,0 +1,200 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import org.gridkit.internal.com.jcraft.jsch.JSchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates connection to remote hosts of a cloud.
+ * <br/>
+ * Hosts are connected in parallel (by threads starting nodes), number of
+ * simultaneous connection attempts is limited. Attempt failed due to network
+ * problem is retried with exponential back off, other failures (e.g. authentication)
+ * are not retried, as repeated attempts could lock account.
+ * Time spent on each host is recorded and logged.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class HostBringUp {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostBringUp.class);
+
+	public static final int DEFAULT_CONCURRENCY = 32;
+	public static final int DEFAULT_RETRIES = 2;
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+	/** Back off is not growing past this, unless retry delay itself is longer */
+	public static final long MAX_RETRY_DELAY = 30000;
+
+	private final Semaphore permits;
+	private final int retries;
+	private final long retryDelay;
+	private final List<HostTiming> timings = new ArrayList<HostTiming>();
+
+	public HostBringUp(int concurrency, int retries, long retryDelay) {
+		this.permits = new Semaphore(concurrency, true);
+		this.retries = retries;
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Executes connection task, retrying it on failure.
+	 */
+	public <T> T connect(String host, Callable<T> task) {
+		HostTiming timing = new HostTiming(host);
+		long start = System.nanoTime();
+		try {
+			for(int attempt = 0; ; ++attempt) {
+				long queued = System.nanoTime();
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while waiting to connect " + host);
+				}
+				long started = System.nanoTime();
+				timing.queuedNanos += started - queued;
+				timing.attempts = attempt + 1;
+				try {
+					T result = task.call();
+					timing.connectNanos += System.nanoTime() - started;
+					return result;
+				}
+				catch(Exception e) {
+					timing.connectNanos += System.nanoTime() - started;
+					if (attempt >= retries || !isRetriable(e)) {
+						timing.error = e.toString();
+						if (e instanceof RuntimeException) {
+							throw (RuntimeException)e;
+						}
+						else {
+							throw new RuntimeException(e);
+						}
+					}
+					LOGGER.warn("Failed to connect " + host + " (attempt " + (attempt + 1) + " of " + (retries + 1) + "): " + e.toString());
+				}
+				finally {
+					permits.release();
+				}
+				try {
+					Thread.sleep(backOff(attempt));
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while waiting to connect " + host);
+				}
+			}
+		}
+		finally {
+			timing.totalNanos = System.nanoTime() - start;
+			synchronized(this) {
+				timings.add(timing);
+			}
+			if (timing.error == null) {
+				LOGGER.info("Host " + timing);
+			}
+			else {
+				LOGGER.warn("Host " + timing);
+			}
+		}
+	}
+
+	long backOff(int attempt) {
+		long cap = Math.max(retryDelay, MAX_RETRY_DELAY);
+		long delay = retryDelay;
+		for(int i = 0; i < attempt && delay < cap; ++i) {
+			delay <<= 1;
+		}
+		return Math.min(delay, cap);
+	}
+
+	/**
+	 * Network errors are retried. JSch reports socket errors either
+	 * as {@link JSchException} with cause or by message only.
+	 */
+	static boolean isRetriable(Throwable e) {
+		for(Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof IOException) {
+				return true;
+			}
+		}
+		for(Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof JSchException) {
+				String msg = String.valueOf(t.getMessage());
+				return msg.startsWith("timeout:")
+					|| msg.startsWith("connection is closed by foreign host")
+					|| msg.startsWith("java.net.")
+					|| msg.startsWith("java.io.")
+					|| msg.startsWith("Session.connect: java.net.")
+					|| msg.startsWith("Session.connect: java.io.");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return timings of connected (or failed) hosts in order of completion
+	 */
+	public synchronized List<HostTiming> getTimings() {
+		return new ArrayList<HostTiming>(timings);
+	}
+
+	public static class HostTiming {
+
+		String host;
+		int attempts;
+		long queuedNanos;
+		long connectNanos;
+		long totalNanos;
+		String error;
+
+		HostTiming(String host) {
+			this.host = host;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return time spent waiting for concurrency limit
+		 */
+		public long getQueuedNanos() {
+			return queuedNanos;
+		}
+
+		/**
+		 * @return time spent in connection attempts
+		 */
+		public long getConnectNanos() {
+			return connectNanos;
+		}
+
+		/**
+		 * @return total time including back off between attempts
+		 */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return last error or <code>null</code> if host is connected
+		 */
+		public String getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return host + (error == null ? " is up in " : " has failed in ")
+					+ String.format("%dms (connect %dms, queued %dms, %d attempt%s)", totalNanos / 1000000, connectNanos / 1000000, queuedNanos / 1000000, attempts, attempts == 1 ? "" : "s")
+					+ (error == null ? "" : ": " + error);
+		}
+	}
+}
@@ -2,12 +2,38 @@ package org.gridkit.nanocloud.telecontrol.ssh;
 
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_ADDRESS;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_JAR_CACHE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_JAR_CACHE_LIMIT;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_JAVA_EXEC;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_JSCH_PREFERED_AUTH;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_LOW_BANDWIDTH;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PEER_DISTRIBUTION;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PEER_FAN_OUT;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PEER_ADDRESS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PEER_BIND_ADDRESS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PEER_PORT_RANGE;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PASSWORD;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_PRIVATE_KEY_FILE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.JSCH_CHANNEL_PACKET_SIZE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.JSCH_CHANNEL_WINDOW_MAX;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.JSCH_CHANNEL_WINDOW_SIZE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SFTP_BULK_REQUESTS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SSH_COMPRESSION;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SSH_PACKET_SIZE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SSH_WINDOW_MAX;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SSH_WINDOW_SIZE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.KEY_SFTP_PARALLEL_FACTOR;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_BOOTSTRAP_JVM_EXEC;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_JAR_CACHE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_JAR_CACHE_LIMIT;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_LOW_BANDWIDTH;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_PEER_DISTRIBUTION;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_PEER_FAN_OUT;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_PEER_ADDRESS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_PEER_BIND_ADDRESS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_PEER_PORT_RANGE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SFTP_BULK_REQUESTS;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SFTP_PARALLEL_FACTOR;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_COMPRESSION;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_JSCH_OPTION;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_PASSWORD;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_PRIVATE_KEY_FILE;
@@ -129,7 +155,20 @@ public class HostConfigurationInitializer implements Interceptor {
 			}
 			ec.put(SPI_BOOTSTRAP_JVM_EXEC, wp.get(key + "!" + KEY_JAVA_EXEC));
 			ec.put(SPI_JAR_CACHE, wp.get(key + "!" + KEY_JAR_CACHE));
+			ec.put(SPI_JAR_CACHE_LIMIT, wp.get(key + "!" + KEY_JAR_CACHE_LIMIT));
+			ec.put(SPI_SFTP_PARALLEL_FACTOR, wp.get(key + "!" + KEY_SFTP_PARALLEL_FACTOR));
+			ec.put(SPI_SFTP_BULK_REQUESTS, wp.get(key + "!" + KEY_SFTP_BULK_REQUESTS));
+			ec.put(SPI_SSH_COMPRESSION, wp.get(key + "!" + KEY_SSH_COMPRESSION));
+			ec.put(SPI_LOW_BANDWIDTH, wp.get(key + "!" + KEY_LOW_BANDWIDTH));
+			ec.put(SPI_PEER_DISTRIBUTION, wp.get(key + "!" + KEY_PEER_DISTRIBUTION));
+			ec.put(SPI_PEER_FAN_OUT, wp.get(key + "!" + KEY_PEER_FAN_OUT));
+			ec.put(SPI_PEER_BIND_ADDRESS, wp.get(key + "!" + KEY_PEER_BIND_ADDRESS));
+			ec.put(SPI_PEER_PORT_RANGE, wp.get(key + "!" + KEY_PEER_PORT_RANGE));
+			ec.put(SPI_PEER_ADDRESS, wp.get(key + "!" + KEY_PEER_ADDRESS));
 			ec.put(SPI_SSH_JSCH_OPTION + "PreferredAuthentications", wp.get(key + "!" + KEY_JSCH_PREFERED_AUTH));
+			ec.put(SPI_SSH_JSCH_OPTION + JSCH_CHANNEL_WINDOW_SIZE, wp.get(key + "!" + KEY_SSH_WINDOW_SIZE));
+			ec.put(SPI_SSH_JSCH_OPTION + JSCH_CHANNEL_WINDOW_MAX, wp.get(key + "!" + KEY_SSH_WINDOW_MAX));
+			ec.put(SPI_SSH_JSCH_OPTION + JSCH_CHANNEL_PACKET_SIZE, wp.get(key + "!" + KEY_SSH_PACKET_SIZE));
 		}
 	}
 }
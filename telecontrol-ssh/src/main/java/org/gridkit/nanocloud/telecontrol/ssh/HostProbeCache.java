@@ -0,0 +1,279 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.gridkit.nanocloud.telecontrol.HostControlConsole;
+import org.gridkit.nanocloud.telecontrol.SimpleTunnelInitiator.JavaVersionCache;
+import org.gridkit.vicluster.telecontrol.ssh.SshHostControlConsole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of remote host probes, so known host is connected
+ * without running <code>java -version</code> on it.
+ * <br/>
+ * Probes are stored in properties file (<code>~/.nanocloud/host-probes.properties</code>
+ * by default) keyed by account, host and Java command. Cached probe is validated
+ * by modification time and size of Java binary (single SFTP request) and
+ * expires after TTL, so change of <code>PATH</code> is noticed eventually.
+ * Binary path and its attributes are collected by same remote command
+ * as <code>java -version</code>, so probing a new host costs no extra requests.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class HostProbeCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostProbeCache.class);
+
+	/**
+	 * System property to override location of cache file.
+	 */
+	public static final String CACHE_FILE_PROP = "org.gridkit.nanocloud.host-probe-cache";
+
+	public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000l;
+
+	private static final String PROBE_PREFIX = "#probe ";
+
+	private static HostProbeCache INSTANCE;
+
+	public static synchronized HostProbeCache getInstance() {
+		if (INSTANCE == null) {
+			String path = System.getProperty(CACHE_FILE_PROP);
+			File file = path != null ? new File(path) : new File(new File(System.getProperty("user.home"), ".nanocloud"), "host-probes.properties");
+			INSTANCE = new HostProbeCache(file, DEFAULT_TTL);
+		}
+		return INSTANCE;
+	}
+
+	private final File file;
+	private final long ttl;
+	private Properties props = new Properties();
+	private long loadedTimestamp = -1;
+
+	public HostProbeCache(File file, long ttl) {
+		this.file = file;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return probe or <code>null</code> if there is no probe or it has expired
+	 */
+	public synchronized JavaProbe getJavaProbe(String hostKey, String javaCmd) {
+		reload();
+		String value = props.getProperty(key(hostKey, javaCmd));
+		JavaProbe probe = value == null ? null : JavaProbe.parse(value);
+		if (probe != null && System.currentTimeMillis() - probe.timestamp > ttl) {
+			return null;
+		}
+		return probe;
+	}
+
+	public synchronized void putJavaProbe(String hostKey, String javaCmd, JavaProbe probe) {
+		// other processes may have updated file
+		reload();
+		props.setProperty(key(hostKey, javaCmd), probe.format());
+		store();
+	}
+
+	public synchronized void removeJavaProbe(String hostKey, String javaCmd) {
+		reload();
+		if (props.remove(key(hostKey, javaCmd)) != null) {
+			store();
+		}
+	}
+
+	/**
+	 * @param hostKey <code>account@host</code>
+	 * @return view used by tunnel initiator, probes are validated via {@link SshHostControlConsole}
+	 */
+	public JavaVersionCache forHost(final String hostKey) {
+		return new JavaVersionCache() {
+
+			@Override
+			public String get(HostControlConsole console, String javaCmd) {
+				JavaProbe probe = getJavaProbe(hostKey, javaCmd);
+				if (probe == null || !(console instanceof SshHostControlConsole)) {
+					return null;
+				}
+				long[] stat = ((SshHostControlConsole)console).stat(probe.binary);
+				if (stat == null || stat[0] != probe.mtime || stat[1] != probe.size) {
+					LOGGER.debug("Java binary " + hostKey + ":" + probe.binary + " has changed, probe is discarded");
+					removeJavaProbe(hostKey, javaCmd);
+					return null;
+				}
+				return probe.version;
+			}
+
+			@Override
+			public String[] getProbeCommand(HostControlConsole console, String javaCmd) {
+				return console instanceof SshHostControlConsole ? new String[]{probeCommand(javaCmd)} : null;
+			}
+
+			@Override
+			public void put(HostControlConsole console, String javaCmd, String version, String probeOutput) {
+				JavaProbe probe = parseProbe(version, probeOutput, System.currentTimeMillis());
+				if (probe == null) {
+					// probe which cannot be validated is not cached
+					LOGGER.debug("Java binary " + hostKey + ":" + javaCmd + " cannot be resolved, probe is not cached");
+					return;
+				}
+				putJavaProbe(hostKey, javaCmd, probe);
+			}
+		};
+	}
+
+	/**
+	 * Shell command resolving Java binary, printing its path, mtime (seconds) and size
+	 * to stdout (GNU or BSD <code>stat</code>), followed by <code>java -version</code>.
+	 */
+	static String probeCommand(String javaCmd) {
+		String cmd = "\"" + javaCmd + "\"";
+		return "p=$(command -v " + cmd + "); "
+				+ "echo \"" + PROBE_PREFIX + "$(stat -L -c '%Y %s' \"$p\" 2>/dev/null || stat -L -f '%m %z' \"$p\" 2>/dev/null) $p\"; "
+				+ cmd + " -version";
+	}
+
+	/**
+	 * @return probe or <code>null</code> if output has no resolved binary
+	 */
+	static JavaProbe parseProbe(String version, String probeOutput, long timestamp) {
+		for(String line: probeOutput.split("\r?\n")) {
+			if (!line.startsWith(PROBE_PREFIX)) {
+				continue;
+			}
+			String[] parts = line.substring(PROBE_PREFIX.length()).split(" ", 3);
+			// aliases and shell functions are not executables
+			if (parts.length < 3 || !parts[2].startsWith("/")) {
+				return null;
+			}
+			try {
+				return new JavaProbe(version, parts[2], 1000l * Long.parseLong(parts[0]), Long.parseLong(parts[1]), timestamp);
+			}
+			catch(NumberFormatException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static String key(String hostKey, String javaCmd) {
+		return hostKey + "|" + javaCmd;
+	}
+
+	private void reload() {
+		long ts = file.lastModified();
+		if (ts == loadedTimestamp) {
+			return;
+		}
+		Properties p = new Properties();
+		if (ts != 0) {
+			try {
+				FileInputStream fis = new FileInputStream(file);
+				try {
+					p.load(fis);
+				}
+				finally {
+					fis.close();
+				}
+			}
+			catch(IOException e) {
+				LOGGER.debug("Failed to read " + file.getPath() + ": " + e.toString());
+			}
+		}
+		props = p;
+		loadedTimestamp = ts;
+	}
+
+	/**
+	 * Cache is advisory, failure to write it is not an error.
+	 */
+	private void store() {
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				props.store(fos, "Remote host probes");
+			}
+			finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// Windows would not rename over existing file
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+				}
+			}
+			loadedTimestamp = file.lastModified();
+		}
+		catch(IOException e) {
+			LOGGER.debug("Failed to write " + file.getPath() + ": " + e.toString());
+		}
+	}
+
+	public static class JavaProbe {
+
+		final String version;
+		final String binary;
+		final long mtime;
+		final long size;
+		final long timestamp;
+
+		public JavaProbe(String version, String binary, long mtime, long size, long timestamp) {
+			this.version = version;
+			this.binary = binary;
+			this.mtime = mtime;
+			this.size = size;
+			this.timestamp = timestamp;
+		}
+
+		static JavaProbe parse(String value) {
+			String[] parts = value.split("[|]", 5);
+			if (parts.length < 5) {
+				return null;
+			}
+			try {
+				return new JavaProbe(parts[0], parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+			}
+			catch(NumberFormatException e) {
+				return null;
+			}
+		}
+
+		String format() {
+			return version + "|" + mtime + "|" + size + "|" + timestamp + "|" + binary;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return absolute path of Java binary on remote host
+		 */
+		public String getBinary() {
+			return binary;
+		}
+
+		public long getMtime() {
+			return mtime;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return time of probe
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+}
@@ -3,31 +3,45 @@ package org.gridkit.nanocloud.telecontrol.ssh;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_JSCH_OPTION;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_PASSWORD;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SPI_SSH_PRIVATE_KEY_FILE;
+import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SSH_JSCH_OPTION;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SSH_PASSWORD;
 import static org.gridkit.nanocloud.telecontrol.ssh.SshSpiConf.SSH_PRIVATE_KEY_FILE;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import org.gridkit.internal.com.jcraft.jsch.JSchException;
 import org.gridkit.internal.com.jcraft.jsch.Session;
+import org.gridkit.internal.com.jcraft.jsch.jce.Compression;
 import org.gridkit.nanocloud.telecontrol.HostControlConsole;
+import org.gridkit.nanocloud.telecontrol.PeerFileDistributor;
 import org.gridkit.nanocloud.telecontrol.SimpleTunnelInitiator;
-import org.gridkit.nanocloud.telecontrol.TunnellerInitiator;
+import org.gridkit.nanocloud.telecontrol.StripedControlConsole;
+import org.gridkit.nanocloud.telecontrol.ssh.SshConsolePool.PooledConsole;
 import org.gridkit.vicluster.CloudContext;
 import org.gridkit.vicluster.CloudContext.ServiceKey;
 import org.gridkit.vicluster.CloudContext.ServiceProvider;
+import org.gridkit.vicluster.StartupTimeline;
 import org.gridkit.vicluster.ViConf;
 import org.gridkit.vicluster.ViEngine.InductiveRule;
 import org.gridkit.vicluster.ViEngine.QuorumGame;
 import org.gridkit.vicluster.telecontrol.FileBlob;
-import org.gridkit.vicluster.telecontrol.StreamCopyService;
+import org.gridkit.vicluster.telecontrol.bootstraper.CacheManager;
 import org.gridkit.vicluster.telecontrol.ssh.SimpleSshSessionProvider;
+import org.gridkit.util.concurrent.FutureBox;
 import org.gridkit.vicluster.telecontrol.ssh.SshHostControlConsole;
 import org.gridkit.zerormi.zlog.ZLogFactory;
 
 public class RemoteConsoleInitializer implements InductiveRule {
 
+	public static final int DEFAULT_SSH_COMPRESSION_LEVEL = 6;
+
 	@Override
 	public boolean apply(QuorumGame game) {
 		if (game.get(SshSpiConf.SPI_SSH_TARGET_HOST) != null && game.get(SshSpiConf.SPI_SSH_TARGET_ACCOUNT) != null) {
@@ -115,6 +129,195 @@ public class RemoteConsoleInitializer implements InductiveRule {
 		return path;
 	}
 
+	/**
+	 * Node pragma takes precedence over host configuration.
+	 * @return size limit in bytes, 0 - unlimited
+	 */
+	protected long resolveJarCacheLimit(QuorumGame game) {
+		String key = SshSpiConf.REMOTE_JAR_CACHE_LIMIT;
+		String value = game.get(key);
+		if (value == null) {
+			key = SshSpiConf.SPI_JAR_CACHE_LIMIT;
+			value = game.get(key);
+		}
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return CacheManager.parseSize(value);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid " + key + " value: " + value);
+		}
+	}
+
+	protected int resolveTunnelStripes(QuorumGame game) {
+		return resolvePositiveInt(game, SshSpiConf.REMOTE_TUNNEL_STRIPES, 1);
+	}
+
+	/**
+	 * Node pragma takes precedence over host configuration.
+	 */
+	protected int resolveSftpParallelFactor(QuorumGame game) {
+		if (game.get(SshSpiConf.REMOTE_SFTP_PARALLEL_FACTOR) == null) {
+			return resolvePositiveInt(game, SshSpiConf.SPI_SFTP_PARALLEL_FACTOR, 1);
+		}
+		return resolvePositiveInt(game, SshSpiConf.REMOTE_SFTP_PARALLEL_FACTOR, 1);
+	}
+
+	protected int resolveSftpBulkRequests(QuorumGame game) {
+		if (game.get(SshSpiConf.REMOTE_SFTP_BULK_REQUESTS) == null) {
+			return resolvePositiveInt(game, SshSpiConf.SPI_SFTP_BULK_REQUESTS, SshHostControlConsole.DEFAULT_SFTP_BULK_REQUESTS);
+		}
+		return resolvePositiveInt(game, SshSpiConf.REMOTE_SFTP_BULK_REQUESTS, SshHostControlConsole.DEFAULT_SFTP_BULK_REQUESTS);
+	}
+
+	private int resolvePositiveInt(QuorumGame game, String key, int defaultValue) {
+		String value = game.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n < 1) {
+				throw new NumberFormatException();
+			}
+			return n;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + key + " value: " + value);
+		}
+	}
+
+	/**
+	 * Idle timeout of pooled console in milliseconds, 0 - console is terminated with last cloud using it.
+	 */
+	protected long resolvePoolIdleTimeout(QuorumGame game) {
+		return resolveNonNegativeLong(game, SshSpiConf.REMOTE_CONSOLE_POOL_IDLE_TIMEOUT, SshConsolePool.DEFAULT_IDLE_TIMEOUT);
+	}
+
+	protected int resolveConnectConcurrency(QuorumGame game) {
+		return resolvePositiveInt(game, SshSpiConf.REMOTE_CONNECT_CONCURRENCY, HostBringUp.DEFAULT_CONCURRENCY);
+	}
+
+	protected int resolveConnectRetries(QuorumGame game) {
+		return (int)Math.min(Integer.MAX_VALUE, resolveNonNegativeLong(game, SshSpiConf.REMOTE_CONNECT_RETRIES, HostBringUp.DEFAULT_RETRIES));
+	}
+
+	protected long resolveConnectRetryDelay(QuorumGame game) {
+		return resolveNonNegativeLong(game, SshSpiConf.REMOTE_CONNECT_RETRY_DELAY, HostBringUp.DEFAULT_RETRY_DELAY);
+	}
+
+	private long resolveNonNegativeLong(QuorumGame game, String key, long defaultValue) {
+		String value = game.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long n = Long.parseLong(value.trim());
+			if (n < 0) {
+				throw new NumberFormatException();
+			}
+			return n;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + key + " value: " + value);
+		}
+	}
+
+	/**
+	 * Node pragma takes precedence over host configuration,
+	 * low bandwidth hosts use {@link #DEFAULT_SSH_COMPRESSION_LEVEL} unless configured explicitly.
+	 * @return zlib level or 0 if compression is off
+	 */
+	protected int resolveSshCompression(QuorumGame game) {
+		String value = game.get(SshSpiConf.REMOTE_SSH_COMPRESSION);
+		String key = SshSpiConf.REMOTE_SSH_COMPRESSION;
+		if (value == null) {
+			value = game.get(SshSpiConf.SPI_SSH_COMPRESSION);
+			key = SshSpiConf.SPI_SSH_COMPRESSION;
+		}
+		if (value == null) {
+			String lowBandwidth = game.get(SshSpiConf.REMOTE_LOW_BANDWIDTH);
+			if (lowBandwidth == null) {
+				lowBandwidth = game.get(SshSpiConf.SPI_LOW_BANDWIDTH);
+			}
+			return lowBandwidth != null && Boolean.parseBoolean(lowBandwidth.trim()) ? DEFAULT_SSH_COMPRESSION_LEVEL : 0;
+		}
+		value = value.trim();
+		if ("true".equalsIgnoreCase(value)) {
+			return DEFAULT_SSH_COMPRESSION_LEVEL;
+		}
+		else if ("false".equalsIgnoreCase(value)) {
+			return 0;
+		}
+		try {
+			int n = Integer.parseInt(value);
+			if (n < 0 || n > 9) {
+				throw new NumberFormatException();
+			}
+			return n;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + key + " value: " + value);
+		}
+	}
+
+	protected boolean resolveHostProbeCache(QuorumGame game) {
+		String enabled = game.get(SshSpiConf.REMOTE_HOST_PROBE_CACHE);
+		return enabled == null || Boolean.parseBoolean(enabled.trim());
+	}
+
+	/**
+	 * Node pragma takes precedence over host configuration.
+	 */
+	protected boolean resolvePeerDistribution(QuorumGame game) {
+		String enabled = game.get(SshSpiConf.REMOTE_PEER_DISTRIBUTION);
+		if (enabled == null) {
+			enabled = game.get(SshSpiConf.SPI_PEER_DISTRIBUTION);
+		}
+		return enabled != null && Boolean.parseBoolean(enabled.trim());
+	}
+
+	protected int resolvePeerFanOut(QuorumGame game) {
+		String key = SshSpiConf.REMOTE_PEER_FAN_OUT;
+		String value = game.get(key);
+		if (value == null) {
+			key = SshSpiConf.SPI_PEER_FAN_OUT;
+			value = game.get(key);
+		}
+		if (value == null) {
+			return PeerFileDistributor.DEFAULT_FAN_OUT;
+		}
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n < 1) {
+				throw new NumberFormatException();
+			}
+			return n;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + key + " value: " + value);
+		}
+	}
+
+	/**
+	 * Node pragma takes precedence over host configuration.
+	 * @return <code>null</code> if not set
+	 */
+	protected String resolvePeerServerOption(QuorumGame game, String pragma, String spiKey) {
+		String value = game.get(pragma);
+		if (value == null) {
+			value = game.get(spiKey);
+		}
+		return value == null ? null : value.trim();
+	}
+
+	protected boolean resolveTunnelCompression(QuorumGame game) {
+		String compression = game.get(SshSpiConf.REMOTE_TUNNEL_COMPRESSION);
+		return compression != null && Boolean.parseBoolean(compression.trim());
+	}
+
 	protected String resolvePassword(QuorumGame game) {
 		String password = game.get(SSH_PASSWORD);
 		if (password == null) {
@@ -131,12 +334,60 @@ public class RemoteConsoleInitializer implements InductiveRule {
 		return keyFile;
 	}
 
+	/**
+	 * Console is shared only by nodes which would create identical console,
+	 * credentials and connection settings are part of key (as digest, so key could be logged).
+	 */
+	protected String resolvePoolKey(QuorumGame game, String hostName, String bootCmd, String cachePath) {
+		Map<String, String> settings = new TreeMap<String, String>();
+		settings.put("password", resolvePassword(game));
+		settings.put("key-file", resolveKeyFile(game));
+		for(String key: game.getConfigProps(SPI_SSH_JSCH_OPTION).keySet()) {
+			settings.put(key, (String)game.get(key));
+		}
+		for(String key: game.getConfigProps(SSH_JSCH_OPTION).keySet()) {
+			settings.put(key, (String)game.get(key));
+		}
+		settings.put("ssh-compression", String.valueOf(resolveSshCompression(game)));
+		settings.put("tunnel-compression", String.valueOf(resolveTunnelCompression(game)));
+		settings.put("tunnel-stripes", String.valueOf(resolveTunnelStripes(game)));
+		settings.put("jar-cache-limit", String.valueOf(resolveJarCacheLimit(game)));
+		settings.put("sftp-parallel-factor", String.valueOf(resolveSftpParallelFactor(game)));
+		settings.put("sftp-bulk-requests", String.valueOf(resolveSftpBulkRequests(game)));
+		settings.put("host-probe-cache", String.valueOf(resolveHostProbeCache(game)));
+		boolean peers = resolvePeerDistribution(game);
+		settings.put("peer-distribution", String.valueOf(peers));
+		if (peers) {
+			settings.put("peer-fan-out", String.valueOf(resolvePeerFanOut(game)));
+			settings.put("peer-bind-address", resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_BIND_ADDRESS, SshSpiConf.SPI_PEER_BIND_ADDRESS));
+			settings.put("peer-port-range", resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_PORT_RANGE, SshSpiConf.SPI_PEER_PORT_RANGE));
+			settings.put("peer-address", resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_ADDRESS, SshSpiConf.SPI_PEER_ADDRESS));
+		}
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, String> e: settings.entrySet()) {
+			sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		}
+		StringBuilder digest = new StringBuilder();
+		try {
+			for(byte b: MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"))) {
+				digest.append(Integer.toHexString(0xF & (b >> 4)));
+				digest.append(Integer.toHexString(0xF & b));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return hostName + "|" + bootCmd + "|" + cachePath + "|" + digest;
+	}
+
 	private class TunnelInitializer implements ServiceProvider<HostControlConsole> {
 
 		private ServiceKey<HostControlConsole> key;
 		private QuorumGame game;
 		private CloudContext cloudContext;
-		private HostControlConsole console;
+		private PooledConsole console;
+		private boolean finalizerAdded;
 		private HostConsoleWrapper consoleWrapper = new HostConsoleWrapper(this);
 		
 		public TunnelInitializer(ServiceKey<HostControlConsole> key, QuorumGame game) {
@@ -144,13 +395,13 @@ public class RemoteConsoleInitializer implements InductiveRule {
 			this.game = game;
 		}
 
+		/**
+		 * Connection is established lazily on first use of console,
+		 * so nodes on different hosts are not serialized on cloud context.
+		 */
 		@Override
 		public HostControlConsole getService(CloudContext context) {
-		    if (console == null) {
-		        this.cloudContext = context;
-		        ensureConsole();
-		    }
-		    
+		    this.cloudContext = context;
 		    return consoleWrapper; 
 		}
 		
@@ -166,14 +417,91 @@ public class RemoteConsoleInitializer implements InductiveRule {
 			String bootCmd = resolveBootCmd(game);
 			String cachePath = resolveCachePath(game);
 
+			final String hostName = account + "@" + host;
+			final HostBringUp bringUp = context.lookup(CloudContext.Helper.key(HostBringUp.class), new Callable<HostBringUp>() {
+				@Override
+				public HostBringUp call() {
+					return new HostBringUp(resolveConnectConcurrency(game), resolveConnectRetries(game), resolveConnectRetryDelay(game));
+				}
+			});
+			String poolKey = resolvePoolKey(game, hostName, bootCmd, cachePath);
+			console = SshConsolePool.getInstance().acquire(poolKey, resolvePoolIdleTimeout(game), new Callable<HostControlConsole>() {
+				@Override
+				public HostControlConsole call() {
+					return bringUp.connect(hostName, new Callable<HostControlConsole>() {
+						@Override
+						public HostControlConsole call() {
+							return createConsole();
+						}
+					});
+				}
+			});
+			if (!finalizerAdded) {
+				finalizerAdded = true;
+				// lease is returned to pool with cloud shutdown
+				context.addFinalizer(new Runnable() {
+					@Override
+					public void run() {
+						consoleWrapper.terminate();
+					}
+				});
+			}
+			
+			ServiceKey<HostControlConsole> key2 = CloudContext.Helper.key(HostControlConsole.class);
+			key2 = key2.with("host", host).with("account", account);
+			if (!key.equals(key2)) {
+				context.lookup(key2, this);
+			}
+			ServiceKey<HostControlConsole> key3;
+			key3 = key2.with("java", bootCmd);
+			if (!key.equals(key3)) {
+				context.lookup(key3, this);
+			}
+			key3 = key2.with("cache-path", cachePath);
+			if (!key.equals(key3)) {
+				context.lookup(key3, this);
+			}
+			key3 = key2.with("java", bootCmd).with("cache-path", cachePath);
+			if (!key.equals(key3)) {
+				context.lookup(key3, this);
+			}
+		}
+
+		HostControlConsole createConsole() {
+			String host = getHost(game);
+			String account = getAccount(game);
+			String bootCmd = resolveBootCmd(game);
+			String cachePath = resolveCachePath(game);
+
+			HostControlConsole console;
+
 			SimpleSshSessionProvider factory = new SimpleSshSessionProvider();
 			factory.setUser(account);
 
+			int compression = resolveSshCompression(game);
+			if (compression > 0) {
+				// delayed compression is preferred, so authentication is not compressed
+				factory.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+				factory.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+				factory.setConfig("compression_level", String.valueOf(compression));
+				// jzlib is optional dependency, JDK based implementation is used instead
+				// unless JDK is too old (Java 6), jzlib is required then
+				if (Compression.isSupported()) {
+					factory.setConfig("zlib", Compression.class.getName());
+					factory.setConfig("zlib@openssh.com", Compression.class.getName());
+				}
+			}
+
 			// TODO JSch options
 			for(String key: game.getConfigProps(SPI_SSH_JSCH_OPTION).keySet()) {
 				String opt = key.substring(SPI_SSH_JSCH_OPTION.length());
 				factory.setConfig(opt, (String)game.get(key));
 			}
+			// node pragmas take precedence over host configuration
+			for(String key: game.getConfigProps(SSH_JSCH_OPTION).keySet()) {
+				String opt = key.substring(SSH_JSCH_OPTION.length());
+				factory.setConfig(opt, (String)game.get(key));
+			}
 			
 			String password = resolvePassword(game);
 			String keyFile = resolveKeyFile(game);
@@ -185,37 +513,92 @@ public class RemoteConsoleInitializer implements InductiveRule {
 				factory.setKeyFile(keyFile);
 			}
 			
+			// connection cost is attributed to node which has triggered it
+			StartupTimeline timeline = (StartupTimeline)game.getProp(ViConf.SPI_STARTUP_TIMELINE);
+
 			Session session;
+			StartupTimeline.Step step = StartupTimeline.begin(timeline, "ssh-connect");
 			try {
 				session = factory.getSession(host, account);
 			} catch (JSchException e) {
 				throw new RuntimeException(e);
 			}
-			SshHostControlConsole shhConsole = new SshHostControlConsole(session, cachePath, true, 1);
+			step.end();
+			step = StartupTimeline.begin(timeline, "tunnel-init");
+			final SshHostControlConsole shhConsole = new SshHostControlConsole(session, cachePath, true, resolveSftpParallelFactor(game), resolveSftpBulkRequests(game));
 			// TODO logger configuration
-			TunnellerInitiator initiator = new SimpleTunnelInitiator(bootCmd, cachePath, context.lookup(CloudContext.Helper.key(StreamCopyService.class)), ZLogFactory.getDefaultRootLogger());
-			console = initiator.initTunnel(shhConsole);
-			
-			ServiceKey<HostControlConsole> key2 = CloudContext.Helper.key(HostControlConsole.class);
-			key2 = key2.with("host", host).with("account", account);
-			if (!key.equals(key2)) {
-				context.lookup(key2, this);
-			}
-			ServiceKey<HostControlConsole> key3;
-			key3 = key2.with("java", bootCmd);
-			if (!key.equals(key3)) {
-				context.lookup(key3, this);
+			// console outlives the cloud, so it cannot use cloud's copy service
+			final SimpleTunnelInitiator initiator = new SimpleTunnelInitiator(bootCmd, cachePath, SshConsolePool.getInstance().getStreamCopyService(), ZLogFactory.getDefaultRootLogger());
+			initiator.setTunnelName(account + "@" + host);
+			initiator.setCompression(resolveTunnelCompression(game));
+			initiator.setCacheSizeLimit(resolveJarCacheLimit(game));
+			if (resolveHostProbeCache(game)) {
+				initiator.setVersionCache(HostProbeCache.getInstance().forHost(account + "@" + host));
 			}
-			key3 = key2.with("cache-path", cachePath);
-			if (!key.equals(key3)) {
-				context.lookup(key3, this);
+			if (resolvePeerDistribution(game)) {
+				// host name is used only if agent cannot tell its address
+				initiator.setPeerDistribution(PeerFileDistributor.getInstance(), host, resolvePeerFanOut(game));
+				initiator.setPeerServer(
+						resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_BIND_ADDRESS, SshSpiConf.SPI_PEER_BIND_ADDRESS),
+						resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_PORT_RANGE, SshSpiConf.SPI_PEER_PORT_RANGE),
+						resolvePeerServerOption(game, SshSpiConf.REMOTE_PEER_ADDRESS, SshSpiConf.SPI_PEER_ADDRESS));
 			}
-			key3 = key2.with("java", bootCmd).with("cache-path", cachePath);
-			if (!key.equals(key3)) {
-				context.lookup(key3, this);
+			console = initiator.initTunnel(shhConsole);
+			int stripes = resolveTunnelStripes(game);
+			if (stripes > 1) {
+				// each tunnel is a separate SSH channel of same session
+				// first tunnel has uploaded agent jar, others are started in parallel
+				List<FutureBox<HostControlConsole>> extra = new ArrayList<FutureBox<HostControlConsole>>();
+				for(int i = 1; i < stripes; ++i) {
+					final FutureBox<HostControlConsole> box = new FutureBox<HostControlConsole>();
+					extra.add(box);
+					Thread thread = new Thread("TunnelInit[" + host + "#" + i + "]") {
+						@Override
+						public void run() {
+							try {
+								box.setData(initiator.initTunnel(shhConsole));
+							}
+							catch(Throwable e) {
+								box.setError(e);
+							}
+						}
+					};
+					thread.setDaemon(true);
+					thread.start();
+				}
+				List<HostControlConsole> consoles = new ArrayList<HostControlConsole>();
+				consoles.add(console);
+				Throwable error = null;
+				for(FutureBox<HostControlConsole> box: extra) {
+					try {
+						consoles.add(box.get());
+					}
+					catch(Exception e) {
+						error = e;
+					}
+				}
+				if (error != null) {
+					for(HostControlConsole c: consoles) {
+						c.terminate();
+					}
+					console = null;
+					throw new RuntimeException("Failed to start tunnel to " + host, error);
+				}
+				console = new StripedControlConsole(consoles);
 			}
+			step.end();
 
-			// TODO shutdown hook
+			return console;
+		}
+
+		/**
+		 * Console has failed, it is removed from pool, so next call would reconnect.
+		 */
+		void discardConsole() {
+			if (console != null) {
+				console.invalidate();
+				console = null;
+			}
 		}
 	}
 	
@@ -235,7 +618,7 @@ public class RemoteConsoleInitializer implements InductiveRule {
                     return initializer.console.cacheFile(blob);
                 }
                 catch(Exception e) {
-                    initializer.console = null;
+                    initializer.discardConsole();
                     throw throwAny(e);
                 }
             }
@@ -249,7 +632,7 @@ public class RemoteConsoleInitializer implements InductiveRule {
                     return initializer.console.cacheFiles(blobs);
                 }
                 catch(Exception e) {
-                    initializer.console = null;
+                    initializer.discardConsole();
                     throw throwAny(e);
                 }
             }
@@ -263,7 +646,7 @@ public class RemoteConsoleInitializer implements InductiveRule {
                     return initializer.console.openSocket(handler);
                 }
                 catch(Exception e) {
-                    initializer.console = null;
+                    initializer.discardConsole();
                     throw throwAny(e);
                 }
             }
@@ -277,7 +660,7 @@ public class RemoteConsoleInitializer implements InductiveRule {
                     return initializer.console.startProcess(workDir, command, env, handler);
                 }
                 catch(Exception e) {
-                    initializer.console = null;
+                    initializer.discardConsole();
                     throw throwAny(e);
                 }
             }
@@ -0,0 +1,295 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gridkit.nanocloud.telecontrol.HostControlConsole;
+import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.gridkit.vicluster.telecontrol.StreamCopyService;
+import org.gridkit.vicluster.telecontrol.StreamCopyThread;
+
+/**
+ * Process wide pool of host consoles (authenticated SSH session with started tunnel).
+ * <br/>
+ * Clouds created one after another in same JVM (e.g. cloud per test) reuse
+ * connections instead of doing handshake and tunnel bootstrap each time.
+ * Consoles are reference counted, unused console is terminated after idle timeout.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class SshConsolePool {
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private static final SshConsolePool INSTANCE = new SshConsolePool();
+
+	public static SshConsolePool getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private Timer timer;
+
+	private StreamCopyService streamCopyService;
+
+	/**
+	 * Returns lease for pooled console, console is created if there is no live one for the key.
+	 * Lease should be released via {@link HostControlConsole#terminate()}.
+	 */
+	public PooledConsole acquire(String key, long idleTimeout, Callable<HostControlConsole> factory) {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = new Entry(key);
+				entries.put(key, entry);
+			}
+			entry.refCount++;
+			entry.idleTimeout = idleTimeout;
+			if (entry.eviction != null) {
+				entry.eviction.cancel();
+				entry.eviction = null;
+			}
+		}
+		try {
+			// connection is established outside of pool lock, so different hosts are connected in parallel
+			entry.ensureConsole(factory);
+		}
+		catch(RuntimeException e) {
+			invalidate(entry);
+			release(entry);
+			throw e;
+		}
+		return new Lease(entry);
+	}
+
+	/**
+	 * Pooled consoles outlive cloud they were created for, so they
+	 * should not use cloud's services. This one lives as long as pool.
+	 */
+	public synchronized StreamCopyService getStreamCopyService() {
+		if (streamCopyService == null) {
+			StreamCopyThread copier = new StreamCopyThread();
+			copier.setName("SshConsolePool.StreamCopy");
+			streamCopyService = copier;
+		}
+		return streamCopyService;
+	}
+
+	/**
+	 * @return number of consoles in pool, including idle ones
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Terminates all idle consoles.
+	 */
+	public void evictIdle() {
+		List<Entry> idle = new ArrayList<Entry>();
+		synchronized(this) {
+			for(Entry entry: entries.values()) {
+				if (entry.refCount == 0) {
+					idle.add(entry);
+				}
+			}
+			for(Entry entry: idle) {
+				entries.remove(entry.key);
+				if (entry.eviction != null) {
+					entry.eviction.cancel();
+					entry.eviction = null;
+				}
+			}
+		}
+		for(Entry entry: idle) {
+			entry.close();
+		}
+	}
+
+	private void release(final Entry entry) {
+		boolean close = false;
+		synchronized(this) {
+			entry.refCount--;
+			if (entry.refCount > 0) {
+				return;
+			}
+			if (entries.get(entry.key) != entry) {
+				// already invalidated
+				close = true;
+			}
+			else if (entry.idleTimeout <= 0) {
+				entries.remove(entry.key);
+				close = true;
+			}
+			else {
+				entry.eviction = new TimerTask() {
+					@Override
+					public void run() {
+						evict(entry, this);
+					}
+				};
+				getTimer().schedule(entry.eviction, entry.idleTimeout);
+			}
+		}
+		if (close) {
+			entry.close();
+		}
+	}
+
+	private void evict(Entry entry, TimerTask task) {
+		synchronized(this) {
+			if (entry.eviction != task || entry.refCount > 0) {
+				return;
+			}
+			entry.eviction = null;
+			if (entries.get(entry.key) == entry) {
+				entries.remove(entry.key);
+			}
+		}
+		entry.close();
+	}
+
+	/**
+	 * Entry is no longer offered to new leases, next acquire would reconnect.
+	 * Console is closed once all existing leases are released.
+	 */
+	private synchronized void invalidate(Entry entry) {
+		if (entries.get(entry.key) == entry) {
+			entries.remove(entry.key);
+		}
+	}
+
+	private synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("SshConsolePool", true);
+		}
+		return timer;
+	}
+
+	private static class Entry {
+
+		final String key;
+		int refCount;
+		long idleTimeout;
+		TimerTask eviction;
+
+		private HostControlConsole console;
+		private boolean closed;
+
+		public Entry(String key) {
+			this.key = key;
+		}
+
+		synchronized void ensureConsole(Callable<HostControlConsole> factory) {
+			if (closed) {
+				throw new IllegalStateException("Console [" + key + "] is closed");
+			}
+			if (console == null) {
+				try {
+					console = factory.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		synchronized HostControlConsole getConsole() {
+			if (console == null) {
+				throw new IllegalStateException("Console [" + key + "] is closed");
+			}
+			return console;
+		}
+
+		void close() {
+			HostControlConsole c;
+			synchronized(this) {
+				closed = true;
+				c = console;
+				console = null;
+			}
+			if (c != null) {
+				c.terminate();
+			}
+		}
+	}
+
+	private class Lease implements PooledConsole {
+
+		private final Entry entry;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		public Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		private HostControlConsole console() {
+			if (released.get()) {
+				throw new IllegalStateException("Console [" + entry.key + "] is released");
+			}
+			return entry.getConsole();
+		}
+
+		@Override
+		public String cacheFile(FileBlob blob) {
+			return console().cacheFile(blob);
+		}
+
+		@Override
+		public List<String> cacheFiles(List<? extends FileBlob> blobs) {
+			return console().cacheFiles(blobs);
+		}
+
+		@Override
+		public Destroyable openSocket(SocketHandler handler) {
+			return console().openSocket(handler);
+		}
+
+		@Override
+		public Destroyable startProcess(String workDir, String[] command, Map<String, String> env, ProcessHandler handler) {
+			return console().startProcess(workDir, command, env, handler);
+		}
+
+		@Override
+		public void invalidate() {
+			if (released.compareAndSet(false, true)) {
+				SshConsolePool.this.invalidate(entry);
+				release(entry);
+			}
+		}
+
+		@Override
+		public void terminate() {
+			if (released.compareAndSet(false, true)) {
+				release(entry);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Pooled[" + entry.key + "]";
+		}
+	}
+
+	/**
+	 * {@link #terminate()} releases lease, console is kept in pool.
+	 */
+	public interface PooledConsole extends HostControlConsole {
+
+		/**
+		 * Releases lease and removes broken console from pool, so next lease is reconnected.
+		 * Other existing leases keep using console until they are released.
+		 */
+		public void invalidate();
+
+	}
+}
@@ -5,11 +5,112 @@ public interface SshSpiConf {
 //	public static final String REMOTE_BOOTSTRAP_JAR_CACHE = "remote-runtime:bootstrap-jar-cache"; 
 	public static final String REMOTE_JAR_CACHE = "remote-runtime:jar-cache"; 
 
+	/**
+	 * Size limit of remote jar cache (bytes, <code>k</code>/<code>m</code>/<code>g</code> suffixes are allowed).
+	 * Least recently used files not in use by running nodes are removed by agent.
+	 */
+	public static final String REMOTE_JAR_CACHE_LIMIT = "remote-runtime:jar-cache-limit"; 
+
 	public static final String REMOTE_FALLBACK_JVM_EXEC = "remote-runtime:fallback-jvm-exec"; 
+
+	/**
+	 * Number of parallel tunnels (SSH channels) per host, nodes and file uploads are distributed across them.
+	 */
+	public static final String REMOTE_TUNNEL_STRIPES = "remote-runtime:tunnel-stripes"; 
+
+	/**
+	 * If <code>true</code>, tunnel frames are compressed (archives are sent as is).
+	 */
+	public static final String REMOTE_TUNNEL_COMPRESSION = "remote-runtime:tunnel-compression"; 
+
+	/**
+	 * Number of SFTP channels used for uploads to host.
+	 */
+	public static final String REMOTE_SFTP_PARALLEL_FACTOR = "remote-runtime:sftp-parallel-factor"; 
+
+	/**
+	 * SSH transport compression, <code>true</code>/<code>false</code> or zlib level (1-9, 0 - off).
+	 * Compression is negotiated, so it is only used if server allows it.
+	 */
+	public static final String REMOTE_SSH_COMPRESSION = "remote-runtime:ssh-compression"; 
+
+	/**
+	 * If <code>true</code>, host is reached over slow link and SSH compression is enabled unless configured explicitly.
+	 */
+	public static final String REMOTE_LOW_BANDWIDTH = "remote-runtime:low-bandwidth"; 
+
+	/**
+	 * Number of outstanding write requests per SFTP channel.
+	 */
+	public static final String REMOTE_SFTP_BULK_REQUESTS = "remote-runtime:sftp-bulk-requests"; 
+
+	/**
+	 * Time (milliseconds) host console (SSH session and tunnel) is kept in process wide pool after last cloud using it is shut down.
+	 * 0 - console is terminated immediately.
+	 */
+	public static final String REMOTE_CONSOLE_POOL_IDLE_TIMEOUT = "remote-runtime:console-pool-idle-timeout"; 
+
+	/**
+	 * Maximum number of hosts being connected simultaneously within a cloud.
+	 */
+	public static final String REMOTE_CONNECT_CONCURRENCY = "remote-runtime:connect-concurrency"; 
+
+	/**
+	 * Number of retries if connection to host (including tunnel start) has failed due to network error.
+	 * Authentication failures are not retried.
+	 */
+	public static final String REMOTE_CONNECT_RETRIES = "remote-runtime:connect-retries"; 
+
+	/**
+	 * Delay (milliseconds) before first retry, doubled for each next retry (up to 30 seconds).
+	 */
+	public static final String REMOTE_CONNECT_RETRY_DELAY = "remote-runtime:connect-retry-delay"; 
+
+	/**
+	 * If <code>false</code>, remote JVM is probed each time host is connected instead of using {@link HostProbeCache}.
+	 */
+	public static final String REMOTE_HOST_PROBE_CACHE = "remote-runtime:host-probe-cache"; 
+
+	/**
+	 * If <code>true</code>, hosts already having a jar in their cache serve it to other hosts,
+	 * so master uploads each jar only to a few hosts. Hosts should be able to connect to each other.
+	 */
+	public static final String REMOTE_PEER_DISTRIBUTION = "remote-runtime:peer-distribution"; 
+
+	/**
+	 * Number of hosts a host serves at once in peer distribution.
+	 */
+	public static final String REMOTE_PEER_FAN_OUT = "remote-runtime:peer-fan-out"; 
+
+	/**
+	 * Local address agent's peer file server is bound to, all interfaces by default.
+	 */
+	public static final String REMOTE_PEER_BIND_ADDRESS = "remote-runtime:peer-bind-address"; 
+
+	/**
+	 * Port range (e.g. <code>40000-40100</code>) for agent's peer file server, any free port by default.
+	 */
+	public static final String REMOTE_PEER_PORT_RANGE = "remote-runtime:peer-port-range"; 
+
+	/**
+	 * Address other hosts should use to connect this host's file server.
+	 * By default address SSH connection has been accepted on is used.
+	 */
+	public static final String REMOTE_PEER_ADDRESS = "remote-runtime:peer-address"; 
 	
 	// TODO sane default managment
 	public static final String SPI_BOOTSTRAP_JVM_EXEC = "#spi:remote-runtime:bootstrap-jvm-exec";
 	public static final String SPI_JAR_CACHE = "#spi:remote-runtime:jar-cache";
+	public static final String SPI_JAR_CACHE_LIMIT = "#spi:remote-runtime:jar-cache-limit";
+	public static final String SPI_SFTP_PARALLEL_FACTOR = "#spi:remote-runtime:sftp-parallel-factor";
+	public static final String SPI_SFTP_BULK_REQUESTS = "#spi:remote-runtime:sftp-bulk-requests";
+	public static final String SPI_SSH_COMPRESSION = "#spi:remote-runtime:ssh-compression";
+	public static final String SPI_LOW_BANDWIDTH = "#spi:remote-runtime:low-bandwidth";
+	public static final String SPI_PEER_DISTRIBUTION = "#spi:remote-runtime:peer-distribution";
+	public static final String SPI_PEER_FAN_OUT = "#spi:remote-runtime:peer-fan-out";
+	public static final String SPI_PEER_BIND_ADDRESS = "#spi:remote-runtime:peer-bind-address";
+	public static final String SPI_PEER_PORT_RANGE = "#spi:remote-runtime:peer-port-range";
+	public static final String SPI_PEER_ADDRESS = "#spi:remote-runtime:peer-address";
 
 	public static final String SPI_SSH_TARGET_HOST = "#spi:ssh:target-host";
 	public static final String SPI_SSH_TARGET_ACCOUNT = "#spi:ssh:target-account";
@@ -22,13 +123,45 @@ public interface SshSpiConf {
 	
 	public static final String SSH_PASSWORD = "ssh:password";
 	public static final String SSH_PRIVATE_KEY_FILE = "ssh:private-key-file";
+	/**
+	 * Prefix of node pragmas passed to JSch as session options.
+	 * These are applied after options from host configuration ({@link #SPI_SSH_JSCH_OPTION}),
+	 * so node pragma overrides host configuration.
+	 * They also take part in session key, nodes with different options do not share a session.
+	 */
 	public static final String SSH_JSCH_OPTION = "ssh:jsch:";
+
+	/**
+	 * JSch option, initial window size (bytes) of SSH channels.
+	 */
+	public static final String JSCH_CHANNEL_WINDOW_SIZE = "ChannelWindowSize";
+	/**
+	 * JSch option, if greater than window size, window grows up to this limit while sender is stalled by window.
+	 */
+	public static final String JSCH_CHANNEL_WINDOW_MAX = "ChannelWindowMax";
+	/**
+	 * JSch option, maximum packet size (bytes) of SSH channels.
+	 */
+	public static final String JSCH_CHANNEL_PACKET_SIZE = "ChannelPacketSize";
 	
 	public static final String KEY_PASSWORD = "password";
 	public static final String KEY_PRIVATE_KEY_FILE = "private-key";
 	public static final String KEY_ADDRESS = "address";
 	public static final String KEY_JSCH_PREFERED_AUTH = "jsch-auth";
 	public static final String KEY_JAR_CACHE = "jar-cache-path";
+	public static final String KEY_JAR_CACHE_LIMIT = "jar-cache-limit";
 	public static final String KEY_JAVA_EXEC = "java-exec";
+	public static final String KEY_SFTP_PARALLEL_FACTOR = "sftp-parallel-factor";
+	public static final String KEY_SFTP_BULK_REQUESTS = "sftp-bulk-requests";
+	public static final String KEY_SSH_WINDOW_SIZE = "ssh-window-size";
+	public static final String KEY_SSH_WINDOW_MAX = "ssh-window-max";
+	public static final String KEY_SSH_PACKET_SIZE = "ssh-packet-size";
+	public static final String KEY_SSH_COMPRESSION = "ssh-compression";
+	public static final String KEY_LOW_BANDWIDTH = "low-bandwidth";
+	public static final String KEY_PEER_DISTRIBUTION = "peer-distribution";
+	public static final String KEY_PEER_FAN_OUT = "peer-fan-out";
+	public static final String KEY_PEER_BIND_ADDRESS = "peer-bind-address";
+	public static final String KEY_PEER_PORT_RANGE = "peer-port-range";
+	public static final String KEY_PEER_ADDRESS = "peer-address";
 	
 }
@@ -15,12 +15,22 @@
  */
 package org.gridkit.vicluster.telecontrol.ssh;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,8 +46,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.gridkit.internal.com.jcraft.jsch.ChannelSftp;
+import org.gridkit.internal.com.jcraft.jsch.ChannelSftp.LsEntry;
 import org.gridkit.internal.com.jcraft.jsch.JSchException;
 import org.gridkit.internal.com.jcraft.jsch.Session;
+import org.gridkit.internal.com.jcraft.jsch.SftpATTRS;
 import org.gridkit.internal.com.jcraft.jsch.SftpException;
 import org.gridkit.vicluster.telecontrol.FileBlob;
 import org.slf4j.Logger;
@@ -45,6 +57,11 @@ import org.slf4j.LoggerFactory;
 
 
 /**
+ * Files are stored as <code>{cache}/{content hash}/{file name}</code>.
+ * <br/>
+ * Batch uploads are synchronized using single listing of cache directory,
+ * files in existing hash directories are verified with pipelined <code>stat</code>.
+ * So warm cache is confirmed in couple of round trips instead of several per file.
  * 
  * @author Alexey Ragozin (alexey.ragozin@gmail.com)
  */
@@ -60,8 +77,17 @@ public class SftFileCache implements RemoteFileCache {
 	private ExecutorService executor;
 
 	private Map<String, String> fileMapping = new ConcurrentHashMap<String, String>();
+	private boolean manifestSync = true;
 
 	public SftFileCache(Session session, String cachePath, boolean useRelativePaths, int concurency) throws JSchException, InterruptedException, SftpException {
+		this(session, cachePath, useRelativePaths, concurency, -1);
+	}
+
+	/**
+	 * @param bulkRequests number of outstanding write requests per channel, -1 for JSch default.
+	 *        Put is pipelined, so on high latency link this limits upload speed.
+	 */
+	public SftFileCache(Session session, String cachePath, boolean useRelativePaths, int concurency, int bulkRequests) throws JSchException, InterruptedException, SftpException {
 		this.session = session;
 		this.jarCachePath = cachePath;
 		this.useRelativePaths = useRelativePaths;
@@ -70,6 +96,9 @@ public class SftFileCache implements RemoteFileCache {
 		}
 		for(int i = 0; i != concurency; ++i) {
 			ChannelSftp sftp = (ChannelSftp)session.openChannel("sftp");
+			if (bulkRequests > 0) {
+				sftp.setBulkRequests(bulkRequests);
+			}
 			channels.add(sftp);
 		}
 		if (concurency == 1) {
@@ -117,6 +146,14 @@ public class SftFileCache implements RemoteFileCache {
 		}
 	}
 
+	/**
+	 * Enables synchronization of batch uploads via cache listing (enabled by default).
+	 * If disabled, each file is checked individually.
+	 */
+	public void setManifestSync(boolean enabled) {
+		this.manifestSync = enabled;
+	}
+
 	private ChannelSftp getSftp() throws InterruptedException {
 		return channels.take();
 	}
@@ -145,6 +182,18 @@ public class SftFileCache implements RemoteFileCache {
 
 	@Override
 	public List<String> upload(List<? extends FileBlob> blobs) {
+		if (manifestSync) {
+			int missing = 0;
+			for(FileBlob blob: blobs) {
+				if (!fileMapping.containsKey(blob.getContentHash())) {
+					++missing;
+				}
+			}
+			// for single file listing is not cheaper than stat
+			if (missing > 1) {
+				return syncUpload(blobs);
+			}
+		}
 		
 		final String[] result = new String[blobs.size()];
 		List<Future<?>> futures = new ArrayList<Future<?>>();
@@ -216,17 +265,162 @@ public class SftFileCache implements RemoteFileCache {
 				}
 			}
 		}
-		if (useRelativePaths) {
-		    if (jarCachePath.length() == 0 || jarCachePath.endsWith("/")) {
-		        rname = jarCachePath + blobPath;
-		    }
-		    else {
-		        rname = jarCachePath + "/" + blobPath;
-		    }
-		}
+		rname = resultPath(blobPath);
 		fileMapping.put(blob.getContentHash(), rname);
 		return rname;
 	}
+
+	private String resultPath(String blobPath) {
+		if (useRelativePaths) {
+			if (jarCachePath.length() == 0 || jarCachePath.endsWith("/")) {
+				return jarCachePath + blobPath;
+			}
+			else {
+				return jarCachePath + "/" + blobPath;
+			}
+		}
+		else {
+			return absoluteCachePath + "/" + blobPath;
+		}
+	}
+
+	private List<String> syncUpload(List<? extends FileBlob> blobs) {
+		String[] result = new String[blobs.size()];
+		try {
+			Set<String> dirs;
+			// same content may be requested more than once
+			Map<String, FileBlob> candidates = new LinkedHashMap<String, FileBlob>();
+			for(int i = 0; i != blobs.size(); ++i) {
+				FileBlob blob = blobs.get(i);
+				String hash = blob.getContentHash();
+				if (fileMapping.containsKey(hash)) {
+					result[i] = fileMapping.get(hash);
+				}
+				else {
+					candidates.put(hash + "/" + blob.getFileName(), blob);
+				}
+			}
+			SftpATTRS[] attrs;
+			ChannelSftp sftp = getSftp();
+			try {
+				dirs = listHashDirs(sftp);
+				List<String> paths = new ArrayList<String>();
+				for(String blobPath: candidates.keySet()) {
+					if (dirs.contains(candidates.get(blobPath).getContentHash())) {
+						paths.add(absoluteCachePath + "/" + blobPath);
+					}
+				}
+				attrs = stat(sftp, paths.toArray(new String[paths.size()]));
+			}
+			finally {
+				release(sftp);
+			}
+
+			Map<String, SyncTask> tasks = new HashMap<String, SyncTask>();
+			int present = 0;
+			int n = 0;
+			for(String blobPath: candidates.keySet()) {
+				FileBlob blob = candidates.get(blobPath);
+				boolean dirExists = dirs.contains(blob.getContentHash());
+				SftpATTRS a = dirExists ? attrs[n++] : null;
+				if (a != null && a.getSize() == blob.size()) {
+					fileMapping.put(blob.getContentHash(), resultPath(blobPath));
+					++present;
+				}
+				else {
+					tasks.put(blobPath, new SyncTask(blob, blobPath, dirExists));
+				}
+			}
+			LOGGER.debug("Cache sync " + session.getHost() + ":" + absoluteCachePath + " - " + present + " present, " + tasks.size() + " to upload");
+			
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for(final SyncTask task: tasks.values()) {
+				final ChannelSftp ch = getSftp();
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run(ch);
+						}
+						finally {
+							release(ch);
+						}
+					}
+				}));
+			}
+			for(Future<?> f: futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			
+			for(SyncTask task: tasks.values()) {
+				fileMapping.put(task.blob.getContentHash(), resultPath(task.blobPath));
+			}
+			for(int i = 0; i != blobs.size(); ++i) {
+				if (result[i] == null) {
+					result[i] = fileMapping.get(blobs.get(i).getContentHash());
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted");
+		}
+		return Arrays.asList(result);
+	}
+
+	private Set<String> listHashDirs(ChannelSftp sftp) {
+		Set<String> dirs = new HashSet<String>();
+		try {
+			Vector<?> ls = sftp.ls(absoluteCachePath);
+			for(Object e: ls) {
+				LsEntry entry = (LsEntry) e;
+				if (entry.getAttrs().isDir()) {
+					dirs.add(entry.getFilename());
+				}
+			}
+		} catch (SftpException e) {
+			throw new RuntimeException("SFT error: " + e.getMessage());
+		}
+		return dirs;
+	}
+
+	private class SyncTask {
+		
+		final FileBlob blob;
+		final String blobPath;
+		final boolean dirExists;
+		
+		public SyncTask(FileBlob blob, String blobPath, boolean dirExists) {
+			this.blob = blob;
+			this.blobPath = blobPath;
+			this.dirExists = dirExists;
+		}
+
+		public void run(ChannelSftp sftp) {
+			String rname = absoluteCachePath + "/" + blobPath;
+			try {
+				if (!dirExists) {
+					// cache directory is known to exist, no need to walk path
+					try {
+						sftp.mkdir(absoluteCachePath + "/" + blob.getContentHash());
+					}
+					catch(SftpException e) {
+						// could be created concurrently
+						if (stat(sftp, absoluteCachePath + "/" + blob.getContentHash()) == null) {
+							throw e;
+						}
+					}
+				}
+				LOGGER.info("Uploading: " + session.getHost() + ":" + rname + " " + blob.size() + " bytes");
+				sftp.put(blob.getContent(), rname);
+			}
+			catch(SftpException e) {
+				throw new RuntimeException("SFT error: " + e.getMessage() + ", file " + rname);
+			}
+		}
+	}
 	
 
 	private static void sftpMkdirs(ChannelSftp sftp, String path) throws SftpException {
@@ -254,11 +448,44 @@ public class SftFileCache implements RemoteFileCache {
 		}
 	}
 
+	/**
+	 * @return attributes of remote file or <code>null</code> if it does not exist
+	 */
+	public SftpATTRS stat(String path) {
+		try {
+			ChannelSftp sftp = getSftp();
+			try {
+				return stat(sftp, path);
+			}
+			finally {
+				release(sftp);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted");
+		}
+	}
+
 	public void close() {
 		// TODO close channels
 		executor.shutdown();
 	}
 	
+	private static SftpATTRS stat(ChannelSftp sftp, String path) {
+		try {
+			return sftp.stat(path);
+		} catch (SftpException e) {
+			return null;
+		}
+	}
+
+	private static SftpATTRS[] stat(ChannelSftp sftp, String[] paths) {
+		try {
+			return sftp.stat(paths);
+		} catch (SftpException e) {
+			throw new RuntimeException("SFT error: " + e.getMessage());
+		}
+	}
+
 	private static boolean exists(ChannelSftp sftp, String path) {
 		try {
 			return sftp.stat(path) != null;
@@ -6,6 +6,7 @@ import java.util.Map;
 
 import org.gridkit.internal.com.jcraft.jsch.JSchException;
 import org.gridkit.internal.com.jcraft.jsch.Session;
+import org.gridkit.internal.com.jcraft.jsch.SftpATTRS;
 import org.gridkit.internal.com.jcraft.jsch.SftpException;
 import org.gridkit.nanocloud.telecontrol.LocalControlConsole;
 import org.gridkit.vicluster.telecontrol.ExecCommand;
@@ -13,13 +14,23 @@ import org.gridkit.vicluster.telecontrol.FileBlob;
 
 public class SshHostControlConsole extends LocalControlConsole {
 
+	/** JSch default (16) is too small for high latency links */
+	public static final int DEFAULT_SFTP_BULK_REQUESTS = 64;
+	
 	private Session session;
 	private SftFileCache fileCache;
 	
 	public SshHostControlConsole(Session session, String cachePath, boolean useRelativePaths, int sftpParallelFactor) {
+		this(session, cachePath, useRelativePaths, sftpParallelFactor, DEFAULT_SFTP_BULK_REQUESTS);
+	}
+
+	/**
+	 * @param sftpBulkRequests number of write requests each SFTP channel keeps in flight
+	 */
+	public SshHostControlConsole(Session session, String cachePath, boolean useRelativePaths, int sftpParallelFactor, int sftpBulkRequests) {
 		try {
 			this.session = session;
-			this.fileCache = new SftFileCache(session, cachePath, useRelativePaths, sftpParallelFactor);
+			this.fileCache = new SftFileCache(session, cachePath, useRelativePaths, sftpParallelFactor, sftpBulkRequests);
 			register(new CacheKiller(fileCache));
 			register(new SessionKiller(session));
 		} catch (JSchException e) {
@@ -41,6 +52,19 @@ public class SshHostControlConsole extends LocalControlConsole {
 		return fileCache.upload(blobs);
 	}
 
+	/**
+	 * Remote file is checked via already open SFTP channel, cheaper than running a command.
+	 * 
+	 * @return modification time (milliseconds) and size of remote file or <code>null</code> if there is no such file
+	 */
+	public long[] stat(String path) {
+		SftpATTRS attrs = fileCache.stat(path);
+		if (attrs == null || attrs.isDir()) {
+			return null;
+		}
+		return new long[]{1000l * attrs.getMTime(), attrs.getSize()};
+	}
+
 	@Override
 	public Destroyable openSocket(SocketHandler handler) {
 		throw new UnsupportedOperationException();
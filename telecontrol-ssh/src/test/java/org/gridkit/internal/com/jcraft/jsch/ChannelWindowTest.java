@@ -0,0 +1,91 @@
+package org.gridkit.internal.com.jcraft.jsch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChannelWindowTest {
+
+	private static final long MS = 1000 * 1000;
+
+	@Test
+	public void verify_configured_window_is_applied_to_exec_channel() {
+		Channel channel = new ChannelExec();
+		try {
+			Session.configureChannel(channel, 4 << 20, 16 << 20, 32 << 10);
+			assertEquals(4 << 20, channel.lwsize_max);
+			assertEquals(4 << 20, channel.lwsize);
+			assertEquals(16 << 20, channel.lwsize_auto);
+			assertEquals(32 << 10, channel.lmpsize);
+		}
+		finally {
+			Channel.del(channel);
+		}
+	}
+
+	@Test
+	public void verify_direct_tcpip_keeps_its_default_window() {
+		Channel channel = new ChannelDirectTCPIP();
+		int wsize = channel.lwsize_max;
+		int psize = channel.lmpsize;
+		try {
+			Session.configureChannel(channel, 4 << 20, 0, 32 << 10);
+			assertEquals(wsize, channel.lwsize_max);
+			assertEquals(psize, channel.lmpsize);
+			assertEquals(0, channel.lwsize_auto);
+
+			// auto-tuning is still allowed, starting from default window
+			Session.configureChannel(channel, 4 << 20, 16 << 20, 0);
+			assertEquals(wsize, channel.lwsize_max);
+			assertEquals(16 << 20, channel.lwsize_auto);
+		}
+		finally {
+			Channel.del(channel);
+		}
+	}
+
+	@Test
+	public void verify_window_grows_only_if_stalled() {
+		// unknown round trip
+		assertEquals(1 << 20, Session.tuneWindow(1 << 20, 16 << 20, 1 * MS, -1));
+		// half of window consumed within two round trips
+		assertEquals(2 << 20, Session.tuneWindow(1 << 20, 16 << 20, 30 * MS, 20 * MS));
+		// limit is respected
+		assertEquals(16 << 20, Session.tuneWindow(12 << 20, 16 << 20, 30 * MS, 20 * MS));
+		// sender is slower than window
+		assertEquals(1 << 20, Session.tuneWindow(1 << 20, 16 << 20, 50 * MS, 20 * MS));
+	}
+
+	@Test
+	public void verify_round_trip_is_measured_by_probes_only() {
+		Session.RoundTripMeter meter = new Session.RoundTripMeter();
+		assertEquals(-1, meter.getRoundTrip());
+		assertTrue(meter.isProbeDue(0, 1000 * MS));
+
+		// port forward request is answered after server has bound the port
+		meter.sent(100 * MS, false);
+		meter.sent(110 * MS, true);
+		assertFalse(meter.isProbeDue(120 * MS, 1000 * MS));
+		meter.replied(500 * MS);
+		assertEquals(-1, meter.getRoundTrip());
+		meter.replied(530 * MS);
+		assertEquals(420 * MS, meter.getRoundTrip());
+
+		// smallest sample is kept
+		meter.sent(2000 * MS, true);
+		meter.replied(2020 * MS);
+		assertEquals(20 * MS, meter.getRoundTrip());
+		meter.sent(3000 * MS, true);
+		meter.replied(3100 * MS);
+		assertEquals(20 * MS, meter.getRoundTrip());
+
+		assertFalse(meter.isProbeDue(3500 * MS, 1000 * MS));
+		assertTrue(meter.isProbeDue(4000 * MS, 1000 * MS));
+
+		// unsolicited reply is ignored
+		meter.replied(5000 * MS);
+		assertEquals(20 * MS, meter.getRoundTrip());
+	}
+}
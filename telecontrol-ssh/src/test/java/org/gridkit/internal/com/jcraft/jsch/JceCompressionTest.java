@@ -0,0 +1,98 @@
+package org.gridkit.internal.com.jcraft.jsch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JceCompressionTest {
+
+	private static final int HEADER = 5;
+
+	@Test
+	public void verify_sync_flush_is_detected() {
+		boolean java7 = !System.getProperty("java.specification.version").startsWith("1.6");
+		assertEquals(java7, org.gridkit.internal.com.jcraft.jsch.jce.Compression.isSupported());
+	}
+
+	@Test
+	public void verify_round_trip_across_packets() {
+		verifyRoundTrip(new org.gridkit.internal.com.jcraft.jsch.jce.Compression(), new org.gridkit.internal.com.jcraft.jsch.jce.Compression());
+	}
+
+	@Test
+	public void verify_jzlib_inflates_jdk_stream() {
+		verifyRoundTrip(new org.gridkit.internal.com.jcraft.jsch.jce.Compression(), new org.gridkit.internal.com.jcraft.jsch.jcraft.Compression());
+	}
+
+	@Test
+	public void verify_jdk_inflates_jzlib_stream() {
+		verifyRoundTrip(new org.gridkit.internal.com.jcraft.jsch.jcraft.Compression(), new org.gridkit.internal.com.jcraft.jsch.jce.Compression());
+	}
+
+	@Test
+	public void verify_corrupted_packet_fails() {
+		Compression deflater = new org.gridkit.internal.com.jcraft.jsch.jce.Compression();
+		Compression inflater = new org.gridkit.internal.com.jcraft.jsch.jce.Compression();
+		deflater.init(Compression.DEFLATER, 6);
+		inflater.init(Compression.INFLATER, 0);
+
+		byte[] packet = compress(deflater, text(1000, 1));
+		// block type 3 is reserved
+		packet[HEADER] = (byte)0xFF;
+		try {
+			uncompress(inflater, packet);
+			fail("Corrupted packet should be rejected");
+		}
+		catch(RuntimeException e) {
+			// expected
+		}
+	}
+
+	private void verifyRoundTrip(Compression deflater, Compression inflater) {
+		deflater.init(Compression.DEFLATER, 6);
+		inflater.init(Compression.INFLATER, 0);
+		// zlib stream spans packets, later packets refer to data of earlier ones,
+		// larger packets are deflated in several chunks
+		byte[] repeated = text(2000, 7);
+		for(int i = 0; i != 20; ++i) {
+			byte[] payload = i % 3 == 0 ? repeated : text(100 + 500 * i, i);
+			byte[] packet = compress(deflater, payload);
+			if (i > 0 && i % 3 == 0) {
+				assertTrue("Packet " + i + " size " + packet.length, packet.length - HEADER < payload.length / 4);
+			}
+			assertArrayEquals("Packet " + i, payload, uncompress(inflater, packet));
+		}
+	}
+
+	private static byte[] compress(Compression deflater, byte[] payload) {
+		byte[] buf = new byte[HEADER + payload.length];
+		System.arraycopy(payload, 0, buf, HEADER, payload.length);
+		int[] len = {buf.length};
+		buf = deflater.compress(buf, HEADER, len);
+		return Arrays.copyOf(buf, len[0]);
+	}
+
+	private static byte[] uncompress(Compression inflater, byte[] packet) {
+		int[] len = {packet.length - HEADER};
+		byte[] buf = inflater.uncompress(packet.clone(), HEADER, len);
+		if (buf == null) {
+			throw new IllegalStateException("Inflater has failed");
+		}
+		return Arrays.copyOfRange(buf, HEADER, HEADER + len[0]);
+	}
+
+	private static byte[] text(int len, int seed) {
+		Random rnd = new Random(seed);
+		byte[] b = new byte[len];
+		for(int i = 0; i != len; ++i) {
+			b[i] = (byte)('a' + rnd.nextInt(8));
+		}
+		return b;
+	}
+}
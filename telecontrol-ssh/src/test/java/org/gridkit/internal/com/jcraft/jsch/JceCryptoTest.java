@@ -0,0 +1,153 @@
+package org.gridkit.internal.com.jcraft.jsch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.gridkit.internal.com.jcraft.jsch.jce.AES128GCM;
+import org.gridkit.internal.com.jcraft.jsch.jce.AES256GCM;
+import org.gridkit.internal.com.jcraft.jsch.jce.ECDHN;
+import org.junit.Test;
+
+public class JceCryptoTest {
+
+	private static final int TAG = 16;
+
+	@Test
+	public void verify_aes_gcm_round_trip() throws Exception {
+		verifyRoundTrip(new AES128GCM(), new AES128GCM());
+		verifyRoundTrip(new AES256GCM(), new AES256GCM());
+	}
+
+	@Test
+	public void verify_tampered_tag_is_rejected() throws Exception {
+		byte[] key = bytes(32, 1);
+		byte[] iv = bytes(12, 2);
+		AEADCipher enc = new AES128GCM();
+		AEADCipher dec = new AES128GCM();
+		enc.init(Cipher.ENCRYPT_MODE, key, iv);
+		dec.init(Cipher.DECRYPT_MODE, key, iv);
+
+		byte[] packet = encrypt(enc, bytes(64, 3));
+		packet[packet.length - 1] ^= 1;
+		try {
+			decrypt(dec, packet);
+			fail("Tampered packet should be rejected");
+		}
+		catch(Exception e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void verify_tampered_length_is_rejected() throws Exception {
+		byte[] key = bytes(32, 1);
+		byte[] iv = bytes(12, 2);
+		AEADCipher enc = new AES128GCM();
+		AEADCipher dec = new AES128GCM();
+		enc.init(Cipher.ENCRYPT_MODE, key, iv);
+		dec.init(Cipher.DECRYPT_MODE, key, iv);
+
+		byte[] packet = encrypt(enc, bytes(64, 3));
+		// packet length is not encrypted, but it is authenticated
+		packet[0] ^= 1;
+		try {
+			decrypt(dec, packet);
+			fail("Tampered packet should be rejected");
+		}
+		catch(Exception e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void verify_gcm_cipher_is_available() {
+		assertTrue(Session.checkCipher(AES128GCM.class.getName()));
+		assertTrue(Session.checkCipher(AES256GCM.class.getName()));
+	}
+
+	@Test
+	public void verify_ecdh_key_agreement() throws Exception {
+		for(int size: new int[]{256, 384, 521}) {
+			ECDH a = new ECDHN();
+			ECDH b = new ECDHN();
+			a.init(size);
+			b.init(size);
+			byte[] sa = a.getSecret(b.getQ());
+			byte[] sb = b.getSecret(a.getQ());
+			assertArrayEquals("nistp" + size, sa, sb);
+			assertTrue(sa[0] != 0);
+		}
+	}
+
+	@Test
+	public void verify_ecdh_rejects_point_not_on_curve() throws Exception {
+		ECDH a = new ECDHN();
+		ECDH b = new ECDHN();
+		a.init(256);
+		b.init(256);
+		byte[] q = b.getQ();
+		q[q.length - 1] ^= 1;
+		try {
+			a.getSecret(q);
+			fail("Invalid point should be rejected");
+		}
+		catch(Exception e) {
+			// expected
+		}
+	}
+
+	private void verifyRoundTrip(AEADCipher enc, AEADCipher dec) throws Exception {
+		byte[] key = bytes(32, 1);
+		byte[] iv = bytes(12, 2);
+		enc.init(Cipher.ENCRYPT_MODE, key, iv);
+		dec.init(Cipher.DECRYPT_MODE, key, iv);
+		byte[] last = null;
+		// nonce is advanced per packet, both sides should stay in sync
+		for(int i = 0; i != 5; ++i) {
+			byte[] payload = bytes(16 * (i + 1), 10 + i);
+			byte[] packet = encrypt(enc, payload);
+			assertEquals(4 + payload.length + TAG, packet.length);
+			assertTrue(!Arrays.equals(payload, Arrays.copyOfRange(packet, 4, 4 + payload.length)));
+			assertArrayEquals(payload, decrypt(dec, packet));
+			if (last != null) {
+				assertTrue(!Arrays.equals(last, packet));
+			}
+			last = packet;
+		}
+	}
+
+	private static byte[] encrypt(AEADCipher cipher, byte[] payload) throws Exception {
+		byte[] packet = new byte[4 + payload.length + TAG];
+		putInt(packet, payload.length);
+		System.arraycopy(payload, 0, packet, 4, payload.length);
+		cipher.updateAAD(packet, 0, 4);
+		int n = cipher.doFinal(packet, 4, payload.length, packet, 4);
+		assertEquals(payload.length + TAG, n);
+		return packet;
+	}
+
+	private static byte[] decrypt(AEADCipher cipher, byte[] packet) throws Exception {
+		byte[] plain = new byte[packet.length];
+		cipher.updateAAD(packet, 0, 4);
+		int n = cipher.doFinal(packet, 4, packet.length - 4, plain, 0);
+		return Arrays.copyOf(plain, n);
+	}
+
+	private static void putInt(byte[] buf, int v) {
+		buf[0] = (byte)(v >> 24);
+		buf[1] = (byte)(v >> 16);
+		buf[2] = (byte)(v >> 8);
+		buf[3] = (byte)v;
+	}
+
+	private static byte[] bytes(int len, int seed) {
+		byte[] b = new byte[len];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+}
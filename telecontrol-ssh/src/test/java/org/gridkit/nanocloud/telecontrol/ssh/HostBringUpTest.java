@@ -0,0 +1,124 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridkit.internal.com.jcraft.jsch.JSchException;
+import org.junit.Test;
+
+public class HostBringUpTest {
+
+	@Test
+	public void verify_failed_attempt_is_retried() {
+		HostBringUp bringUp = new HostBringUp(4, 2, 10);
+		final AtomicInteger calls = new AtomicInteger();
+		String result = bringUp.connect("host1", new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				if (calls.incrementAndGet() < 3) {
+					throw new IOException("Connection reset");
+				}
+				return "ok";
+			}
+		});
+		assertEquals("ok", result);
+		assertEquals(1, bringUp.getTimings().size());
+		assertEquals(3, bringUp.getTimings().get(0).getAttempts());
+		assertNull(bringUp.getTimings().get(0).getError());
+	}
+
+	@Test
+	public void verify_error_after_last_retry() {
+		HostBringUp bringUp = new HostBringUp(4, 1, 10);
+		try {
+			bringUp.connect("host1", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					// as reported by JSch on connect timeout
+					throw new RuntimeException(new JSchException("timeout: socket is not established"));
+				}
+			});
+			throw new AssertionError("Exception expected");
+		}
+		catch(RuntimeException e) {
+			// expected
+		}
+		assertEquals(2, bringUp.getTimings().get(0).getAttempts());
+		assertNotNull(bringUp.getTimings().get(0).getError());
+	}
+
+	@Test
+	public void verify_auth_failure_is_not_retried() {
+		HostBringUp bringUp = new HostBringUp(4, 2, 10);
+		try {
+			bringUp.connect("host1", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new RuntimeException(new JSchException("Auth fail"));
+				}
+			});
+			throw new AssertionError("Exception expected");
+		}
+		catch(RuntimeException e) {
+			assertTrue(e.getCause() instanceof JSchException);
+		}
+		assertEquals(1, bringUp.getTimings().get(0).getAttempts());
+	}
+
+	@Test
+	public void verify_back_off_is_capped() {
+		HostBringUp bringUp = new HostBringUp(4, 100, 1000);
+		assertEquals(1000, bringUp.backOff(0));
+		assertEquals(4000, bringUp.backOff(2));
+		assertEquals(HostBringUp.MAX_RETRY_DELAY, bringUp.backOff(5));
+		assertEquals(HostBringUp.MAX_RETRY_DELAY, bringUp.backOff(70));
+		assertEquals(Long.MAX_VALUE / 2, new HostBringUp(4, 100, Long.MAX_VALUE / 2).backOff(3));
+	}
+
+	@Test
+	public void verify_hosts_are_connected_in_parallel_within_limit() throws InterruptedException {
+		final HostBringUp bringUp = new HostBringUp(4, 0, 0);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for(int i = 0; i != 8; ++i) {
+			final String host = "host" + i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					bringUp.connect(host, new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							int n = active.incrementAndGet();
+							synchronized(peak) {
+								peak.set(Math.max(peak.get(), n));
+							}
+							Thread.sleep(200);
+							active.decrementAndGet();
+							return null;
+						}
+					});
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		for(Thread t: threads) {
+			t.join();
+		}
+		long time = (System.nanoTime() - start) / 1000000;
+		assertEquals(4, peak.get());
+		assertEquals(8, bringUp.getTimings().size());
+		// two waves of 200ms
+		assertTrue("Bring up took " + time + "ms", time < 1000);
+	}
+}
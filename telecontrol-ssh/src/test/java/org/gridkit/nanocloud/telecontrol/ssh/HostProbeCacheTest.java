@@ -0,0 +1,73 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.gridkit.nanocloud.telecontrol.ssh.HostProbeCache.JavaProbe;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostProbeCacheTest {
+
+	private File file;
+
+	@Before
+	public void initFile() throws IOException {
+		file = File.createTempFile("host-probes", ".properties", new File("target"));
+		file.delete();
+	}
+
+	@After
+	public void removeFile() {
+		file.delete();
+	}
+
+	@Test
+	public void verify_probe_is_persisted() {
+		HostProbeCache cache = new HostProbeCache(file, 60000);
+		assertNull(cache.getJavaProbe("user@host1", "java"));
+		cache.putJavaProbe("user@host1", "java", new JavaProbe("1.8.0_392", "/usr/bin/java", 1000, 200, System.currentTimeMillis()));
+
+		JavaProbe probe = new HostProbeCache(file, 60000).getJavaProbe("user@host1", "java");
+		assertEquals("1.8.0_392", probe.getVersion());
+		assertEquals("/usr/bin/java", probe.getBinary());
+		assertEquals(1000, probe.getMtime());
+		assertEquals(200, probe.getSize());
+		assertNull(cache.getJavaProbe("user@host2", "java"));
+		assertNull(cache.getJavaProbe("user@host1", "/opt/jdk/bin/java"));
+	}
+
+	@Test
+	public void verify_probe_expires() {
+		HostProbeCache cache = new HostProbeCache(file, 60000);
+		cache.putJavaProbe("user@host1", "java", new JavaProbe("11.0.2", "/usr/bin/java", 1000, 200, System.currentTimeMillis() - 120000));
+		assertNull(cache.getJavaProbe("user@host1", "java"));
+	}
+
+	@Test
+	public void verify_probe_output_parsing() {
+		JavaProbe probe = HostProbeCache.parseProbe("1.8.0_392", "#probe 1700000000 52000 /opt/my jdk/bin/java\n", 1000);
+		assertEquals("/opt/my jdk/bin/java", probe.getBinary());
+		assertEquals(1700000000000l, probe.getMtime());
+		assertEquals(52000, probe.getSize());
+		assertEquals(1000, probe.getTimestamp());
+
+		// stat has failed
+		assertNull(HostProbeCache.parseProbe("1.8.0_392", "#probe  /usr/bin/java\n", 1000));
+		// command is a shell alias
+		assertNull(HostProbeCache.parseProbe("1.8.0_392", "#probe  alias java=/usr/bin/java\n", 1000));
+		assertNull(HostProbeCache.parseProbe("1.8.0_392", "", 1000));
+	}
+
+	@Test
+	public void verify_probe_removal() {
+		HostProbeCache cache = new HostProbeCache(file, 60000);
+		cache.putJavaProbe("user@host1", "java", new JavaProbe("11.0.2", "/usr/bin/java", 1000, 200, System.currentTimeMillis()));
+		new HostProbeCache(file, 60000).removeJavaProbe("user@host1", "java");
+		assertNull(new HostProbeCache(file, 60000).getJavaProbe("user@host1", "java"));
+	}
+}
@@ -0,0 +1,173 @@
+package org.gridkit.nanocloud.telecontrol.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridkit.nanocloud.telecontrol.HostControlConsole;
+import org.gridkit.nanocloud.telecontrol.ssh.SshConsolePool.PooledConsole;
+import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.junit.Test;
+
+public class SshConsolePoolTest {
+
+	private SshConsolePool pool = new SshConsolePool();
+	private AtomicInteger created = new AtomicInteger();
+
+	@Test
+	public void verify_console_is_shared() {
+		PooledConsole c1 = pool.acquire("a", 60000, factory("a"));
+		PooledConsole c2 = pool.acquire("a", 60000, factory("a"));
+		PooledConsole c3 = pool.acquire("b", 60000, factory("b"));
+
+		assertEquals(2, created.get());
+		assertEquals("a", c1.cacheFile(null));
+		assertEquals("a", c2.cacheFile(null));
+		assertEquals("b", c3.cacheFile(null));
+	}
+
+	@Test
+	public void verify_idle_console_is_reused() {
+		PooledConsole c1 = pool.acquire("a", 60000, factory("a"));
+		c1.terminate();
+		PooledConsole c2 = pool.acquire("a", 60000, factory("a"));
+
+		assertEquals(1, created.get());
+		assertEquals("a", c2.cacheFile(null));
+	}
+
+	@Test
+	public void verify_idle_console_is_evicted() throws InterruptedException {
+		PooledConsole c1 = pool.acquire("a", 50, factory("a"));
+		FakeConsole fc = FakeConsole.last;
+		c1.terminate();
+		assertEquals(1, pool.size());
+		assertTrue(fc.awaitTermination(5000));
+		assertEquals(0, pool.size());
+
+		pool.acquire("a", 50, factory("a"));
+		assertEquals(2, created.get());
+	}
+
+	@Test
+	public void verify_console_is_kept_while_leased() throws InterruptedException {
+		PooledConsole c1 = pool.acquire("a", 50, factory("a"));
+		PooledConsole c2 = pool.acquire("a", 50, factory("a"));
+		FakeConsole fc = FakeConsole.last;
+		c1.terminate();
+		// repeated release is ignored
+		c1.terminate();
+		// several idle timeouts
+		assertFalse(fc.awaitTermination(300));
+		assertEquals("a", c2.cacheFile(null));
+	}
+
+	@Test
+	public void verify_zero_timeout_terminates_immediately() {
+		PooledConsole c1 = pool.acquire("a", 0, factory("a"));
+		FakeConsole fc = FakeConsole.last;
+		c1.terminate();
+		assertTrue(fc.terminated);
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void verify_invalidated_console_is_replaced() {
+		PooledConsole c1 = pool.acquire("a", 60000, factory("a"));
+		PooledConsole c2 = pool.acquire("a", 60000, factory("a"));
+		FakeConsole fc = FakeConsole.last;
+		c1.invalidate();
+		// other lease keeps working until released
+		assertFalse(fc.terminated);
+		assertEquals("a", c2.cacheFile(null));
+
+		PooledConsole c3 = pool.acquire("a", 60000, factory("a"));
+		assertEquals("a", c3.cacheFile(null));
+		assertEquals(2, created.get());
+		assertTrue(FakeConsole.last != fc);
+
+		c2.terminate();
+		assertTrue(fc.terminated);
+		assertFalse(FakeConsole.last.terminated);
+	}
+
+	@Test
+	public void verify_failed_creation_is_not_pooled() {
+		try {
+			pool.acquire("a", 60000, new Callable<HostControlConsole>() {
+				@Override
+				public HostControlConsole call() throws Exception {
+					throw new IllegalArgumentException("Connection refused");
+				}
+			});
+			throw new AssertionError("Exception expected");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(0, pool.size());
+		PooledConsole c = pool.acquire("a", 60000, factory("a"));
+		assertEquals("a", c.cacheFile(null));
+	}
+
+	private Callable<HostControlConsole> factory(final String name) {
+		return new Callable<HostControlConsole>() {
+			@Override
+			public HostControlConsole call() throws Exception {
+				created.incrementAndGet();
+				return new FakeConsole(name);
+			}
+		};
+	}
+
+	private static class FakeConsole implements HostControlConsole {
+
+		static FakeConsole last;
+
+		final String name;
+		volatile boolean terminated;
+		final CountDownLatch termination = new CountDownLatch(1);
+
+		public FakeConsole(String name) {
+			this.name = name;
+			last = this;
+		}
+
+		@Override
+		public String cacheFile(FileBlob blob) {
+			return name;
+		}
+
+		@Override
+		public List<String> cacheFiles(List<? extends FileBlob> blobs) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Destroyable openSocket(SocketHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Destroyable startProcess(String workDir, String[] command, Map<String, String> env, ProcessHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void terminate() {
+			terminated = true;
+			termination.countDown();
+		}
+
+		boolean awaitTermination(long timeoutMs) throws InterruptedException {
+			return termination.await(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -26,6 +26,7 @@ import org.gridkit.internal.com.jcraft.jsch.JSchException;
 import org.gridkit.internal.com.jcraft.jsch.Session;
 import org.gridkit.internal.com.jcraft.jsch.SftpException;
 import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class SftpCacheCheck {
@@ -65,6 +66,26 @@ public class SftpCacheCheck {
 		
 		cache.upload(blobs);		
 	}
+
+	@Test
+	public void test_manifest_sync() throws JSchException, InterruptedException, SftpException {
+		List<TestBlob> blobs = new ArrayList<TestBlob>();
+		Random r = new Random();
+		for(int i = 0; i != 20; ++i) {
+			byte[] data = new byte[(16 << 10) + r.nextInt(16 << 10)];
+			r.nextBytes(data);
+			blobs.add(new TestBlob("file-" + i, data));
+		}
+		
+		SftFileCache cache = new SftFileCache(createSession(), "/tmp/.vigrid/.jarcache", false, 4); 
+		List<String> paths = cache.upload(blobs);
+		cache.close();
+		
+		// second cache instance should find all files in index
+		cache = new SftFileCache(createSession(), "/tmp/.vigrid/.jarcache", false, 4); 
+		Assert.assertEquals(paths, cache.upload(blobs));
+		cache.close();
+	}
 	
 	public static class TestBlob implements FileBlob {
 
@@ -0,0 +1,335 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.gridkit.nanocloud.telecontrol.HostControlConsole.ProcessHandler;
+import org.gridkit.util.concurrent.FutureBox;
+import org.gridkit.vicluster.telecontrol.BackgroundStreamDumper;
+import org.gridkit.vicluster.telecontrol.StreamCopyService;
+import org.gridkit.vicluster.telecontrol.StreamCopyService.Link;
+
+/**
+ * Produces JVM options enabling application class-data sharing for slave JVMs.
+ * <br/>
+ * Archive is stored in console file cache next to bootstrap jar. Bootstrap jar
+ * is cached under hash of its content (which is slave classpath), so each
+ * distinct classpath gets its own archive.
+ * <br/>
+ * Java 19+ maintains archive itself (<code>-XX:+AutoCreateSharedArchive</code>).
+ * Java 13-18 supports dynamic archives, archive is dumped by a short living
+ * trial JVM started in background on first request. Trial runs slave's bootstrap
+ * jar (so archive matches slave classpath) with a spore which only loads startup classes.
+ * Slaves started before archive is ready run without it.
+ * Older JVMs are left untouched.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class ClassDataSharingSupport {
+
+	static final int DYNAMIC_ARCHIVE_VERSION = 13;
+	static final int AUTO_ARCHIVE_VERSION = 19;
+
+	private static final Pattern VERSION_PATTERN = Pattern.compile("(openjdk|java) version \"([^\"]*)\".*");
+
+	private final Map<HostControlConsole, Map<String, Integer>> versionCache = new WeakHashMap<HostControlConsole, Map<String, Integer>>();
+	private final Map<HostControlConsole, Map<String, FutureBox<Boolean>>> archives = new WeakHashMap<HostControlConsole, Map<String, FutureBox<Boolean>>>();
+
+	/**
+	 * @return additional JVM options or empty list if class-data sharing is not supported by slave JVM
+	 */
+	public List<String> getJvmOptions(HostControlConsole console, String javaCmd, String bootJarPath, StreamCopyService streamCopyService) {
+		return getJvmOptions(console, javaCmd, bootJarPath, Collections.<String>emptyList(), streamCopyService);
+	}
+
+	/**
+	 * @param startupClasses classes to be loaded by trial JVM in addition to bootstrap path (e.g. classes of spore)
+	 * @return additional JVM options or empty list if class-data sharing is not supported by slave JVM or archive is not ready yet
+	 */
+	public List<String> getJvmOptions(HostControlConsole console, String javaCmd, String bootJarPath, Collection<String> startupClasses, StreamCopyService streamCopyService) {
+		List<String> options = new ArrayList<String>();
+		int version = getJavaVersion(console, javaCmd, streamCopyService);
+		if (version < DYNAMIC_ARCHIVE_VERSION) {
+			return options;
+		}
+		String archive = archivePath(javaCmd, bootJarPath);
+		if (version >= AUTO_ARCHIVE_VERSION) {
+			options.add("-XX:+AutoCreateSharedArchive");
+			options.add("-XX:SharedArchiveFile=" + archive);
+		}
+		else {
+			FutureBox<Boolean> dumped;
+			boolean start = false;
+			synchronized(archives) {
+				Map<String, FutureBox<Boolean>> consoleArchives = archives.get(console);
+				if (consoleArchives == null) {
+					consoleArchives = new HashMap<String, FutureBox<Boolean>>();
+					archives.put(console, consoleArchives);
+				}
+				dumped = consoleArchives.get(archive);
+				if (dumped == null) {
+					dumped = new FutureBox<Boolean>();
+					consoleArchives.put(archive, dumped);
+					start = true;
+				}
+			}
+			if (start) {
+				startTrial(console, javaCmd, bootJarPath, archive, startupClasses, streamCopyService, dumped);
+			}
+			// missing archive would produce warnings in slave output
+			if (dumped.isDone() && Boolean.TRUE.equals(getQuietly(dumped))) {
+				options.add("-XX:SharedArchiveFile=" + archive);
+			}
+		}
+		return options;
+	}
+
+	private static Boolean getQuietly(FutureBox<Boolean> box) {
+		try {
+			return box.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Trial JVM dumps archive on exit. JVM exits normally even if it has failed to dump archive
+	 * (e.g. directories in classpath), so archive is verified by second trial which requires it
+	 * (<code>-Xshare:on</code>). Box receives <code>true</code> if both trials have succeeded.
+	 */
+	private void startTrial(final HostControlConsole console, final String javaCmd, final String bootJarPath, final String archive, Collection<String> startupClasses, StreamCopyService streamCopyService, final FutureBox<Boolean> dumped) {
+		final StreamCopyService scs = streamCopyService == null ? BackgroundStreamDumper.SINGLETON : streamCopyService;
+		final byte[] spore = serialize(new TrialSpore(startupClasses.toArray(new String[startupClasses.size()])));
+		String[] dumpCmd = {javaCmd, "-XX:ArchiveClassesAtExit=" + archive, "-jar", bootJarPath};
+		final String[] verifyCmd = {javaCmd, "-Xshare:on", "-XX:SharedArchiveFile=" + archive, "-jar", bootJarPath};
+
+		runTrial(console, dumpCmd, spore, scs, new TrialListener() {
+			@Override
+			public void finished(int exitCode) {
+				if (exitCode != 0) {
+					dumped.setData(false);
+				}
+				else {
+					runTrial(console, verifyCmd, spore, scs, new TrialListener() {
+						@Override
+						public void finished(int exitCode) {
+							dumped.setData(exitCode == 0);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void runTrial(HostControlConsole console, String[] cmd, final byte[] spore, final StreamCopyService scs, final TrialListener listener) {
+		ProcessHandler handler = new ProcessHandler() {
+
+			Link lout;
+			Link lerr;
+
+			@Override
+			public void started(OutputStream stdIn, InputStream out, InputStream err) {
+				// output is not needed, but should be drained
+				lout = scs.link(out, new ByteArrayOutputStream());
+				lerr = scs.link(err, new ByteArrayOutputStream());
+				try {
+					// same framing as real spore, see SmartBootstraper
+					DataOutputStream dos = new DataOutputStream(stdIn);
+					dos.writeInt(spore.length);
+					dos.write(spore);
+					dos.close();
+				} catch (IOException e) {
+					// trial would fail and report exit code
+				}
+			}
+
+			@Override
+			public void finished(int exitCode) {
+				if (lout != null) {
+					lout.flushAndClose();
+					lerr.flushAndClose();
+				}
+				listener.finished(exitCode);
+			}
+		};
+
+		try {
+			// tunnel console requires working directory
+			console.startProcess(".", cmd, null, handler);
+		}
+		catch(RuntimeException e) {
+			listener.finished(-1);
+		}
+	}
+
+	private interface TrialListener {
+
+		public void finished(int exitCode);
+
+	}
+
+	private static byte[] serialize(Object obj) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(obj);
+			oos.close();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String archivePath(String javaCmd, String bootJarPath) {
+		int n = Math.max(bootJarPath.lastIndexOf('/'), bootJarPath.lastIndexOf('\\'));
+		String dir = bootJarPath.substring(0, n + 1);
+		// archive is only valid for JVM it was produced by
+		return dir + "slave-" + Integer.toHexString(javaCmd.hashCode()) + ".jsa";
+	}
+
+	protected int getJavaVersion(HostControlConsole console, String javaCmd, StreamCopyService streamCopyService) {
+		Map<String, Integer> versions;
+		synchronized(versionCache) {
+			versions = versionCache.get(console);
+			if (versions == null) {
+				versions = new HashMap<String, Integer>();
+				versionCache.put(console, versions);
+			}
+		}
+		synchronized(versions) {
+			Integer v = versions.get(javaCmd);
+			if (v == null) {
+				v = parseMajorVersion(probeVersion(console, javaCmd, streamCopyService));
+				versions.put(javaCmd, v);
+			}
+			return v;
+		}
+	}
+
+	static int parseMajorVersion(String version) {
+		if (version == null) {
+			return -1;
+		}
+		String[] split = version.split("[._+-]");
+		try {
+			int major = Integer.parseInt(split[0]);
+			if (major == 1 && split.length > 1) {
+				// 1.6, 1.7, 1.8 notation
+				major = Integer.parseInt(split[1]);
+			}
+			return major;
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private String probeVersion(HostControlConsole console, String javaCmd, StreamCopyService streamCopyService) {
+		final StreamCopyService scs = streamCopyService == null ? BackgroundStreamDumper.SINGLETON : streamCopyService;
+		final FutureBox<Void> done = new FutureBox<Void>();
+		final ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
+
+		ProcessHandler handler = new ProcessHandler() {
+
+			Link lout;
+			Link lerr;
+
+			@Override
+			public void started(OutputStream stdIn, InputStream out, InputStream err) {
+				try {
+					stdIn.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				lout = scs.link(out, stdOut);
+				lerr = scs.link(err, stdErr);
+			}
+
+			@Override
+			public void finished(int exitCode) {
+				lout.flushAndClose();
+				lerr.flushAndClose();
+				done.setData(null);
+			}
+		};
+
+		try {
+			console.startProcess(".", new String[]{javaCmd, "-version"}, null, handler);
+		}
+		catch(RuntimeException e) {
+			// CDS is an optimization, slave is started without it
+			return null;
+		}
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+
+		BufferedReader errr = new BufferedReader(new StringReader(new String(stdErr.toByteArray())));
+		try {
+			while(true) {
+				String line = errr.readLine();
+				if (line == null) {
+					break;
+				}
+				Matcher m = VERSION_PATTERN.matcher(line);
+				if (m.matches()) {
+					return m.group(2);
+				}
+			}
+		} catch (IOException e) {
+			// ignore
+		}
+		return null;
+	}
+
+	/**
+	 * Executed by trial JVM instead of real spore, loads classes slave needs during startup.
+	 */
+	static class TrialSpore implements Runnable, Serializable {
+
+		private static final long serialVersionUID = 20140201L;
+
+		private final String[] classNames;
+
+		public TrialSpore(String[] classNames) {
+			this.classNames = classNames;
+		}
+
+		@Override
+		public void run() {
+			ClassLoader cl = TrialSpore.class.getClassLoader();
+			for(String name: classNames) {
+				try {
+					Class.forName(name, false, cl);
+				}
+				catch(Throwable e) {
+					// class is just not archived
+				}
+			}
+		}
+	}
+}
@@ -3,23 +3,38 @@ package org.gridkit.nanocloud.telecontrol;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.gridkit.util.concurrent.FutureBox;
 import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.gridkit.vicluster.telecontrol.bootstraper.CacheManager;
 import org.gridkit.vicluster.telecontrol.bootstraper.SystemHelper;
 
 /**
@@ -29,22 +44,76 @@ import org.gridkit.vicluster.telecontrol.bootstraper.SystemHelper;
  */
 public class LocalControlConsole implements HostControlConsole {
 
+	/**
+	 * System property to choose default {@link CacheMode}.
+	 */
+	public static final String CACHE_MODE_PROP = "org.gridkit.nanocloud.local-cache-mode";
+
+	/**
+	 * System property to limit size of cache directory (e.g. <code>2g</code>), least recently
+	 * used files not in use by any console are removed. Unlimited by default.
+	 */
+	public static final String CACHE_LIMIT_PROP = "org.gridkit.nanocloud.local-cache-limit";
+
+	private static final int CACHE_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * File modified this recently may be modified again without changing its timestamp,
+	 * so its hash is not cached (timestamp granularity could be up to 2 seconds).
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private static final int HASH_CACHE_SIZE = 4096;
+
+	/** Hashes of local files, keyed by path, valid while size and timestamp match */
+	private static final Map<String, FileHash> FILE_HASHES = new LinkedHashMap<String, FileHash>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 20140201L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FileHash> eldest) {
+			return size() > HASH_CACHE_SIZE;
+		}
+	};
+
+	public enum CacheMode {
+		/** Local files are used in place, only in-memory blobs are written to cache */
+		IN_PLACE,
+		/**
+		 * Local files are hard linked into cache (copied if link cannot be made).
+		 * Link shares content with original file, so slave is not affected by rebuilds
+		 * which replace files (build tools write new file and rename it or delete old one first),
+		 * but file modified in place is modified for slave too.
+		 */
+		LINK
+	}
+
 	private List<Destroyable> activeObjects = new ArrayList<Destroyable>();
 	private boolean terminated = false;
 	private File cacheDir;
+	private CacheMode cacheMode;
+	private CacheManager cacheManager;
+	private AtomicBoolean evictionScheduled = new AtomicBoolean();
 	
-	private Map<String, String> hashCache = new HashMap<String, String>();
+	private ConcurrentMap<String, FutureBox<String>> hashCache = new ConcurrentHashMap<String, FutureBox<String>>();
+	private ExecutorService cacheExecutor;
 	
 	public LocalControlConsole() {
 		this("{tmp}/nanocloud");
 	}
 
 	public LocalControlConsole(String tmpDir) {
+		this(tmpDir, CacheMode.valueOf(System.getProperty(CACHE_MODE_PROP, CacheMode.IN_PLACE.name()).toUpperCase()));
+	}
+
+	public LocalControlConsole(String tmpDir, CacheMode cacheMode) {
 		try {
 			cacheDir = new File(SystemHelper.normalizePath(tmpDir));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		this.cacheMode = cacheMode;
+		this.cacheManager = new CacheManager(cacheDir, CacheManager.parseSize(System.getProperty(CACHE_LIMIT_PROP, "0")));
 	}
 	
 	protected void ensureRunning() {
@@ -53,33 +122,43 @@ public class LocalControlConsole implements HostControlConsole {
 		}
 	}
 	
+	public CacheMode getCacheMode() {
+		return cacheMode;
+	}
+
 	@Override
 	public String cacheFile(FileBlob blob) {
 		ensureRunning();
 		try {
 			File file = blob.getLocalFile();
-			if (file != null && file.isFile()) {
+			if (cacheMode == CacheMode.IN_PLACE && file != null && file.isFile()) {
 				return file.getCanonicalPath(); 
 			}
-			else {		
-				synchronized(hashCache) {
-					String hashKey = blob.getContentHash() + "___" + blob.getFileName();
-					if (hashCache.containsKey(hashKey)) {
-						return hashCache.get(hashKey);
-					}
-					else {
-						File f = new File(new File(cacheDir, blob.getContentHash()), blob.getFileName());
-						f.getParentFile().mkdirs();
-						File tmp = File.createTempFile(f.getName(), "", f.getParentFile());
-						FileOutputStream fos = new FileOutputStream(tmp);
-						StreamHelper.copy(blob.getContent(), fos);
-						fos.close();
-						tmp.renameTo(f);
-						f.deleteOnExit();
-						String path = f.getCanonicalPath();
-						hashCache.put(hashKey, path);
-						return path;
-					}
+			else {
+				// only one thread stores given blob, others wait for it
+				String hashKey = blob.getContentHash() + "___" + blob.getFileName();
+				FutureBox<String> box = new FutureBox<String>();
+				FutureBox<String> prev = hashCache.putIfAbsent(hashKey, box);
+				if (prev != null) {
+					return ProcessSporeLauncher.fget(prev);
+				}
+				try {
+					String path = storeBlob(blob);
+					// file is pinned in cache while console is alive
+					cacheManager.touch(new File(path));
+					scheduleEviction();
+					box.setData(path);
+					return path;
+				}
+				catch(IOException e) {
+					hashCache.remove(hashKey, box);
+					box.setError(e);
+					throw e;
+				}
+				catch(RuntimeException e) {
+					hashCache.remove(hashKey, box);
+					box.setError(e);
+					throw e;
 				}
 			}
 		} catch (FileNotFoundException e) {
@@ -89,16 +168,175 @@ public class LocalControlConsole implements HostControlConsole {
 		}
 	}
 
+	private String storeBlob(FileBlob blob) throws IOException {
+		File f = new File(new File(cacheDir, blob.getContentHash()), blob.getFileName());
+		if (f.isFile() && verify(f, f, blob)) {
+			// file is stored by another console or process
+			return f.getCanonicalPath();
+		}
+		f.getParentFile().mkdirs();
+		File tmp = File.createTempFile(f.getName(), "", f.getParentFile());
+		File src = blob.getLocalFile();
+		boolean linked = false;
+		if (cacheMode == CacheMode.LINK && src != null && src.isFile()) {
+			tmp.delete();
+			// link has same content and timestamp as source, so hash of source could be reused
+			linked = hardLink(src, tmp) && verify(tmp, src, blob);
+		}
+		if (!linked) {
+			tmp.delete();
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				StreamHelper.copy(blob.getContent(), fos);
+			}
+			finally {
+				fos.close();
+			}
+		}
+		if (!tmp.renameTo(f)) {
+			// rename could fail if target exists (on Windows)
+			tmp.delete();
+			if (!f.isFile() || !verify(f, f, blob)) {
+				throw new IOException("Failed to store " + f.getPath());
+			}
+		}
+		f.deleteOnExit();
+		return f.getCanonicalPath();
+	}
+
+	private void scheduleEviction() {
+		if (cacheManager.getSizeLimit() > 0 && evictionScheduled.compareAndSet(false, true)) {
+			getCacheExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						cacheManager.evict();
+					}
+					finally {
+						evictionScheduled.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param hashKey file hash is cached under this file's path
+	 */
+	private static boolean verify(File file, File hashKey, FileBlob blob) throws IOException {
+		if (file.length() != blob.size()) {
+			return false;
+		}
+		String hash = blob.getContentHash();
+		// blob hashes are SHA-1, anything else is verified by size only
+		return hash.length() != 40 || hash.equalsIgnoreCase(cachedDigest(file, hashKey));
+	}
+
+	static String cachedDigest(File file, File hashKey) throws IOException {
+		String key = hashKey.getAbsolutePath();
+		long size = file.length();
+		long timestamp = file.lastModified();
+		synchronized(FILE_HASHES) {
+			FileHash fh = FILE_HASHES.get(key);
+			if (fh != null && fh.size == size && fh.timestamp == timestamp) {
+				return fh.hash;
+			}
+		}
+		String hash = digest(file);
+		if (timestamp != 0 && System.currentTimeMillis() - timestamp > RACY_INTERVAL && file.length() == size && file.lastModified() == timestamp) {
+			synchronized(FILE_HASHES) {
+				FILE_HASHES.put(key, new FileHash(size, timestamp, hash));
+			}
+		}
+		return hash;
+	}
+
+	private static String digest(File file) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				byte[] buf = new byte[1 << 16];
+				int n;
+				while((n = fis.read(buf)) >= 0) {
+					md.update(buf, 0, n);
+				}
+			}
+			finally {
+				fis.close();
+			}
+			StringBuilder sb = new StringBuilder();
+			for(byte b: md.digest()) {
+				sb.append(Integer.toHexString(0xF & (b >> 4)));
+				sb.append(Integer.toHexString(0xF & (b)));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	/**
+	 * Uses <code>java.nio.file.Files.createLink()</code> if available (Java 7+).
+	 */
+	private static boolean hardLink(File src, File link) {
+		try {
+			Method toPath = File.class.getMethod("toPath");
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> filesClass = Class.forName("java.nio.file.Files");
+			Method createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+			createLink.invoke(null, toPath.invoke(link), toPath.invoke(src));
+			return true;
+		}
+		catch(Exception e) {
+			// no Java 7, cross device link or file system does not support links
+			return false;
+		}
+	}
+
 	@Override
 	public List<String> cacheFiles(List<? extends FileBlob> blobs) {
 		ensureRunning();
 		List<String> result = new ArrayList<String>();
-		for(FileBlob blob: blobs) {
-			result.add(cacheFile(blob));
+		if (blobs.size() < 2) {
+			for(FileBlob blob: blobs) {
+				result.add(cacheFile(blob));
+			}
+		}
+		else {
+			// hashing, jaring and writing of blobs are done in parallel
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for(final FileBlob blob: blobs) {
+				futures.add(getCacheExecutor().submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return cacheFile(blob);
+					}
+				}));
+			}
+			for(Future<String> f: futures) {
+				result.add(ProcessSporeLauncher.fget(f));
+			}
 		}
 		return result;
 	}
 
+	private synchronized ExecutorService getCacheExecutor() {
+		if (cacheExecutor == null) {
+			final AtomicInteger counter = new AtomicInteger();
+			cacheExecutor = Executors.newFixedThreadPool(CACHE_PARALLELISM, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r);
+					thread.setDaemon(true);
+					thread.setName("LocalCache-" + counter.getAndIncrement());
+					return thread;
+				}
+			});
+		}
+		return cacheExecutor;
+	}
+
 	@Override
 	public Destroyable openSocket(SocketHandler handler) {
 		ensureRunning();
@@ -199,6 +437,12 @@ public class LocalControlConsole implements HostControlConsole {
 		for(Destroyable d: killList) {
 			d.destroy();
 		}		
+		synchronized (this) {
+			if (cacheExecutor != null) {
+				cacheExecutor.shutdown();
+			}
+		}
+		cacheManager.close();
 	}
 	
 	public File getCacheDir() {
@@ -303,6 +547,19 @@ public class LocalControlConsole implements HostControlConsole {
 		}
 	}
 	
+	private static class FileHash {
+
+		final long size;
+		final long timestamp;
+		final String hash;
+
+		public FileHash(long size, long timestamp, String hash) {
+			this.size = size;
+			this.timestamp = timestamp;
+			this.hash = hash;
+		}
+	}
+
 	private static class ClosedOutputStream extends OutputStream {
 
 		@Override
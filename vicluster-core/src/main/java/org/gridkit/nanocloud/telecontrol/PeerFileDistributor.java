@@ -0,0 +1,381 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Master side coordinator of peer-to-peer file distribution.
+ * <br/>
+ * Hosts already having a file (identified by content hash) in their cache
+ * serve it to other hosts, so master uploads each file only to a few hosts.
+ * Each holder serves limited number of peers at once (fan-out), master uploads
+ * a file to limited number of hosts at once too, other hosts wait for a free source.
+ * Number of holders grows <code>fan-out + 1</code> times per transfer round,
+ * so time to provision a file is logarithmic in number of hosts.
+ * <br/>
+ * Distributor only decides who sends file to whom, transfers are done
+ * by {@link TunnellerControlConsole}.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class PeerFileDistributor {
+
+	public static final int DEFAULT_FAN_OUT = 2;
+
+	/**
+	 * Peer which has failed to serve a file this many times is no longer used as source of that file.
+	 */
+	private static final int MAX_FAILURES = 2;
+
+	/**
+	 * Failure count is halved each period, so peer recovered from transient problem is used again.
+	 */
+	public static final long DEFAULT_FAILURE_DECAY = TimeUnit.MINUTES.toMillis(1);
+
+	private static final PeerFileDistributor INSTANCE = new PeerFileDistributor(DEFAULT_FAN_OUT, DEFAULT_FAILURE_DECAY);
+
+	/**
+	 * Consoles are shared by clouds of same JVM, so is distributor.
+	 */
+	public static PeerFileDistributor getInstance() {
+		return INSTANCE;
+	}
+
+	private final int masterFanOut;
+	private final long failureDecay;
+	private final Map<String, Swarm> swarms = new HashMap<String, Swarm>();
+	private final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+	/**
+	 * @param masterFanOut number of hosts master uploads same file to at once
+	 * @param failureDecay period (ms) failure count of a peer is halved in
+	 */
+	public PeerFileDistributor(int masterFanOut, long failureDecay) {
+		if (masterFanOut < 1) {
+			throw new IllegalArgumentException("Fan-out should be positive: " + masterFanOut);
+		}
+		if (failureDecay < 1) {
+			throw new IllegalArgumentException("Failure decay should be positive: " + failureDecay);
+		}
+		this.masterFanOut = masterFanOut;
+		this.failureDecay = failureDecay;
+	}
+
+	/**
+	 * Registers a tunnel to a host. Tunnels to same host and cache (e.g. stripes)
+	 * share a single peer, so host is not counted twice.
+	 * @param host name or address of host, used if agent does not advertise its address
+	 * @param fanOut number of peers host serves at once, first tunnel defines it
+	 */
+	public synchronized Peer join(TunnellerControlConsole console, String host, String cachePath, int fanOut) {
+		String key = host + "|" + cachePath;
+		Peer peer = peers.get(key);
+		if (peer == null) {
+			peer = new Peer(key, host, fanOut);
+			peers.put(key, peer);
+		}
+		synchronized(peer.consoles) {
+			peer.consoles.add(console);
+		}
+		return peer;
+	}
+
+	/**
+	 * Unregisters a tunnel, peer is no longer used once its last tunnel has left.
+	 */
+	public synchronized void leave(Peer peer, TunnellerControlConsole console) {
+		synchronized(peer.consoles) {
+			peer.consoles.remove(console);
+			if (!peer.consoles.isEmpty() || !peer.active) {
+				return;
+			}
+		}
+		peer.active = false;
+		peers.remove(peer.key);
+		Iterator<Swarm> it = swarms.values().iterator();
+		while(it.hasNext()) {
+			Swarm swarm = it.next();
+			swarm.holders.remove(peer);
+			swarm.failures.remove(peer);
+			if (swarm.isIdle()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Requests source for a file missing on requester's host.
+	 * Listener is notified once source is available, possibly from other thread.
+	 * {@link #complete(String, Peer, Peer, String)} should be called once transfer is finished.
+	 */
+	public void acquire(String hash, Peer requester, SourceListener listener) {
+		List<Assignment> assignments;
+		synchronized(this) {
+			Swarm swarm = getSwarm(hash);
+			swarm.waiters.add(new Waiter(requester, listener));
+			assignments = dispatch();
+		}
+		fire(assignments);
+	}
+
+	/**
+	 * Releases source acquired via {@link #acquire(String, Peer, SourceListener)}.
+	 * @param source source passed to listener, <code>null</code> for master
+	 * @param path path of file on requester's host, <code>null</code> if transfer has failed
+	 */
+	public void complete(String hash, Peer source, Peer requester, String path) {
+		List<Assignment> assignments;
+		synchronized(this) {
+			Swarm swarm = getSwarm(hash);
+			if (source == null) {
+				swarm.masterUploads--;
+			}
+			else {
+				source.uploads--;
+				swarm.transfers--;
+				if (path == null) {
+					swarm.fail(source, now(), failureDecay);
+				}
+				else {
+					swarm.failures.remove(source);
+				}
+			}
+			if (path != null && requester.active) {
+				swarm.holders.put(requester, path);
+			}
+			assignments = dispatch();
+			if (swarm.isIdle()) {
+				swarms.remove(hash);
+			}
+		}
+		fire(assignments);
+	}
+
+	/**
+	 * Registers file found in peer's cache.
+	 */
+	public void addHolder(String hash, Peer holder, String path) {
+		List<Assignment> assignments;
+		synchronized(this) {
+			if (!holder.active) {
+				return;
+			}
+			getSwarm(hash).holders.put(holder, path);
+			assignments = dispatch();
+		}
+		fire(assignments);
+	}
+
+	/**
+	 * Peer no longer has a file (e.g. it was evicted from its cache).
+	 */
+	public synchronized void removeHolder(String hash, Peer holder) {
+		Swarm swarm = swarms.get(hash);
+		if (swarm != null) {
+			swarm.holders.remove(holder);
+			if (swarm.isIdle()) {
+				swarms.remove(hash);
+			}
+		}
+	}
+
+	/**
+	 * @return number of hosts known to have a file
+	 */
+	public synchronized int getHolderCount(String hash) {
+		Swarm swarm = swarms.get(hash);
+		return swarm == null ? 0 : swarm.holders.size();
+	}
+
+	synchronized int getSwarmCount() {
+		return swarms.size();
+	}
+
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	private Swarm getSwarm(String hash) {
+		Swarm swarm = swarms.get(hash);
+		if (swarm == null) {
+			swarm = new Swarm();
+			swarms.put(hash, swarm);
+		}
+		return swarm;
+	}
+
+	/**
+	 * Peer capacity is shared by all files, so waiters of all swarms are checked.
+	 */
+	private List<Assignment> dispatch() {
+		List<Assignment> assignments = new ArrayList<Assignment>();
+		for(Swarm swarm: swarms.values()) {
+			Iterator<Waiter> it = swarm.waiters.iterator();
+			while(it.hasNext()) {
+				Waiter waiter = it.next();
+				Assignment a = assign(swarm, waiter);
+				if (a == null) {
+					continue;
+				}
+				it.remove();
+				assignments.add(a);
+			}
+		}
+		return assignments;
+	}
+
+	private Assignment assign(Swarm swarm, Waiter waiter) {
+		Peer best = null;
+		long now = now();
+		for(Peer peer: swarm.holders.keySet()) {
+			if (peer == waiter.requester || !peer.active || peer.uploads >= peer.fanOut) {
+				continue;
+			}
+			if (swarm.getFailures(peer, now, failureDecay) >= MAX_FAILURES) {
+				continue;
+			}
+			if (best == null || peer.uploads < best.uploads) {
+				best = peer;
+			}
+		}
+		if (best != null) {
+			best.uploads++;
+			swarm.transfers++;
+			return new Assignment(waiter.listener, best, swarm.holders.get(best));
+		}
+		if (swarm.masterUploads < masterFanOut) {
+			swarm.masterUploads++;
+			return new Assignment(waiter.listener, null, null);
+		}
+		return null;
+	}
+
+	private void fire(List<Assignment> assignments) {
+		for(Assignment a: assignments) {
+			a.listener.assigned(a.source, a.sourcePath);
+		}
+	}
+
+	public interface SourceListener {
+
+		/**
+		 * @param source holder to fetch file from, <code>null</code> if file should be uploaded by master
+		 * @param sourcePath path of file on source host
+		 */
+		public void assigned(Peer source, String sourcePath);
+
+	}
+
+	/**
+	 * Host participating in distribution, created by {@link PeerFileDistributor#join(TunnellerControlConsole, String, String, int)}.
+	 * Counters are guarded by distributor.
+	 */
+	public static class Peer {
+
+		final String key;
+		final String host;
+		final int fanOut;
+		final List<TunnellerControlConsole> consoles = new ArrayList<TunnellerControlConsole>();
+
+		int uploads;
+		boolean active = true;
+
+		Peer(String key, String host, int fanOut) {
+			if (fanOut < 1) {
+				throw new IllegalArgumentException("Fan-out should be positive: " + fanOut);
+			}
+			this.key = key;
+			this.host = host;
+			this.fanOut = fanOut;
+		}
+
+		/**
+		 * @return any tunnel to this host, <code>null</code> if peer has left
+		 */
+		public TunnellerControlConsole getConsole() {
+			synchronized(consoles) {
+				return consoles.isEmpty() ? null : consoles.get(0);
+			}
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getFanOut() {
+			return fanOut;
+		}
+
+		@Override
+		public String toString() {
+			return host;
+		}
+	}
+
+	private static class Swarm {
+
+		final Map<Peer, String> holders = new LinkedHashMap<Peer, String>();
+		final List<Waiter> waiters = new ArrayList<Waiter>();
+		final Map<Peer, Failure> failures = new HashMap<Peer, Failure>();
+		int masterUploads;
+		int transfers;
+
+		boolean isIdle() {
+			return holders.isEmpty() && waiters.isEmpty() && masterUploads == 0 && transfers == 0;
+		}
+
+		int getFailures(Peer peer, long now, long decay) {
+			Failure f = failures.get(peer);
+			if (f == null) {
+				return 0;
+			}
+			long periods = (now - f.timestamp) / decay;
+			return periods >= 31 ? 0 : f.count >> periods;
+		}
+
+		void fail(Peer peer, long now, long decay) {
+			int count = getFailures(peer, now, decay);
+			failures.put(peer, new Failure(count + 1, now));
+		}
+	}
+
+	private static class Failure {
+
+		final int count;
+		final long timestamp;
+
+		public Failure(int count, long timestamp) {
+			this.count = count;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static class Waiter {
+
+		final Peer requester;
+		final SourceListener listener;
+
+		public Waiter(Peer requester, SourceListener listener) {
+			this.requester = requester;
+			this.listener = listener;
+		}
+	}
+
+	private static class Assignment {
+
+		final SourceListener listener;
+		final Peer source;
+		final String sourcePath;
+
+		public Assignment(SourceListener listener, Peer source, String sourcePath) {
+			this.listener = listener;
+			this.source = source;
+			this.sourcePath = sourcePath;
+		}
+	}
+}
@@ -28,6 +28,11 @@ public interface ProcessLauncher {
         public List<ClasspathEntry> getSlaveClasspath();
 
         public List<AgentEntry> getAgentEntries();
+
+        /**
+         * @return <code>true</code> if slave should use class-data sharing archive from console cache
+         */
+        public boolean isClassDataSharingEnabled();
         
     }
 
@@ -17,6 +17,8 @@ package org.gridkit.nanocloud.telecontrol;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
@@ -26,6 +28,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -39,6 +42,8 @@ import org.gridkit.nanocloud.telecontrol.HostControlConsole.SocketHandler;
 import org.gridkit.util.concurrent.AdvancedExecutor;
 import org.gridkit.util.concurrent.FutureBox;
 import org.gridkit.util.concurrent.FutureEx;
+import org.gridkit.vicluster.StartupTimeline;
+import org.gridkit.vicluster.ViConf;
 import org.gridkit.vicluster.ViEngine;
 import org.gridkit.vicluster.ViSpiConfig;
 import org.gridkit.vicluster.telecontrol.AgentEntry;
@@ -66,6 +71,7 @@ import org.gridkit.zerormi.hub.SlaveSpore;
 public class ProcessSporeLauncher implements ProcessLauncher {
 
     StreamCopyService streamCopyService;
+    ClassDataSharingSupport cdsSupport = new ClassDataSharingSupport();
 
     @Deprecated
     public ProcessSporeLauncher() {
@@ -113,6 +119,10 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 			}
 		}
 
+		if (config.isClassDataSharingEnabled()) {
+			commands.addAll(cdsSupport.getJvmOptions(console, javaCmd, bootstraper, streamCopyService));
+		}
+
         commands.add("-jar");
         commands.add(bootstraper);
 
@@ -130,25 +140,31 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 		List<String> slaveArgs = ctx.getSlaveArgs();
 		Map<String, String> slaveEnv = ctx.getSlaveEnv();
 		String slaveWD = ctx.getSlaveWorkDir();
+		StartupTimeline timeline = (StartupTimeline)ctx.get(ViConf.SPI_STARTUP_TIMELINE);
 
 		ControlledSession session = new ControlledSession();
 		session.session = rmiSession;
+		session.timeline = timeline;
 		// TODO temporary work around
 		session.streamCopyService = ctx.getStreamCopyService();
 
 		SlaveSpore spore = rmiSession.getMobileSpore();
 
+		StartupTimeline.Step step = StartupTimeline.begin(timeline, "open-socket");
 		// TODO single socket per console should be reused or at least it should be closed after use
 		Destroyable socketHandler = console.openSocket(session);
 		session.socketHandle = socketHandler;
 
 		InetSocketAddress sockAddr = (InetSocketAddress)fget(session.bindAddress);
+		step.end();
 		CallbackSporePlanter planter = new CallbackSporePlanter(spore, sockAddr.getHostName(), sockAddr.getPort());
 		byte[] binspore = serialize(planter);
 		session.binspore = binspore;
 
 		String javaCmd = ctx.getJvmExecCmd();
-		String bootstraper = buildBootJar(console, ctx.getSlaveClasspath());
+		step = StartupTimeline.begin(timeline, "classpath-upload");
+		String bootstraper = buildBootJar(console, ctx.getSlaveClasspath(), step);
+		step.end();
  
 		List<String> commands = new ArrayList<String>();
 		commands.add(javaCmd);
@@ -162,9 +178,16 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 			}
 		}
 
+		if (Boolean.valueOf((String)ctx.get(ViConf.JVM_CLASS_DATA_SHARING))) {
+			// classes deserialized by slave on startup
+			List<String> startupClasses = Arrays.asList(planter.getClass().getName(), spore.getClass().getName(), ConnectSocketConnector.class.getName());
+			commands.addAll(cdsSupport.getJvmOptions(console, javaCmd, bootstraper, startupClasses, ctx.getStreamCopyService()));
+		}
+
 		commands.add("-jar");
 		commands.add(bootstraper);
 
+		session.startStep = StartupTimeline.begin(timeline, "process-start");
 		console.startProcess(isEmpty(slaveWD) ? "." : slaveWD, commands.toArray(new String[0]), slaveEnv, session);
 
 		return session;
@@ -175,8 +198,19 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 	}
 
 	private String buildBootJar(HostControlConsole console, List<ClasspathEntry> jvmClasspath) {
+		return buildBootJar(console, jvmClasspath, null);
+	}
 
-		List<String> paths = console.cacheFiles(jvmClasspath);
+	/**
+	 * @param uploadStep if not <code>null</code>, bytes read from blobs by console are added to it
+	 */
+	private String buildBootJar(HostControlConsole console, List<ClasspathEntry> jvmClasspath, StartupTimeline.Step uploadStep) {
+
+		List<FileBlob> blobs = new ArrayList<FileBlob>();
+		for(ClasspathEntry ce: jvmClasspath) {
+			blobs.add(uploadStep == null ? ce : new CountingBlob(ce, uploadStep));
+		}
+		List<String> paths = console.cacheFiles(blobs);
 
 		StringBuilder remoteClasspath = new StringBuilder();
 		for(String path: paths) {
@@ -198,6 +232,9 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 			throw new RuntimeException();
 		}
 		FileBlob bb = Classpath.createBinaryEntry("booter.jar", booter);
+		if (uploadStep != null) {
+			bb = new CountingBlob(bb, uploadStep);
+		}
 
 		String path = console.cacheFile(bb);
 
@@ -271,6 +308,70 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 		}
 	}
 
+	/**
+	 * Console reads content only of blobs it has to store, cached blobs are matched by hash,
+	 * so bytes read is amount of data actually uploaded.
+	 */
+	private static class CountingBlob implements FileBlob {
+
+		private final FileBlob blob;
+		private final StartupTimeline.Step step;
+
+		public CountingBlob(FileBlob blob, StartupTimeline.Step step) {
+			this.blob = blob;
+			this.step = step;
+		}
+
+		@Override
+		public File getLocalFile() {
+			return blob.getLocalFile();
+		}
+
+		@Override
+		public String getFileName() {
+			return blob.getFileName();
+		}
+
+		@Override
+		public String getContentHash() {
+			return blob.getContentHash();
+		}
+
+		@Override
+		public InputStream getContent() {
+			return new FilterInputStream(blob.getContent()) {
+
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						step.addBytes(1);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						step.addBytes(n);
+					}
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public long size() {
+			return blob.size();
+		}
+
+		@Override
+		public String toString() {
+			return blob.toString();
+		}
+	}
+
 	private static class CallbackSporePlanter implements Runnable, Serializable {
 
 		private static final long serialVersionUID = 20130928L;
@@ -344,6 +445,9 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 		StreamCopyService streamCopyService;
 		/** Process has been started so we except exit code to be invoked eventually */
 		boolean procStarted;
+		StartupTimeline timeline;
+		StartupTimeline.Step startStep;
+		volatile StartupTimeline.Step connectStep;
 
 		@Override
 		public void bound(String host, int port) {
@@ -355,6 +459,9 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 			// TODO logging
 			session.setTransportConnection(new NamedStreamPair("tunnel(" + remoteHost + ":" + remotePort + ")", soIn, soOut));
 			executor.setData(session.getRemoteExecutor());
+			if (connectStep != null) {
+				connectStep.end();
+			}
 		}
 
 		@Override
@@ -367,6 +474,9 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 		@Override
 		public void started(OutputStream stdIn, InputStream stdOut, InputStream stdErr) {
 			procStarted = true;
+			if (startStep != null) {
+				startStep.end();
+			}
 			ProcessStreams ps = new ProcessStreams();
 			ps.stdIn = stdIn;
 			ps.stdOut = new LookbackOutputStream(4096);
@@ -379,10 +489,14 @@ public class ProcessSporeLauncher implements ProcessLauncher {
 //				ps.stdOut.setOutput(System.out);
 //				ps.stdErr.setOutput(System.err);
 
+				StartupTimeline.Step step = StartupTimeline.begin(timeline, "spore-delivery");
 				DataOutputStream dos = new DataOutputStream(stdIn);
 				dos.writeInt(binspore.length);
 				dos.write(binspore);
 				dos.flush();
+				step.end(4 + binspore.length);
+				// slave JVM boot until it calls home
+				connectStep = StartupTimeline.begin(timeline, "slave-connect");
 			} catch (IOException e) {
 				sepuku(e);
 				return;
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -34,6 +35,16 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 	private String javaCmd;
 	private ZLogger logger;
 	private StreamCopyService streamCopyService;
+	private String tunnelName;
+	private boolean compression;
+	private long cacheSizeLimit;
+	private JavaVersionCache versionCache;
+	private PeerFileDistributor peerDistributor;
+	private String peerHost;
+	private int peerFanOut;
+	private String peerBindAddress;
+	private String peerPortRange;
+	private String peerAddress;
 
 	public SimpleTunnelInitiator(String javaCmd, String fileCachePath, StreamCopyService streamCopyService, ZLogger logger) {
 		this.javaCmd = javaCmd;
@@ -41,13 +52,76 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 		this.logger = logger;
 	}
 
+	/**
+	 * If set, tunnels are exposed via JMX under this name.
+	 */
+	public void setTunnelName(String name) {
+		this.tunnelName = name;
+	}
+
+	/**
+	 * Offers frame compression in tunnel handshake, useful on constrained links.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Limits size of remote file cache, least recently used files not in use are removed by agent.
+	 * 0 - no limit.
+	 */
+	public void setCacheSizeLimit(long bytes) {
+		this.cacheSizeLimit = bytes;
+	}
+
+	/**
+	 * If set, remote JVM is probed only if cache has no valid version for it.
+	 */
+	public void setVersionCache(JavaVersionCache versionCache) {
+		this.versionCache = versionCache;
+	}
+
+	/**
+	 * Enables peer-to-peer file distribution for created tunnels.
+	 * @param host name of remote host, as reachable from other hosts
+	 * @param fanOut number of hosts remote host serves at once
+	 */
+	public void setPeerDistribution(PeerFileDistributor distributor, String host, int fanOut) {
+		this.peerDistributor = distributor;
+		this.peerHost = host;
+		this.peerFanOut = fanOut;
+	}
+
+	/**
+	 * Configures agent's file server used in peer-to-peer distribution, <code>null</code> means default.
+	 * @param bindAddress local address server is bound to, all interfaces by default
+	 * @param portRange port range (e.g. <code>40000-40100</code>), any free port by default
+	 * @param address address advertised to other hosts, detected by agent by default
+	 */
+	public void setPeerServer(String bindAddress, String portRange, String address) {
+		this.peerBindAddress = bindAddress;
+		this.peerPortRange = portRange;
+		this.peerAddress = address;
+	}
+
 	@Override
 	public HostControlConsole initTunnel(HostControlConsole console) {
 
-		String jversion = getJavaVersion(console);
+		String jversion = versionCache == null ? null : versionCache.get(console, javaCmd);
 		if (jversion != null) {
-			verifyVersion(jversion);
-			logger.debug().log("Host JVM version is " + jversion);
+			logger.debug().log("Host JVM version is " + jversion + " (cached)");
+		}
+		else {
+			String[] probeCmd = versionCache == null ? null : versionCache.getProbeCommand(console, javaCmd);
+			ByteArrayOutputStream probeOut = new ByteArrayOutputStream();
+			jversion = getJavaVersion(console, probeCmd == null ? new String[]{javaCmd, "-version"} : probeCmd, probeOut);
+			if (jversion != null) {
+				verifyVersion(jversion);
+				logger.debug().log("Host JVM version is " + jversion);
+				if (probeCmd != null) {
+					versionCache.put(console, javaCmd, jversion, new String(probeOut.toByteArray()));
+				}
+			}
 		}
 		
 		byte[] bootJar;
@@ -75,7 +149,7 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 					public void run() {
 						try {
 							// TODO blocking operation in console control thread may be an issue
-							TunnellerConnection tcon = new TunnellerConnection("tunneller", stdOut, stdIn, new PrintStream(dlog), 10, TimeUnit.SECONDS);
+							TunnellerConnection tcon = new TunnellerConnection("tunneller", stdOut, stdIn, new PrintStream(dlog), compression, 10, TimeUnit.SECONDS);
 							tc.setData(tcon);
 						} catch (IOException e) {
 							tc.setError(e);
@@ -107,7 +181,14 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 		TunnellerConnection conn;
 		conn = fget(tc);
 		
-		return new CosnoleWrapper(new TunnellerControlConsole(conn, cachePath), proc);
+		TunnellerControlConsole tconsole = new TunnellerControlConsole(conn, cachePath);
+		if (peerDistributor != null) {
+			tconsole.setPeerDistribution(peerDistributor, peerHost, peerFanOut);
+		}
+		if (tunnelName != null) {
+			tconsole.registerMBean(tunnelName);
+		}
+		return new CosnoleWrapper(tconsole, proc);
 	}
 
 	private void verifyVersion(String jversion) {
@@ -132,8 +213,30 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 	}
 
 	private String[] tunnellerCommand(String jarpath) {
-		String[] cmd = new String[]{javaCmd, "-Xmx32m", "-Xms32m", "-cp", jarpath, Tunneller.class.getName()};
-		return cmd;
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(javaCmd);
+		cmd.add("-Xmx32m");
+		cmd.add("-Xms32m");
+		if (cacheSizeLimit > 0) {
+			cmd.add("-D" + Tunneller.CACHE_LIMIT_PROP + "=" + cacheSizeLimit);
+		}
+		if (peerDistributor != null) {
+			addProp(cmd, Tunneller.PEER_BIND_ADDRESS_PROP, peerBindAddress);
+			addProp(cmd, Tunneller.PEER_PORT_RANGE_PROP, peerPortRange);
+			addProp(cmd, Tunneller.PEER_ADDRESS_PROP, peerAddress);
+			// agent serves no more peers at once than master assigns
+			addProp(cmd, Tunneller.MAX_PEER_UPLOADS_PROP, String.valueOf(peerFanOut));
+		}
+		cmd.add("-cp");
+		cmd.add(jarpath);
+		cmd.add(Tunneller.class.getName());
+		return cmd.toArray(new String[cmd.size()]);
+	}
+
+	private static void addProp(List<String> cmd, String prop, String value) {
+		if (value != null && value.length() > 0) {
+			cmd.add("-D" + prop + "=" + value);
+		}
 	}
 
 	private String detectCachePath(String jarpath) {
@@ -201,10 +304,12 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 	
 	
 	@SuppressWarnings("resource")
-    private String getJavaVersion(HostControlConsole console) {
+    /**
+     * @param stdOut receives standard output of probe command
+     */
+    private String getJavaVersion(HostControlConsole console, String[] probeCmd, final ByteArrayOutputStream stdOut) {
 		try {
 			final FutureBox<Void> done = new FutureBox<Void>();
-			final ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
 			final ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
 
 			ProcessHandler handler = new ProcessHandler() {
@@ -231,7 +336,7 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 				}
 			};
 			
-			console.startProcess(null, new String[]{javaCmd, "-version"}, null, handler);
+			console.startProcess(null, probeCmd, null, handler);
 			try {
 				done.get();
 			} catch (InterruptedException e) {
@@ -270,4 +375,28 @@ public class SimpleTunnelInitiator implements TunnellerInitiator {
 			return null;
 		}
 	}
+
+	/**
+	 * Remembers versions of remote JVMs between tunnel initializations.
+	 */
+	public interface JavaVersionCache {
+
+		/**
+		 * @return version or <code>null</code> if it is unknown or cannot be validated
+		 */
+		public String get(HostControlConsole console, String javaCmd);
+
+		/**
+		 * Cache may need more facts about JVM than its version. They are collected
+		 * by same command, so cold probe takes no extra round trips.
+		 * @return command printing <code>java -version</code> output to stderr, <code>null</code> if probe should not be cached
+		 */
+		public String[] getProbeCommand(HostControlConsole console, String javaCmd);
+
+		/**
+		 * @param probeOutput standard output of command provided by {@link #getProbeCommand(HostControlConsole, String)}
+		 */
+		public void put(HostControlConsole console, String javaCmd, String version, String probeOutput);
+
+	}
 }
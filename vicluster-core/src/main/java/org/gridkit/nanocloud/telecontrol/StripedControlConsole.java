@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.nanocloud.telecontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridkit.vicluster.telecontrol.FileBlob;
+
+/**
+ * Distributes processes, sockets and file uploads across number of
+ * consoles connected to same host (e.g. tunnels over separate SSH channels).
+ * <br/>
+ * Each SSH channel has its own flow control window, so on high bandwidth-delay
+ * links several channels could transfer more than one.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class StripedControlConsole implements HostControlConsole {
+
+	private final List<HostControlConsole> stripes;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public StripedControlConsole(List<? extends HostControlConsole> stripes) {
+		if (stripes.isEmpty()) {
+			throw new IllegalArgumentException("No consoles to stripe");
+		}
+		this.stripes = new ArrayList<HostControlConsole>(stripes);
+	}
+
+	public int getStripeCount() {
+		return stripes.size();
+	}
+
+	private HostControlConsole nextStripe() {
+		int n = (next.getAndIncrement() & Integer.MAX_VALUE) % stripes.size();
+		return stripes.get(n);
+	}
+
+	@Override
+	public String cacheFile(FileBlob blob) {
+		return nextStripe().cacheFile(blob);
+	}
+
+	/**
+	 * Blobs are split between stripes and uploaded in parallel.
+	 */
+	@Override
+	public List<String> cacheFiles(List<? extends FileBlob> blobs) {
+		int n = Math.min(stripes.size(), blobs.size());
+		if (n <= 1) {
+			return nextStripe().cacheFiles(blobs);
+		}
+		int offset = next.getAndIncrement() & Integer.MAX_VALUE;
+		List<List<FileBlob>> parts = new ArrayList<List<FileBlob>>();
+		for(int i = 0; i != n; ++i) {
+			parts.add(new ArrayList<FileBlob>());
+		}
+		for(int i = 0; i != blobs.size(); ++i) {
+			parts.get(i % n).add(blobs.get(i));
+		}
+		List<FutureTask<List<String>>> futures = new ArrayList<FutureTask<List<String>>>();
+		for(int i = 0; i != n; ++i) {
+			final HostControlConsole console = stripes.get((offset + i) % stripes.size());
+			final List<FileBlob> part = parts.get(i);
+			FutureTask<List<String>> task = new FutureTask<List<String>>(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					return console.cacheFiles(part);
+				}
+			});
+			futures.add(task);
+			if (i == 0) {
+				continue;
+			}
+			Thread thread = new Thread(task);
+			thread.setName("StripedUpload[" + i + "]");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		// first part is uploaded by calling thread
+		futures.get(0).run();
+
+		String[] paths = new String[blobs.size()];
+		for(int i = 0; i != n; ++i) {
+			List<String> p = fget(futures.get(i));
+			for(int j = 0; j != p.size(); ++j) {
+				paths[i + j * n] = p.get(j);
+			}
+		}
+		return new ArrayList<String>(Arrays.asList(paths));
+	}
+
+	@Override
+	public Destroyable openSocket(SocketHandler handler) {
+		return nextStripe().openSocket(handler);
+	}
+
+	@Override
+	public Destroyable startProcess(String workDir, String[] command, Map<String, String> env, ProcessHandler handler) {
+		return nextStripe().startProcess(workDir, command, env, handler);
+	}
+
+	@Override
+	public void terminate() {
+		for(HostControlConsole console: stripes) {
+			console.terminate();
+		}
+	}
+
+	private static <T> T fget(Future<T> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)(e.getCause());
+			}
+			else if (e.getCause() instanceof Error) {
+				throw (Error)(e.getCause());
+			}
+			else {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
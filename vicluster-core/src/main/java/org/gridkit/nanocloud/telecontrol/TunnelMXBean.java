@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.nanocloud.telecontrol;
+
+/**
+ * JMX view of tunnel to remote host,
+ * see {@link org.gridkit.vicluster.telecontrol.bootstraper.TunnelMetrics}.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public interface TunnelMXBean {
+
+	public long getBytesSent();
+
+	public long getBytesReceived();
+
+	public long getFramesSent();
+
+	public long getFramesReceived();
+
+	public int getReadyQueueDepth();
+
+	public boolean isCompression();
+
+	public int getOpenChannels();
+
+	public int getPendingFilePushes();
+
+	public int getActiveProcesses();
+
+	public int getRemoteActiveFileReceptions();
+
+	public int getRemoteQueuedFileReceptions();
+
+	public int getRemoteProcesses();
+
+	/**
+	 * Remote counters are reported by agent in ping reply.
+	 * Stale ones are refreshed on read, unless agent does not reply in time.
+	 * @return age of remote counters in milliseconds, -1 if they are unknown
+	 */
+	public long getRemoteCountersAgeMillis();
+
+	public long getLastRoundTripMicros();
+
+	public long getAverageRoundTripMicros();
+
+	/**
+	 * @return one line per open channel
+	 */
+	public String[] getChannels();
+
+	/**
+	 * Measures control round trip now.
+	 * @return round trip in microseconds
+	 */
+	public long ping();
+
+}
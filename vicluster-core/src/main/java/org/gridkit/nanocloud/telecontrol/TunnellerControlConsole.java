@@ -3,6 +3,7 @@ package org.gridkit.nanocloud.telecontrol;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,12 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.gridkit.nanocloud.telecontrol.HostControlConsole;
 import org.gridkit.util.concurrent.Box;
@@ -19,12 +26,39 @@ import org.gridkit.util.concurrent.SensibleTaskService;
 import org.gridkit.util.concurrent.TaskService;
 import org.gridkit.vicluster.MassExec;
 import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.gridkit.vicluster.telecontrol.bootstraper.FileDelta;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnelMetrics;
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection;
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.ExecHandler;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.FileCheckHandler;
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.FileHandler;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.ServeHandler;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.SignatureHandler;
 
 public class TunnellerControlConsole implements HostControlConsole {
 
+	/**
+	 * Set to <code>false</code> to disable delta transfer of changed files.
+	 */
+	public static final String DELTA_TRANSFER_PROP = "org.gridkit.nanocloud.tunnel-delta-transfer";
+
+	/**
+	 * Smaller files are not worth extra round trip.
+	 */
+	private static final long DELTA_THRESHOLD = 64 << 10;
+
+	/**
+	 * Smaller files are uploaded by master, peer transfer needs two extra round trips.
+	 */
+	private static final long PEER_THRESHOLD = 64 << 10;
+
+	private static final long PING_TIMEOUT_MS = 30000;
+
+	/** Remote counters of MBean older than this are refreshed by ping */
+	private static final long REMOTE_METRICS_MAX_AGE_MS = 1000;
+	/** MBean attribute read should not hang on busy tunnel */
+	private static final long REMOTE_METRICS_TIMEOUT_MS = 2000;
+
 	private TunnellerConnection connection;
 	private String cachePath;
 	/**
@@ -32,6 +66,21 @@ public class TunnellerControlConsole implements HostControlConsole {
 	 * so this limit is set high to speed up checking already cached fiels.
 	 */
 	private Semaphore uploadLimit;  
+	/**
+	 * Verify hashes (not only sizes) of files already present in remote cache.
+	 */
+	private boolean verifyCachedFiles = false;
+	/**
+	 * Upload changed files as delta against older version in remote cache.
+	 */
+	private boolean deltaTransfer = !"false".equalsIgnoreCase(System.getProperty(DELTA_TRANSFER_PROP));
+	/**
+	 * Fetch missing files from other hosts, see {@link PeerFileDistributor}.
+	 */
+	private PeerFileDistributor distributor;
+	private PeerFileDistributor.Peer peer;
+	
+	private ObjectName mbeanName;
 	
 	public TunnellerControlConsole(TunnellerConnection connection, String cachePath) {
 	    this(connection, cachePath, 128);
@@ -43,7 +92,172 @@ public class TunnellerControlConsole implements HostControlConsole {
 		this.uploadLimit = new Semaphore(maxParallelUploads);
 	}
 
-	protected FutureEx<String> pushFile(final FileBlob blob, final TaskService taskService) {
+	public void setVerifyCachedFiles(boolean verify) {
+		this.verifyCachedFiles = verify;
+	}
+
+	public void setDeltaTransfer(boolean enabled) {
+		this.deltaTransfer = enabled;
+	}
+
+	/**
+	 * Enables peer-to-peer distribution. Files cached on this host are served to other hosts,
+	 * missing files are fetched from other hosts if there is one having them.
+	 * @param host name of this host, as reachable from other hosts
+	 * @param fanOut number of hosts this host serves at once
+	 */
+	public synchronized void setPeerDistribution(PeerFileDistributor distributor, String host, int fanOut) {
+		if (this.distributor != null) {
+			this.distributor.leave(peer, this);
+		}
+		this.distributor = distributor;
+		this.peer = distributor == null ? null : distributor.join(this, host, cachePath, fanOut);
+	}
+
+	private String remotePath(FileBlob blob) {
+		return cachePath + "/" + blob.getContentHash() + "/" + blob.getFileName();
+	}
+
+	/**
+	 * @param hasBasis remote cache has an older version of file, so it could be sent as delta
+	 */
+	protected FutureEx<String> pushFile(final FileBlob blob, final boolean hasBasis, final TaskService taskService) {
+		if (distributor != null && blob.size() >= PEER_THRESHOLD) {
+			return distribute(blob, hasBasis, taskService);
+		}
+		else {
+			return uploadFile(blob, hasBasis, taskService);
+		}
+	}
+
+	private FutureEx<String> uploadFile(final FileBlob blob, boolean hasBasis, final TaskService taskService) {
+		if (deltaTransfer && hasBasis && blob.size() >= DELTA_THRESHOLD) {
+			return pushDelta(blob, taskService);
+		}
+		else {
+			return pushContent(blob, taskService);
+		}
+	}
+
+	/**
+	 * Waits for a source assigned by distributor, file is either fetched from other host
+	 * or uploaded from master. Failed fetch asks distributor for a source again,
+	 * failed peer is not assigned again after few failures, so it ends with upload from master
+	 * (still limited by master fan-out).
+	 */
+	private FutureEx<String> distribute(final FileBlob blob, final boolean hasBasis, final TaskService taskService) {
+		FutureBox<String> remotePath = new FutureBox<String>();
+		distribute(blob, hasBasis, taskService, remotePath);
+		return remotePath;
+	}
+
+	private void distribute(final FileBlob blob, final boolean hasBasis, final TaskService taskService, final FutureBox<String> remotePath) {
+		final PeerFileDistributor distributor = this.distributor;
+		final PeerFileDistributor.Peer peer = this.peer;
+		final String hash = blob.getContentHash();
+		distributor.acquire(hash, peer, new PeerFileDistributor.SourceListener() {
+			
+			@Override
+			public void assigned(final PeerFileDistributor.Peer source, final String sourcePath) {
+				// may be called from other tunnel's control thread, should not block here
+				taskService.schedule(new UploadTask(remotePath) {
+					@Override
+					public void run() {
+						FutureEx<String> f = source == null ? uploadFile(blob, hasBasis, taskService) : fetchFile(blob, source, sourcePath, taskService);
+						f.addListener(new Box<String>() {
+							
+							@Override
+							public void setData(String path) {
+								distributor.complete(hash, source, peer, path);
+								remotePath.setData(path);
+							}
+							
+							@Override
+							public void setError(Throwable e) {
+								distributor.complete(hash, source, peer, null);
+								if (source == null) {
+									remotePath.setError(e);
+								}
+								else {
+									// called from control thread of this or source tunnel, should not block here
+									taskService.schedule(new UploadTask(remotePath) {
+										@Override
+										public void run() {
+											distribute(blob, hasBasis, taskService, remotePath);
+										}
+									});
+								}
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Source agent opens its file server, this agent downloads file directly from it.
+	 */
+	private FutureEx<String> fetchFile(final FileBlob blob, final PeerFileDistributor.Peer source, String sourcePath, final TaskService taskService) {
+		final FutureBox<String> remotePath = new FutureBox<String>();
+		final PeerFileDistributor distributor = this.distributor;
+		TunnellerControlConsole sourceConsole = source.getConsole();
+		if (sourceConsole == null) {
+			remotePath.setError(new RuntimeException("Peer " + source + " has left"));
+			return remotePath;
+		}
+		try {
+			sourceConsole.connection.serveFile(sourcePath, blob.size(), new ServeHandler() {
+				
+				@Override
+				public void serving(String path, String host, final int port, final long token) {
+					// agent knows address it is reachable by better than master's alias for it
+					final String peerHost = host.length() == 0 ? source.getHost() : host;
+					// called from source's control thread, should not block here
+					taskService.schedule(new UploadTask(remotePath) {
+						@Override
+						public void run() {
+							try {
+								connection.fetchFile(remotePath(blob), blob.size(), blob.getContentHash(), peerHost, port, token, new FileHandler() {
+									
+									@Override
+									public void failed(String path, String error) {
+										remotePath.setError(new RuntimeException("File fetch from " + source + " failed: " + error));
+									}
+									
+									@Override
+									public void confirmed(String path, long size) {
+										remotePath.setData(path);
+									}
+									
+									@Override
+									public void accepted(OutputStream out) {
+										// not used for fetch
+									}
+								});
+							} catch (IOException e) {
+								remotePath.setError(e);
+							}
+						}
+					});
+				}
+				
+				@Override
+				public void failed(String error) {
+					if (TunnellerConnection.FILE_NOT_AVAILABLE.equals(error)) {
+						// e.g. evicted from source's cache
+						distributor.removeHolder(blob.getContentHash(), source);
+					}
+					remotePath.setError(new RuntimeException("File serve on " + source + " failed: " + error));
+				}
+			});
+		} catch (IOException e) {
+			remotePath.setError(e);
+		}
+		return remotePath;
+	}
+
+	private FutureEx<String> pushContent(final FileBlob blob, final TaskService taskService) {
 		final FutureBox<String> remotePath = new FutureBox<String>();
 		// free semaphore as soon as operation is completed/aborted
 		remotePath.addListener(new Box<String>() {
@@ -59,7 +273,7 @@ public class TunnellerControlConsole implements HostControlConsole {
         });
 		try {
 		    uploadLimit.acquire();
-			connection.pushFile(cachePath + "/" + blob.getContentHash() + "/" + blob.getFileName(), new FileHandler() {
+			connection.pushFile(remotePath(blob), blob.size(), blob.getContentHash(), new FileHandler() {
 				
 				@Override
 				public void failed(String path, String error) {
@@ -73,8 +287,7 @@ public class TunnellerControlConsole implements HostControlConsole {
 				
 				@Override
 				public void accepted(final OutputStream out) {
-					taskService.schedule(new TaskService.Task() {
-						
+					taskService.schedule(new UploadTask(remotePath) {
 						@Override
 						public void run() {
 							try {
@@ -84,16 +297,6 @@ public class TunnellerControlConsole implements HostControlConsole {
 								remotePath.setError(e);
 							}
 						}
-						
-						@Override
-						public void interrupt(Thread taskThread) {
-							// ignore, interruption is not supported
-						}
-						
-						@Override
-						public void canceled() {
-							remotePath.setErrorIfWaiting(new RejectedExecutionException());
-						}
 					});
 				}
 			});
@@ -105,22 +308,205 @@ public class TunnellerControlConsole implements HostControlConsole {
 		return remotePath;
 	}
 
+	/**
+	 * Remote side provides signature of previous version of file (same name, other hash),
+	 * only blocks missing in it are sent. Whole file is uploaded if there is no previous version
+	 * or delta cannot be applied.
+	 * <br/>
+	 * Used only if cache check has reported a previous version, so cold host does not pay
+	 * for signature round trip.
+	 */
+	private FutureEx<String> pushDelta(final FileBlob blob, final TaskService taskService) {
+		final FutureBox<String> remotePath = new FutureBox<String>();
+		// delta upload completes with null if whole file should be uploaded instead
+		final FutureBox<String> delta = new FutureBox<String>();
+		delta.addListener(new Box<String>() {
+			@Override
+			public void setData(String path) {
+				// permit is released before fallback, so fallback could not starve
+				uploadLimit.release();
+				if (path != null) {
+					remotePath.setData(path);
+				}
+				else {
+					taskService.schedule(new UploadTask(remotePath) {
+						@Override
+						public void run() {
+							pushContent(blob, taskService).addListener(remotePath);
+						}
+					});
+				}
+			}
+
+			@Override
+			public void setError(Throwable e) {
+				uploadLimit.release();
+				remotePath.setError(e);
+			}
+		});
+		try {
+			uploadLimit.acquire();
+		} catch (InterruptedException e) {
+			return FutureBox.errorFuture(e);
+		}
+		try {
+			connection.requestSignature(remotePath(blob), new SignatureHandler() {
+				
+				@Override
+				public void signature(final String basisPath, final FileDelta.Signature signature) {
+					// callbacks are called from control thread, should not block here
+					taskService.schedule(new UploadTask(delta) {
+						@Override
+						public void run() {
+							if (basisPath == null) {
+								setDataIfWaiting(delta, null);
+							}
+							else {
+								sendDelta(blob, basisPath, signature, taskService, delta);
+							}
+						}
+					});
+				}
+				
+				@Override
+				public void failed(String error) {
+					delta.setErrorIfWaiting(new RuntimeException("File upload failed: " + error));
+				}
+			});
+		} catch (IOException e) {
+			delta.setErrorIfWaiting(e);
+		}
+		return remotePath;
+	}
+
+	private void sendDelta(final FileBlob blob, String basisPath, final FileDelta.Signature signature, final TaskService taskService, final FutureBox<String> delta) {
+		try {
+			connection.pushDelta(remotePath(blob), basisPath, signature.blockSize, blob.size(), blob.getContentHash(), new FileHandler() {
+				
+				@Override
+				public void failed(String path, String error) {
+					// fallback to full upload
+					setDataIfWaiting(delta, null);
+				}
+				
+				@Override
+				public void confirmed(String path, long size) {
+					setDataIfWaiting(delta, path);
+				}
+				
+				@Override
+				public void accepted(final OutputStream out) {
+					taskService.schedule(new UploadTask(delta) {
+						@Override
+						public void run() {
+							try {
+								InputStream content = blob.getContent();
+								try {
+									FileDelta.encode(content, signature, out);
+								}
+								finally {
+									content.close();
+								}
+								out.close();
+							} catch (IOException e) {
+								try {
+									out.close();
+								} catch (IOException ee) {
+									// ignore
+								}
+								delta.setErrorIfWaiting(e);
+							}
+						}
+					});
+				}
+			});
+		} catch (IOException e) {
+			delta.setErrorIfWaiting(e);
+		}
+	}
+
 	@Override
 	public String cacheFile(FileBlob blob) {
-		FutureEx<String> f = pushFile(blob, SensibleTaskService.getShareInstance());
+		// single file is not checked against remote cache, so there is no known delta basis
+		FutureEx<String> f = pushFile(blob, false, SensibleTaskService.getShareInstance());
 		return fget(f);
 	}
 
+	/**
+	 * Whole list is checked against remote cache in single round trip,
+	 * only missing (or corrupted) files are uploaded.
+	 */
 	@Override
 	public List<String> cacheFiles(List<? extends FileBlob> blobs) {
+		if (blobs.isEmpty()) {
+			return new ArrayList<String>();
+		}
+		boolean[] basis = new boolean[blobs.size()];
+		String[] cached = checkCache(blobs, basis);
 		TaskService ts = SensibleTaskService.getShareInstance();
 		List<FutureEx<String>> paths = new ArrayList<FutureEx<String>>();
-		for(FileBlob blob: blobs) {
-			paths.add(pushFile(blob, ts));
+		for(int i = 0; i != cached.length; ++i) {
+			if (cached[i] != null) {
+				if (distributor != null && blobs.get(i).size() >= PEER_THRESHOLD) {
+					distributor.addHolder(blobs.get(i).getContentHash(), peer, cached[i]);
+				}
+				paths.add(FutureBox.dataFuture(cached[i]));
+			}
+			else {
+				paths.add(pushFile(blobs.get(i), basis[i], ts));
+			}
 		}
 		return MassExec.collectAll(paths);
 	}
+
+	/**
+	 * @param basis filled with <code>true</code> for missing files having an older version in cache
+	 * @return remote paths of files present in cache, <code>null</code> for missing ones
+	 */
+	private String[] checkCache(List<? extends FileBlob> blobs, final boolean[] basis) {
+		String[] paths = new String[blobs.size()];
+		long[] sizes = new long[blobs.size()];
+		String[] hashes = new String[blobs.size()];
+		for(int i = 0; i != paths.length; ++i) {
+			FileBlob blob = blobs.get(i);
+			paths[i] = remotePath(blob);
+			sizes[i] = blob.size();
+			hashes[i] = blob.getContentHash();
+		}
+		final FutureBox<String[]> result = new FutureBox<String[]>();
+		try {
+			connection.checkFiles(paths, sizes, hashes, verifyCachedFiles, new FileCheckHandler() {
+				
+				@Override
+				public void checked(String[] paths, boolean[] present, boolean[] hasBasis) {
+					String[] cached = new String[paths.length];
+					for(int i = 0; i != paths.length; ++i) {
+						cached[i] = present[i] ? paths[i] : null;
+						basis[i] = hasBasis[i];
+					}
+					result.setData(cached);
+				}
+				
+				@Override
+				public void failed(String error) {
+					result.setError(new RuntimeException("File cache check failed: " + error));
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return fget(result);
+	}
 	
+	private static <T> void setDataIfWaiting(FutureBox<T> box, T data) {
+		// box methods are synchronized on box itself
+		synchronized(box) {
+			if (!box.isDone()) {
+				box.setData(data);
+			}
+		}
+	}
+
 	private static <T> T fget(Future<T> f) {
 		try {
 			return f.get();
@@ -162,11 +548,217 @@ public class TunnellerControlConsole implements HostControlConsole {
 		return proc;
 	}
 
+	/**
+	 * @return snapshot of tunnel counters, remote counters are as of last {@link #measureRoundTrip()},
+	 *         see {@link TunnelMetrics#getRemoteTimestamp()}
+	 */
+	public TunnelMetrics getMetrics() {
+		return connection.getMetrics();
+	}
+
+	/**
+	 * Pings remote agent, also refreshes remote counters.
+	 * @return control command round trip in nanoseconds
+	 */
+	public long measureRoundTrip() {
+		return measureRoundTrip(PING_TIMEOUT_MS);
+	}
+
+	private long measureRoundTrip(long timeoutMs) {
+		try {
+			return connection.ping().get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new RuntimeException("No ping reply in " + timeoutMs + "ms");
+		}
+	}
+
+	/**
+	 * Registers {@link TunnelMXBean} in platform MBean server, it is unregistered on termination.
+	 * Suffix is added to name if there is a tunnel with same name already.
+	 */
+	public synchronized void registerMBean(String name) {
+		if (mbeanName != null) {
+			throw new IllegalStateException("Already registered as " + mbeanName);
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for(int n = 1; ; ++n) {
+			try {
+				ObjectName on = new ObjectName("org.gridkit.nanocloud:type=Tunnel,name=" + ObjectName.quote(n == 1 ? name : name + "#" + n));
+				server.registerMBean(new TunnelStats(), on);
+				mbeanName = on;
+				return;
+			} catch (InstanceAlreadyExistsException e) {
+				continue;
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to register tunnel MBean", e);
+			}
+		}
+	}
+
+	public synchronized ObjectName getMBeanName() {
+		return mbeanName;
+	}
+
 	@Override
 	public void terminate() {
+		synchronized(this) {
+			if (distributor != null) {
+				distributor.leave(peer, this);
+			}
+		}
 		connection.close();
+		synchronized(this) {
+			if (mbeanName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+				} catch (Exception e) {
+					// ignore
+				}
+				mbeanName = null;
+			}
+		}
+	}
+
+	private class TunnelStats implements TunnelMXBean {
+
+		@Override
+		public long getBytesSent() {
+			return getMetrics().getBytesSent();
+		}
+
+		@Override
+		public long getBytesReceived() {
+			return getMetrics().getBytesReceived();
+		}
+
+		@Override
+		public long getFramesSent() {
+			return getMetrics().getFramesSent();
+		}
+
+		@Override
+		public long getFramesReceived() {
+			return getMetrics().getFramesReceived();
+		}
+
+		@Override
+		public int getReadyQueueDepth() {
+			return getMetrics().getReadyQueueDepth();
+		}
+
+		@Override
+		public boolean isCompression() {
+			return getMetrics().isCompression();
+		}
+
+		@Override
+		public int getOpenChannels() {
+			return getMetrics().getChannels().size();
+		}
+
+		@Override
+		public int getPendingFilePushes() {
+			return getMetrics().getPendingFilePushes();
+		}
+
+		@Override
+		public int getActiveProcesses() {
+			return getMetrics().getActiveProcesses();
+		}
+
+		@Override
+		public int getRemoteActiveFileReceptions() {
+			return getRemoteMetrics().getRemoteActiveFileReceptions();
+		}
+
+		@Override
+		public int getRemoteQueuedFileReceptions() {
+			return getRemoteMetrics().getRemoteQueuedFileReceptions();
+		}
+
+		@Override
+		public int getRemoteProcesses() {
+			return getRemoteMetrics().getRemoteProcesses();
+		}
+
+		@Override
+		public long getRemoteCountersAgeMillis() {
+			long ts = getRemoteMetrics().getRemoteTimestamp();
+			return ts < 0 ? -1 : System.currentTimeMillis() - ts;
+		}
+
+		/**
+		 * Remote counters are only updated by ping, so stale ones are refreshed.
+		 * Attributes are read in bulk by JMX clients, so it is a single ping per read.
+		 */
+		private TunnelMetrics getRemoteMetrics() {
+			TunnelMetrics metrics = getMetrics();
+			long ts = metrics.getRemoteTimestamp();
+			if (ts < 0 || System.currentTimeMillis() - ts > REMOTE_METRICS_MAX_AGE_MS) {
+				try {
+					measureRoundTrip(REMOTE_METRICS_TIMEOUT_MS);
+					metrics = getMetrics();
+				}
+				catch(RuntimeException e) {
+					// broken or busy tunnel, stale values are reported, see RemoteCountersAgeMillis
+				}
+			}
+			return metrics;
+		}
+
+		@Override
+		public long getLastRoundTripMicros() {
+			long rtt = getMetrics().getLastRoundTripNanos();
+			return rtt < 0 ? rtt : TimeUnit.NANOSECONDS.toMicros(rtt);
+		}
+
+		@Override
+		public long getAverageRoundTripMicros() {
+			long rtt = getMetrics().getAverageRoundTripNanos();
+			return rtt < 0 ? rtt : TimeUnit.NANOSECONDS.toMicros(rtt);
+		}
+
+		@Override
+		public String[] getChannels() {
+			List<TunnelMetrics.ChannelMetrics> channels = getMetrics().getChannels();
+			String[] result = new String[channels.size()];
+			for(int i = 0; i != result.length; ++i) {
+				result[i] = channels.get(i).toString();
+			}
+			return result;
+		}
+
+		@Override
+		public long ping() {
+			return TimeUnit.NANOSECONDS.toMicros(measureRoundTrip());
+		}
 	}
 	
+	private static abstract class UploadTask implements TaskService.Task {
+		
+		private final FutureBox<String> remotePath;
+
+		public UploadTask(FutureBox<String> remotePath) {
+			this.remotePath = remotePath;
+		}
+
+		@Override
+		public void interrupt(Thread taskThread) {
+			// ignore, interruption is not supported
+		}
+		
+		@Override
+		public void canceled() {
+			remotePath.setErrorIfWaiting(new RejectedExecutionException());
+		}
+	}
+
 	private class Proc implements ExecHandler, Destroyable {
 		
 		private ProcessHandler handler;
@@ -9,12 +9,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import org.gridkit.vicluster.ViConf;
 import org.gridkit.vicluster.telecontrol.Classpath;
 import org.gridkit.vicluster.telecontrol.Classpath.ClasspathEntry;
+import org.gridkit.vicluster.telecontrol.ClasspathPackageIndex;
 
 public class ClasspathConfigurator implements NodeAction {
 
@@ -67,18 +66,7 @@ public class ClasspathConfigurator implements NodeAction {
     }
 
     private static boolean isGridKitClasses(ClasspathEntry classpathEntry){
-        try {
-            final ZipInputStream zipInputStream = new ZipInputStream(classpathEntry.getContent());
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                if (entry.getName().startsWith("org/gridkit/")) {
-                    return true;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return ClasspathPackageIndex.getDefault().containsPackage(classpathEntry, "org.gridkit");
     }
 
     private static boolean isTestClasses(ClasspathEntry classpathEntry){
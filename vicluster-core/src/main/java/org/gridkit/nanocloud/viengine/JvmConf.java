@@ -7,4 +7,5 @@ public interface JvmConf {
     public static final String JVM_ARGUMENT = "jvm:xx:";
     public static final String JVM_WORK_DIR = "jvm:work-dir";
     public static final String JVM_ENV_VAR = "jvm:env:";
+    public static final String JVM_CLASS_DATA_SHARING = "jvm:class-data-sharing";
 }
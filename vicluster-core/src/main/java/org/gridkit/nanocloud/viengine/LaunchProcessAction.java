@@ -22,6 +22,7 @@ public class LaunchProcessAction extends AbstractNodeAction {
     InArg<List<AgentEntry>> agents = required(Pragma.RUNTIME_AGENTS);
     InArg<String> jvmExec = required(JvmConf.JVM_EXEC_CMD);
     InArg<String> jvmWorkDir = optional(JvmConf.JVM_WORK_DIR);
+    InArg<String> jvmClassDataSharing = optional(JvmConf.JVM_CLASS_DATA_SHARING);
     
     @Override
     protected void run() {
@@ -134,6 +135,11 @@ public class LaunchProcessAction extends AbstractNodeAction {
         public List<AgentEntry> getAgentEntries() {
             return agents.get();
         }
+
+        @Override
+        public boolean isClassDataSharingEnabled() {
+            return Boolean.valueOf(jvmClassDataSharing.get());
+        }
     }
     
     private static class KillAction extends AbstractStopAction {
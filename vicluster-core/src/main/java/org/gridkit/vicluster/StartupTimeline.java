@@ -0,0 +1,332 @@
+/**
+ * Copyright 2012 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records steps of node startup (phases, uploads, process launch, hooks).
+ * <br/>
+ * Timeline is created by {@link ViEngine.Core} on ignition and is available
+ * to SPI via {@link ViConf#SPI_STARTUP_TIMELINE} and to user via
+ * {@link ViConf#RUNTIME_STARTUP_TIMELINE} pragma.
+ * <br/>
+ * Step timestamps are in nanoseconds relative to timeline creation.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class StartupTimeline implements Serializable {
+
+	private static final long serialVersionUID = 20140112L;
+
+	private final long startTime;
+	private final transient long originNanos;
+	private final List<Step> steps = new ArrayList<Step>();
+
+	public StartupTimeline() {
+		startTime = System.currentTimeMillis();
+		originNanos = System.nanoTime();
+	}
+
+	/**
+	 * Helper to be used with timeline which may be absent in configuration.
+	 */
+	public static Step begin(StartupTimeline timeline, String name) {
+		return timeline == null ? new Step(name, 0) : timeline.begin(name);
+	}
+
+	public synchronized Step begin(String name) {
+		Step step = new Step(name, System.nanoTime() - originNanos);
+		step.timeline = this;
+		steps.add(step);
+		return step;
+	}
+
+	/**
+	 * @return wall clock time of timeline creation
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public synchronized List<Step> getSteps() {
+		return new ArrayList<Step>(steps);
+	}
+
+	/**
+	 * @return total duration of all finished steps with given name, or -1 if there are none
+	 */
+	public synchronized long getDuration(String name) {
+		long total = -1;
+		for(Step step: steps) {
+			if (step.name.equals(name) && step.isFinished()) {
+				total = (total < 0 ? 0 : total) + step.getDuration();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return sum of byte counters of all steps with given name
+	 */
+	public synchronized long getBytes(String name) {
+		long total = 0;
+		for(Step step: steps) {
+			if (step.name.equals(name) && step.bytes > 0) {
+				total += step.bytes;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return nanoseconds from timeline creation until end of last finished step
+	 */
+	public synchronized long getTotalDuration() {
+		long end = 0;
+		for(Step step: steps) {
+			if (step.isFinished()) {
+				end = Math.max(end, step.endNanos);
+			}
+		}
+		return end;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Step step: steps) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(step);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Collects timelines from nodes, nodes without timeline are ignored.
+	 */
+	public static List<StartupTimeline> collect(Collection<? extends ViNode> nodes) {
+		List<StartupTimeline> result = new ArrayList<StartupTimeline>();
+		for(ViNode node: nodes) {
+			Object tl;
+			try {
+				tl = node.getPragma(ViConf.RUNTIME_STARTUP_TIMELINE);
+			}
+			catch(Exception e) {
+				// node type without timeline support
+				continue;
+			}
+			if (tl instanceof StartupTimeline) {
+				result.add((StartupTimeline) tl);
+			}
+		}
+		return result;
+	}
+
+	public static Summary summarize(Collection<StartupTimeline> timelines) {
+		return new Summary(timelines);
+	}
+
+	public static class Step implements Serializable {
+
+		private static final long serialVersionUID = 20140112L;
+
+		private transient StartupTimeline timeline;
+		private final String name;
+		private final long startNanos;
+		private long endNanos = -1;
+		private long bytes = -1;
+
+		Step(String name, long startNanos) {
+			this.name = name;
+			this.startNanos = startNanos;
+		}
+
+		public void end() {
+			if (timeline != null) {
+				synchronized(timeline) {
+					if (endNanos < 0) {
+						endNanos = System.nanoTime() - timeline.originNanos;
+					}
+				}
+			}
+		}
+
+		public void end(long bytes) {
+			addBytes(bytes);
+			end();
+		}
+
+		public void addBytes(long bytes) {
+			if (timeline != null) {
+				synchronized(timeline) {
+					this.bytes = (this.bytes < 0 ? 0 : this.bytes) + bytes;
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * @return end of step or -1 if step is not finished
+		 */
+		public long getEndNanos() {
+			return endNanos;
+		}
+
+		public boolean isFinished() {
+			return endNanos >= 0;
+		}
+
+		/**
+		 * @return duration in nanoseconds or -1 if step is not finished
+		 */
+		public long getDuration() {
+			return endNanos < 0 ? -1 : endNanos - startNanos;
+		}
+
+		/**
+		 * @return bytes transfered during step or -1 if not applicable
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-24s +%10.3fms ", name, startNanos / 1e6));
+			if (endNanos < 0) {
+				sb.append("   unfinished");
+			}
+			else {
+				sb.append(String.format("%10.3fms", getDuration() / 1e6));
+			}
+			if (bytes >= 0) {
+				sb.append(' ').append(bytes).append(" bytes");
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Per-step duration percentiles across number of nodes.
+	 */
+	public static class Summary implements Serializable {
+
+		private static final long serialVersionUID = 20140112L;
+
+		private final int nodeCount;
+		private final Map<String, long[]> durations = new LinkedHashMap<String, long[]>();
+		private final Map<String, Long> bytes = new LinkedHashMap<String, Long>();
+
+		Summary(Collection<StartupTimeline> timelines) {
+			nodeCount = timelines.size();
+			Map<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+			List<Long> total = new ArrayList<Long>();
+			for(StartupTimeline tl: timelines) {
+				for(Step step: tl.getSteps()) {
+					if (!samples.containsKey(step.name)) {
+						samples.put(step.name, new ArrayList<Long>());
+					}
+				}
+				for(String name: samples.keySet()) {
+					long d = tl.getDuration(name);
+					if (d >= 0) {
+						samples.get(name).add(d);
+					}
+					long b = tl.getBytes(name);
+					if (b > 0) {
+						bytes.put(name, (bytes.containsKey(name) ? bytes.get(name) : 0) + b);
+					}
+				}
+				total.add(tl.getTotalDuration());
+			}
+			samples.put("total", total);
+			for(String name: samples.keySet()) {
+				List<Long> s = samples.get(name);
+				long[] d = new long[s.size()];
+				for(int i = 0; i != d.length; ++i) {
+					d[i] = s.get(i);
+				}
+				Arrays.sort(d);
+				durations.put(name, d);
+			}
+		}
+
+		public int getNodeCount() {
+			return nodeCount;
+		}
+
+		public List<String> getStepNames() {
+			return Collections.unmodifiableList(new ArrayList<String>(durations.keySet()));
+		}
+
+		/**
+		 * @param percentile in range 0 to 100
+		 * @return step duration percentile in nanoseconds or -1 if step has no samples
+		 */
+		public long getPercentile(String step, double percentile) {
+			long[] d = durations.get(step);
+			if (d == null || d.length == 0) {
+				return -1;
+			}
+			int n = (int)Math.ceil(percentile / 100d * d.length) - 1;
+			return d[Math.max(0, Math.min(d.length - 1, n))];
+		}
+
+		/**
+		 * @return total bytes transfered in given step across all nodes
+		 */
+		public long getBytes(String step) {
+			Long b = bytes.get(step);
+			return b == null ? 0 : b;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-24s %8s %10s %10s %10s %10s", "step (" + nodeCount + " nodes)", "count", "p50,ms", "p90,ms", "p99,ms", "max,ms"));
+			for(String name: durations.keySet()) {
+				sb.append('\n');
+				sb.append(String.format("%-24s %8d %10.3f %10.3f %10.3f %10.3f", name, durations.get(name).length,
+						getPercentile(name, 50) / 1e6,
+						getPercentile(name, 90) / 1e6,
+						getPercentile(name, 99) / 1e6,
+						getPercentile(name, 100) / 1e6));
+				if (bytes.containsKey(name)) {
+					sb.append(' ').append(bytes.get(name)).append(" bytes");
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -43,6 +43,8 @@ public class ViConf extends GenericConfig implements ViSpiConfig {
 	public static final String RUNTIME_EXIT_CODE = "runtime:exitCode";
 	public static final String RUNTIME_EXIT_CODE_FUTURE = "runtime:exitCode.future";
 	public static final String RUNTIME_EXECUTION_SUSPENDED = "runtime:suspended";
+	/** {@link StartupTimeline} of node, available once node is started */
+	public static final String RUNTIME_STARTUP_TIMELINE = "runtime:startup-timeline";
 
 	public static final String CONSOLE_STD_IN = "console:stdIn";
 	public static final String CONSOLE_STD_OUT_ECHO = "console:stdOut.echo";
@@ -62,6 +64,8 @@ public class ViConf extends GenericConfig implements ViSpiConfig {
 	public static final String JVM_WORK_DIR = "jvm:work-dir";
 	public static final String JVM_ENV_VAR = JvmProps.JVM_ENV;
 	public static final String JVM_AGENT = "jvm:agent";
+	/** Enables class-data sharing archive for slave JVM (if supported by slave JVM) */
+	public static final String JVM_CLASS_DATA_SHARING = "jvm:class-data-sharing";
 
 	public static final String CLASSPATH_TWEAK = "classpath:tweak:";
     public static final String CLASSPATH_INHERIT = "classpath:inherit";
@@ -114,6 +118,7 @@ public class ViConf extends GenericConfig implements ViSpiConfig {
 	public static final String SPI_NODE_INSTANCE = "#spi:node-instance";
 	public static final String SPI_LOGGER = "#spi:logger";
 	public static final String SPI_SLAVE_AGENT = "#spi:jvm-agent";
+	public static final String SPI_STARTUP_TIMELINE = "#spi:startup-timeline";
 
 	public static final String ERROR_NODE_BOOTSTRAP = "#error:bootstrap";
 	
@@ -626,6 +631,11 @@ public class ViConf extends GenericConfig implements ViSpiConfig {
 			conf.setProp(JVM_ENV_VAR + name, val == null ? "\00" : val);
 			return this;
 		}		
+
+		public JvmConf setClassDataSharing(boolean enabled) {
+			conf.setProp(JVM_CLASS_DATA_SHARING, String.valueOf(enabled));
+			return this;
+		}
 	}
 	
 	public static class HookConf extends Delegate {
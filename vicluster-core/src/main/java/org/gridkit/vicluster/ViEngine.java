@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 import java.net.URL;
 import java.nio.channels.IllegalSelectorException;
 import java.util.ArrayList;
@@ -38,6 +39,21 @@ import org.gridkit.zerormi.zlog.LogStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Node life cycle engine.
+ * <p>
+ * During ignition, system properties and remote hooks are not sent to slave
+ * one by one. They are collected into an init bundle, which is delivered in
+ * single round trip. The bundle is flushed before anything that may observe
+ * slave state: host hooks, pragma handlers and remote calls returning a value
+ * (e.g. {@link #getPragma(String)}). So slave side sees the same order of
+ * updates as if they were sent immediately.
+ * <p>
+ * Items of a bundle are executed regardless of failures of preceding ones,
+ * so a failed hook does not prevent following hooks and property updates
+ * from running. The first failure is reported once the whole bundle is
+ * executed, and node startup is aborted.
+ */
 public interface ViEngine {
 
 	public enum Phase {
@@ -78,6 +94,14 @@ public interface ViEngine {
 		private boolean terminated;
 		
 		private FutureBox<Exception> epitaph = new FutureBox<Exception>();
+
+		private StartupTimeline timeline = new StartupTimeline();
+
+		/**
+		 * Remote calls issued during ignition are collected here
+		 * and delivered to slave in single round trip.
+		 */
+		private List<Runnable> initBundle;
 		
 		@Override
 		public ViSpiConfig getConfig() {
@@ -133,6 +157,7 @@ public interface ViEngine {
 				}
 			});
 			coreConfig.put(ViConf.SPI_EPITAPH, epitaph);
+			coreConfig.put(ViConf.SPI_STARTUP_TIMELINE, timeline);
 			
 			if ("true".equalsIgnoreCase(String.valueOf(coreConfig.get(ViConf.NODE_TRACE)))) {
 			    trace = new InfoStream(LoggerFactory.getLogger(ViEngine.class));
@@ -148,7 +173,9 @@ public interface ViEngine {
 			if (trace != null) {
 			    trace.log("ViNode phase PRE_INIT");
 			}
+			StartupTimeline.Step step = timeline.begin("pre-init");
 			processPhase(Phase.PRE_INIT);
+			step.end();
 			
 			pragmaHandlers.put("pragma-handler", new InitTimePragmaHandler());
 			pragmaHandlers.put("type-handler", new InitTimePragmaHandler());
@@ -161,29 +188,47 @@ public interface ViEngine {
 				}
 			}
 			
+			initBundle = new ArrayList<Runnable>();
+			step = timeline.begin("init-hooks");
 			executeHooks(coreConfig, false, false);
+			step.end();
 			if (killpending) {
+				initBundle = null;
+				coreConfig.put(ViConf.RUNTIME_STARTUP_TIMELINE, timeline);
 				started = true;
 				kill();
 			}
 			else {
 				try {
+					step = timeline.begin("pragmas");
 					applyPragmas(new LinkedHashMap<String, Object>(coreConfig), true);
+					step.end();
  
 		            if (trace != null) {
  		                trace.log("ViNode phase POST_INIT");
 		            }
 
+					step = timeline.begin("post-init");
 					processPhase(Phase.POST_INIT);
+					step.end();
+					step = timeline.begin("startup-hooks");
 					executeHooks(coreConfig, false, false);
+					step.end();
+					flushInitBundle();
+					initBundle = null;
 					started = true;
 				}
 				catch(Exception e) {
+					initBundle = null;
 				    epitaph.setErrorIfWaiting(e);
 				    coreConfig.put(ViConf.ERROR_NODE_BOOTSTRAP, e);
 					started = true;
 					killpending = true;
 				}
+				coreConfig.put(ViConf.RUNTIME_STARTUP_TIMELINE, timeline);
+				if (trace != null) {
+					trace.log("ViNode startup timeline\n" + timeline);
+				}
 				if (killpending) {
 					kill();
 				}
@@ -211,6 +256,8 @@ public interface ViEngine {
 							throw new IllegalArgumentException("No handler for pargma '" + p + "' is found");
 						}
 						else {
+							// handler may talk to slave directly, it should see properties set so far
+							flushInitBundle();
 							handler.set(p, pragmas.get(p), this, pctx);
 						}
 					}				
@@ -247,6 +294,26 @@ public interface ViEngine {
 			});
 		}
 
+		private synchronized void flushInitBundle() {
+			if (initBundle != null && !initBundle.isEmpty()) {
+				InitBundle bundle = new InitBundle(initBundle);
+				initBundle = null;
+				if (terminated) {
+					return;
+				}
+				StartupTimeline.Step step = timeline.begin("init-bundle");
+				Throwable[] errors = invokeRemotely(bundle);
+				step.end();
+				initBundle = new ArrayList<Runnable>();
+				// reported same way as failure of individual call
+				for(Throwable e: errors) {
+					if (e != null) {
+						throw new RuntimeException(new ExecutionException(e));
+					}
+				}
+			}
+		}
+
 		protected synchronized void triggerKillSwitch() {
 			if (!started) {
 				killpending = true;
@@ -329,6 +396,8 @@ public interface ViEngine {
 					config.remove(key);
 					if (hook != null) {
 						if (hook instanceof Runnable) {
+							// host hook may depend on remote hooks executed before it
+							flushInitBundle();
 							((Runnable)hook).run();
 						}
 						else {
@@ -355,6 +424,10 @@ public interface ViEngine {
 			if (terminated) {
 				return;
 			}
+			if (initBundle != null) {
+				initBundle.add(hook);
+				return;
+			}
 			// TODO error handling and logging
 			try {
 				spiConfig.getManagedProcess().getExecutionService().submit(hook).get();
@@ -369,6 +442,8 @@ public interface ViEngine {
 			if (terminated) {
 				throw new RejectedExecutionException("Node is terminated");
 			}
+			// result may depend on calls queued so far
+			flushInitBundle();
 			// TODO error handling and logging
 			try {
 				return spiConfig.getManagedProcess().getExecutionService().submit(task).get();
@@ -379,6 +454,35 @@ public interface ViEngine {
 			}
 		}
 		
+		/**
+		 * Each task is executed regardless of failures of preceding ones,
+		 * errors are returned per task (<code>null</code> for successful ones).
+		 */
+		private static class InitBundle implements Callable<Throwable[]>, Serializable {
+
+			private static final long serialVersionUID = 20140118L;
+
+			private final List<Runnable> tasks;
+
+			public InitBundle(List<Runnable> tasks) {
+				this.tasks = tasks;
+			}
+
+			@Override
+			public Throwable[] call() {
+				Throwable[] errors = new Throwable[tasks.size()];
+				for(int i = 0; i != errors.length; ++i) {
+					try {
+						tasks.get(i).run();
+					}
+					catch(Throwable e) {
+						errors[i] = e;
+					}
+				}
+				return errors;
+			}
+		}
+
 		public static ViSpiConfig asSpiConfig(final Map<String, Object> config) {
 			return new ViConf(config);
 		}
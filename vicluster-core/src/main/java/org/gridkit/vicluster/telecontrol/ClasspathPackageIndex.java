@@ -0,0 +1,326 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.gridkit.vicluster.telecontrol.Classpath.ClasspathEntry;
+import org.gridkit.vicluster.telecontrol.bootstraper.SystemHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of packages contained in classpath entries.
+ * <br/>
+ * Jar entries are indexed by content hash, index is kept on disk
+ * and shared between processes. To avoid hashing jar on every run
+ * jar path is mapped to its size, modification time and content hash.
+ * Index files unused for {@link #INDEX_TTL} are removed.
+ * <br/>
+ * Directories are mutable and never stored. {@link #containsPackage(ClasspathEntry, String)}
+ * looks into requested package directory only, full scan (without jaring) is done
+ * by {@link #getPackages(ClasspathEntry)} once per {@link ClasspathEntry} instance.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class ClasspathPackageIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClasspathPackageIndex.class);
+
+	static final String PACKAGES_MARK = "packageIndex";
+	private static final String PACKAGES_EXT = ".pkg";
+	private static final String STAMP_EXT = ".ref";
+
+	/** Index files not used for this period are pruned */
+	static final long INDEX_TTL = TimeUnit.DAYS.toMillis(30);
+	/** Modification time of index files is refreshed not more often than this */
+	private static final long TOUCH_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+	private static ClasspathPackageIndex DEFAULT;
+
+	public static synchronized ClasspathPackageIndex getDefault() {
+		if (DEFAULT == null) {
+			File dir = null;
+			try {
+				dir = new File(SystemHelper.normalizePath("{tmp}/nanocloud/.package-index"));
+			} catch (IOException e) {
+				LOGGER.warn("Cannot resolve package index location, index would not be persisted: " + e.toString());
+			}
+			DEFAULT = new ClasspathPackageIndex(dir);
+		}
+		return DEFAULT;
+	}
+
+	private final File indexDir;
+	private final Map<String, Set<String>> byHash = new HashMap<String, Set<String>>();
+	private boolean pruned;
+
+	/**
+	 * @param indexDir directory to persist index, <code>null</code> for in-memory index
+	 */
+	public ClasspathPackageIndex(File indexDir) {
+		this.indexDir = indexDir;
+	}
+
+	/**
+	 * @param pkg package name in either <code>org.gridkit</code> or <code>org/gridkit</code> form
+	 * @return <code>true</code> if entry contains classes from given package or its subpackages
+	 */
+	public boolean containsPackage(ClasspathEntry entry, String pkg) {
+		String prefix = pkg.replace('.', '/');
+		File file = entry.getLocalFile();
+		if (entry.getMark(PACKAGES_MARK) == null && file != null && file.isDirectory()) {
+			return containsFile(new File(file, prefix));
+		}
+		for(String p: getPackages(entry)) {
+			if (p.equals(prefix) || (p.startsWith(prefix) && p.charAt(prefix.length()) == '/')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return set of packages (in <code>org/gridkit</code> form) which contain at least one file
+	 */
+	public Set<String> getPackages(ClasspathEntry entry) {
+		Set<String> packages = entry.getMark(PACKAGES_MARK);
+		if (packages != null) {
+			return packages;
+		}
+		File file = entry.getLocalFile();
+		try {
+			if (file != null && file.isDirectory()) {
+				packages = new TreeSet<String>();
+				scanDir(file, "", packages);
+			}
+			else if (file != null && file.isFile()) {
+				packages = getJarPackages(entry, file);
+			}
+			else {
+				packages = getByHash(entry.getContentHash(), entry);
+			}
+		}
+		catch(IOException e) {
+			LOGGER.warn("Failed to index classpath entry " + entry.getUrl() + ": " + e.toString());
+			packages = new TreeSet<String>();
+		}
+		packages = Collections.unmodifiableSet(packages);
+		entry.setMark(PACKAGES_MARK, packages);
+		return packages;
+	}
+
+	/**
+	 * Stamp is keyed by path, so changed jar replaces its stamp instead of adding new one.
+	 */
+	private Set<String> getJarPackages(ClasspathEntry entry, File file) throws IOException {
+		String stampKey = StreamHelper.digest(file.getCanonicalPath().getBytes("UTF-8"), "SHA-1");
+		String stamp = file.length() + " " + file.lastModified() + " ";
+		String hash = readStamp(stampKey, stamp);
+		if (hash == null) {
+			hash = entry.getContentHash();
+			writeFile(stampKey + STAMP_EXT, Collections.singleton(stamp + hash));
+		}
+		return getByHash(hash, entry);
+	}
+
+	private Set<String> getByHash(String hash, ClasspathEntry entry) throws IOException {
+		synchronized(byHash) {
+			Set<String> packages = byHash.get(hash);
+			if (packages != null) {
+				return packages;
+			}
+		}
+		Set<String> packages = readPackages(hash);
+		if (packages == null) {
+			packages = scanJar(entry);
+			writeFile(hash + PACKAGES_EXT, packages);
+		}
+		synchronized(byHash) {
+			byHash.put(hash, packages);
+		}
+		return packages;
+	}
+
+	private Set<String> scanJar(ClasspathEntry entry) throws IOException {
+		Set<String> packages = new TreeSet<String>();
+		File file = entry.getLocalFile();
+		if (file != null && file.isFile()) {
+			// central directory only, no inflating
+			ZipFile zf = new ZipFile(file);
+			try {
+				Enumeration<? extends ZipEntry> en = zf.entries();
+				while(en.hasMoreElements()) {
+					addPackage(en.nextElement(), packages);
+				}
+			}
+			finally {
+				zf.close();
+			}
+		}
+		else {
+			ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(entry.getData()));
+			try {
+				ZipEntry ze;
+				while((ze = zis.getNextEntry()) != null) {
+					addPackage(ze, packages);
+				}
+			}
+			finally {
+				zis.close();
+			}
+		}
+		return packages;
+	}
+
+	private static void addPackage(ZipEntry ze, Set<String> packages) {
+		if (!ze.isDirectory()) {
+			String name = ze.getName();
+			int n = name.lastIndexOf('/');
+			if (n > 0) {
+				packages.add(name.substring(0, n));
+			}
+		}
+	}
+
+	private static boolean containsFile(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for(File f: files) {
+				if (f.isFile() || (f.isDirectory() && containsFile(f))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void scanDir(File dir, String path, Set<String> packages) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for(File f: files) {
+				if (f.isDirectory()) {
+					scanDir(f, path.length() == 0 ? f.getName() : path + "/" + f.getName(), packages);
+				}
+				else if (path.length() > 0) {
+					packages.add(path);
+				}
+			}
+		}
+	}
+
+	private String readStamp(String stampKey, String stamp) {
+		Set<String> lines = readFile(stampKey + STAMP_EXT);
+		if (lines == null || lines.size() != 1) {
+			return null;
+		}
+		String line = lines.iterator().next();
+		return line.startsWith(stamp) ? line.substring(stamp.length()) : null;
+	}
+
+	private Set<String> readPackages(String hash) {
+		return readFile(hash + PACKAGES_EXT);
+	}
+
+	private Set<String> readFile(String name) {
+		if (indexDir == null) {
+			return null;
+		}
+		File f = new File(indexDir, name);
+		if (!f.isFile()) {
+			return null;
+		}
+		try {
+			Set<String> lines = new TreeSet<String>(StreamHelper.toLines(new FileInputStream(f)));
+			long now = System.currentTimeMillis();
+			if (now - f.lastModified() > TOUCH_PERIOD) {
+				f.setLastModified(now);
+			}
+			return lines;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeFile(String name, Collection<String> lines) {
+		if (indexDir == null) {
+			return;
+		}
+		try {
+			indexDir.mkdirs();
+			File f = new File(indexDir, name);
+			// concurrent writers would produce same content, last rename wins
+			File tmp = File.createTempFile(name, ".tmp", indexDir);
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				for(String line: lines) {
+					os.write((line + "\n").getBytes("UTF-8"));
+				}
+			}
+			finally {
+				os.close();
+			}
+			if (!tmp.renameTo(f)) {
+				f.delete();
+				if (!tmp.renameTo(f)) {
+					tmp.delete();
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Failed to persist package index " + name + ": " + e.toString());
+		}
+		prune();
+	}
+
+	/**
+	 * Index is only written if something has changed, so it is pruned
+	 * on first write. Files in use are touched on read, so they survive.
+	 */
+	private void prune() {
+		synchronized(this) {
+			if (pruned) {
+				return;
+			}
+			pruned = true;
+		}
+		File[] files = indexDir.listFiles();
+		if (files != null) {
+			long now = System.currentTimeMillis();
+			for(File f: files) {
+				String name = f.getName();
+				if ((name.endsWith(STAMP_EXT) || name.endsWith(PACKAGES_EXT)) && now - f.lastModified() > INDEX_TTL) {
+					f.delete();
+				}
+			}
+		}
+	}
+}
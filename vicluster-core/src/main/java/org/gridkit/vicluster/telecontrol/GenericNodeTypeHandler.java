@@ -10,9 +10,6 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 
 import org.gridkit.nanocloud.telecontrol.HostControlConsole;
 import org.gridkit.nanocloud.telecontrol.NodeFactory;
@@ -23,6 +20,7 @@ import org.gridkit.nanocloud.telecontrol.RemoteExecutionSessionWrapper;
 import org.gridkit.nanocloud.telecontrol.ZeroRmiRemoteSession;
 import org.gridkit.vicluster.CloudContext;
 import org.gridkit.vicluster.CloudContext.Helper;
+import org.gridkit.vicluster.StartupTimeline;
 import org.gridkit.vicluster.ViConf;
 import org.gridkit.vicluster.ViEngine;
 import org.gridkit.vicluster.ViEngine.IdempotentConfigBuilder;
@@ -175,14 +173,13 @@ public abstract class GenericNodeTypeHandler implements ViEngine.InductiveRule {
 	
 	public static class ClasspathReplicaBuilder extends IdempotentConfigBuilder<List<ClasspathEntry>> {
 
-		private static final String IS_GRIDKIT_JAR = "isGridkitJar";
-
         public ClasspathReplicaBuilder() {
 			super(ViConf.SPI_SLAVE_CLASSPATH);
 		}
 		
 		@Override
 		protected List<ClasspathEntry> buildState(QuorumGame game) {
+			StartupTimeline.Step step = StartupTimeline.begin((StartupTimeline)game.getProp(ViConf.SPI_STARTUP_TIMELINE), "classpath-build");
 			try {
 				@SuppressWarnings({ "rawtypes", "unchecked" })
 				Map<String, String> tweaks = (Map<String, String>) (Map) game.getConfigProps(ViConf.CLASSPATH_TWEAK);
@@ -221,52 +218,13 @@ public abstract class GenericNodeTypeHandler implements ViEngine.InductiveRule {
 				}
 			} catch (IOException e) {
 				throw new RuntimeException(e);
+			} finally {
+				step.end();
 			}
 		}
 
         private boolean isGridKitClasses(ClasspathEntry classpathEntry){
-            Boolean cachedResult = classpathEntry.getMark(IS_GRIDKIT_JAR);
-            if (cachedResult != null) {
-                return cachedResult;
-            }
-            File file = classpathEntry.getLocalFile();
-            try {
-                if (file == null) {
-                    boolean result = false;
-                    ZipInputStream zipInputStream = new ZipInputStream(classpathEntry.getContent());
-                    ZipEntry entry;
-                    while ((entry = zipInputStream.getNextEntry()) != null) {
-                        if (entry.getName().startsWith("org/gridkit/")) {
-                            result = true;
-                            break;
-                        }
-                    }
-                    try {
-                        zipInputStream.close();
-                    }
-                    catch(IOException e) {
-                        // ignore;
-                    }
-                    classpathEntry.setMark(IS_GRIDKIT_JAR, result);
-                    return result;
-                }
-                else {
-                    boolean result = false;
-                    if (file.isFile()) {
-                        ZipFile zipFile = new ZipFile(file);
-                        ZipEntry gridKitEntry = zipFile.getEntry("org/gridkit");
-                        result =  gridKitEntry != null;
-                    } else if (file.isDirectory()) {
-                        File gridKitPackage = new File(new File(file, "org"), "gridkit");
-                        result = gridKitPackage.isDirectory();
-                    }
-                    classpathEntry.setMark(IS_GRIDKIT_JAR, result);
-                    return result;
-                }
-            } catch (IOException e) {
-                // ignore
-            }
-            return false;
+            return ClasspathPackageIndex.getDefault().containsPackage(classpathEntry, "org.gridkit");
         }
 
         private boolean isTestClasses(ClasspathEntry classpathEntry){
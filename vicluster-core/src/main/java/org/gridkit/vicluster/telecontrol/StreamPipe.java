@@ -106,23 +106,33 @@ public class StreamPipe {
 		if (inBuffer > 0) {
 			return inBuffer;
 		}
-		synchronized(this) {
-			while(true) {
-				if (closedByReader) {
-					throw new IOException("Pipe is closed by reader");
-				}
-				if (inBuffer > 0 || closedByWriter) {
-					return inBuffer; 
-				}
-				else {
-					try {
-						this.wait();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
+		boolean interrupted = false;
+		try {
+			synchronized(this) {
+				while(true) {
+					if (closedByReader) {
+						throw new IOException("Pipe is closed by reader");
+					}
+					if (inBuffer > 0 || closedByWriter) {
+						return inBuffer; 
+					}
+					else {
+						try {
+							this.wait();
+						} catch (InterruptedException e) {
+							// interrupt flag is restored on exit, otherwise wait() would
+							// throw again without releasing monitor and block close()
+							interrupted = true;
+						}
 					}
 				}
 			}
 		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 	
 	private synchronized void writeNotify(int len) {
@@ -0,0 +1,636 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size limit for file cache with <code>{root}/{hash}/{name}</code> layout.
+ * <br/>
+ * Cache entry is a hash directory. Access times of entries are appended to
+ * index (<code>{root}/.access</code>, lines of <code>{hash} {millis}</code>),
+ * once cache grows over limit least recently used entries are removed.
+ * <br/>
+ * Entries touched via manager are pinned until manager is closed or {@link Hold}s
+ * covering them are released. Pins are listed in lease file (<code>{root}/.leases/{id}</code>) which is alive while its owner
+ * holds lock on <code>{id}.lock</code>, so files used by running processes of any
+ * console sharing cache directory are never evicted.
+ * <br/>
+ * Part of tunneller package, so JDK only.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class CacheManager {
+
+	static final String ACCESS_INDEX = ".access";
+	static final String LEASE_DIR = ".leases";
+	static final String EVICTION_LOCK = ".lock";
+
+	/** Recently used entries are kept regardless of limit, their users may not have pinned them yet */
+	public static final long EVICTION_GRACE = 60000;
+
+	private static final String LOCK_SUFFIX = ".lock";
+
+	/**
+	 * File locks are held per process and closing any channel of a file releases them,
+	 * so leases of this JVM are never probed and lease files are opened under monitor.
+	 */
+	private static final Set<String> OWN_LEASES = new HashSet<String>();
+	private static final Object LEASE_MONITOR = new Object();
+	private static final Object EVICTION_MONITOR = new Object();
+	private static final AtomicInteger LEASE_COUNTER = new AtomicInteger();
+
+	private final File root;
+	private final long sizeLimit;
+	private final String leaseId;
+	private final Map<String, Pin> pinned = new HashMap<String, Pin>();
+	private long touchCount;
+	private RandomAccessFile leaseLock;
+	private boolean closed;
+
+	/**
+	 * @param sizeLimit cache size limit in bytes, 0 - no limit (access is recorded and entries are pinned anyway)
+	 */
+	public CacheManager(File root, long sizeLimit) {
+		File r = root.getAbsoluteFile();
+		try {
+			r = r.getCanonicalFile();
+		} catch (IOException e) {
+			// use absolute path
+		}
+		this.root = r;
+		this.sizeLimit = sizeLimit;
+		this.leaseId = processName() + "-" + LEASE_COUNTER.getAndIncrement();
+	}
+
+	/**
+	 * Parses size with optional <code>k</code>, <code>m</code>, <code>g</code> or <code>t</code> suffix.
+	 */
+	public static long parseSize(String size) {
+		String s = size.trim().toLowerCase();
+		int shift = 0;
+		if (s.endsWith("b")) {
+			s = s.substring(0, s.length() - 1);
+		}
+		if (s.endsWith("k")) {
+			shift = 10;
+		}
+		else if (s.endsWith("m")) {
+			shift = 20;
+		}
+		else if (s.endsWith("g")) {
+			shift = 30;
+		}
+		else if (s.endsWith("t")) {
+			shift = 40;
+		}
+		if (shift > 0) {
+			s = s.substring(0, s.length() - 1);
+		}
+		try {
+			long n = Long.parseLong(s.trim());
+			if (n < 0) {
+				throw new NumberFormatException();
+			}
+			return n << shift;
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size: " + size);
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	public long getSizeLimit() {
+		return sizeLimit;
+	}
+
+	public void touch(File file) {
+		touch(Collections.singleton(file));
+	}
+
+	/**
+	 * Records access to cached files and pins their entries.
+	 * Files outside of cache are ignored.
+	 */
+	public void touch(Collection<File> files) {
+		long now = System.currentTimeMillis();
+		StringBuilder access = new StringBuilder();
+		StringBuilder pins = new StringBuilder();
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			long seq = ++touchCount;
+			for(File file: files) {
+				String entry = entryName(file);
+				if (entry != null) {
+					access.append(entry).append(' ').append(now).append('\n');
+					Pin pin = pinned.get(entry);
+					if (pin == null) {
+						pin = new Pin();
+						pinned.put(entry, pin);
+						pins.append(entry).append('\n');
+					}
+					pin.lastTouch = seq;
+				}
+			}
+			if (access.length() == 0) {
+				return;
+			}
+			// index and lease are advisory, failure to update them should not fail caller
+			try {
+				if (pins.length() > 0) {
+					ensureLease();
+					append(new File(leaseDir(), leaseId), pins.toString());
+				}
+			}
+			catch(IOException e) {
+				// recently used entries are protected by grace period anyway
+			}
+			try {
+				append(new File(root, ACCESS_INDEX), access.toString());
+			}
+			catch(IOException e) {
+				// file modification time is used instead
+			}
+		}
+	}
+
+	/**
+	 * Covers all entries pinned so far, e.g. files a process is started with.
+	 * Once hold is released, its entries are unpinned unless they are covered
+	 * by other hold or were touched after this hold was taken (so are likely
+	 * to be used by process not started yet).
+	 */
+	public synchronized Hold hold() {
+		Hold hold = new Hold(new ArrayList<String>(pinned.keySet()), touchCount);
+		for(String entry: hold.entries) {
+			pinned.get(entry).holds++;
+		}
+		return hold;
+	}
+
+	public void release(Hold hold) {
+		synchronized(this) {
+			if (closed || hold.released) {
+				return;
+			}
+			hold.released = true;
+			boolean unpinned = false;
+			for(String entry: hold.entries) {
+				Pin pin = pinned.get(entry);
+				if (pin != null && --pin.holds == 0 && pin.lastTouch <= hold.touchCount) {
+					pinned.remove(entry);
+					unpinned = true;
+				}
+			}
+			if (unpinned && leaseLock != null) {
+				StringBuilder sb = new StringBuilder();
+				for(String entry: pinned.keySet()) {
+					sb.append(entry).append('\n');
+				}
+				rewrite(new File(leaseDir(), leaseId), sb.toString());
+			}
+		}
+	}
+
+	/**
+	 * Releases pins.
+	 */
+	public void close() {
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pinned.clear();
+			if (leaseLock != null) {
+				synchronized(LEASE_MONITOR) {
+					try {
+						leaseLock.close();
+					} catch (IOException e) {
+						// ignore
+					}
+					leaseLock = null;
+					new File(leaseDir(), leaseId).delete();
+					new File(leaseDir(), leaseId + LOCK_SUFFIX).delete();
+					OWN_LEASES.remove(leaseId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes least recently used entries until cache fits size limit.
+	 * Does nothing if there is no limit or eviction is in progress by another process.
+	 * 
+	 * @return number of bytes removed
+	 */
+	public long evict() {
+		if (sizeLimit <= 0 || !root.isDirectory()) {
+			return 0;
+		}
+		// eviction lock is never opened concurrently within JVM
+		synchronized(EVICTION_MONITOR) {
+			RandomAccessFile lockFile = null;
+			try {
+				lockFile = new RandomAccessFile(new File(root, EVICTION_LOCK), "rw");
+				FileLock lock = lockFile.getChannel().tryLock();
+				if (lock == null) {
+					return 0;
+				}
+				return evictLocked();
+			}
+			catch(IOException e) {
+				return 0;
+			}
+			finally {
+				if (lockFile != null) {
+					try {
+						lockFile.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
+	private long evictLocked() {
+		long now = System.currentTimeMillis();
+		Map<String, Long> access = readAccessIndex();
+		Set<String> inUse = collectPins();
+
+		File[] dirs = root.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		long total = 0;
+		for(File dir: dirs) {
+			if (!dir.isDirectory() || dir.getName().startsWith(".")) {
+				continue;
+			}
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+			Entry entry = new Entry(dir);
+			for(File f: files) {
+				entry.size += f.length();
+				entry.lastAccess = Math.max(entry.lastAccess, f.lastModified());
+			}
+			Long t = access.get(entry.name);
+			if (t != null) {
+				entry.lastAccess = Math.max(entry.lastAccess, t);
+			}
+			total += entry.size;
+			entries.add(entry);
+		}
+
+		long evicted = 0;
+		Set<String> removed = new HashSet<String>();
+		if (total > sizeLimit) {
+			Collections.sort(entries, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry e1, Entry e2) {
+					return e1.lastAccess < e2.lastAccess ? -1 : e1.lastAccess == e2.lastAccess ? 0 : 1;
+				}
+			});
+			for(Entry entry: entries) {
+				if (total - evicted <= sizeLimit) {
+					break;
+				}
+				if (inUse.contains(entry.name) || now - entry.lastAccess < EVICTION_GRACE) {
+					continue;
+				}
+				// partially removed entry is still dropped from indexes, it will be verified on next use
+				removed.add(entry.name);
+				if (delete(entry.dir)) {
+					evicted += entry.size;
+				}
+			}
+		}
+
+		// append only index is compacted once it is much longer than cache
+		if (!removed.isEmpty() || access.size() > 2 * entries.size() + 64) {
+			StringBuilder sb = new StringBuilder();
+			for(Entry entry: entries) {
+				Long t = access.get(entry.name);
+				if (t != null && !removed.contains(entry.name)) {
+					sb.append(entry.name).append(' ').append(t).append('\n');
+				}
+			}
+			rewrite(new File(root, ACCESS_INDEX), sb.toString());
+		}
+		return evicted;
+	}
+
+	private Map<String, Long> readAccessIndex() {
+		Map<String, Long> access = new HashMap<String, Long>();
+		try {
+			for(String line: readLines(new File(root, ACCESS_INDEX))) {
+				int n = line.lastIndexOf(' ');
+				if (n > 0) {
+					try {
+						String name = line.substring(0, n);
+						long t = Long.parseLong(line.substring(n + 1));
+						Long prev = access.get(name);
+						if (prev == null || prev < t) {
+							access.put(name, t);
+						}
+					}
+					catch(NumberFormatException e) {
+						// ignore
+					}
+				}
+			}
+		}
+		catch(IOException e) {
+			// modification times are used
+		}
+		return access;
+	}
+
+	/**
+	 * Collects pins of live leases, stale leases are removed.
+	 */
+	private Set<String> collectPins() {
+		Set<String> pins = new HashSet<String>();
+		synchronized(this) {
+			pins.addAll(pinned.keySet());
+		}
+		File dir = leaseDir();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return pins;
+		}
+		for(File file: files) {
+			String name = file.getName();
+			if (!name.endsWith(LOCK_SUFFIX)) {
+				continue;
+			}
+			String id = name.substring(0, name.length() - LOCK_SUFFIX.length());
+			File list = new File(dir, id);
+			boolean live;
+			synchronized(LEASE_MONITOR) {
+				live = OWN_LEASES.contains(id) || isLive(file, list);
+			}
+			if (live) {
+				try {
+					pins.addAll(readLines(list));
+				}
+				catch(IOException e) {
+					// ignore
+				}
+			}
+		}
+		return pins;
+	}
+
+	/**
+	 * Stale lease is removed while its lock is held, so owner could detect it.
+	 */
+	private static boolean isLive(File lockFile, File list) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(lockFile, "rw");
+			FileLock lock = raf.getChannel().tryLock();
+			if (lock == null) {
+				return true;
+			}
+			list.delete();
+			lockFile.delete();
+			return false;
+		}
+		catch(OverlappingFileLockException e) {
+			return true;
+		}
+		catch(IOException e) {
+			// could not probe, keep pins
+			return true;
+		}
+		finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private void ensureLease() throws IOException {
+		if (leaseLock != null) {
+			return;
+		}
+		File dir = leaseDir();
+		dir.mkdirs();
+		File lockFile = new File(dir, leaseId + LOCK_SUFFIX);
+		synchronized(LEASE_MONITOR) {
+			for(int i = 0; i != 5; ++i) {
+				RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+				FileLock lock = null;
+				try {
+					lock = raf.getChannel().tryLock();
+				}
+				catch(IOException e) {
+					raf.close();
+					throw e;
+				}
+				// file could be removed by other process probing it as stale lease
+				if (lock != null && lockFile.exists()) {
+					// leftover of dead process with same name
+					new File(dir, leaseId).delete();
+					leaseLock = raf;
+					OWN_LEASES.add(leaseId);
+					return;
+				}
+				raf.close();
+			}
+		}
+		throw new IOException("Failed to lock lease " + lockFile.getPath());
+	}
+
+	private File leaseDir() {
+		return new File(root, LEASE_DIR);
+	}
+
+	private String entryName(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File parent = dir == null ? null : dir.getParentFile();
+		if (parent == null) {
+			return null;
+		}
+		if (!parent.equals(root)) {
+			try {
+				if (!parent.getCanonicalFile().equals(root)) {
+					return null;
+				}
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		return dir.getName();
+	}
+
+	private static boolean delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for(File f: files) {
+				if (f.isDirectory()) {
+					delete(f);
+				}
+				else {
+					f.delete();
+				}
+			}
+		}
+		return dir.delete();
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		if (!file.isFile()) {
+			return lines;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			while(true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				if (line.length() > 0) {
+					lines.add(line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static void append(File file, String text) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file, true);
+		try {
+			// single write, so concurrent appenders do not interleave lines
+			fos.write(text.getBytes("UTF-8"));
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Concurrent appends may be lost, indexes are advisory.
+	 */
+	private static void rewrite(File file, String text) {
+		try {
+			File tmp = File.createTempFile(file.getName(), "", file.getParentFile());
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(text.getBytes("UTF-8"));
+			}
+			finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// Windows would not rename over existing file
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+				}
+			}
+		}
+		catch(IOException e) {
+			// ignore
+		}
+	}
+
+	private static String processName() {
+		String name;
+		try {
+			name = ManagementFactory.getRuntimeMXBean().getName();
+		}
+		catch(Throwable e) {
+			name = Long.toHexString(System.nanoTime());
+		}
+		StringBuilder sb = new StringBuilder();
+		for(char ch: name.toCharArray()) {
+			sb.append(Character.isLetterOrDigit(ch) || ch == '.' || ch == '-' || ch == '@' ? ch : '_');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Set of pinned entries, see {@link CacheManager#hold()}.
+	 */
+	public static class Hold {
+
+		final List<String> entries;
+		final long touchCount;
+		boolean released;
+
+		Hold(List<String> entries, long touchCount) {
+			this.entries = entries;
+			this.touchCount = touchCount;
+		}
+	}
+
+	private static class Pin {
+
+		int holds;
+		long lastTouch;
+	}
+
+	private static class Entry {
+
+		final File dir;
+		final String name;
+		long size;
+		long lastAccess;
+
+		public Entry(File dir) {
+			this.dir = dir;
+			this.name = dir.getName();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * rsync style delta encoding.
+ * <br/>
+ * Receiver splits its old version of file (basis) into fixed size blocks and
+ * sends weak (rolling) and strong checksum for each block. Sender scans new content
+ * with rolling checksum and encodes it as sequence of block references and literal data.
+ * <br/>
+ * Part of tunneller package, so JDK only.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class FileDelta {
+
+	static final int OP_END = 0;
+	static final int OP_COPY = 1;
+	static final int OP_DATA = 2;
+
+	private static final int MIN_BLOCK = 1 << 10;
+	private static final int MAX_BLOCK = 64 << 10;
+	private static final int MAX_LITERAL = 64 << 10;
+
+	/**
+	 * Block size grows as square root of file size, so signature size grows the same.
+	 */
+	public static int blockSize(long fileSize) {
+		int bs = Integer.highestOneBit((int)Math.sqrt(fileSize));
+		return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, bs));
+	}
+
+	public static int weakChecksum(byte[] data, int offs, int len) {
+		int a = 0;
+		int b = 0;
+		for(int i = 0; i != len; ++i) {
+			int x = 0xFF & data[offs + i];
+			a += x;
+			b += (len - i) * x;
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	public static long strongChecksum(MessageDigest md5, byte[] data, int offs, int len) {
+		md5.reset();
+		md5.update(data, offs, len);
+		byte[] d = md5.digest();
+		long v = 0;
+		for(int i = 0; i != 8; ++i) {
+			v = (v << 8) | (0xFF & d[i]);
+		}
+		return v;
+	}
+
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Checksums of full blocks of file, tail shorter than block is not included.
+	 */
+	public static class Signature {
+
+		public final int blockSize;
+		public final int[] weak;
+		public final long[] strong;
+
+		public Signature(int blockSize, int[] weak, long[] strong) {
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+		}
+	}
+
+	public static Signature signature(File file, int blockSize) throws IOException {
+		int blocks = (int)(file.length() / blockSize);
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+		MessageDigest md5 = md5();
+		byte[] buf = new byte[blockSize];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			for(int i = 0; i != blocks; ++i) {
+				dis.readFully(buf);
+				weak[i] = weakChecksum(buf, 0, blockSize);
+				strong[i] = strongChecksum(md5, buf, 0, blockSize);
+			}
+		}
+		finally {
+			dis.close();
+		}
+		return new Signature(blockSize, weak, strong);
+	}
+
+	/**
+	 * Writes delta transforming basis (described by signature) to given content.
+	 * @return number of literal bytes in delta
+	 */
+	public static long encode(byte[] data, Signature sig, OutputStream os) throws IOException {
+		return encode(new ByteArrayInputStream(data), sig, os);
+	}
+
+	/**
+	 * Same as {@link #encode(byte[], Signature, OutputStream)}, but content is read
+	 * from stream, only a window of about {@link #MAX_LITERAL} bytes is kept in memory.
+	 * @return number of literal bytes in delta
+	 */
+	public static long encode(InputStream data, Signature sig, OutputStream os) throws IOException {
+		Encoder enc = new Encoder(sig, new DataOutputStream(os));
+		enc.encode(data);
+		return enc.literalBytes;
+	}
+
+	/**
+	 * Reconstructs content from delta stream and basis file.
+	 * @return size of reconstructed content
+	 */
+	public static long apply(InputStream delta, File basis, int blockSize, OutputStream target) throws IOException {
+		DataInputStream dis = new DataInputStream(delta);
+		RandomAccessFile raf = new RandomAccessFile(basis, "r");
+		try {
+			byte[] buf = new byte[Math.max(blockSize, 8 << 10)];
+			long size = 0;
+			while(true) {
+				int op = dis.readByte();
+				if (op == OP_END) {
+					return size;
+				}
+				else if (op == OP_COPY) {
+					long offs = (long)dis.readInt() * blockSize;
+					long len = (long)dis.readInt() * blockSize;
+					if (offs + len > raf.length()) {
+						throw new IOException("Block reference is out of basis file");
+					}
+					raf.seek(offs);
+					size += len;
+					while(len > 0) {
+						int n = (int)Math.min(len, buf.length);
+						raf.readFully(buf, 0, n);
+						target.write(buf, 0, n);
+						len -= n;
+					}
+				}
+				else if (op == OP_DATA) {
+					int len = dis.readInt();
+					size += len;
+					while(len > 0) {
+						int n = Math.min(len, buf.length);
+						dis.readFully(buf, 0, n);
+						target.write(buf, 0, n);
+						len -= n;
+					}
+				}
+				else {
+					throw new IOException("Corrupted delta stream, unknown op " + op);
+				}
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static class Encoder {
+
+		private final Signature sig;
+		private final DataOutputStream out;
+		private final MessageDigest md5 = md5();
+		// weak checksum to first block, chained via next
+		private final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+		private final int[] next;
+
+		private int copyStart = -1;
+		private int copyCount = 0;
+		long literalBytes;
+
+		public Encoder(Signature sig, DataOutputStream out) {
+			this.sig = sig;
+			this.out = out;
+			next = new int[sig.weak.length];
+			for(int i = sig.weak.length - 1; i >= 0; --i) {
+				Integer prev = index.put(sig.weak[i], i);
+				next[i] = prev == null ? -1 : prev;
+			}
+		}
+
+		public void encode(InputStream in) throws IOException {
+			int bs = sig.blockSize;
+			// unflushed literal is shorter than MAX_LITERAL, so there is always room for next block
+			byte[] data = new byte[MAX_LITERAL + 2 * bs];
+			int n = 0;
+			boolean eof = false;
+			int pos = 0;
+			int literal = 0;
+			boolean rolling = false;
+			int a = 0;
+			int b = 0;
+			while(true) {
+				if (pos + bs > n && !eof) {
+					System.arraycopy(data, literal, data, 0, n - literal);
+					n -= literal;
+					pos -= literal;
+					literal = 0;
+					while(n < data.length) {
+						int r = in.read(data, n, data.length - n);
+						if (r < 0) {
+							eof = true;
+							break;
+						}
+						n += r;
+					}
+				}
+				if (pos + bs > n) {
+					break;
+				}
+				if (!rolling) {
+					int w = weakChecksum(data, pos, bs);
+					a = w & 0xFFFF;
+					b = w >>> 16;
+					rolling = true;
+				}
+				int match = -1;
+				Integer first = index.get((a & 0xFFFF) | (b << 16));
+				if (first != null) {
+					long strong = strongChecksum(md5, data, pos, bs);
+					for(int i = first; i >= 0; i = next[i]) {
+						if (sig.strong[i] == strong) {
+							match = i;
+							break;
+						}
+					}
+				}
+				if (match >= 0) {
+					literal(data, literal, pos);
+					copy(match);
+					pos += bs;
+					literal = pos;
+					rolling = false;
+					continue;
+				}
+				if (pos + bs < n) {
+					int xo = 0xFF & data[pos];
+					int xi = 0xFF & data[pos + bs];
+					a = (a - xo + xi) & 0xFFFF;
+					b = (b - bs * xo + a) & 0xFFFF;
+				}
+				else {
+					// next byte is not read yet, checksum is recalculated after refill
+					rolling = false;
+				}
+				++pos;
+				if (pos - literal >= MAX_LITERAL) {
+					literal(data, literal, pos);
+					literal = pos;
+				}
+			}
+			literal(data, literal, n);
+			flushCopy();
+			out.writeByte(OP_END);
+			out.flush();
+		}
+
+		private void copy(int block) throws IOException {
+			if (copyStart >= 0 && copyStart + copyCount == block) {
+				++copyCount;
+			}
+			else {
+				flushCopy();
+				copyStart = block;
+				copyCount = 1;
+			}
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyStart >= 0) {
+				out.writeByte(OP_COPY);
+				out.writeInt(copyStart);
+				out.writeInt(copyCount);
+				copyStart = -1;
+				copyCount = 0;
+			}
+		}
+
+		private void literal(byte[] data, int from, int to) throws IOException {
+			if (to > from) {
+				flushCopy();
+				out.writeByte(OP_DATA);
+				out.writeInt(to - from);
+				out.write(data, from, to - from);
+				literalBytes += to - from;
+			}
+		}
+	}
+}
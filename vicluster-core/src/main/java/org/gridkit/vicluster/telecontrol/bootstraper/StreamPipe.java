@@ -20,10 +20,35 @@ class StreamPipe {
 	private int out = 0;
 	private int inBuffer = 0;
 	
+	private volatile Runnable writeListener;
+	private volatile Runnable readListener;
+	
 	public StreamPipe(int bufferSize) {
 		buffer = new byte[bufferSize];
 	}
 	
+	/**
+	 * Listener is invoked (outside of pipe lock) after each write and after either side is closed.
+	 */
+	public void setWriteListener(Runnable listener) {
+		this.writeListener = listener;
+	}
+
+	/**
+	 * Listener is invoked (outside of pipe lock) after data has been consumed by reader.
+	 */
+	public void setReadListener(Runnable listener) {
+		this.readListener = listener;
+	}
+	
+	public int getCapacity() {
+		return buffer.length;
+	}
+	
+	public synchronized int getBuffered() {
+		return inBuffer;
+	}
+	
 	public InputStream getInputStream() {
 		return new PipeIn();
 	}
@@ -52,6 +77,7 @@ class StreamPipe {
 		in = (in + run) % buffer.length;
 
 		readNotify(run);
+		fire(readListener);
 		return run;		
 	}
 	
@@ -69,6 +95,7 @@ class StreamPipe {
 			out = len - run;			
 		}
 		writeNotify(len);
+		fire(writeListener);
 	}
 
 	private synchronized void waitForBuffer(int size) throws IOException {
@@ -125,6 +152,12 @@ class StreamPipe {
 		this.notifyAll();		
 	}
 	
+	private void fire(Runnable l) {
+		if (l != null) {
+			l.run();
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return "Pipe@" + hashCode();
@@ -164,6 +197,7 @@ class StreamPipe {
 				closedByWriter = true;
 				StreamPipe.this.notifyAll();
 			}
+			fire(writeListener);
 		}
 
 		@Override
@@ -220,6 +254,7 @@ class StreamPipe {
 				closedByReader = true;
 				StreamPipe.this.notifyAll();
 			}
+			fire(writeListener);
 		}
 		
 		@Override
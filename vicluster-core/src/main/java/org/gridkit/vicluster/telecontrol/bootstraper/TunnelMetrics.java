@@ -0,0 +1,224 @@
+/**
+ * Copyright 2014 Alexey Ragozin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of tunnel counters.
+ * <br/>
+ * Traffic counters include frame headers and credit updates, channel
+ * counters are payload only. Remote values are reported by agent
+ * in response to ping, -1 if there were no ping yet.
+ *
+ * @author Alexey Ragozin (alexey.ragozin@gmail.com)
+ */
+public class TunnelMetrics implements Serializable {
+
+	private static final long serialVersionUID = 20140201L;
+
+	long bytesSent;
+	long bytesReceived;
+	long framesSent;
+	long framesReceived;
+	int readyQueueDepth;
+	boolean compression;
+	List<ChannelMetrics> channels = new ArrayList<ChannelMetrics>();
+
+	int pendingFilePushes;
+	int activeProcesses;
+
+	int remoteActiveFileReceptions = -1;
+	int remoteQueuedFileReceptions = -1;
+	int remoteProcesses = -1;
+	long remoteTimestamp = -1;
+
+	long lastRoundTripNanos = -1;
+	long averageRoundTripNanos = -1;
+	long roundTripCount;
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getFramesSent() {
+		return framesSent;
+	}
+
+	public long getFramesReceived() {
+		return framesReceived;
+	}
+
+	/**
+	 * @return number of channels waiting for outbound mux
+	 */
+	public int getReadyQueueDepth() {
+		return readyQueueDepth;
+	}
+
+	/**
+	 * @return <code>true</code> if compression has been negotiated for tunnel
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public List<ChannelMetrics> getChannels() {
+		return Collections.unmodifiableList(channels);
+	}
+
+	/**
+	 * @return file uploads not yet confirmed by agent
+	 */
+	public int getPendingFilePushes() {
+		return pendingFilePushes;
+	}
+
+	public int getActiveProcesses() {
+		return activeProcesses;
+	}
+
+	public int getRemoteActiveFileReceptions() {
+		return remoteActiveFileReceptions;
+	}
+
+	/**
+	 * @return file uploads waiting for agent's parallel reception limit
+	 */
+	public int getRemoteQueuedFileReceptions() {
+		return remoteQueuedFileReceptions;
+	}
+
+	public int getRemoteProcesses() {
+		return remoteProcesses;
+	}
+
+	/**
+	 * @return time (ms since epoch) of ping reply remote counters come from, -1 if there were no ping yet
+	 */
+	public long getRemoteTimestamp() {
+		return remoteTimestamp;
+	}
+
+	/**
+	 * @return control command round trip time of last ping or -1
+	 */
+	public long getLastRoundTripNanos() {
+		return lastRoundTripNanos;
+	}
+
+	public long getAverageRoundTripNanos() {
+		return averageRoundTripNanos;
+	}
+
+	public long getRoundTripCount() {
+		return roundTripCount;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sent ").append(bytesSent).append(" bytes/").append(framesSent).append(" frames");
+		sb.append(", received ").append(bytesReceived).append(" bytes/").append(framesReceived).append(" frames");
+		sb.append(", ready queue ").append(readyQueueDepth);
+		if (compression) {
+			sb.append(", compressed");
+		}
+		sb.append(", pending pushes ").append(pendingFilePushes);
+		if (remoteQueuedFileReceptions >= 0) {
+			sb.append(" (remote ").append(remoteActiveFileReceptions).append(" active, ").append(remoteQueuedFileReceptions).append(" queued)");
+		}
+		if (lastRoundTripNanos >= 0) {
+			sb.append(", rtt ").append(String.format("%.3fms", lastRoundTripNanos / 1e6));
+		}
+		for(ChannelMetrics ch: channels) {
+			sb.append("\n  ").append(ch);
+		}
+		return sb.toString();
+	}
+
+	public static class ChannelMetrics implements Serializable {
+
+		private static final long serialVersionUID = 20140201L;
+
+		long channelId;
+		boolean outbound;
+		int weight;
+		long bytes;
+		long wireBytes;
+		long frames;
+		int buffered;
+		long credit;
+
+		public long getChannelId() {
+			return channelId;
+		}
+
+		public boolean isOutbound() {
+			return outbound;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return payload bytes sent (outbound) or received (inbound)
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return payload bytes on the wire, less than {@link #getBytes()} if frames were compressed
+		 */
+		public long getWireBytes() {
+			return wireBytes;
+		}
+
+		public long getFrames() {
+			return frames;
+		}
+
+		/**
+		 * @return bytes waiting in channel pipe (not yet sent or not yet consumed)
+		 */
+		public int getBuffered() {
+			return buffered;
+		}
+
+		/**
+		 * @return outbound: bytes which could be sent now, inbound: bytes granted to sender in total
+		 */
+		public long getCredit() {
+			return credit;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + channelId + "] " + (outbound ? "OUT" : "IN") + " w" + weight
+					+ " " + bytes + " bytes/" + frames + " frames" + (wireBytes == bytes ? "" : " (" + wireBytes + " on wire)")
+					+ ", buffered " + buffered + ", credit " + credit;
+		}
+	}
+}
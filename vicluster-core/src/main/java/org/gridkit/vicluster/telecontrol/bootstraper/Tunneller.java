@@ -15,10 +15,12 @@
  */
 package org.gridkit.vicluster.telecontrol.bootstraper;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,16 +29,49 @@ import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Tunneller extends TunnellerIO {
 	
-	private static final byte[] EMPTY_BUFFER = new byte[0];
+	private static final long OUTPUT_DRAIN_TIMEOUT = 500;
+	/** Pump and watcher threads do not need default stack, there could be hundreds of them */
+	private static final long THREAD_STACK_SIZE = 256 << 10;
+	
+	/** Agent JVM property, number of files received in parallel */
+	public static final String MAX_FILE_RECEPTIONS_PROP = "org.gridkit.tunneller.max-file-receptions";
+	private static final int RECEIVE_BUFFER_SIZE = 64 << 10;
+	/** Agent JVM property, size limit (e.g. <code>2g</code>) of file cache agent is started from, 0 - unlimited */
+	public static final String CACHE_LIMIT_PROP = "org.gridkit.tunneller.cache-limit";
+	/** Agent JVM property, local address file server is bound to, all interfaces by default */
+	public static final String PEER_BIND_ADDRESS_PROP = "org.gridkit.tunneller.peer-bind-address";
+	/** Agent JVM property, port range (e.g. <code>40000-40100</code>) for file server, any free port by default */
+	public static final String PEER_PORT_RANGE_PROP = "org.gridkit.tunneller.peer-port-range";
+	/** Agent JVM property, address advertised to peers, detected if not set */
+	public static final String PEER_ADDRESS_PROP = "org.gridkit.tunneller.peer-address";
+	/** Agent JVM property, number of files served to peers in parallel */
+	public static final String MAX_PEER_UPLOADS_PROP = "org.gridkit.tunneller.max-peer-uploads";
+	/** Unreachable peer should not delay fallback to upload from master */
+	private static final int PEER_CONNECT_TIMEOUT = 3000;
+	private static final int PEER_READ_TIMEOUT = 30000;
+	/** Token not used by peer in this time is discarded */
+	private static final long PEER_TOKEN_TTL = 60000;
 
     public static void main(String[] args) throws IOException  {
 		// This should warm up JDK IO classes
@@ -49,7 +84,9 @@ public class Tunneller extends TunnellerIO {
 		PrintStream output = System.out;
 		System.setOut(System.err);
 		
-		new Tunneller().process(input, output);		
+		Tunneller tunneller = new Tunneller();
+		tunneller.initCache(System.getProperty("java.class.path"));
+		tunneller.process(input, output);		
 	}
 
 	private DataInputStream ctrlReq;
@@ -58,18 +95,53 @@ public class Tunneller extends TunnellerIO {
 	private Map<Long, ProcessHandler> processes = new ConcurrentHashMap<Long, ProcessHandler>();
 	private NavigableMap<Long, ServerSocket> sockets = new TreeMap<Long, ServerSocket>();
 	
-	private int maxParallelFileReceptions = 4;
+	private int maxParallelFileReceptions = Integer.getInteger(MAX_FILE_RECEPTIONS_PROP, 4);
 	private int activeFileReceptions = 0;
 	private List<FilePushCmd> pendingFiles = new ArrayList<TunnellerIO.FilePushCmd>();
+
+	private CacheManager cacheManager;
+	private boolean evictionScheduled;
+
+	// file server is started on first serve request
+	private ServerSocket fileServer;
+	private ThreadPoolExecutor fileUploads;
+	private String peerAddress;
+	private Map<Long, ServedFile> servedFiles = new HashMap<Long, ServedFile>();
+	private SecureRandom tokenSource;
 	
 	public Tunneller() {
 		super("", System.out);
 	}
+
+	/**
+	 * Agent is started from file cache (<code>{cache}/{hash}/tunneller.jar</code>),
+	 * files used via this agent are pinned in that cache and it is kept within size limit.
+	 */
+	void initCache(String classpath) {
+		if (classpath == null || classpath.indexOf(File.pathSeparatorChar) >= 0 || !classpath.endsWith(".jar")) {
+			return;
+		}
+		try {
+			File jar = new File(classpath).getCanonicalFile();
+			File root = jar.getParentFile() == null ? null : jar.getParentFile().getParentFile();
+			if (root != null) {
+				cacheManager = new CacheManager(root, CacheManager.parseSize(System.getProperty(CACHE_LIMIT_PROP, "0")));
+				cacheManager.touch(jar);
+				// agent's own jar is held for whole session
+				cacheManager.hold();
+			}
+		}
+		catch(Exception e) {
+			diagOut.println("Cache management is disabled: " + e.toString());
+		}
+	}
 	
 	public void process(InputStream input, OutputStream output) {
 				
 		Channel ctrlIn = new Channel(CTRL_REQ, Direction.INBOUND, 4 << 10);
-		Channel ctrlOut = new Channel(CTRL_REP, Direction.OUTBOUND, 4 << 10);
+		Channel ctrlOut = new Channel(CTRL_REP, Direction.OUTBOUND, 4 << 10, CONTROL_WEIGHT);
+		// control messages are small, latency is more important
+		ctrlOut.compress = false;
 
 		addChannel(ctrlIn);
 		addChannel(ctrlOut);
@@ -78,14 +150,18 @@ public class Tunneller extends TunnellerIO {
 		ctrlRep = new DataOutputStream(ctrlOut.outbound);
 
 		
-		OutboundMux out = new OutboundMux(output);
-		out.start();
-
+		// master speaks first, agent accepts features it supports
 		try {
-			readMagic(input);
+			int peerFeatures = readHandshake(input);
+			features = peerFeatures & FEATURE_COMPRESSION;
+			compressFrames = features != 0;
 		} catch (IOException e) {
 			diagOut.println("Failed to init stream. " + e.toString());
 		}
+
+		OutboundMux out = new OutboundMux(output);
+		out.start();
+
 		InboundDemux in = new InboundDemux(input);
 		in.start();
 
@@ -107,6 +183,12 @@ public class Tunneller extends TunnellerIO {
 					case BindCmd.ID: processBind(); break;
 					case AcceptCmd.ID: processAccept(); break;
 					case FilePushCmd.ID: processPushFile(); break;
+					case FileCheckCmd.ID: processCheckFiles(); break;
+					case FileSignatureCmd.ID: processSignature(); break;
+					case FileDeltaCmd.ID: processPushDelta(); break;
+					case PingCmd.ID: processPing(); break;
+					case FileFetchCmd.ID: processFetchFile(); break;
+					case FileServeCmd.ID: processServeFile(); break;
 					default:
 						System.out.println("ERROR: Unexpected command: " + cmd);
 						break;
@@ -127,13 +209,17 @@ public class Tunneller extends TunnellerIO {
 		cmd.read(ctrlReq);
 
 		Channel stdIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10); 
-		Channel stdOut = new Channel(cmd.outId, Direction.OUTBOUND, 16 << 10); 
-		Channel stdErr = new Channel(cmd.errId, Direction.OUTBOUND, 16 << 10); 
+		Channel stdOut = new Channel(cmd.outId, Direction.OUTBOUND, 16 << 10, BULK_WEIGHT); 
+		Channel stdErr = new Channel(cmd.errId, Direction.OUTBOUND, 16 << 10, BULK_WEIGHT); 
+		// slave reads spore from stdin once and never again,
+		// so pump thread exists only while there is data to deliver
+		LazyPump stdInPump = new LazyPump("PROC[" + cmd.procId + "].stdIn", traceProcIO ? "stdIn@" + cmd.procId : null, stdIn.inbound);
+		stdIn.pipe.setWriteListener(stdInPump);
 		addChannel(stdIn);
 		addChannel(stdOut);
 		addChannel(stdErr);
 		
-		startProc(cmd.procId, cmd.workingDir, cmd.command, cmd.env, stdIn.inbound, stdOut.outbound, stdErr.outbound);
+		startProc(cmd.procId, cmd.workingDir, cmd.command, cmd.env, stdInPump, stdOut.outbound, stdErr.outbound);
 	}
 
 	private void processKill() throws IOException {
@@ -164,8 +250,8 @@ public class Tunneller extends TunnellerIO {
 		AcceptCmd cmd = new AcceptCmd();
 		cmd.read(ctrlReq);
 		
-		Channel soIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10); 
-		Channel soOut = new Channel(cmd.outId, Direction.OUTBOUND, 16 << 10); 
+		Channel soIn = new Channel(cmd.inId, Direction.INBOUND, DATA_BUFFER_SIZE); 
+		Channel soOut = new Channel(cmd.outId, Direction.OUTBOUND, DATA_BUFFER_SIZE); 
 		addChannel(soIn);
 		addChannel(soOut);
 		
@@ -175,7 +261,22 @@ public class Tunneller extends TunnellerIO {
 	private void processPushFile() throws IOException {
 		FilePushCmd cmd = new FilePushCmd();
 		cmd.read(ctrlReq);
-		
+		acceptPush(cmd);
+	}
+
+	private void processPushDelta() throws IOException {
+		FileDeltaCmd cmd = new FileDeltaCmd();
+		cmd.read(ctrlReq);
+		acceptPush(cmd);
+	}
+
+	private void processFetchFile() throws IOException {
+		FileFetchCmd cmd = new FileFetchCmd();
+		cmd.read(ctrlReq);
+		acceptPush(cmd);
+	}
+
+	private void acceptPush(FilePushCmd cmd) {
 		String error = "";
 		long size = -1;
 		
@@ -188,6 +289,9 @@ public class Tunneller extends TunnellerIO {
 				if (file.isDirectory()) {
 					error = "Target path is directory";
 				}
+				else {
+					touchCached(Collections.singletonList(file));
+				}
 			}
 			else {
 			    cmd.targetPath = path;
@@ -204,20 +308,367 @@ public class Tunneller extends TunnellerIO {
 		sendFileResponse(cmd.fileId, path, size, error);
 	}
 	
-	private void startProc(long procId, String workingDir, String command[],	Map<String, String> env, InputStream stdIn, OutputStream stdOut, OutputStream stdErr) {
+	/**
+	 * Only files with expected size are served, peer verifies hash on reception.
+	 */
+	private void processServeFile() throws IOException {
+		FileServeCmd cmd = new FileServeCmd();
+		cmd.read(ctrlReq);
+		String path = cmd.path;
+		try {
+			path = transformPath(path);
+			File file = new File(path);
+			if (!file.isFile() || file.length() != cmd.size) {
+				sendFileServeResponse(cmd.serveId, path, "", -1, 0, FILE_NOT_AVAILABLE);
+			}
+			else {
+				touchCached(Collections.singletonList(file));
+				int port = ensureFileServer();
+				long token = registerServedFile(file);
+				sendFileServeResponse(cmd.serveId, path, peerAddress, port, token, "");
+			}
+		}
+		catch(IOException e) {
+			sendFileServeResponse(cmd.serveId, path, "", -1, 0, e.toString());
+		}
+	}
+
+	private synchronized int ensureFileServer() throws IOException {
+		if (fileServer == null) {
+			String bindAddress = System.getProperty(PEER_BIND_ADDRESS_PROP, "");
+			ServerSocket ss = bindFileServer(bindAddress, System.getProperty(PEER_PORT_RANGE_PROP, ""));
+			int uploads = Integer.getInteger(MAX_PEER_UPLOADS_PROP, 4);
+			// connections over the limit are queued, queue overflow is rejected
+			fileUploads = new ThreadPoolExecutor(uploads, uploads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(4 * uploads), new ThreadFactory() {
+				int n;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(null, r, "FILE-UPLOAD-" + (n++), THREAD_STACK_SIZE);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			fileUploads.allowCoreThreadTimeOut(true);
+			peerAddress = detectPeerAddress(bindAddress);
+			fileServer = ss;
+			new FileServer(ss).start();
+		}
+		return fileServer.getLocalPort();
+	}
+
+	private static ServerSocket bindFileServer(String bindAddress, String portRange) throws IOException {
+		int from = 0;
+		int to = 0;
+		if (portRange.trim().length() > 0) {
+			try {
+				String[] range = portRange.split("-");
+				from = Integer.parseInt(range[0].trim());
+				to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("Invalid port range: " + portRange);
+			}
+		}
+		IOException error = null;
+		for(int port = from; port <= to; ++port) {
+			ServerSocket ss = new ServerSocket();
+			try {
+				ss.bind(bindAddress.length() == 0 ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port));
+				return ss;
+			}
+			catch(IOException e) {
+				ss.close();
+				error = e;
+			}
+		}
+		throw new IOException("No free port in range " + portRange + " - " + error);
+	}
+
+	/**
+	 * Address master has reached this host by (from <code>SSH_CONNECTION</code>)
+	 * is likely reachable by other hosts too.
+	 * Empty string means master should use host name it knows.
+	 */
+	private static String detectPeerAddress(String bindAddress) {
+		String address = System.getProperty(PEER_ADDRESS_PROP, "");
+		if (address.length() > 0) {
+			return address;
+		}
+		if (bindAddress.length() > 0 && !"0.0.0.0".equals(bindAddress)) {
+			return bindAddress;
+		}
+		String ssh = System.getenv("SSH_CONNECTION");
+		if (ssh != null) {
+			String[] parts = ssh.trim().split("\\s+");
+			if (parts.length == 4) {
+				return parts[2];
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * @return one time token, file could be downloaded once using it
+	 */
+	private synchronized long registerServedFile(File file) throws IOException {
+		if (tokenSource == null) {
+			tokenSource = new SecureRandom();
+		}
+		// tokens are discarded if peer never comes
+		long now = System.currentTimeMillis();
+		Iterator<ServedFile> it = servedFiles.values().iterator();
+		while(it.hasNext()) {
+			if (it.next().expires < now) {
+				it.remove();
+			}
+		}
+		while(true) {
+			long token = tokenSource.nextLong();
+			if (token != 0 && !servedFiles.containsKey(token)) {
+				servedFiles.put(token, new ServedFile(file, now + PEER_TOKEN_TTL));
+				return token;
+			}
+		}
+	}
+
+	private synchronized File takeServedFile(long token) {
+		ServedFile sf = servedFiles.remove(token);
+		return sf == null || sf.expires < System.currentTimeMillis() ? null : sf.file;
+	}
+
+	private void processPing() throws IOException {
+		PingCmd cmd = new PingCmd();
+		cmd.read(ctrlReq);
+		sendPong(cmd.pingId);
+	}
+
+	private void processCheckFiles() throws IOException {
+		final FileCheckCmd cmd = new FileCheckCmd();
+		cmd.read(ctrlReq);
+		
+		// hashing may take a while, do not hold control thread
+		Thread checker = new Thread("FILE-CHECK[" + cmd.checkId + "]") {
+			@Override
+			public void run() {
+				String[] paths = new String[cmd.paths.length];
+				boolean[] present = new boolean[cmd.paths.length];
+				boolean[] basis = new boolean[cmd.paths.length];
+				List<File> used = new ArrayList<File>();
+				// cache root is listed once per batch
+				Map<File, File[]> listings = new HashMap<File, File[]>();
+				for(int i = 0; i != paths.length; ++i) {
+					paths[i] = cmd.paths[i];
+					try {
+						paths[i] = transformPath(cmd.paths[i]);
+						present[i] = checkFile(new File(paths[i]), cmd.sizes[i], cmd.verifyHash ? cmd.hashes[i] : null);
+						if (present[i]) {
+							used.add(new File(paths[i]));
+						}
+						else {
+							basis[i] = findBasis(new File(paths[i]), listings) != null;
+						}
+					}
+					catch(IOException e) {
+						present[i] = false;
+					}
+				}
+				// pinned before master is told that files are present
+				touchCached(used);
+				sendFileCheckResponse(cmd.checkId, paths, present, basis);
+			}
+		};
+		checker.setDaemon(true);
+		checker.start();
+	}
+	
+	private void processSignature() throws IOException {
+		final FileSignatureCmd cmd = new FileSignatureCmd();
+		cmd.read(ctrlReq);
+		
+		Thread signer = new Thread("FILE-SIGNATURE[" + cmd.sigId + "]") {
+			@Override
+			public void run() {
+				FileDelta.Signature sig = null;
+				File basis = null;
+				try {
+					basis = findBasis(new File(transformPath(cmd.path)));
+					if (basis != null) {
+						touchCached(Collections.singletonList(basis));
+						sig = FileDelta.signature(basis, FileDelta.blockSize(basis.length()));
+					}
+				}
+				catch(IOException e) {
+					// no delta then
+					basis = null;
+				}
+				if (basis == null || sig == null) {
+					sendFileSignatureResponse(cmd.sigId, "", 0, new int[0], new long[0]);
+				}
+				else {
+					sendFileSignatureResponse(cmd.sigId, basis.getPath(), sig.blockSize, sig.weak, sig.strong);
+				}
+			}
+		};
+		signer.setDaemon(true);
+		signer.start();
+	}
+
+	/**
+	 * Cache layout is <code>root/hash/name</code>, so previous versions of a file
+	 * are files with same name in sibling directories. Most recent is chosen.
+	 */
+	private static File findBasis(File target) {
+		return findBasis(target, new HashMap<File, File[]>());
+	}
+
+	/**
+	 * @param listings cache of directory listings
+	 */
+	private static File findBasis(File target, Map<File, File[]> listings) {
+		File dir = target.getParentFile();
+		File root = dir == null ? null : dir.getParentFile();
+		if (root == null || target.exists()) {
+			return null;
+		}
+		if (!listings.containsKey(root)) {
+			listings.put(root, root.listFiles());
+		}
+		File[] siblings = listings.get(root);
+		if (siblings == null) {
+			return null;
+		}
+		File basis = null;
+		for(File d: siblings) {
+			if (!d.isDirectory() || d.getName().equals(dir.getName())) {
+				continue;
+			}
+			File f = new File(d, target.getName());
+			if (f.isFile() && f.length() > 0 && (basis == null || basis.lastModified() < f.lastModified())) {
+				basis = f;
+			}
+		}
+		return basis;
+	}
+
+	/**
+	 * Pins files in cache until processes started after this are finished, see {@link CacheManager#hold()}.
+	 */
+	private void touchCached(List<File> files) {
+		if (cacheManager != null && !files.isEmpty()) {
+			cacheManager.touch(files);
+		}
+	}
+
+	private CacheManager.Hold holdCached() {
+		return cacheManager == null ? null : cacheManager.hold();
+	}
+
+	private void releaseCached(CacheManager.Hold hold) {
+		if (hold != null) {
+			cacheManager.release(hold);
+		}
+	}
+
+	/**
+	 * Eviction scans whole cache, so it is done in background once reception is complete.
+	 */
+	private void scheduleEviction() {
+		if (cacheManager == null || cacheManager.getSizeLimit() <= 0) {
+			return;
+		}
+		synchronized(this) {
+			if (evictionScheduled) {
+				return;
+			}
+			evictionScheduled = true;
+		}
+		Thread evictor = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long evicted = cacheManager.evict();
+					if (evicted > 0) {
+						diagOut.println("Cache eviction: " + evicted + " bytes removed from " + cacheManager.getRoot());
+					}
+				}
+				finally {
+					synchronized(Tunneller.this) {
+						evictionScheduled = false;
+					}
+				}
+			}
+		}, "CACHE-EVICTION", THREAD_STACK_SIZE);
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Removes file if it does not match expected size or hash, so it could be pushed again.
+	 */
+	private static boolean checkFile(File file, long size, String hash) throws IOException {
+		if (!file.exists() || file.isDirectory()) {
+			return false;
+		}
+		// only SHA-1 hashes could be verified
+		if (file.length() != size || (hash != null && hash.length() == 40 && !hash.equalsIgnoreCase(sha1(file)))) {
+			file.delete();
+			return false;
+		}
+		return true;
+	}
+
+	private static String sha1(File file) throws IOException {
+		MessageDigest md = sha1();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 << 10];
+			int n;
+			while((n = fis.read(buf)) >= 0) {
+				md.update(buf, 0, n);
+			}
+		}
+		finally {
+			fis.close();
+		}
+		return toHex(md.digest());
+	}
+
+	private static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for(byte b: digest) {
+			sb.append(Integer.toHexString(0xF & (b >> 4)));
+			sb.append(Integer.toHexString(0xF & (b)));
+		}
+		return sb.toString();
+	}
+	
+	private void startProc(long procId, String workingDir, String command[],	Map<String, String> env, LazyPump stdIn, OutputStream stdOut, OutputStream stdErr) {
+		// files checked or uploaded so far are released once process is finished
+		CacheManager.Hold hold = holdCached();
 		try {
 			File wd = new File(workingDir).getCanonicalFile();
 			String[] envp = SystemHelper.buildInheritedEnvironment(env);
 			Process process = Runtime.getRuntime().exec(command, envp, wd);
-			new ProcessHandler(procId, process, stdIn, stdOut, stdErr).start();
+			ProcessHandler handler = new ProcessHandler(procId, process, hold, stdIn, stdOut, stdErr);
+			// started notification should precede exit code
 			sendStarted(procId);
+			handler.start();
 		} catch (IOException e) {
 			PrintStream ps = new PrintStream(stdErr);
 			e.printStackTrace(ps);
 			ps.flush();
-			close(stdIn);
+			stdIn.cancel();
 			close(stdOut);
 			close(stdErr);
+			releaseCached(hold);
 			sendExitCode(procId, Integer.MIN_VALUE);
 		}
 	}
@@ -237,8 +688,14 @@ public class Tunneller extends TunnellerIO {
     
     private synchronized void startFileReception(FilePushCmd cmd) {
         try {
-            FileWriter writer = new FileWriter(cmd.fileId, cmd.targetPath);
-            Channel soIn = new Channel(cmd.inId, Direction.INBOUND, 16 << 10); 
+            FileWriter writer = new FileWriter(cmd);
+            if (cmd instanceof FileFetchCmd) {
+                // content is downloaded by writer thread, no channel is needed
+                writer.start();
+                ++activeFileReceptions;
+                return;
+            }
+            Channel soIn = new Channel(cmd.inId, Direction.INBOUND, DATA_BUFFER_SIZE); 
             addChannel(soIn);
             writer.in = soIn.inbound;
             writer.start();
@@ -272,7 +729,6 @@ public class Tunneller extends TunnellerIO {
 			StartedCmd cmd = new StartedCmd();
 			cmd.procId = procId;
 			cmd.write(ctrlRep);
-			writePending();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -284,7 +740,6 @@ public class Tunneller extends TunnellerIO {
 			cmd.procId = procId;
 			cmd.code = code;
 			cmd.write(ctrlRep);
-			writePending();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -297,7 +752,6 @@ public class Tunneller extends TunnellerIO {
 			cmd.host = host;
 			cmd.port = port;
 			cmd.write(ctrlRep);
-			writePending();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}		
@@ -310,7 +764,6 @@ public class Tunneller extends TunnellerIO {
 			cmd.remoteHost = rhost;
 			cmd.remotePort = rport;
 			cmd.write(ctrlRep);
-			writePending();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}		
@@ -324,7 +777,61 @@ public class Tunneller extends TunnellerIO {
 			cmd.size = size;
 			cmd.error = error;
 			cmd.write(ctrlRep);
-			writePending();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}		
+	}
+
+	synchronized void sendFileServeResponse(long serveId, String path, String host, int port, long token, String error) {
+		try {
+			FileServeResponseCmd cmd = new FileServeResponseCmd();
+			cmd.serveId = serveId;
+			cmd.path = path;
+			cmd.host = host;
+			cmd.port = port;
+			cmd.token = token;
+			cmd.error = error;
+			cmd.write(ctrlRep);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}		
+	}
+
+	synchronized void sendFileCheckResponse(long checkId, String[] paths, boolean[] present, boolean[] basis) {
+		try {
+			FileCheckResponseCmd cmd = new FileCheckResponseCmd();
+			cmd.checkId = checkId;
+			cmd.paths = paths;
+			cmd.present = present;
+			cmd.basis = basis;
+			cmd.write(ctrlRep);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}		
+	}
+
+	synchronized void sendFileSignatureResponse(long sigId, String basisPath, int blockSize, int[] weak, long[] strong) {
+		try {
+			FileSignatureResponseCmd cmd = new FileSignatureResponseCmd();
+			cmd.sigId = sigId;
+			cmd.basisPath = basisPath;
+			cmd.blockSize = blockSize;
+			cmd.weak = weak;
+			cmd.strong = strong;
+			cmd.write(ctrlRep);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}		
+	}
+
+	synchronized void sendPong(long pingId) {
+		try {
+			PongCmd cmd = new PongCmd();
+			cmd.pingId = pingId;
+			cmd.activeFileReceptions = activeFileReceptions;
+			cmd.queuedFileReceptions = pendingFiles.size();
+			cmd.processes = processes.size();
+			cmd.write(ctrlRep);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}		
@@ -350,50 +857,72 @@ public class Tunneller extends TunnellerIO {
 		}
 	}
 	
-	boolean pump(String diag, byte[] buffer, InputStream is, OutputStream os) {
+	/**
+	 * Copies stream until EOF, blocking on read.
+	 */
+	void pump(String diag, InputStream is, OutputStream os) {
+		byte[] buffer = new byte[4 << 10];
 		try {
-			if (eof(is)) {
+			while(true) {
+				int n = is.read(buffer);
+				if (n < 0) {
+					if (diag != null) {
+						diagOut.println("Pump [" + diag + "]: EOF");
+					}
+					break;
+				}
+				os.write(buffer, 0, n);
+				os.flush();
 				if (diag != null) {
-					diagOut.println("Pump [" + diag + "]: EOF");
+					diagOut.println("Pump [" + diag + "]: " + n + " bytes");
 				}
-				close(os);
-				return false;
-			}
-			int n;
-			try {
-				n = is.available();
-			} catch (IOException e) {
-				return false;
-			}
-			if (n == 0) {
-				return false; 
 			}
-			n = is.read(buffer);
-			os.write(buffer, 0, n);
+		} catch (IOException e) {
 			if (diag != null) {
-				diagOut.println("Pump [" + diag + "]: " + n + " bytes");
+				diagOut.println("Pump [" + diag + "]: " + e.toString());
 			}
-			return true;
-		} catch (IOException e) {
-			diagOut.println("Pump failure: " + e.toString());
-			return false;
 		}
 	}
-	
-	boolean eof(InputStream is) {
+
+	Thread startPump(String name, final String diag, final InputStream is, final OutputStream os) {
+		Thread t = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				pump(diag, is, os);
+				close(os);
+			}
+		}, name, THREAD_STACK_SIZE);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	void awaitPump(Thread pump) {
 		try {
-			return is.read(EMPTY_BUFFER) < 0;
-		} catch (IOException e) {
-			return true;
+			pump.join(OUTPUT_DRAIN_TIMEOUT);
+		} catch (InterruptedException e) {
+			// ignore
 		}
 	}
-
+	
 	@Override
     protected synchronized void shutdown() {
         super.shutdown();
         for (ProcessHandler ph: new ArrayList<ProcessHandler>(processes.values())) {
             ph.proc.destroy();
         }
+        if (cacheManager != null) {
+            cacheManager.close();
+        }
+        if (fileServer != null) {
+            try {
+                // ServerSocket is not Closeable on Java 6
+                fileServer.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            fileUploads.shutdownNow();
+        }
     }
 
     private static String transformPath(String path) throws IOException {
@@ -413,82 +942,163 @@ public class Tunneller extends TunnellerIO {
 		}
 	}
 	
+	/**
+	 * Pump which is started by stream's write listener and exits once stream is drained,
+	 * so idle stream costs no thread.
+	 */
+	private class LazyPump implements Runnable {
+		
+		final String name;
+		final String diag;
+		final InputStream is;
+		OutputStream os;
+		boolean cancelled;
+		boolean finished;
+		Thread thread;
+		
+		public LazyPump(String name, String diag, InputStream is) {
+			this.name = name;
+			this.diag = diag;
+			this.is = is;
+		}
+
+		/** Data or EOF is available */
+		@Override
+		public synchronized void run() {
+			startIfReady();
+		}
+
+		public synchronized void attach(OutputStream os) {
+			this.os = os;
+			// data may have been written before process is started
+			startIfReady();
+		}
+
+		/** Closes source, pump would not be started after that */
+		public void cancel() {
+			synchronized(this) {
+				cancelled = true;
+			}
+			close(is);
+		}
+
+		private void startIfReady() {
+			if (os != null && thread == null && !cancelled && !finished && hasInput()) {
+				thread = new Thread(null, new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				}, name, THREAD_STACK_SIZE);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		private boolean hasInput() {
+			try {
+				return is.available() > 0;
+			} catch (IOException e) {
+				// EOF or closed pipe, read would report it
+				return true;
+			}
+		}
+
+		private void drain() {
+			byte[] buffer = new byte[4 << 10];
+			try {
+				while(true) {
+					synchronized(this) {
+						// writer fires listener after data is in the pipe,
+						// so either we see the data or listener sees no thread
+						if (!hasInput()) {
+							thread = null;
+							return;
+						}
+					}
+					int n = is.read(buffer);
+					if (n < 0) {
+						if (diag != null) {
+							diagOut.println("Pump [" + diag + "]: EOF");
+						}
+						break;
+					}
+					os.write(buffer, 0, n);
+					os.flush();
+					if (diag != null) {
+						diagOut.println("Pump [" + diag + "]: " + n + " bytes");
+					}
+				}
+			} catch (IOException e) {
+				if (diag != null) {
+					diagOut.println("Pump [" + diag + "]: " + e.toString());
+				}
+			}
+			synchronized(this) {
+				finished = true;
+				thread = null;
+			}
+			close(os);
+		}
+	}
+
 	private class ProcessHandler extends Thread {
 
 		final long procId;
 		final Process proc;
-		final InputStream stdIn;
+		final CacheManager.Hold cacheHold;
+		final LazyPump stdIn;
 		final OutputStream stdOut;
 		final OutputStream stdErr;
 		
-		public ProcessHandler(long procId, Process process, InputStream stdIn,	OutputStream stdOut, OutputStream stdErr) {
+		public ProcessHandler(long procId, Process process, CacheManager.Hold cacheHold, LazyPump stdIn, OutputStream stdOut, OutputStream stdErr) {
+			super(null, null, "PROC[" + procId + "]", THREAD_STACK_SIZE);
 			this.procId = procId;
 			this.proc = process;
+			this.cacheHold = cacheHold;
 			this.stdIn = stdIn;
 			this.stdOut = stdOut;
 			this.stdErr = stdErr;
 			setDaemon(true);
-			setName("PROC[" + procId + "]");
 			processes.put(procId, this);
 		}
 		
 		@Override
 		public void run() {
-		    // reuse data copy buffer
-		    byte[] buffer = new byte[4 << 10];
 			try {
-				String dStdIn = traceProcIO ? "stdIn@" + procId : null;
 				String dStdOut = traceProcIO ? "stdOut@" + procId : null;
 				String dStdErr = traceProcIO ? "stdErr@" + procId : null;
+				stdIn.attach(proc.getOutputStream());
+				Thread out = startPump("PROC[" + procId + "].stdOut", dStdOut, proc.getInputStream(), stdOut);
+				Thread err = startPump("PROC[" + procId + "].stdErr", dStdErr, proc.getErrorStream(), stdErr);
+				int ec;
 				while(true) {
-					if (	pump(dStdIn, buffer, stdIn, proc.getOutputStream()) 
-						  | pump(dStdOut, buffer, proc.getInputStream(), stdOut)
-						  | pump(dStdErr, buffer, proc.getErrorStream(), stdErr)) {
-						// TODO separate IN/OUT
-						try {
-							proc.getOutputStream().flush();
-						} catch (IOException e) {
-							// Ignore
-						}
-						writePending();
-						continue;
-					}
-					else {
-						try {
-							int ec = proc.exitValue();
-							try {
-								// give a chance for streams to catch up
-								Thread.sleep(50);
-							} catch (InterruptedException e) {
-								// ignore
-							}; 
-							pump(dStdOut, buffer, proc.getInputStream(), stdOut);
-							pump(dStdErr, buffer, proc.getErrorStream(), stdErr);
-							
-							close(stdOut);
-							close(stdErr);
-							
-							proc.destroy();
-							
-							sendExitCode(procId, ec);
-							if (traceExitCode) {
-								diagOut.println("Process [" + procId + "] exit code: " + ec);
-							}
-							break;
-						}
-						catch(IllegalThreadStateException e) {
-							try {
-								sleep(50);
-							} catch (InterruptedException ee) {
-								// ignore;
-							}
-							continue;
-						}
+					try {
+						ec = proc.waitFor();
+						break;
+					} catch (InterruptedException e) {
+						// ignore
 					}
 				}
+				// give a chance for streams to catch up, 
+				// pipes could be held open by process children
+				awaitPump(out);
+				awaitPump(err);
+				
+				stdIn.cancel();
+				close(stdOut);
+				close(stdErr);
+				
+				proc.destroy();
+				
+				sendExitCode(procId, ec);
+				if (traceExitCode) {
+					diagOut.println("Process [" + procId + "] exit code: " + ec);
+				}
 			}
 			finally {
 				processes.remove(procId);
+				releaseCached(cacheHold);
 			}
 		}
 	}
@@ -512,7 +1122,6 @@ public class Tunneller extends TunnellerIO {
 		
 		@Override
 		public void run() {
-		    byte[] buffer = new byte[4 << 10];
 			InputStream soIn;
 			OutputStream soOut;
 			String rhost;
@@ -535,64 +1144,103 @@ public class Tunneller extends TunnellerIO {
 			sendAccepted(cmdId, rhost, rport);
 			setName("CONNECTION[" + sock.getRemoteSocketAddress() + "]");
 
-			
-			while(sock.isConnected() && !sock.isClosed()) {
-				if (	pump(null, buffer, soIn, os)
-					 || pump(null, buffer, is, soOut)) {
-					writePending();
-					continue;
-				}
-				else {
+			final Socket so = sock;
+			final OutputStream sout = soOut;
+			new Thread(getName() + ".out") {
+				{ setDaemon(true); }
+				
+				@Override
+				public void run() {
+					pump(null, is, sout);
 					try {
-						sleep(50);
-					} catch (InterruptedException e) {
+						so.shutdownOutput();
+					} catch (IOException e) {
+						// ignore
 					}
 				}
-			}
-			close(is); // TODO control side should close input
+			}.start();
+			
+			pump(null, soIn, os);
 			close(os);
-			writePending();
+			close(sock);
+			close(is); // TODO control side should close input
 		}				
 	}
 
+	/**
+	 * Content is streamed to temporary file in target directory, size and hash
+	 * are verified (if known) before file is renamed to target name.
+	 * So interrupted transfer never leaves truncated file in cache.
+	 */
 	private class FileWriter extends Thread {
-		
-		final long fileId;
+
+		final FilePushCmd cmd;
 		final File targetFile;
 		final File tempFile;
 		final FileOutputStream fos;
+		final MessageDigest digest;
 		InputStream in;
-		
-		
-		public FileWriter(long fileId, String path) throws IOException {
-			this.fileId = fileId;
-			targetFile = new File(path);
+
+		public FileWriter(FilePushCmd cmd) throws IOException {
+			super(null, null, "FILE[" + cmd.targetPath + "]", THREAD_STACK_SIZE);
+			this.cmd = cmd;
+			targetFile = new File(cmd.targetPath);
 			if (targetFile.getParentFile() != null) {
 				targetFile.getParentFile().mkdirs();
 			}
-			
+			// only SHA-1 hashes could be verified
+			digest = cmd.hash.length() == 40 ? sha1() : null;
+
 			tempFile = File.createTempFile(targetFile.getName() + ".", "", targetFile.getParentFile());
 			fos = new FileOutputStream(tempFile);
-			
+
 			setDaemon(true);
-			setName("FILE[" + path + "]");
 		}
-		
+
 		@Override
 		public void run() {
-			byte[] buffer = new byte[8 << 10];
+			byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
 			try {
-				while(true) {
-					int n = in.read(buffer);
-					if (n < 0) {
-						break;
+				if (cmd instanceof FileFetchCmd) {
+					in = openPeer((FileFetchCmd) cmd);
+				}
+				// pipe returns data up to its wrap point, so writes are coalesced
+				OutputStream os = new BufferedOutputStream(fos, RECEIVE_BUFFER_SIZE);
+				if (digest != null) {
+					os = new DigestOutputStream(os, digest);
+				}
+				long size = 0;
+				if (cmd instanceof FileDeltaCmd) {
+					FileDeltaCmd delta = (FileDeltaCmd) cmd;
+					try {
+						size = FileDelta.apply(in, new File(delta.basisPath), delta.blockSize, os);
 					}
-					else {
-						fos.write(buffer, 0, n);
+					finally {
+						// sender should not be left blocked if reconstruction fails
+						while(in.read(buffer) >= 0) {
+						}
 					}
 				}
-				close(fos);
+				else {
+					while(true) {
+						int n = in.read(buffer);
+						if (n < 0) {
+							break;
+						}
+						else {
+							os.write(buffer, 0, n);
+							size += n;
+						}
+					}
+				}
+				os.close();
 				close(in);
+				if (cmd.size >= 0 && cmd.size != size) {
+					throw new IOException("Incomplete transfer, " + size + " bytes of " + cmd.size + " received");
+				}
+				if (digest != null && !cmd.hash.equalsIgnoreCase(toHex(digest.digest()))) {
+					throw new IOException("Hash mismatch, file is corrupted in transfer");
+				}
 				if (!targetFile.exists()) {
 					tempFile.renameTo(targetFile);
 				}
@@ -602,15 +1250,116 @@ public class Tunneller extends TunnellerIO {
 			} catch (IOException e) {
 				close(fos);
 				close(in);
-				completeFileReception(fileId, targetFile.getPath(), -1, e.toString());
+				tempFile.delete();
+				completeFileReception(cmd.fileId, targetFile.getPath(), -1, e.toString());
 				return;
 			}
 			if (targetFile.exists() && !targetFile.isDirectory()) {
-			    completeFileReception(fileId, targetFile.getPath(), targetFile.length(), "");
+			    touchCached(Collections.singletonList(targetFile));
+			    scheduleEviction();
+			    completeFileReception(cmd.fileId, targetFile.getPath(), targetFile.length(), "");
 			}
 			else {
-			    completeFileReception(fileId, targetFile.getPath(), -1, "Failed to rename target file");
+			    completeFileReception(cmd.fileId, targetFile.getPath(), -1, "Failed to rename target file");
 			}
-		}				
+		}
+
+		private InputStream openPeer(FileFetchCmd fetch) throws IOException {
+			Socket sock = new Socket();
+			try {
+				sock.connect(new InetSocketAddress(fetch.peerHost, fetch.peerPort), PEER_CONNECT_TIMEOUT);
+				sock.setSoTimeout(PEER_READ_TIMEOUT);
+				DataOutputStream dos = new DataOutputStream(sock.getOutputStream());
+				dos.writeLong(fetch.token);
+				dos.flush();
+				sock.shutdownOutput();
+				return sock.getInputStream();
+			}
+			catch(IOException e) {
+				close(sock);
+				throw new IOException("Failed to fetch from " + fetch.peerHost + ":" + fetch.peerPort + " - " + e.toString());
+			}
+		}
 	}	
+
+	private static class ServedFile {
+
+		final File file;
+		final long expires;
+
+		public ServedFile(File file, long expires) {
+			this.file = file;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Serves cached files to peer agents. Peer sends token obtained via
+	 * master and receives file content, connection is closed after transfer.
+	 */
+	private class FileServer extends Thread {
+
+		final ServerSocket socket;
+
+		public FileServer(ServerSocket socket) {
+			super(null, null, "FILE-SERVER[" + socket.getLocalPort() + "]", THREAD_STACK_SIZE);
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				final Socket sock;
+				try {
+					sock = socket.accept();
+				} catch (IOException e) {
+					// server socket is closed on shutdown
+					return;
+				}
+				try {
+					fileUploads.execute(new Runnable() {
+						@Override
+						public void run() {
+							serve(sock);
+						}
+					});
+				}
+				catch(RejectedExecutionException e) {
+					diagOut.println("Too many peer connections, " + sock.getRemoteSocketAddress() + " is rejected");
+					close(sock);
+				}
+			}
+		}
+
+		private void serve(Socket sock) {
+			try {
+				sock.setSoTimeout(PEER_READ_TIMEOUT);
+				long token = new DataInputStream(sock.getInputStream()).readLong();
+				File file = takeServedFile(token);
+				if (file == null) {
+					diagOut.println("Unknown file token from " + sock.getRemoteSocketAddress());
+					return;
+				}
+				OutputStream os = sock.getOutputStream();
+				FileInputStream fis = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+					int n;
+					while((n = fis.read(buffer)) >= 0) {
+						os.write(buffer, 0, n);
+					}
+					os.flush();
+				}
+				finally {
+					fis.close();
+				}
+			} catch (IOException e) {
+				diagOut.println("File upload to " + sock.getRemoteSocketAddress() + " failed: " + e.toString());
+			}
+			finally {
+				close(sock);
+			}
+		}
+	}
 }
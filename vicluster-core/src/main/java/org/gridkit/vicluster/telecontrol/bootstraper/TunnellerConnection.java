@@ -22,13 +22,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.gridkit.util.concurrent.FutureBox;
+import org.gridkit.util.concurrent.FutureEx;
 
 public class TunnellerConnection extends TunnellerIO {
 
@@ -41,6 +44,10 @@ public class TunnellerConnection extends TunnellerIO {
 	private long nextSocket = 0;
 	private long nextAccept = 0;
 	private long nextFile = 0;
+	private long nextCheck = 0;
+	private long nextSignature = 0;
+	private long nextPing = 0;
+	private long nextServe = 0;
 	
 	private DataOutputStream ctrlReq;
 	private DataInputStream ctrlRep;
@@ -49,16 +56,37 @@ public class TunnellerConnection extends TunnellerIO {
 	private Map<Long, SocketContext> socks = new HashMap<Long, SocketContext>();
 	private Map<Long, AcceptContext> accepts = new HashMap<Long, AcceptContext>();
 	private Map<Long, FileContext> files = new HashMap<Long, FileContext>();
+	private Map<Long, FileCheckHandler> checks = new HashMap<Long, FileCheckHandler>();
+	private Map<Long, SignatureHandler> signatures = new HashMap<Long, SignatureHandler>();
+	private Map<Long, PingContext> pings = new HashMap<Long, PingContext>();
+	private Map<Long, ServeHandler> serves = new HashMap<Long, ServeHandler>();
+	
+	// guarded by this
+	private long lastRoundTrip = -1;
+	private long totalRoundTrip;
+	private long roundTripCount;
+	private PongCmd lastPong;
+	private long lastPongTimestamp = -1;
 	
 	private FutureBox<Void> magicReceived = new FutureBox<Void>();
 	private boolean terminated;
 	
 	public TunnellerConnection(String name, InputStream is, OutputStream os, PrintStream diagOut, long connTimeout, TimeUnit tu) throws IOException, InterruptedException, TimeoutException {
+		this(name, is, os, diagOut, false, connTimeout, tu);
+	}
+
+	/**
+	 * @param compression offer frame compression in handshake, it is used if agent accepts it
+	 */
+	public TunnellerConnection(String name, InputStream is, OutputStream os, PrintStream diagOut, boolean compression, long connTimeout, TimeUnit tu) throws IOException, InterruptedException, TimeoutException {
 		super(":" + name, diagOut);
 		
 		embededMode = true;
+		features = compression ? FEATURE_COMPRESSION : 0;
 		
-		Channel rq = new Channel(CTRL_REQ, Direction.OUTBOUND, 4 << 10);
+		Channel rq = new Channel(CTRL_REQ, Direction.OUTBOUND, 4 << 10, CONTROL_WEIGHT);
+		// control messages are small, latency is more important
+		rq.compress = false;
 		Channel rp = new Channel(CTRL_REP, Direction.INBOUND, 4 << 10);
 		
 		addChannel(rq);
@@ -73,7 +101,8 @@ public class TunnellerConnection extends TunnellerIO {
 		inbound = new InboundDemux(is) {
 			public void run() {
 				try {
-					readMagic(in);
+					int peerFeatures = readHandshake(in);
+					compressFrames = (features & peerFeatures & FEATURE_COMPRESSION) != 0;
 					magicReceived.setData(null);
 				}
 				catch(Exception e) {
@@ -114,21 +143,190 @@ public class TunnellerConnection extends TunnellerIO {
 		return sockId;
 	}
 
-	public synchronized void pushFile(String path, FileHandler handler) throws IOException {
+	public void pushFile(String path, FileHandler handler) throws IOException {
+		pushFile(path, -1, "", handler);
+	}
+
+	/**
+	 * File is written to temporary file and renamed only if its size (and hash if provided) match.
+	 * @param size expected size or -1
+	 * @param hash SHA-1 of content to be verified on remote side, empty string to skip verification 
+	 */
+	public synchronized void pushFile(String path, long size, String hash, FileHandler handler) throws IOException {
+		long fileId = nextFile++;
+		FileContext ctx = new FileContext();
+		ctx.chanId = newChannelId();
+		ctx.compress = !isPacked(path);
+		ctx.handler = handler;
+		files.put(fileId, ctx);
+		try {
+			sendPush(fileId, path, ctx.chanId, size, hash);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+	
+	/**
+	 * Checks presence of number of files in single round trip.
+	 * Files not matching expected size (or hash if verification is enabled) are removed on remote side.
+	 */
+	public synchronized void checkFiles(String[] paths, long[] sizes, String[] hashes, boolean verifyHash, FileCheckHandler handler) throws IOException {
+		long checkId = nextCheck++;
+		checks.put(checkId, handler);
+		try {
+			FileCheckCmd cmd = new FileCheckCmd();
+			cmd.checkId = checkId;
+			cmd.verifyHash = verifyHash;
+			cmd.paths = paths;
+			cmd.sizes = sizes;
+			cmd.hashes = hashes;
+			cmd.write(ctrlReq);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+	
+	/**
+	 * Requests signature of an older version of remote file to be used as delta basis.
+	 */
+	public synchronized void requestSignature(String path, SignatureHandler handler) throws IOException {
+		long sigId = nextSignature++;
+		signatures.put(sigId, handler);
+		try {
+			FileSignatureCmd cmd = new FileSignatureCmd();
+			cmd.sigId = sigId;
+			cmd.path = path;
+			cmd.write(ctrlReq);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+
+	/**
+	 * Same as {@link #pushFile(String, FileHandler)}, but stream passed to handler
+	 * expects {@link FileDelta} encoded against signature of basis file.
+	 * @param size size of resulting file or -1
+	 * @param hash SHA-1 of resulting file to be verified on remote side, empty string to skip verification 
+	 */
+	public synchronized void pushDelta(String path, String basisPath, int blockSize, long size, String hash, FileHandler handler) throws IOException {
 		long fileId = nextFile++;
 		FileContext ctx = new FileContext();
 		ctx.chanId = newChannelId();
+		ctx.compress = !isPacked(path);
+		ctx.handler = handler;
+		files.put(fileId, ctx);
+		try {
+			FileDeltaCmd cmd = new FileDeltaCmd();
+			cmd.fileId = fileId;
+			cmd.path = path;
+			cmd.inId = ctx.chanId;
+			cmd.basisPath = basisPath;
+			cmd.blockSize = blockSize;
+			cmd.size = size;
+			cmd.hash = hash;
+			cmd.write(ctrlReq);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+	
+	/**
+	 * Same as {@link #pushFile(String, long, String, FileHandler)}, but agent downloads content
+	 * directly from peer agent, which was prepared via {@link #serveFile(String, long, ServeHandler)}.
+	 * Handler is not notified about acceptance, only about completion.
+	 */
+	public synchronized void fetchFile(String path, long size, String hash, String peerHost, int peerPort, long token, FileHandler handler) throws IOException {
+		long fileId = nextFile++;
+		FileContext ctx = new FileContext();
+		ctx.chanId = -1;
 		ctx.handler = handler;
 		files.put(fileId, ctx);
 		try {
-			sendPush(fileId, path, ctx.chanId);
+			FileFetchCmd cmd = new FileFetchCmd();
+			cmd.fileId = fileId;
+			cmd.path = path;
+			cmd.inId = -1;
+			cmd.size = size;
+			cmd.hash = hash;
+			cmd.peerHost = peerHost;
+			cmd.peerPort = peerPort;
+			cmd.token = token;
+			cmd.write(ctrlReq);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+
+	/**
+	 * Requests agent to serve cached file to a peer agent.
+	 * Handler receives port of agent's file server and one time token for {@link #fetchFile(String, long, String, String, int, long, FileHandler)}.
+	 */
+	public synchronized void serveFile(String path, long size, ServeHandler handler) throws IOException {
+		long serveId = nextServe++;
+		serves.put(serveId, handler);
+		try {
+			FileServeCmd cmd = new FileServeCmd();
+			cmd.serveId = serveId;
+			cmd.path = path;
+			cmd.size = size;
+			cmd.write(ctrlReq);
+		} catch (IOException e) {
+			shutdown();
+			throw new IOException("Broken tunnel");
+		}
+	}
+
+	/**
+	 * Sends no-op command to agent, future returns round trip time in nanoseconds.
+	 * Reply also carries agent side counters reported by {@link #getMetrics()}.
+	 */
+	public synchronized FutureEx<Long> ping() throws IOException {
+		long pingId = nextPing++;
+		PingContext ctx = new PingContext();
+		ctx.sent = System.nanoTime();
+		pings.put(pingId, ctx);
+		try {
+			PingCmd cmd = new PingCmd();
+			cmd.pingId = pingId;
+			cmd.write(ctrlReq);
 		} catch (IOException e) {
 			shutdown();
 			throw new IOException("Broken tunnel");
 		}
+		return ctx.box;
+	}
+
+	public TunnelMetrics getMetrics() {
+		TunnelMetrics metrics = new TunnelMetrics();
+		collectMetrics(metrics);
+		synchronized(this) {
+			metrics.pendingFilePushes = files.size();
+			metrics.activeProcesses = execs.size();
+			if (lastPong != null) {
+				metrics.remoteActiveFileReceptions = lastPong.activeFileReceptions;
+				metrics.remoteQueuedFileReceptions = lastPong.queuedFileReceptions;
+				metrics.remoteProcesses = lastPong.processes;
+				metrics.remoteTimestamp = lastPongTimestamp;
+			}
+			metrics.lastRoundTripNanos = lastRoundTrip;
+			metrics.roundTripCount = roundTripCount;
+			if (roundTripCount > 0) {
+				metrics.averageRoundTripNanos = totalRoundTrip / roundTripCount;
+			}
+		}
+		return metrics;
 	}
 	
 	public synchronized long exec(String wd, String[] cmd, Map<String, String> env, ExecHandler handler) throws IOException {
+		if (wd == null) {
+			// checked before anything is written, half written command would break control stream
+			throw new NullPointerException("Working directory is required");
+		}
 		long procId = nextProc++;
 		ExecContext ctx = new ExecContext();
 		ctx.procId = procId;
@@ -138,7 +336,7 @@ public class TunnellerConnection extends TunnellerIO {
 		long stdOut = newChannelId();
 		long stdErr = newChannelId();
 		
-		ctx.stdIn = newOutbound(stdIn);
+		ctx.stdIn = newOutbound(stdIn, BULK_WEIGHT);
 		ctx.stdOut = newInbound(stdOut);
 		ctx.stdErr = newInbound(stdErr);
 		
@@ -182,6 +380,40 @@ public class TunnellerConnection extends TunnellerIO {
 		join(inbound);
 		join(outbound);
 		join(control);
+		
+		List<FileCheckHandler> pending;
+		List<SignatureHandler> pendingSignatures;
+		List<PingContext> pendingPings;
+		List<ServeHandler> pendingServes;
+		List<FileContext> pendingFiles;
+		synchronized(this) {
+			pendingServes = new ArrayList<ServeHandler>(serves.values());
+			serves.clear();
+			pendingFiles = new ArrayList<FileContext>(files.values());
+			files.clear();
+			pendingPings = new ArrayList<PingContext>(pings.values());
+			pings.clear();
+			pending = new ArrayList<FileCheckHandler>(checks.values());
+			checks.clear();
+			pendingSignatures = new ArrayList<SignatureHandler>(signatures.values());
+			signatures.clear();
+		}
+		for(FileCheckHandler handler: pending) {
+			handler.failed("Broken tunnel");
+		}
+		for(SignatureHandler handler: pendingSignatures) {
+			handler.failed("Broken tunnel");
+		}
+		for(PingContext ctx: pendingPings) {
+			ctx.box.setErrorIfWaiting(new IOException("Broken tunnel"));
+		}
+		for(ServeHandler handler: pendingServes) {
+			handler.failed("Broken tunnel");
+		}
+		// pending transfers may hold slots of peer distribution
+		for(FileContext ctx: pendingFiles) {
+			ctx.handler.failed(ctx.rpath, "Broken tunnel");
+		}
 	}
 	
 	private void close(Closeable c) {
@@ -214,7 +446,7 @@ public class TunnellerConnection extends TunnellerIO {
 		long inId = newChannelId();
 		long outId = newChannelId();
 		ac.soIn = newInbound(inId);
-		ac.soOut = newOutbound(outId);
+		ac.soOut = newOutbound(outId, NORMAL_WEIGHT);
 		
 		accepts.put(ac.cmdId, ac);
 		
@@ -251,11 +483,13 @@ public class TunnellerConnection extends TunnellerIO {
 		cmd.write(ctrlReq);
 	}
 
-	private synchronized void sendPush(long fileId, String path, long outId) throws IOException {
+	private synchronized void sendPush(long fileId, String path, long outId, long size, String hash) throws IOException {
 		FilePushCmd cmd = new FilePushCmd();
 		cmd.fileId = fileId;
 		cmd.path = path;
 		cmd.inId = outId;
+		cmd.size = size;
+		cmd.hash = hash;
 		
 		cmd.write(ctrlReq);
 	}
@@ -268,15 +502,29 @@ public class TunnellerConnection extends TunnellerIO {
 	}
 
 	private InputStream newInbound(long id) {
-		Channel ch = new Channel(id, Direction.INBOUND, 16 << 10);
+		Channel ch = new Channel(id, Direction.INBOUND, DATA_BUFFER_SIZE);
 		addChannel(ch);
 		return ch.inbound;
 	}
 
-	private OutputStream newOutbound(long id) {
-		Channel ch = new Channel(id, Direction.OUTBOUND, 16 << 10);
+	private OutputStream newOutbound(long id, int weight) {
+		return newOutbound(id, weight, true);
+	}
+
+	private OutputStream newOutbound(long id, int weight, boolean compress) {
+		Channel ch = new Channel(id, Direction.OUTBOUND, DATA_BUFFER_SIZE, weight);
+		ch.compress = compress;
 		addChannel(ch);
-		return new NotifyingOutputStream(ch.outbound);
+		return ch.outbound;
+	}
+
+	/**
+	 * Archives would not shrink, so their frames are not even tried to be compressed.
+	 */
+	private static boolean isPacked(String path) {
+		String name = path.toLowerCase();
+		return name.endsWith(".jar") || name.endsWith(".zip") || name.endsWith(".war") || name.endsWith(".ear")
+			|| name.endsWith(".gz") || name.endsWith(".tgz") || name.endsWith(".bz2") || name.endsWith(".xz");
 	}
 
 
@@ -327,11 +575,18 @@ public class TunnellerConnection extends TunnellerIO {
 		OutputStream soOut;
 	}
 
+	private static class PingContext {
+		
+		long sent;
+		FutureBox<Long> box = new FutureBox<Long>();
+	}
+
 	private static class FileContext {
 
 		String rpath;
 		FileHandler handler;
 		long chanId;
+		boolean compress;
 		OutputStream channel;		
 	}
 	
@@ -353,6 +608,10 @@ public class TunnellerConnection extends TunnellerIO {
 							case BoundCmd.ID: processBound(); break;
 							case AcceptedCmd.ID: processAccepted(); break;
 							case FilePushResponseCmd.ID: processFileResponse(); break;
+							case FileCheckResponseCmd.ID: processFileCheckResponse(); break;
+							case FileSignatureResponseCmd.ID: processSignatureResponse(); break;
+							case PongCmd.ID: processPong(); break;
+							case FileServeResponseCmd.ID: processServeResponse(); break;
 							default:
 								System.out.println("ERROR: Unexpected command: " + cmd);
 								break;
@@ -399,7 +658,7 @@ public class TunnellerConnection extends TunnellerIO {
 					}
 				}
 				ctx.rpath = cmd.path;
-				ctx.channel = newOutbound(ctx.chanId);
+				ctx.channel = newOutbound(ctx.chanId, BULK_WEIGHT, ctx.compress);
 				ctx.handler.accepted(ctx.channel);
 			}
 			else {
@@ -422,6 +681,79 @@ public class TunnellerConnection extends TunnellerIO {
 			}
 		}
 
+		private void processFileCheckResponse() throws IOException {
+			FileCheckResponseCmd cmd = new FileCheckResponseCmd();
+			cmd.read(ctrlRep);
+			
+			FileCheckHandler handler;
+			synchronized(TunnellerConnection.this) {
+				handler = checks.remove(cmd.checkId);
+				if (handler == null) {
+					throw new RuntimeException("Unknown check ID: " + cmd.checkId);
+				}
+			}
+			handler.checked(cmd.paths, cmd.present, cmd.basis);
+		}
+
+		private void processPong() throws IOException {
+			PongCmd cmd = new PongCmd();
+			cmd.read(ctrlRep);
+			
+			PingContext ctx;
+			long rtt;
+			synchronized(TunnellerConnection.this) {
+				ctx = pings.remove(cmd.pingId);
+				if (ctx == null) {
+					throw new RuntimeException("Unknown ping ID: " + cmd.pingId);
+				}
+				rtt = System.nanoTime() - ctx.sent;
+				lastRoundTrip = rtt;
+				totalRoundTrip += rtt;
+				roundTripCount++;
+				lastPong = cmd;
+				lastPongTimestamp = System.currentTimeMillis();
+			}
+			ctx.box.setData(rtt);
+		}
+
+		private void processServeResponse() throws IOException {
+			FileServeResponseCmd cmd = new FileServeResponseCmd();
+			cmd.read(ctrlRep);
+			
+			ServeHandler handler;
+			synchronized(TunnellerConnection.this) {
+				handler = serves.remove(cmd.serveId);
+				if (handler == null) {
+					throw new RuntimeException("Unknown serve ID: " + cmd.serveId);
+				}
+			}
+			if (cmd.error.length() != 0) {
+				handler.failed(cmd.error);
+			}
+			else {
+				handler.serving(cmd.path, cmd.host, cmd.port, cmd.token);
+			}
+		}
+
+		private void processSignatureResponse() throws IOException {
+			FileSignatureResponseCmd cmd = new FileSignatureResponseCmd();
+			cmd.read(ctrlRep);
+			
+			SignatureHandler handler;
+			synchronized(TunnellerConnection.this) {
+				handler = signatures.remove(cmd.sigId);
+				if (handler == null) {
+					throw new RuntimeException("Unknown signature ID: " + cmd.sigId);
+				}
+			}
+			if (cmd.basisPath.length() == 0) {
+				handler.signature(null, null);
+			}
+			else {
+				handler.signature(cmd.basisPath, new FileDelta.Signature(cmd.blockSize, cmd.weak, cmd.strong));
+			}
+		}
+
 		private void processBound() throws IOException {
 			BoundCmd cmd = new BoundCmd();
 			cmd.read(ctrlRep);
@@ -490,6 +822,43 @@ public class TunnellerConnection extends TunnellerIO {
 		
 	}
 
+	public interface FileCheckHandler {
+		
+		/**
+		 * @param paths resolved remote paths
+		 * @param present <code>false</code> for files which are missing (or were corrupted and removed)
+		 * @param basis <code>true</code> for missing files having an older version in remote cache, see {@link #requestSignature(String, SignatureHandler)}
+		 */
+		public void checked(String[] paths, boolean[] present, boolean[] basis);
+		
+		public void failed(String error);
+		
+	}
+
+	public interface SignatureHandler {
+		
+		/**
+		 * @param basisPath remote path of basis file or <code>null</code> if there is no basis
+		 */
+		public void signature(String basisPath, FileDelta.Signature signature);
+		
+		public void failed(String error);
+		
+	}
+
+	public interface ServeHandler {
+		
+		/**
+		 * @param host address agent advertises to peers, empty string if agent does not know it
+		 * @param port port of agent's file server
+		 * @param token one time token to be passed to peer, it expires if not used in a minute
+		 */
+		public void serving(String path, String host, int port, long token);
+		
+		public void failed(String error);
+		
+	}
+
 	public interface SocketHandler {
 		
 		public void bound(String host, int port);
@@ -506,41 +875,4 @@ public class TunnellerConnection extends TunnellerIO {
 		public void close() throws IOException;
 
 	}
-	
-	private class NotifyingOutputStream extends OutputStream {
-		
-		private final OutputStream delegate;
-
-		public NotifyingOutputStream(OutputStream delegate) {
-			this.delegate = delegate;
-		}
-
-		public void write(int b) throws IOException {
-			delegate.write(b);
-			writePending();
-		}
-
-		public void write(byte[] b) throws IOException {
-			delegate.write(b);
-			writePending();
-		}
-
-		public void write(byte[] b, int off, int len) throws IOException {
-			delegate.write(b, off, len);
-			writePending();
-		}
-
-		public void flush() throws IOException {
-			delegate.flush();
-		}
-
-		public void close() throws IOException {
-			delegate.close();
-			writePending();
-		}
-
-		public String toString() {
-			return delegate.toString();
-		}
-	}
 }
@@ -15,29 +15,79 @@
  */
 package org.gridkit.vicluster.telecontrol.bootstraper;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.PriorityQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 class TunnellerIO {
 
 	protected static final byte[] MAGIC = "START TUNNEL".getBytes();
 	
+	/** Handshake feature bit, frames of data channels are prefixed with encoding byte */
+	protected static final int FEATURE_COMPRESSION = 1;
+
+	/**
+	 * Error reported by {@link FileServeCmd} if agent has no such file.
+	 */
+	public static final String FILE_NOT_AVAILABLE = "File is not available";
+	/** Frame payload encodings, used if compression is negotiated */
+	static final int ENC_RAW = 0;
+	static final int ENC_DEFLATE = 1;
+	/** Smaller frames are not worth compressing (every frame is deflated independently) */
+	static final int MIN_COMPRESS = 128;
+	
 	protected static final long CTRL_REQ = -1;
 	protected static final long CTRL_REP = -2;
 
+	/** Channel id (long) and payload length (unsigned short), payload is padded to 8 bytes */
+	static final int FRAME_HEADER = 10;
+	/** Frames start small to keep latency of interactive traffic low */
+	static final int MIN_FRAME = 1 << 10;
+	/** Largest aligned payload length fitting into unsigned short */
+	static final int MAX_FRAME = (64 << 10) - 8;
+	/** Pseudo channel carrying credit updates (channel id and credit increment) */
+	static final long CREDIT_CHANNEL = -3;
+	static final int CREDIT_FRAME = 16;
+	/** Each channel may send this much before first credit update, should fit smallest pipe */
+	static final int INITIAL_WINDOW = (4 << 10) - 1;
+
+	/** Scheduling weights, channel with higher weight gets proportionally more bandwidth */
+	protected static final int BULK_WEIGHT = 1;
+	protected static final int NORMAL_WEIGHT = 4;
+	protected static final int CONTROL_WEIGHT = 16;
+	
+	/** Credit updates first, then least served channel */
+	private static final Comparator<Channel> SCHEDULE_ORDER = new Comparator<Channel>() {
+		@Override
+		public int compare(Channel a, Channel b) {
+			if (a.direction != b.direction) {
+				return a.direction == Direction.INBOUND ? -1 : 1;
+			}
+			if (a.virtualTime != b.virtualTime) {
+				return a.virtualTime < b.virtualTime ? -1 : 1;
+			}
+			return a.readySeq < b.readySeq ? -1 : (a.readySeq == b.readySeq ? 0 : 1);
+		}
+	};
+
+	/** Buffer for bulk data channels, large enough to accumulate full frame while previous one is being sent */
+	protected static final int DATA_BUFFER_SIZE = 2 * (64 << 10);
+
 	private static final int CMD_EXEC = 1;
 	private static final int CMD_STARTED = 2;
 	private static final int CMD_KILL = 3;
@@ -48,6 +98,16 @@ class TunnellerIO {
 	private static final int CMD_ACCEPTED = 8;
 	private static final int CMD_FILE_PUSH = 9;
 	private static final int CMD_FILE_PUSH_RESPONSE = 10;
+	private static final int CMD_FILE_CHECK = 11;
+	private static final int CMD_FILE_CHECK_RESPONSE = 12;
+	private static final int CMD_FILE_SIGNATURE = 13;
+	private static final int CMD_FILE_SIGNATURE_RESPONSE = 14;
+	private static final int CMD_FILE_DELTA = 15;
+	private static final int CMD_PING = 16;
+	private static final int CMD_PONG = 17;
+	private static final int CMD_FILE_FETCH = 18;
+	private static final int CMD_FILE_SERVE = 19;
+	private static final int CMD_FILE_SERVE_RESPONSE = 20;
 	
 	enum Direction {INBOUND, OUTBOUND}
 
@@ -231,18 +291,28 @@ class TunnellerIO {
 		String path;
 		transient String targetPath; // used in queue on tunneler side
 		long inId;
+		long size = -1; // expected size, -1 if unknown
+		String hash = ""; // SHA-1 of file, verified if not empty
 		
 		public void read(DataInputStream dis) throws IOException {
 			fileId = dis.readLong();
 			path = dis.readUTF();
 			inId = dis.readLong();
+			size = dis.readLong();
+			hash = dis.readUTF();
 		}
 		
 		public void write(DataOutputStream dos) throws IOException {
 			dos.writeInt(ID);
+			writeFields(dos);
+		}
+
+		protected void writeFields(DataOutputStream dos) throws IOException {
 			dos.writeLong(fileId);
 			dos.writeUTF(path);
 			dos.writeLong(inId);
+			dos.writeLong(size);
+			dos.writeUTF(hash);
 		}
 	}
 
@@ -271,6 +341,300 @@ class TunnellerIO {
 		}
 	}
 
+	/**
+	 * Batch check of cached files. Files with wrong size 
+	 * (or hash if verification is requested) are removed.
+	 */
+	static class FileCheckCmd {
+		
+		static final int ID = CMD_FILE_CHECK;
+		
+		long checkId;
+		boolean verifyHash;
+		String[] paths;
+		long[] sizes;
+		String[] hashes;
+		
+		public void read(DataInputStream dis) throws IOException {
+			checkId = dis.readLong();
+			verifyHash = dis.readBoolean();
+			int n = dis.readInt();
+			paths = new String[n];
+			sizes = new long[n];
+			hashes = new String[n];
+			for(int i = 0; i != n; ++i) {
+				paths[i] = dis.readUTF();
+				sizes[i] = dis.readLong();
+				hashes[i] = dis.readUTF();
+			}
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(checkId);
+			dos.writeBoolean(verifyHash);
+			dos.writeInt(paths.length);
+			for(int i = 0; i != paths.length; ++i) {
+				dos.writeUTF(paths[i]);
+				dos.writeLong(sizes[i]);
+				dos.writeUTF(hashes[i]);
+			}
+		}
+	}
+
+	/**
+	 * For missing files, also tells whether an older version is available as delta basis.
+	 */
+	static class FileCheckResponseCmd {
+		
+		static final int ID = CMD_FILE_CHECK_RESPONSE;
+		
+		long checkId;
+		String[] paths;
+		boolean[] present;
+		boolean[] basis;
+		
+		public void read(DataInputStream dis) throws IOException {
+			checkId = dis.readLong();
+			int n = dis.readInt();
+			paths = new String[n];
+			present = new boolean[n];
+			basis = new boolean[n];
+			for(int i = 0; i != n; ++i) {
+				paths[i] = dis.readUTF();
+				present[i] = dis.readBoolean();
+				basis[i] = dis.readBoolean();
+			}
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(checkId);
+			dos.writeInt(paths.length);
+			for(int i = 0; i != paths.length; ++i) {
+				dos.writeUTF(paths[i]);
+				dos.writeBoolean(present[i]);
+				dos.writeBoolean(basis[i]);
+			}
+		}
+	}
+
+	/**
+	 * Requests block signature of a basis for delta transfer.
+	 * Basis is most recent file with same name in sibling directory
+	 * of target's parent (i.e. older version in same cache).
+	 */
+	static class FileSignatureCmd {
+		
+		static final int ID = CMD_FILE_SIGNATURE;
+		
+		long sigId;
+		String path;
+		
+		public void read(DataInputStream dis) throws IOException {
+			sigId = dis.readLong();
+			path = dis.readUTF();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(sigId);
+			dos.writeUTF(path);
+		}
+	}
+
+	static class FileSignatureResponseCmd {
+		
+		static final int ID = CMD_FILE_SIGNATURE_RESPONSE;
+		
+		long sigId;
+		String basisPath; // empty if there is no basis
+		int blockSize;
+		int[] weak;
+		long[] strong;
+		
+		public void read(DataInputStream dis) throws IOException {
+			sigId = dis.readLong();
+			basisPath = dis.readUTF();
+			blockSize = dis.readInt();
+			int n = dis.readInt();
+			weak = new int[n];
+			strong = new long[n];
+			for(int i = 0; i != n; ++i) {
+				weak[i] = dis.readInt();
+				strong[i] = dis.readLong();
+			}
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(sigId);
+			dos.writeUTF(basisPath);
+			dos.writeInt(blockSize);
+			dos.writeInt(weak.length);
+			for(int i = 0; i != weak.length; ++i) {
+				dos.writeInt(weak[i]);
+				dos.writeLong(strong[i]);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link FilePushCmd}, but channel carries {@link FileDelta} against basis file.
+	 * Response is {@link FilePushResponseCmd}.
+	 */
+	static class FileDeltaCmd extends FilePushCmd {
+		
+		static final int ID = CMD_FILE_DELTA;
+		
+		String basisPath;
+		int blockSize;
+		
+		public void read(DataInputStream dis) throws IOException {
+			super.read(dis);
+			basisPath = dis.readUTF();
+			blockSize = dis.readInt();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			writeFields(dos);
+			dos.writeUTF(basisPath);
+			dos.writeInt(blockSize);
+		}
+	}
+
+	/**
+	 * Same as {@link FilePushCmd}, but content is downloaded by agent directly
+	 * from other agent serving the file (see {@link FileServeCmd}).
+	 * Response is {@link FilePushResponseCmd}, there is no accept notification.
+	 */
+	static class FileFetchCmd extends FilePushCmd {
+		
+		static final int ID = CMD_FILE_FETCH;
+		
+		String peerHost;
+		int peerPort;
+		long token;
+		
+		public void read(DataInputStream dis) throws IOException {
+			super.read(dis);
+			peerHost = dis.readUTF();
+			peerPort = dis.readInt();
+			token = dis.readLong();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			writeFields(dos);
+			dos.writeUTF(peerHost);
+			dos.writeInt(peerPort);
+			dos.writeLong(token);
+		}
+	}
+
+	/**
+	 * Requests agent to serve cached file to its peers.
+	 * Reply is {@link FileServeResponseCmd} with port of agent's file server
+	 * and one time token, which should be passed to peer via {@link FileFetchCmd}.
+	 */
+	static class FileServeCmd {
+		
+		static final int ID = CMD_FILE_SERVE;
+		
+		long serveId;
+		String path;
+		long size;
+		
+		public void read(DataInputStream dis) throws IOException {
+			serveId = dis.readLong();
+			path = dis.readUTF();
+			size = dis.readLong();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(serveId);
+			dos.writeUTF(path);
+			dos.writeLong(size);
+		}
+	}
+
+	static class FileServeResponseCmd {
+		
+		static final int ID = CMD_FILE_SERVE_RESPONSE;
+		
+		long serveId;
+		String path;
+		String host; // address advertised to peers, empty if unknown
+		int port;
+		long token;
+		String error;
+		
+		public void read(DataInputStream dis) throws IOException {
+			serveId = dis.readLong();
+			path = dis.readUTF();
+			host = dis.readUTF();
+			port = dis.readInt();
+			token = dis.readLong();
+			error = dis.readUTF();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(serveId);
+			dos.writeUTF(path);
+			dos.writeUTF(host);
+			dos.writeInt(port);
+			dos.writeLong(token);
+			dos.writeUTF(error);
+		}
+	}
+
+	/**
+	 * Measures control round trip, agent replies with {@link PongCmd}.
+	 */
+	static class PingCmd {
+		
+		static final int ID = CMD_PING;
+		
+		long pingId;
+		
+		public void read(DataInputStream dis) throws IOException {
+			pingId = dis.readLong();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(pingId);
+		}
+	}
+
+	static class PongCmd {
+		
+		static final int ID = CMD_PONG;
+		
+		long pingId;
+		int activeFileReceptions;
+		int queuedFileReceptions;
+		int processes;
+		
+		public void read(DataInputStream dis) throws IOException {
+			pingId = dis.readLong();
+			activeFileReceptions = dis.readInt();
+			queuedFileReceptions = dis.readInt();
+			processes = dis.readInt();
+		}
+		
+		public void write(DataOutputStream dos) throws IOException {
+			dos.writeInt(ID);
+			dos.writeLong(pingId);
+			dos.writeInt(activeFileReceptions);
+			dos.writeInt(queuedFileReceptions);
+			dos.writeInt(processes);
+		}
+	}
+
 	private static String[] readStringArray(DataInputStream dis) throws IOException {
 		int n = dis.readShort();
 		String[] command = new String[n];
@@ -342,15 +706,47 @@ class TunnellerIO {
 	
 	protected PrintStream diagOut;
 	
+	/** Features this side offers in handshake, should be set before mux is started */
+	protected int features;
+	/** True if both sides have agreed on compression, established by handshake */
+	protected volatile boolean compressFrames;
+	
 	private String threadSuffix;
-	private NavigableMap<Long, Channel> channels = new TreeMap<Long, Channel>();
-	private Semaphore writePending = new Semaphore(0); 
+	private Map<Long, Channel> channels = new HashMap<Long, Channel>();
+	/** Channels with pending data, credit or state change, ordered by {@link #SCHEDULE_ORDER} */
+	private PriorityQueue<Channel> readyQueue = new PriorityQueue<Channel>(16, SCHEDULE_ORDER);
+	/** Virtual time of last served channel, guarded by ready queue */
+	private long virtualTime;
+	private long readySeq;
+	
+	// written by mux and demux threads respectively
+	private volatile long bytesSent;
+	private volatile long framesSent;
+	private volatile long bytesReceived;
+	private volatile long framesReceived;
 
 	protected TunnellerIO(String name, PrintStream diagOut) {
 		this.threadSuffix = name;
 		this.diagOut = diagOut;
 	}
 
+	/**
+	 * Reads handshake of other side.
+	 * @return feature bits offered by peer
+	 */
+	protected int readHandshake(InputStream is) throws IOException {
+		readMagic(is);
+		int peerFeatures = 0;
+		for(int i = 0; i != 4; ++i) {
+			int b = is.read();
+			if (b < 0) {
+				throw new IOException("Failed to read handshake, EOF reached");
+			}
+			peerFeatures = (peerFeatures << 8) | b;
+		}
+		return peerFeatures;
+	}
+
 	protected void readMagic(InputStream is) throws IOException {
 		byte[] data = new byte[MAGIC.length];
 		int n = 0;
@@ -373,11 +769,7 @@ class TunnellerIO {
 		}
 	}
 	
-	protected void writePending() {
-		writePending.release(1);
-	}
-	
-	protected void addChannel(Channel ch) {
+	protected void addChannel(final Channel ch) {
 		synchronized(channels) {
 			if (channels.containsKey(ch.channelId)) {
 				throw new IllegalArgumentException("Channel already exists: " + ch.channelId);
@@ -387,6 +779,92 @@ class TunnellerIO {
 				diagOut.println("Channel open: [" + ch.channelId + "] " + ch.direction);
 			}
 		}
+		Runnable notifier = new Runnable() {
+			@Override
+			public void run() {
+				channelReady(ch);
+			}
+		};
+		if (ch.direction == Direction.OUTBOUND) {
+			ch.pipe.setWriteListener(notifier);
+			// data may have been written before listener was installed
+			channelReady(ch);
+		}
+		else {
+			// consumed data is returned to sender as credit
+			ch.pipe.setReadListener(notifier);
+		}
+	}
+
+	private void channelReady(Channel ch) {
+		synchronized(readyQueue) {
+			if (!ch.queued) {
+				ch.queued = true;
+				// idle channel should not accumulate advantage
+				ch.virtualTime = Math.max(ch.virtualTime, virtualTime);
+				ch.readySeq = readySeq++;
+				readyQueue.add(ch);
+				readyQueue.notify();
+			}
+		}
+	}
+
+	private void charge(Channel ch, int bytes) {
+		synchronized(readyQueue) {
+			boolean requeue = ch.queued && readyQueue.remove(ch);
+			ch.virtualTime += (bytes * (long)CONTROL_WEIGHT) / ch.weight;
+			if (requeue) {
+				readyQueue.add(ch);
+			}
+		}
+	}
+
+	private Channel pollReady() {
+		synchronized(readyQueue) {
+			Channel ch = readyQueue.poll();
+			if (ch != null) {
+				ch.queued = false;
+				virtualTime = Math.max(virtualTime, ch.virtualTime);
+			}
+			return ch;
+		}
+	}
+
+	private Channel takeReady() throws InterruptedException {
+		synchronized(readyQueue) {
+			while(readyQueue.isEmpty()) {
+				readyQueue.wait();
+			}
+			return pollReady();
+		}
+	}
+	
+	/**
+	 * Fills traffic counters and channel states.
+	 */
+	protected void collectMetrics(TunnelMetrics metrics) {
+		metrics.bytesSent = bytesSent;
+		metrics.framesSent = framesSent;
+		metrics.bytesReceived = bytesReceived;
+		metrics.framesReceived = framesReceived;
+		metrics.compression = compressFrames;
+		synchronized(readyQueue) {
+			metrics.readyQueueDepth = readyQueue.size();
+		}
+		synchronized(channels) {
+			for(Channel ch: channels.values()) {
+				TunnelMetrics.ChannelMetrics cm = new TunnelMetrics.ChannelMetrics();
+				cm.channelId = ch.channelId;
+				cm.outbound = ch.direction == Direction.OUTBOUND;
+				cm.weight = ch.weight;
+				cm.bytes = ch.bytes;
+				cm.wireBytes = ch.wireBytes;
+				cm.frames = ch.frames;
+				cm.buffered = ch.pipe.getBuffered();
+				cm.credit = ch.getCredit();
+				metrics.channels.add(cm);
+			}
+		}
 	}
 	
 	protected synchronized void stopChannels() {
@@ -407,10 +885,26 @@ class TunnellerIO {
 	}
 
 
+	/**
+	 * Writes frames for outbound channels and credit updates for inbound ones.
+	 * <br/>
+	 * Channel may send only as much as receiver has granted, so receiving side never
+	 * blocks on a full pipe and slow reader cannot stall other channels of tunnel.
+	 * Ready channels are served in order of virtual time, which advances with bytes
+	 * sent divided by channel weight (credit updates go first). 
+	 * Mux sleeps on ready queue while there is nothing to send.
+	 * <br/>
+	 * If compression is negotiated, data frame payload starts with encoding byte.
+	 * Each frame is deflated independently, so receiver needs no state per channel,
+	 * and channels carrying already compressed data (jars) could just opt out.
+	 * Credit is always accounted in uncompressed bytes, as it protects receiver's pipe.
+	 */
 	protected class OutboundMux extends Thread {
 
 		private DataOutputStream out;
-		private long nextInQueue; 
+		// accessed by mux thread only
+		private Deflater deflater;
+		private byte[] raw;
 		
 		public OutboundMux(OutputStream os) {
 			this.out = new DataOutputStream(os);
@@ -432,53 +926,30 @@ class TunnellerIO {
 			setName("OutboundMux" + threadSuffix);
 			try {
 				out.write(MAGIC);
+				out.writeInt(features);
 				out.flush();
-				byte[] buf = new byte[1024];
+				// frame header and payload are written with single call
+				byte[] frame = new byte[FRAME_HEADER + MAX_FRAME];
 				while(true) {
-					writePending.tryAcquire(100, TimeUnit.MILLISECONDS);
-					writePending.drainPermits();
-					nextInQueue = Long.MIN_VALUE;
-					while(true) {
-						Channel ch = nextWritePending();
-						if (ch == null) {
-							break;
-						}
-						int n;
-						try {
-							n = ch.inbound.read(buf);
-						} catch (IOException e) {
-							// can only happen if channel has been closed
-							throw new InterruptedException("Termination condition detected");
-						}
+					Channel ch = pollReady();
+					if (ch == null) {
 						try {
-							if (n < 0) {
-								if (traceChannelClose) {
-									diagOut.println("Channel closed: [" + ch.channelId + "] " + ch.direction);
-								}
-								synchronized(channels) {
-									channels.remove(ch.channelId);
-								}
-								out.writeLong(ch.channelId);
-								out.writeShort(0); // EOF marker
-								if (traceChannelData) {
-									diagOut.println("Channel send: [" + ch.channelId + "] - EOF");
-								}
-							}
-							else {
-								out.writeLong(ch.channelId);
-								out.writeShort(n);
-								out.write(buf, 0, align(n));
-								if (traceChannelData) {
-									diagOut.println("Channel send: [" + ch.channelId + "] " + n + " bytes");
-								}
-
-							}
+							out.flush();
 						} catch (IOException e) {
 							diagOut.println("Outbound write failed: " + e.toString());
 						}
+						ch = takeReady();
+					}
+					if (ch.eof) {
+						continue;
 					}
 					try {
-						out.flush();
+						if (ch.direction == Direction.INBOUND) {
+							sendCredit(ch, frame);
+						}
+						else {
+							sendData(ch, frame);
+						}
 					} catch (IOException e) {
 						diagOut.println("Outbound write failed: " + e.toString());
 					}
@@ -490,32 +961,176 @@ class TunnellerIO {
 			} catch (IOException e) {
 				diagOut.println("Outbound write failed: " + e.toString());
 				diagOut.println("Outbound mux stopped");
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
 			}
 		}
-		
-		private Channel nextWritePending() {
-			int n = 0;
-			synchronized(channels) {
-				while(n <= channels.size()) {
-					Entry<Long, Channel> ne = channels.ceilingEntry(nextInQueue);
-					if (ne == null) {
-						nextInQueue = Long.MIN_VALUE;
-						continue;
+
+		private void sendData(Channel ch, byte[] frame) throws IOException, InterruptedException {
+			int n;
+			// payload length on the wire
+			int len = 0;
+			try {
+				n = pending(ch);
+				if (n == 0) {
+					// spurious notification, data has been sent already
+					return;
+				}
+				else if (n > 0) {
+					int limit = (int)Math.min(ch.frameSize, ch.getCredit());
+					if (limit == 0) {
+						// credit update would put channel back to queue
+						return;
 					}
-					Channel ch = ne.getValue();
-					nextInQueue = ch.channelId + 1;
-					++n;
-					try {
-						if (ch.direction == Direction.OUTBOUND && ch.inbound.available() > 0) {
-							return ch;
-						}
-					} catch (IOException e) {
-						return ch;
+					if (compressFrames) {
+						// encoding byte should fit into frame
+						n = fillFrame(ch, raw(), 0, Math.min(limit, MAX_FRAME - 1));
+						len = encodeFrame(ch, n, frame);
+					}
+					else {
+						n = fillFrame(ch, frame, FRAME_HEADER, limit);
+						len = n;
+					}
+					ch.consumeCredit(n);
+					int more = pending(ch);
+					if (more < 0 || (more > 0 && ch.getCredit() > 0)) {
+						// more data or EOF, keep channel in queue
+						channelReady(ch);
+					}
+					if (more > 0 && n == ch.frameSize) {
+						// channel is under load, grow frames to reduce overhead
+						ch.frameSize = Math.min(2 * ch.frameSize, MAX_FRAME);
+					}
+					else if (more == 0) {
+						ch.frameSize = MIN_FRAME;
 					}
 				}
+			} catch (IOException e) {
+				// can only happen if channel has been closed
+				throw new InterruptedException("Termination condition detected");
 			}
-			return null;
-		}		
+			if (n < 0) {
+				if (traceChannelClose) {
+					diagOut.println("Channel closed: [" + ch.channelId + "] " + ch.direction);
+				}
+				ch.eof = true;
+				synchronized(channels) {
+					channels.remove(ch.channelId);
+				}
+				// zero length is EOF marker
+				writeHeader(frame, ch.channelId, 0);
+				out.write(frame, 0, FRAME_HEADER);
+				sent(FRAME_HEADER);
+				if (traceChannelData) {
+					diagOut.println("Channel send: [" + ch.channelId + "] - EOF");
+				}
+			}
+			else {
+				// bandwidth is shared by bytes on the wire
+				charge(ch, len);
+				writeHeader(frame, ch.channelId, len);
+				out.write(frame, 0, FRAME_HEADER + align(len));
+				sent(FRAME_HEADER + align(len));
+				ch.bytes += n;
+				ch.wireBytes += len;
+				ch.frames++;
+				if (traceChannelData) {
+					diagOut.println("Channel send: [" + ch.channelId + "] " + n + " bytes" + (len == n ? "" : " (" + len + " on wire)"));
+				}
+			}
+		}
+
+		private byte[] raw() {
+			if (raw == null) {
+				raw = new byte[MAX_FRAME];
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			}
+			return raw;
+		}
+
+		/**
+		 * Writes encoding byte and payload to frame. Data is sent as is, unless deflate makes it smaller.
+		 * @return payload length
+		 */
+		private int encodeFrame(Channel ch, int n, byte[] frame) {
+			if (ch.compress && n >= MIN_COMPRESS) {
+				deflater.reset();
+				deflater.setInput(raw, 0, n);
+				deflater.finish();
+				int z = deflater.deflate(frame, FRAME_HEADER + 1, n - 1);
+				if (deflater.finished()) {
+					frame[FRAME_HEADER] = ENC_DEFLATE;
+					return z + 1;
+				}
+			}
+			frame[FRAME_HEADER] = ENC_RAW;
+			System.arraycopy(raw, 0, frame, FRAME_HEADER + 1, n);
+			return n + 1;
+		}
+
+		private void sendCredit(Channel ch, byte[] frame) throws IOException {
+			long credit = ch.grantCredit();
+			if (credit > 0) {
+				writeHeader(frame, CREDIT_CHANNEL, CREDIT_FRAME);
+				writeLong(frame, FRAME_HEADER, ch.channelId);
+				writeLong(frame, FRAME_HEADER + 8, credit);
+				out.write(frame, 0, FRAME_HEADER + CREDIT_FRAME);
+				sent(FRAME_HEADER + CREDIT_FRAME);
+				if (traceChannelData) {
+					diagOut.println("Channel credit: [" + ch.channelId + "] " + credit + " bytes");
+				}
+			}
+		}
+
+		/**
+		 * Reads up to limit bytes of pending data into buffer.
+		 */
+		private int fillFrame(Channel ch, byte[] buf, int offs, int limit) throws IOException {
+			int n = 0;
+			while(n < limit) {
+				// pipe returns data up to buffer wrap point only
+				int m = ch.inbound.read(buf, offs + n, limit - n);
+				if (m <= 0) {
+					break;
+				}
+				n += m;
+				if (pending(ch) <= 0) {
+					break;
+				}
+			}
+			return n;
+		}
+
+		private void sent(int bytes) {
+			bytesSent += bytes;
+			framesSent++;
+		}
+
+		private void writeHeader(byte[] frame, long chId, int len) {
+			writeLong(frame, 0, chId);
+			frame[8] = (byte)(len >> 8);
+			frame[9] = (byte)len;
+		}
+
+		private void writeLong(byte[] frame, int offs, long v) {
+			for(int i = 0; i != 8; ++i) {
+				frame[offs + i] = (byte)(v >> (56 - 8 * i));
+			}
+		}
+
+		/**
+		 * @return number of bytes buffered in channel, -1 if channel reached EOF
+		 */
+		private int pending(Channel ch) throws IOException {
+			try {
+				return ch.inbound.available();
+			}
+			catch(EOFException e) {
+				return -1;
+			}
+		}
 	}
 
 	protected class InboundDemux extends Thread {
@@ -523,7 +1138,7 @@ class TunnellerIO {
 		protected DataInputStream in;
 		
 		public InboundDemux(InputStream in) {
-			this.in = new DataInputStream(in);
+			this.in = new DataInputStream(new BufferedInputStream(in, FRAME_HEADER + MAX_FRAME));
 			setName("InboundDemux" + threadSuffix);
 			setDaemon(true);
 		}
@@ -540,16 +1155,26 @@ class TunnellerIO {
 		
 		@Override
 		public void run() {
+			// frames are inflated here if compression is negotiated
+			Inflater inflater = null;
+			byte[] raw = null;
 			try {
+				// channels copy data, so single receive buffer is enough
+				byte[] buf = new byte[MAX_FRAME];
 				while(true) {
 					long chId = in.readLong();
-					int size = in.readShort();
+					int size = in.readUnsignedShort();
 					int asize = align(size);
-					byte[] buf = new byte[asize];
-					in.readFully(buf);
+					in.readFully(buf, 0, asize);
+					bytesReceived += FRAME_HEADER + asize;
+					framesReceived++;
 					if (traceChannelData) {
 						diagOut.println("Channel received: [" + chId + "] " + (size == 0 ? "EOF" : size + " bytes"));
 					}
+					if (chId == CREDIT_CHANNEL) {
+						processCredit(readLong(buf, 0), readLong(buf, 8));
+						continue;
+					}
 					Channel ch;
 					synchronized(channels) {
 						ch = channels.get(chId);
@@ -561,18 +1186,35 @@ class TunnellerIO {
 						diagOut.println("WARN: Inbound packet to outbound channel " + chId);
 					}
 					else {
+						byte[] data = buf;
+						int n = size;
+						if (compressFrames && size > 0) {
+							if (raw == null) {
+								raw = new byte[MAX_FRAME];
+								inflater = new Inflater();
+							}
+							// corrupted frame breaks the tunnel
+							n = decodeFrame(inflater, buf, size, raw);
+							data = raw;
+						}
 						try {
 							if (size == 0) {
 								if (traceChannelClose) {
 									diagOut.println("Channel closed: [" + ch.channelId + "] " + ch.direction);
 								}
+								ch.eof = true;
 								ch.outbound.close();
 								synchronized(channels) {
 									channels.remove(ch.channelId);
 								}							
 							}
 							else {
-								ch.outbound.write(buf, 0, size);
+								// never blocks, as sender respects credit
+								ch.outbound.write(data, 0, n);
+								ch.received(n);
+								ch.bytes += n;
+								ch.wireBytes += size;
+								ch.frames++;
 							}
 						}
 						catch(IOException e) {
@@ -590,8 +1232,59 @@ class TunnellerIO {
 				}
 				stopChannels();
 				shutdown();
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
 			}
 		}
+
+		private int decodeFrame(Inflater inflater, byte[] buf, int size, byte[] raw) throws IOException {
+			int enc = buf[0];
+			if (enc == ENC_RAW) {
+				System.arraycopy(buf, 1, raw, 0, size - 1);
+				return size - 1;
+			}
+			else if (enc == ENC_DEFLATE) {
+				inflater.reset();
+				inflater.setInput(buf, 1, size - 1);
+				try {
+					int n = inflater.inflate(raw);
+					if (!inflater.finished()) {
+						throw new IOException("Corrupted frame, compressed data is truncated");
+					}
+					return n;
+				} catch (DataFormatException e) {
+					throw new IOException("Corrupted frame, " + e.getMessage());
+				}
+			}
+			else {
+				throw new IOException("Corrupted frame, unknown encoding " + enc);
+			}
+		}
+
+		private void processCredit(long chId, long credit) {
+			Channel ch;
+			synchronized(channels) {
+				ch = channels.get(chId);
+			}
+			if (traceChannelData) {
+				diagOut.println("Channel credit received: [" + chId + "] " + credit + " bytes");
+			}
+			// channel may be already closed by us
+			if (ch != null && ch.direction == Direction.OUTBOUND) {
+				ch.addCredit(credit);
+				channelReady(ch);
+			}
+		}
+
+		private long readLong(byte[] buf, int offs) {
+			long v = 0;
+			for(int i = 0; i != 8; ++i) {
+				v = (v << 8) | (0xFF & buf[offs + i]);
+			}
+			return v;
+		}
 	}
 	
 	private int align(int size) {
@@ -605,29 +1298,78 @@ class TunnellerIO {
 		
 		final long channelId;
 		final Direction direction;
+		final int weight;
+		final StreamPipe pipe;
 		final InputStream inbound;
 		final OutputStream outbound;	
 		
+		// guarded by ready queue
+		boolean queued;
+		long virtualTime;
+		long readySeq;
+		// accessed by mux thread only
+		int frameSize = MIN_FRAME;
+		volatile boolean eof;
+		// payload counters, written by mux (outbound) or demux (inbound) thread
+		volatile long bytes;
+		volatile long wireBytes;
+		volatile long frames;
+		/** Outbound channel preference, effective only if tunnel has negotiated compression */
+		boolean compress = true;
+		
+		// outbound: bytes we are allowed to send
+		// inbound: bytes granted to sender in total
+		private long credit = INITIAL_WINDOW;
+		// inbound: bytes received in total
+		private long received;
+		
 		public Channel(long id, Direction direction, int bufferSize) {
+			this(id, direction, bufferSize, NORMAL_WEIGHT);
+		}
+
+		public Channel(long id, Direction direction, int bufferSize, int weight) {
+			if (bufferSize <= INITIAL_WINDOW) {
+				throw new IllegalArgumentException("Buffer should be larger than initial window");
+			}
 			this.channelId = id;
 			this.direction = direction;
-			StreamPipe pipe = new StreamPipe(bufferSize);
+			this.weight = weight;
+			this.pipe = new StreamPipe(bufferSize);
 			this.inbound = pipe.getInputStream();
 			this.outbound = pipe.getOutputStream();
 		}
+		
+		synchronized long getCredit() {
+			return credit;
+		}
 
-		public Channel(long id, OutputStream os) {
-			this.channelId = id;
-			this.direction = Direction.INBOUND;
-			this.inbound = null;
-			this.outbound = os;
+		synchronized void consumeCredit(long n) {
+			credit -= n;
 		}
 
-		public Channel(long id, InputStream is) {
-			this.channelId = id;
-			this.direction = Direction.OUTBOUND;
-			this.inbound = is;
-			this.outbound = null;
+		synchronized void addCredit(long n) {
+			credit += n;
+		}
+
+		synchronized void received(long n) {
+			received += n;
+		}
+
+		/**
+		 * Calculates free space in pipe not yet promised to sender.
+		 * Update is sent once it is worth a frame, or if sender may be out of credit.
+		 * @return credit to be sent or 0
+		 */
+		synchronized long grantCredit() {
+			long outstanding = credit - received;
+			long free = pipe.getCapacity() - 1 - pipe.getBuffered() - outstanding;
+			if (free > 0 && (free >= Math.min(MAX_FRAME, pipe.getCapacity() / 4) || outstanding < MIN_FRAME)) {
+				credit += free;
+				return free;
+			}
+			else {
+				return 0;
+			}
 		}
 	}	
 }
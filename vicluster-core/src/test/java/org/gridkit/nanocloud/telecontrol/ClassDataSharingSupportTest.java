@@ -0,0 +1,171 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.gridkit.vicluster.telecontrol.BackgroundStreamDumper;
+import org.gridkit.vicluster.telecontrol.bootstraper.SmartBootstraper;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassDataSharingSupportTest {
+
+	private LocalControlConsole console;
+
+	@Before
+	public void initConsole() {
+		console = new LocalControlConsole();
+	}
+
+	@After
+	public void destroyConsole() {
+		console.terminate();
+	}
+
+	@Test
+	public void parse_version() {
+		assertEquals(6, ClassDataSharingSupport.parseMajorVersion("1.6.0_45"));
+		assertEquals(8, ClassDataSharingSupport.parseMajorVersion("1.8.0_392"));
+		assertEquals(11, ClassDataSharingSupport.parseMajorVersion("11.0.21"));
+		assertEquals(21, ClassDataSharingSupport.parseMajorVersion("21"));
+		assertEquals(17, ClassDataSharingSupport.parseMajorVersion("17-ea"));
+		assertEquals(-1, ClassDataSharingSupport.parseMajorVersion("unknown"));
+		assertEquals(-1, ClassDataSharingSupport.parseMajorVersion(null));
+	}
+
+	@Test
+	public void archive_is_placed_next_to_boot_jar() {
+		String path = ClassDataSharingSupport.archivePath("java", "/tmp/nanocloud/abcdef/booter.jar");
+		assertTrue(path.startsWith("/tmp/nanocloud/abcdef/slave-"));
+		assertTrue(path.endsWith(".jsa"));
+
+		path = ClassDataSharingSupport.archivePath("java", "C:\\tmp\\abcdef\\booter.jar");
+		assertTrue(path.startsWith("C:\\tmp\\abcdef\\slave-"));
+	}
+
+	@Test
+	public void options_for_local_jvm() {
+		String javaCmd = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		int version = ClassDataSharingSupport.parseMajorVersion(System.getProperty("java.version"));
+
+		ClassDataSharingSupport cds = new ClassDataSharingSupport();
+		List<String> options = cds.getJvmOptions(console, javaCmd, "/tmp/nanocloud/abcdef/booter.jar", BackgroundStreamDumper.SINGLETON);
+
+		if (version < ClassDataSharingSupport.DYNAMIC_ARCHIVE_VERSION) {
+			assertTrue(options.isEmpty());
+		}
+		else if (version >= ClassDataSharingSupport.AUTO_ARCHIVE_VERSION) {
+			assertEquals("-XX:+AutoCreateSharedArchive", options.get(0));
+		}
+		else {
+			// archive is dumped by trial JVM, boot jar does not exist so it would fail
+			assertTrue(options.isEmpty());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void archive_is_dumped_by_trial_jvm() throws Exception {
+		String javaCmd = findDynamicArchiveJvm();
+		Assume.assumeTrue(javaCmd != null);
+
+		File dir = new File("target/cds-trial");
+		dir.mkdirs();
+		File bootJar = new File(dir, "booter.jar");
+		createBootJar(bootJar);
+		String archive = ClassDataSharingSupport.archivePath(javaCmd, bootJar.getPath());
+		new File(archive).delete();
+
+		ClassDataSharingSupport cds = new ClassDataSharingSupport();
+		List<String> startupClasses = Collections.singletonList(ClassDataSharingSupportTest.class.getName());
+		List<String> options = cds.getJvmOptions(console, javaCmd, bootJar.getPath(), startupClasses, BackgroundStreamDumper.SINGLETON);
+		// archive option is added only once archive exists
+		while(options.isEmpty()) {
+			Thread.sleep(100);
+			options = cds.getJvmOptions(console, javaCmd, bootJar.getPath(), startupClasses, BackgroundStreamDumper.SINGLETON);
+		}
+		assertEquals(Collections.singletonList("-XX:SharedArchiveFile=" + archive), options);
+		assertTrue(new File(archive).isFile());
+	}
+
+	@Test(timeout = 60000)
+	public void failed_trial_adds_no_archive_option() throws Exception {
+		String javaCmd = findDynamicArchiveJvm();
+		Assume.assumeTrue(javaCmd != null);
+
+		ClassDataSharingSupport cds = new ClassDataSharingSupport();
+		String bootJar = new File("target/cds-trial/missing/booter.jar").getPath();
+		for(int i = 0; i != 20; ++i) {
+			assertTrue(cds.getJvmOptions(console, javaCmd, bootJar, BackgroundStreamDumper.SINGLETON).isEmpty());
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Boot jar with just enough classes to run trial spore.
+	 */
+	private static void createBootJar(File jar) throws IOException {
+		Manifest mf = new Manifest();
+		mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		mf.getMainAttributes().put(Attributes.Name.MAIN_CLASS, SmartBootstraper.class.getName());
+		JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar), mf);
+		try {
+			for(Class<?> c: new Class<?>[]{SmartBootstraper.class, ClassDataSharingSupport.TrialSpore.class, ClassDataSharingSupportTest.class}) {
+				String name = c.getName().replace('.', '/') + ".class";
+				jos.putNextEntry(new JarEntry(name));
+				InputStream is = c.getClassLoader().getResourceAsStream(name);
+				try {
+					byte[] buf = new byte[4 << 10];
+					int n;
+					while((n = is.read(buf)) >= 0) {
+						jos.write(buf, 0, n);
+					}
+				}
+				finally {
+					is.close();
+				}
+				jos.closeEntry();
+			}
+		}
+		finally {
+			jos.close();
+		}
+	}
+
+	/**
+	 * @return JVM in dynamic archive version range, if there is one next to current JVM
+	 */
+	private String findDynamicArchiveJvm() {
+		File home = new File(System.getProperty("java.home"));
+		if (home.getName().equals("jre")) {
+			home = home.getParentFile();
+		}
+		File[] jvms = home.getParentFile().listFiles();
+		if (jvms == null) {
+			return null;
+		}
+		for(File jvm: jvms) {
+			File java = new File(new File(jvm, "bin"), "java");
+			if (!java.isFile() || !java.canExecute()) {
+				continue;
+			}
+			int version = new ClassDataSharingSupport().getJavaVersion(console, java.getPath(), BackgroundStreamDumper.SINGLETON);
+			if (version >= ClassDataSharingSupport.DYNAMIC_ARCHIVE_VERSION && version < ClassDataSharingSupport.AUTO_ARCHIVE_VERSION) {
+				return java.getPath();
+			}
+		}
+		return null;
+	}
+}
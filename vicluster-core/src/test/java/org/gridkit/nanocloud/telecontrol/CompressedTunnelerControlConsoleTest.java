@@ -0,0 +1,33 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnelMetrics;
+import org.junit.Test;
+
+public class CompressedTunnelerControlConsoleTest extends TunnelerControlConsoleTest {
+
+	@Override
+	protected boolean isCompressed() {
+		return true;
+	}
+
+	@Test
+	public void verify_text_is_compressed_on_wire() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i != 50000; ++i) {
+			sb.append("Line ").append(i).append(" of compressible text\n");
+		}
+		byte[] data = sb.toString().getBytes();
+
+		String path = console.cacheFile(new ByteBlob("text.log", data));
+		assertEquals(sb.toString(), new String(StreamHelper.readFile(new File(path))));
+
+		TunnelMetrics metrics = ((TunnellerControlConsole)console).getMetrics();
+		assertTrue(metrics.isCompression());
+		assertTrue("Sent " + metrics.getBytesSent() + " of " + data.length, metrics.getBytesSent() < data.length / 2);
+	}
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -202,6 +203,84 @@ public class LocalControlConsoleTest  {
         }
     }   
     
+	@Test
+	public void verify_link_mode() throws IOException {
+		File src = new File("target/link-mode-test/" + System.currentTimeMillis() + "/test.jar");
+		src.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(src);
+		fos.write(generateData(7));
+		fos.close();
+		
+		LocalControlConsole lcon = new LocalControlConsole("{tmp}/nanocloud-console-test", LocalControlConsole.CacheMode.LINK);
+		try {
+			List<FileBlob> blobs = new ArrayList<FileBlob>();
+			blobs.add(new FileBlobStub(src));
+			blobs.add(new ByteBlob("test-blob", "1234".getBytes()));
+			List<String> paths = lcon.cacheFiles(blobs);
+			
+			File cached = new File(paths.get(0));
+			assertFalse("File should be placed in cache", cached.getCanonicalPath().equals(src.getCanonicalPath()));
+			assertTrue(cached.getCanonicalPath().startsWith(lcon.getCacheDir().getCanonicalPath()));
+			assertEquals("File size", src.length(), cached.length());
+			assertEquals(4, new File(paths.get(1)).length());
+		}
+		finally {
+			lcon.terminate();
+			rmrf(lcon.getCacheDir());
+		}
+	}
+	
+	@Test
+	public void verify_file_hash_is_cached_by_size_and_timestamp() throws IOException {
+		File file = new File("target/hash-cache-test/" + System.currentTimeMillis() + "/test.jar");
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write("1234".getBytes());
+		fos.close();
+
+		// recently modified file is not cached
+		String hash = LocalControlConsole.cachedDigest(file, file);
+		fos = new FileOutputStream(file);
+		fos.write("4321".getBytes());
+		fos.close();
+		long timestamp = System.currentTimeMillis() - 10000;
+		file.setLastModified(timestamp);
+		String hash2 = LocalControlConsole.cachedDigest(file, file);
+		assertFalse(hash.equals(hash2));
+
+		// same size and timestamp, cached hash is used
+		fos = new FileOutputStream(file);
+		fos.write("1234".getBytes());
+		fos.close();
+		file.setLastModified(timestamp);
+		assertEquals(hash2, LocalControlConsole.cachedDigest(file, file));
+
+		// timestamp changed, hash is recalculated
+		file.setLastModified(timestamp - 10000);
+		assertEquals(hash, LocalControlConsole.cachedDigest(file, file));
+	}
+
+	@Test
+	public void verify_corrupted_cache_entry_is_replaced() throws IOException {
+		LocalControlConsole lcon1 = new LocalControlConsole("{tmp}/nanocloud-console-test");
+		LocalControlConsole lcon2 = new LocalControlConsole("{tmp}/nanocloud-console-test");
+		try {
+			String path = lcon1.cacheFile(new ByteBlob("test-blob", "1234".getBytes()));
+			FileOutputStream fos = new FileOutputStream(path);
+			fos.write("4321".getBytes());
+			fos.close();
+			
+			String path2 = lcon2.cacheFile(new ByteBlob("test-blob", "1234".getBytes()));
+			assertEquals(path, path2);
+			assertEquals("1234", new String(StreamHelper.readFile(new File(path2))));
+		}
+		finally {
+			lcon1.terminate();
+			lcon2.terminate();
+			rmrf(lcon1.getCacheDir());
+		}
+	}
+	
 	@Test
 	public void verify_content_addressing() {
 		
@@ -406,6 +485,42 @@ public class LocalControlConsoleTest  {
 		assertEquals("Ping", new String(bos.toByteArray()));		
 	}
 	
+	static class FileBlobStub implements FileBlob {
+		
+		private File file;
+		private String hash;
+		
+		public FileBlobStub(File file) {
+			this.file = file;
+			this.hash = StreamHelper.digest(StreamHelper.readFile(file), "SHA-1");
+		}
+		
+		@Override
+		public File getLocalFile() {
+			return file;
+		}
+		
+		@Override
+		public String getFileName() {
+			return file.getName();
+		}
+		
+		@Override
+		public String getContentHash() {
+			return hash;
+		}
+		
+		@Override
+		public InputStream getContent() {
+			return new ByteArrayInputStream(StreamHelper.readFile(file));
+		}
+		
+		@Override
+		public long size() {
+			return file.length();
+		}
+	}
+	
 	static class ByteBlob implements FileBlob {
 
 		private String filename;
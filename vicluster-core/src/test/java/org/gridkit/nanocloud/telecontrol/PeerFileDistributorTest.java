@@ -0,0 +1,243 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridkit.nanocloud.telecontrol.LocalControlConsoleTest.ByteBlob;
+import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.gridkit.vicluster.telecontrol.StreamPipe;
+import org.gridkit.vicluster.telecontrol.bootstraper.Tunneller;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection;
+import org.junit.After;
+import org.junit.Test;
+
+public class PeerFileDistributorTest {
+
+	private List<TunnellerControlConsole> consoles = new ArrayList<TunnellerControlConsole>();
+	private List<Thread> tunnellers = new ArrayList<Thread>();
+
+	@Test
+	public void verify_copies_spread_as_tree() {
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 60000);
+		final List<Object[]> assigned = new ArrayList<Object[]>();
+		List<PeerFileDistributor.Peer> peers = new ArrayList<PeerFileDistributor.Peer>();
+		for(int i = 0; i != 7; ++i) {
+			final PeerFileDistributor.Peer peer = distributor.join(null, "host" + i, "cache", 1);
+			peers.add(peer);
+			distributor.acquire("hash", peer, new PeerFileDistributor.SourceListener() {
+				@Override
+				public void assigned(PeerFileDistributor.Peer source, String sourcePath) {
+					assigned.add(new Object[]{source, peer});
+				}
+			});
+		}
+
+		// master uploads to one host, then each holder serves one more host per round
+		int[] expected = {1, 2, 4};
+		for(int round = 0; round != expected.length; ++round) {
+			List<Object[]> transfers = new ArrayList<Object[]>(assigned);
+			assigned.clear();
+			assertEquals("Round " + round, expected[round], transfers.size());
+			for(Object[] t: transfers) {
+				distributor.complete("hash", (PeerFileDistributor.Peer)t[0], (PeerFileDistributor.Peer)t[1], "path");
+			}
+		}
+		assertTrue(assigned.isEmpty());
+		assertEquals(7, distributor.getHolderCount("hash"));
+
+		for(PeerFileDistributor.Peer peer: peers) {
+			distributor.leave(peer, null);
+		}
+		assertEquals(0, distributor.getHolderCount("hash"));
+		assertEquals(0, distributor.getSwarmCount());
+	}
+
+	@Test
+	public void verify_failing_peer_is_not_used_as_source_of_that_file() {
+		final long[] time = {0};
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 1000) {
+			@Override
+			protected long now() {
+				return time[0];
+			}
+		};
+		PeerFileDistributor.Peer a = distributor.join(null, "a", "cache", 4);
+		PeerFileDistributor.Peer b = distributor.join(null, "b", "cache", 4);
+		distributor.addHolder("hash", a, "path");
+		distributor.addHolder("other", a, "path2");
+		final List<PeerFileDistributor.Peer> sources = new ArrayList<PeerFileDistributor.Peer>();
+		PeerFileDistributor.SourceListener listener = new PeerFileDistributor.SourceListener() {
+			@Override
+			public void assigned(PeerFileDistributor.Peer source, String sourcePath) {
+				sources.add(source);
+			}
+		};
+		for(int i = 0; i != 2; ++i) {
+			distributor.acquire("hash", b, listener);
+			distributor.complete("hash", sources.get(i), b, null);
+		}
+		distributor.acquire("hash", b, listener);
+		assertEquals(a, sources.get(0));
+		assertEquals(a, sources.get(1));
+		assertEquals(null, sources.get(2));
+		distributor.complete("hash", null, b, null);
+
+		// other file is still served by same peer
+		distributor.acquire("other", b, listener);
+		assertEquals(a, sources.get(3));
+		distributor.complete("other", a, b, "path3");
+
+		// failure count decays
+		time[0] = 1000;
+		distributor.acquire("hash", b, listener);
+		assertEquals(a, sources.get(4));
+	}
+
+	@Test
+	public void verify_swarm_is_removed_with_its_last_holder() {
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 60000);
+		PeerFileDistributor.Peer a = distributor.join(null, "a", "cache", 1);
+		PeerFileDistributor.Peer b = distributor.join(null, "b", "cache", 1);
+		distributor.addHolder("hash", a, "path");
+		distributor.addHolder("hash", b, "path");
+		distributor.addHolder("other", a, "path");
+		assertEquals(2, distributor.getSwarmCount());
+
+		distributor.removeHolder("other", a);
+		assertEquals(1, distributor.getSwarmCount());
+		distributor.leave(a, null);
+		assertEquals(1, distributor.getHolderCount("hash"));
+		distributor.leave(b, null);
+		assertEquals(0, distributor.getSwarmCount());
+	}
+
+	@Test
+	public void verify_tunnels_to_same_host_share_peer() {
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 60000);
+		PeerFileDistributor.Peer p1 = distributor.join(null, "a", "cache", 1);
+		PeerFileDistributor.Peer p2 = distributor.join(null, "a", "cache", 1);
+		assertTrue(p1 == p2);
+		assertTrue(p1 != distributor.join(null, "a", "other-cache", 1));
+		distributor.addHolder("hash", p1, "path");
+		distributor.leave(p1, null);
+		assertEquals(1, distributor.getHolderCount("hash"));
+		distributor.leave(p2, null);
+		assertEquals(0, distributor.getHolderCount("hash"));
+	}
+
+	@Test
+	public void verify_file_is_fetched_from_peer() throws Exception {
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 60000);
+		TunnellerControlConsole a = startConsole("target/.peer-a", distributor);
+		TunnellerControlConsole b = startConsole("target/.peer-b", distributor);
+
+		byte[] data = new byte[512 << 10];
+		new Random(1).nextBytes(data);
+		List<FileBlob> blobs = Collections.<FileBlob>singletonList(new ByteBlob("app.jar", data));
+
+		String pa = a.cacheFiles(blobs).get(0);
+		assertEquals(1, distributor.getHolderCount(blobs.get(0).getContentHash()));
+		long sent = b.getMetrics().getBytesSent();
+		String pb = b.cacheFiles(blobs).get(0);
+
+		assertTrue(!new File(pa).equals(new File(pb)));
+		assertArrayEquals(data, StreamHelper.readFile(new File(pb)));
+		assertEquals(2, distributor.getHolderCount(blobs.get(0).getContentHash()));
+		// content has not passed through master's tunnel
+		assertTrue(b.getMetrics().getBytesSent() - sent < data.length / 10);
+	}
+
+	@Test
+	public void verify_failed_fetch_falls_back_to_master() throws Exception {
+		final AtomicInteger acquires = new AtomicInteger();
+		final AtomicInteger masterUploads = new AtomicInteger();
+		PeerFileDistributor distributor = new PeerFileDistributor(1, 60000) {
+			@Override
+			public void acquire(String hash, Peer requester, final SourceListener listener) {
+				acquires.incrementAndGet();
+				super.acquire(hash, requester, new SourceListener() {
+					@Override
+					public void assigned(Peer source, String sourcePath) {
+						if (source == null) {
+							masterUploads.incrementAndGet();
+						}
+						listener.assigned(source, sourcePath);
+					}
+				});
+			}
+		};
+		TunnellerControlConsole a = startConsole("target/.peer-a", distributor);
+		TunnellerControlConsole b = startConsole("target/.peer-b", distributor);
+
+		byte[] data = new byte[256 << 10];
+		new Random(2).nextBytes(data);
+		List<FileBlob> blobs = Collections.<FileBlob>singletonList(new ByteBlob("app.jar", data));
+
+		String pa = a.cacheFiles(blobs).get(0);
+		new File(pa).delete();
+		String pb = b.cacheFiles(blobs).get(0);
+		assertArrayEquals(data, StreamHelper.readFile(new File(pb)));
+		// missing file is no longer advertised
+		assertEquals(1, distributor.getHolderCount(blobs.get(0).getContentHash()));
+		// fallback upload is assigned by distributor, so it is within master fan-out
+		assertEquals(3, acquires.get());
+		assertEquals(2, masterUploads.get());
+	}
+
+	private TunnellerControlConsole startConsole(String cachePath, PeerFileDistributor distributor) throws IOException, InterruptedException, TimeoutException {
+		final StreamPipe ib = new StreamPipe(4 << 10);
+		final StreamPipe ob = new StreamPipe(4 << 10);
+		final Tunneller tunneller = new Tunneller();
+		Thread thread = new Thread("TUNNELLER[" + cachePath + "]") {
+			@Override
+			public void run() {
+				tunneller.process(ib.getInputStream(), ob.getOutputStream());
+			}
+		};
+		thread.start();
+		tunnellers.add(thread);
+		TunnellerConnection conn = new TunnellerConnection(cachePath, ob.getInputStream(), ib.getOutputStream(), System.out, false, 10, TimeUnit.SECONDS);
+
+		rmrf(new File(cachePath));
+		TunnellerControlConsole console = new TunnellerControlConsole(conn, cachePath);
+		console.setPeerDistribution(distributor, "127.0.0.1", 1);
+		consoles.add(console);
+		return console;
+	}
+
+	private static void rmrf(File file) {
+		if (file.isFile()) {
+			file.delete();
+		}
+		else if (file.isDirectory()) {
+			File[] c = file.listFiles();
+			if (c != null) {
+				for(File f: c) {
+					rmrf(f);
+				}
+			}
+			file.delete();
+		}
+	}
+
+	@After
+	public void destroyConsoles() {
+		for(Thread thread: tunnellers) {
+			thread.interrupt();
+		}
+		for(TunnellerControlConsole console: consoles) {
+			console.terminate();
+		}
+	}
+}
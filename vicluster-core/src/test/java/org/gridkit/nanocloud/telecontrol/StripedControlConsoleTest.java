@@ -0,0 +1,38 @@
+package org.gridkit.nanocloud.telecontrol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.gridkit.vicluster.telecontrol.FileBlob;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StripedControlConsoleTest extends LocalControlConsoleTest {
+
+	@Before
+	public void initConsole() throws IOException, InterruptedException, TimeoutException {
+		List<HostControlConsole> stripes = new ArrayList<HostControlConsole>();
+		for(int i = 0; i != 3; ++i) {
+			stripes.add(new LocalControlConsole("{tmp}/nanocloud-console-test"));
+		}
+		console = new StripedControlConsole(stripes);
+	}
+
+	@Test
+	public void verify_upload_order_is_preserved() {
+		List<FileBlob> blobs = new ArrayList<FileBlob>();
+		for(int i = 0; i != 10; ++i) {
+			blobs.add(new ByteBlob("file" + i, ("content" + i).getBytes()));
+		}
+		List<String> paths = console.cacheFiles(blobs);
+		assertEquals(blobs.size(), paths.size());
+		for(int i = 0; i != 10; ++i) {
+			assertEquals("content" + i, new String(StreamHelper.readFile(new File(paths.get(i)))));
+		}
+	}
+}
@@ -1,19 +1,39 @@
 package org.gridkit.nanocloud.telecontrol;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import org.gridkit.vicluster.telecontrol.BackgroundStreamDumper;
+import org.gridkit.vicluster.telecontrol.FileBlob;
 import org.gridkit.vicluster.telecontrol.StreamPipe;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnelMetrics;
 import org.gridkit.vicluster.telecontrol.bootstraper.Tunneller;
 import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection;
+import org.gridkit.vicluster.telecontrol.bootstraper.TunnellerConnection.SignatureHandler;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
 public class TunnelerControlConsoleTest extends LocalControlConsoleTest {
 
 	private Thread tunnellerThread;
+	private AtomicInteger signatureRequests = new AtomicInteger();
 	
 	
 	@Before
@@ -28,12 +48,128 @@ public class TunnelerControlConsoleTest extends LocalControlConsoleTest {
 			}
 		};
 		tunnellerThread.start();
-		TunnellerConnection conn = new TunnellerConnection("Test", ob.getInputStream(), ib.getOutputStream(), System.out, 10, TimeUnit.SECONDS);
+		TunnellerConnection conn = new TunnellerConnection("Test", ob.getInputStream(), ib.getOutputStream(), System.out, isCompressed(), 10, TimeUnit.SECONDS) {
+			@Override
+			public synchronized void requestSignature(String path, SignatureHandler handler) throws IOException {
+				signatureRequests.incrementAndGet();
+				super.requestSignature(path, handler);
+			}
+		};
 		
 		rmrf(new File("target/.tunneler"));
 		console = new TunnellerControlConsole(conn, "target/.tunneler");
 	}
 
+	protected boolean isCompressed() {
+		return false;
+	}
+
+	@Test
+	public void verify_corrupted_remote_entries_are_replaced() throws IOException {
+		((TunnellerControlConsole)console).setVerifyCachedFiles(true);
+		List<FileBlob> blobs = new ArrayList<FileBlob>();
+		blobs.add(new ByteBlob("truncated", "1234".getBytes()));
+		blobs.add(new ByteBlob("tampered", "5678".getBytes()));
+		blobs.add(new ByteBlob("intact", "0000".getBytes()));
+		List<String> paths = console.cacheFiles(blobs);
+		
+		FileOutputStream fos = new FileOutputStream(paths.get(0));
+		fos.write("12".getBytes());
+		fos.close();
+		fos = new FileOutputStream(paths.get(1));
+		fos.write("8765".getBytes());
+		fos.close();
+		
+		assertEquals(paths, console.cacheFiles(blobs));
+		assertEquals("1234", new String(StreamHelper.readFile(new File(paths.get(0)))));
+		assertEquals("5678", new String(StreamHelper.readFile(new File(paths.get(1)))));
+		assertEquals("0000", new String(StreamHelper.readFile(new File(paths.get(2)))));
+	}
+
+	@Test
+	public void verify_changed_file_is_pushed_as_delta() throws IOException {
+		byte[] v1 = new byte[256 << 10];
+		new Random(1).nextBytes(v1);
+		byte[] v2 = v1.clone();
+		v2[100 << 10] ^= 1;
+		byte[] v3 = v2.clone();
+		v3[200 << 10] ^= 1;
+
+		TunnelMetrics metrics = ((TunnellerControlConsole)console).getMetrics();
+		String p1 = cacheFile(new ByteBlob("app.jar", v1));
+		// no previous version, no signature round trip
+		assertEquals(0, signatureRequests.get());
+		long sent = metrics.getBytesSent();
+		String p2 = cacheFile(new ByteBlob("app.jar", v2));
+		assertArrayEquals(v2, StreamHelper.readFile(new File(p2)));
+		assertEquals(1, signatureRequests.get());
+		assertTrue(metrics.getBytesSent() - sent < v2.length / 10);
+
+		// signature is built from actual content, so tampered basis is fine
+		FileOutputStream fos = new FileOutputStream(p2);
+		fos.write(v1);
+		fos.close();
+		new File(p1).delete();
+		String p3 = cacheFile(new ByteBlob("app.jar", v3));
+		assertArrayEquals(v3, StreamHelper.readFile(new File(p3)));
+	}
+
+	private String cacheFile(FileBlob blob) {
+		// delta basis is reported by cache check
+		return console.cacheFiles(Collections.singletonList(blob)).get(0);
+	}
+
+	@Test
+	public void verify_class_data_sharing_probe() throws Exception {
+		String javaCmd = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		int version = ClassDataSharingSupport.parseMajorVersion(System.getProperty("java.version"));
+
+		ClassDataSharingSupport cds = new ClassDataSharingSupport();
+		cds.getJvmOptions(console, javaCmd, "target/.tunneler/booter.jar", BackgroundStreamDumper.SINGLETON);
+		assertEquals(version, cds.getJavaVersion(console, javaCmd, BackgroundStreamDumper.SINGLETON));
+
+		// control protocol is intact
+		assertTrue(((TunnellerControlConsole)console).measureRoundTrip() > 0);
+		String path = console.cacheFile(new ByteBlob("after-cds", "1234".getBytes()));
+		assertEquals("1234", new String(StreamHelper.readFile(new File(path))));
+	}
+
+	@Test
+	public void verify_tunnel_metrics() throws Exception {
+		TunnellerControlConsole tconsole = (TunnellerControlConsole)console;
+		console.cacheFile(new ByteBlob("metrics", "12345678".getBytes()));
+
+		assertTrue(tconsole.measureRoundTrip() > 0);
+		TunnelMetrics metrics = tconsole.getMetrics();
+		assertTrue(metrics.getBytesSent() > 0);
+		assertTrue(metrics.getFramesReceived() > 0);
+		assertEquals(1, metrics.getRoundTripCount());
+		assertEquals(0, metrics.getPendingFilePushes());
+		assertEquals(0, metrics.getRemoteQueuedFileReceptions());
+		// control channels
+		assertTrue(metrics.getChannels().size() >= 2);
+
+		tconsole.registerMBean("test");
+		ObjectName name = tconsole.getMBeanName();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue((Long)server.getAttribute(name, "BytesSent") >= metrics.getBytesSent());
+		assertTrue((Long)server.invoke(name, "ping", new Object[0], new String[0]) > 0);
+		assertEquals(2L, tconsole.getMetrics().getRoundTripCount());
+
+		// fresh remote counters are read as is
+		assertEquals(0, server.getAttribute(name, "RemoteQueuedFileReceptions"));
+		assertEquals(2L, tconsole.getMetrics().getRoundTripCount());
+		assertTrue((Long)server.getAttribute(name, "RemoteCountersAgeMillis") <= 1000);
+		// stale ones are refreshed on read
+		Thread.sleep(1100);
+		assertEquals(0, server.getAttribute(name, "RemoteProcesses"));
+		assertEquals(3L, tconsole.getMetrics().getRoundTripCount());
+		assertTrue(System.currentTimeMillis() - tconsole.getMetrics().getRemoteTimestamp() < 1000);
+		
+		console.terminate();
+		assertTrue(!server.isRegistered(name));
+	}
+
 	private static void rmrf(File file) {
 	    if (file.isFile()) {
 	        file.delete();
@@ -1,11 +1,21 @@
 package org.gridkit.nanocloud.telecontrol;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 
 import junit.framework.Assert;
 
 import org.gridkit.vicluster.AbstractCloudContext;
+import org.gridkit.vicluster.AdvExecutor2ViExecutor;
+import org.gridkit.vicluster.StartupTimeline;
 import org.gridkit.vicluster.ViConf;
+import org.gridkit.vicluster.ViEngine;
+import org.gridkit.vicluster.ViEngine.PragmaHandler;
+import org.gridkit.vicluster.ViEngine.WritableSpiConfig;
+import org.gridkit.vicluster.ViExecutor;
 import org.gridkit.vicluster.ViManager;
 import org.gridkit.vicluster.ViNode;
 import org.gridkit.vicluster.ViProps;
@@ -72,7 +82,185 @@ public class ViEngineTest {
 		
 		cloud.shutdown();
 	}
+
+	@Test
+	public void startup_timeline_test() {
+		ViManager cloud = new ViManager(new ViEngineNodeProvider());
+		
+		cloud.node("**").setConfigElement(ViConf.TYPE_HANDLER + "local", new LocalNodeTypeHandler());
+		
+		ViNode node = cloud.node("test");
+		ViProps.at(node).setLocalType();
+		node.touch();
+		
+		StartupTimeline timeline = (StartupTimeline) node.getPragma(ViConf.RUNTIME_STARTUP_TIMELINE);
+
+		for(String step: new String[]{"pre-init", "classpath-build", "classpath-upload", "process-start", "spore-delivery", "slave-connect", "startup-hooks", "init-bundle"}) {
+			Assert.assertTrue("Step " + step, timeline.getDuration(step) >= 0);
+			Assert.assertTrue("Step " + step, timeline.toString().contains(step));
+		}
+		Assert.assertTrue(timeline.getBytes("classpath-upload") >= 0);
+		Assert.assertTrue(timeline.getTotalDuration() >= timeline.getDuration("pre-init"));
+
+		// console is shared, so second node has nothing to upload
+		ViNode node2 = cloud.node("test2");
+		ViProps.at(node2).setLocalType();
+		node2.touch();
+		StartupTimeline timeline2 = (StartupTimeline) node2.getPragma(ViConf.RUNTIME_STARTUP_TIMELINE);
+		Assert.assertTrue(timeline2.getDuration("classpath-upload") >= 0);
+		Assert.assertEquals(0, timeline2.getBytes("classpath-upload"));
+		
+		StartupTimeline.Summary summary = StartupTimeline.summarize(StartupTimeline.collect(Arrays.asList(node, node2)));
+		Assert.assertEquals(2, summary.getNodeCount());
+		Assert.assertEquals(Math.min(timeline.getDuration("pre-init"), timeline2.getDuration("pre-init")), summary.getPercentile("pre-init", 50));
+		Assert.assertEquals(Math.max(timeline.getDuration("pre-init"), timeline2.getDuration("pre-init")), summary.getPercentile("pre-init", 100));
+		Assert.assertEquals(timeline.getBytes("classpath-upload"), summary.getBytes("classpath-upload"));
+		Assert.assertTrue(summary.toString().contains("classpath-upload"));
+		
+		cloud.shutdown();
+	}
 	
+	@Test
+	public void init_bundle_test() {
+		ViManager cloud = new ViManager(new ViEngineNodeProvider());
+		
+		cloud.node("**").setConfigElement(ViConf.TYPE_HANDLER + "local", new LocalNodeTypeHandler());
+		
+		ViNode node = cloud.node("test");
+		ViProps.at(node).setLocalType();
+		node.setProp("test.init-bundle", "ok");
+		ViConf.HookConf.at(node).addStartupHook(new PropCopyHook("test.init-bundle", "test.startup-hook"));
+		node.touch();
+		
+		// startup hook should see properties, delivered in same bundle
+		String r = node.exec(new Callable<String>() {
+			@Override
+			public String call() {
+				return System.getProperty("test.startup-hook");
+			}
+		});
+		
+		Assert.assertEquals("ok", r);
+		
+		cloud.shutdown();
+	}
+	
+	@Test
+	public void init_bundle_failure_test() {
+		ViManager cloud = new ViManager(new ViEngineNodeProvider());
+		
+		cloud.node("**").setConfigElement(ViConf.TYPE_HANDLER + "local", new LocalNodeTypeHandler());
+		
+		File marker = new File("target/init-bundle-failure.marker");
+		marker.delete();
+		ViNode node = cloud.node("test");
+		ViProps.at(node).setLocalType();
+		ViConf.HookConf.at(node).addStartupHook(new FailingHook());
+		ViConf.HookConf.at(node).addStartupHook(new FileCreateHook(marker.getAbsolutePath()));
+		Throwable error = null;
+		try {
+			node.touch();
+		}
+		catch(Exception e) {
+			error = e;
+		}
+		
+		// node fails to start, but failed hook does not prevent execution of following ones
+		Assert.assertNotNull("Startup error expected", error);
+		Assert.assertTrue(marker.exists());
+		
+		cloud.shutdown();
+	}
+	
+	@Test
+	public void init_bundle_is_flushed_before_pragma_handler() {
+		ViManager cloud = new ViManager(new ViEngineNodeProvider());
+		
+		cloud.node("**").setConfigElement(ViConf.TYPE_HANDLER + "local", new LocalNodeTypeHandler());
+		cloud.node("**").setConfigElement(ViConf.PRAGMA_HANDLER + "test-copy", new RemoteCopyPragmaHandler());
+		
+		ViNode node = cloud.node("test");
+		ViProps.at(node).setLocalType();
+		node.setProp("test.pragma-source", "ok");
+		node.setConfigElement("test-copy:test.pragma-target", "test.pragma-source");
+		node.touch();
+		
+		// handler has copied property on slave, so it should have seen it
+		String r = node.exec(new Callable<String>() {
+			@Override
+			public String call() {
+				return System.getProperty("test.pragma-target");
+			}
+		});
+		
+		Assert.assertEquals("ok", r);
+		
+		cloud.shutdown();
+	}
+	
+	/**
+	 * Copies slave system property immediately, bypassing init bundle.
+	 */
+	public static class RemoteCopyPragmaHandler implements PragmaHandler {
+
+		@Override
+		public Object get(String key, ViEngine engine) {
+			return null;
+		}
+
+		@Override
+		public void set(String key, Object value, ViEngine engine, WritableSpiConfig writableConfig) {
+			String to = key.substring(key.indexOf(':') + 1);
+			ViExecutor exec = new AdvExecutor2ViExecutor(engine.getConfig().getManagedProcess().getExecutionService());
+			exec.exec(new PropCopyHook((String)value, to));
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	public static class FailingHook implements Runnable, Serializable {
+		
+		@Override
+		public void run() {
+			throw new IllegalStateException("Hook failed");
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	public static class FileCreateHook implements Runnable, Serializable {
+		
+		private final String path;
+		
+		public FileCreateHook(String path) {
+			this.path = path;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				new File(path).createNewFile();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	public static class PropCopyHook implements Runnable, Serializable {
+		
+		private final String from;
+		private final String to;
+		
+		public PropCopyHook(String from, String to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		public void run() {
+			System.setProperty(to, System.getProperty(from));
+		}
+	}
+	
 	public static class CloudContext extends AbstractCloudContext {
 
 		@Override
@@ -0,0 +1,117 @@
+package org.gridkit.vicluster.telecontrol;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.gridkit.vicluster.telecontrol.Classpath.ClasspathEntry;
+import org.junit.Test;
+
+public class ClasspathPackageIndexTest {
+
+	private File indexDir = new File("target/package-index/" + System.currentTimeMillis());
+
+	@Test
+	public void verify_jar_and_directory_packages() {
+		ClasspathPackageIndex index = new ClasspathPackageIndex(indexDir);
+
+		ClasspathEntry junit = findEntry("junit");
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		assertTrue(index.containsPackage(junit, "org.junit"));
+		assertTrue(index.containsPackage(junit, "org/junit/runner"));
+		assertFalse(index.containsPackage(junit, "org.gridkit"));
+		assertFalse(index.containsPackage(junit, "org.jun"));
+
+		ClasspathEntry classes = findEntry("test-classes");
+		assertTrue(classes.getLocalFile().isDirectory());
+		assertTrue(index.containsPackage(classes, "org.gridkit"));
+		assertTrue(index.getPackages(classes).contains("org/gridkit/vicluster/telecontrol"));
+	}
+
+	@Test
+	public void verify_index_is_persisted() throws IOException {
+		ClasspathEntry junit = findEntry("junit");
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		new ClasspathPackageIndex(indexDir).getPackages(junit);
+
+		String[] files = indexDir.list();
+		assertNotNull(files);
+		// stamp reference and package list
+		assertEquals(2, files.length);
+
+		// tamper persisted index to make sure it is used
+		for(String f: files) {
+			if (f.endsWith(".pkg")) {
+				FileOutputStream fos = new FileOutputStream(new File(indexDir, f));
+				fos.write("fake/pkg\n".getBytes());
+				fos.close();
+			}
+		}
+
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		ClasspathPackageIndex index = new ClasspathPackageIndex(indexDir);
+		assertTrue(index.containsPackage(junit, "fake.pkg"));
+		assertFalse(index.containsPackage(junit, "org.junit"));
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+	}
+
+	@Test
+	public void verify_directory_is_not_scanned_for_package_check() {
+		ClasspathPackageIndex index = new ClasspathPackageIndex(indexDir);
+
+		ClasspathEntry classes = findEntry("test-classes");
+		classes.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		assertTrue(index.containsPackage(classes, "org.gridkit"));
+		assertTrue(index.containsPackage(classes, "org/gridkit/vicluster/telecontrol"));
+		assertFalse(index.containsPackage(classes, "org.gridkit.no.such.pkg"));
+		// only requested packages were looked at
+		assertNull(classes.getMark(ClasspathPackageIndex.PACKAGES_MARK));
+	}
+
+	@Test
+	public void verify_stale_index_files_are_pruned() throws IOException {
+		ClasspathEntry junit = findEntry("junit");
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		new ClasspathPackageIndex(indexDir).getPackages(junit);
+		String[] files = indexDir.list();
+		assertEquals(2, files.length);
+
+		// jar has changed since stamp was written
+		for(String f: files) {
+			if (f.endsWith(".ref")) {
+				FileOutputStream fos = new FileOutputStream(new File(indexDir, f));
+				fos.write("1 1 fake-hash\n".getBytes());
+				fos.close();
+			}
+		}
+		File abandoned = new File(indexDir, "abandoned.ref");
+		new FileOutputStream(abandoned).close();
+		abandoned.setLastModified(System.currentTimeMillis() - ClasspathPackageIndex.INDEX_TTL - 60000);
+
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+		ClasspathPackageIndex index = new ClasspathPackageIndex(indexDir);
+		assertTrue(index.containsPackage(junit, "org.junit"));
+		junit.setMark(ClasspathPackageIndex.PACKAGES_MARK, null);
+
+		// stamp is replaced, abandoned one is removed
+		assertFalse(abandoned.exists());
+		assertEquals(2, indexDir.list().length);
+	}
+
+	private ClasspathEntry findEntry(String name) {
+		List<ClasspathEntry> cp = Classpath.getClasspath(Thread.currentThread().getContextClassLoader());
+		for(ClasspathEntry ce: cp) {
+			if (ce.getUrl().toString().contains(name)) {
+				return ce;
+			}
+		}
+		throw new IllegalArgumentException("No entry '" + name + "' in classpath");
+	}
+}
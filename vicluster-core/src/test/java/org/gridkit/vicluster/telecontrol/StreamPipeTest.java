@@ -0,0 +1,44 @@
+package org.gridkit.vicluster.telecontrol;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StreamPipeTest {
+
+	@Test(timeout = 10000)
+	public void verify_interrupted_reader_does_not_block_close() throws Exception {
+		StreamPipe pipe = new StreamPipe(1024);
+		final InputStream in = pipe.getInputStream();
+		final CountDownLatch failed = new CountDownLatch(1);
+		final boolean[] interrupted = new boolean[1];
+		Thread reader = new Thread("reader") {
+			@Override
+			public void run() {
+				try {
+					in.read(new byte[16]);
+				} catch (IOException e) {
+					interrupted[0] = Thread.currentThread().isInterrupted();
+					failed.countDown();
+				}
+			}
+		};
+		reader.start();
+		// let reader block in pipe
+		while(reader.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		reader.interrupt();
+		in.close();
+		assertTrue("Reader is still blocked", failed.await(5, TimeUnit.SECONDS));
+		assertTrue("Interrupt flag is lost", interrupted[0]);
+		reader.join();
+		assertFalse(reader.isAlive());
+	}
+}
@@ -17,11 +17,15 @@ package org.gridkit.vicluster.telecontrol;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
@@ -129,6 +133,99 @@ public class TunnellerProtocolTest {
 		}		
 	}
 
+	@Test(timeout = 30000)
+	public void test_slow_reader_does_not_block_tunnel() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		if (isWindows()) {
+			return;
+		}
+		
+		final FutureBox<InputStream> bulkOut = new FutureBox<InputStream>();
+		final FutureBox<Integer> bulkDone = new FutureBox<Integer>();
+		connection.exec(".", new String[]{"sh", "-c", "head -c 1000000 /dev/zero"}, null, new ExecHandler() {
+			
+			@Override
+			public void started(OutputStream stdIn, InputStream stdOut, InputStream stdErr) {
+				try {
+					stdIn.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				bulkOut.setData(stdOut);
+			}
+			
+			@Override
+			public void finished(int exitCode) {
+				bulkDone.setData(exitCode);
+			}
+		});
+		InputStream bulk = bulkOut.get();
+		
+		// bulk output is not consumed yet, but other channels should flow
+		for(int i = 0; i != 10; ++i) {
+			assertEquals(Integer.valueOf(0), exec("echo", "ping-" + i).get(5, TimeUnit.SECONDS));
+		}
+		
+		byte[] buf = new byte[16 << 10];
+		long total = 0;
+		while(true) {
+			int n = bulk.read(buf);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		assertEquals(1000000, total);
+		assertEquals(Integer.valueOf(0), bulkDone.get());
+	}
+
+	@Test(timeout = 30000)
+	public void test_stdin_pump_exits_when_drained() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+		if (isWindows()) {
+			return;
+		}
+
+		final FutureBox<OutputStream> stdInBox = new FutureBox<OutputStream>();
+		final FutureBox<InputStream> stdOutBox = new FutureBox<InputStream>();
+		final FutureBox<Integer> done = new FutureBox<Integer>();
+		connection.exec(".", new String[]{"cat"}, null, new ExecHandler() {
+
+			@Override
+			public void started(OutputStream stdIn, InputStream stdOut, InputStream stdErr) {
+				stdInBox.setData(stdIn);
+				stdOutBox.setData(stdOut);
+			}
+
+			@Override
+			public void finished(int exitCode) {
+				done.setData(exitCode);
+			}
+		});
+		OutputStream stdIn = stdInBox.get();
+		BufferedReader stdOut = new BufferedReader(new InputStreamReader(stdOutBox.get()));
+
+		// like a spore, data is sent once and stdin stays idle after that
+		for(int i = 0; i != 3; ++i) {
+			stdIn.write(("ping-" + i + "\n").getBytes());
+			stdIn.flush();
+			assertEquals("ping-" + i, stdOut.readLine());
+			while(countThreads(".stdIn") > 0) {
+				Thread.sleep(10);
+			}
+		}
+		stdIn.close();
+		assertEquals(Integer.valueOf(0), done.get());
+	}
+
+	private static int countThreads(String suffix) {
+		int n = 0;
+		for(Thread t: Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().endsWith(suffix)) {
+				++n;
+			}
+		}
+		return n;
+	}
+
 	private List<String> IGNORE_VARS = Arrays.asList("SHLVL", "OLDPWD");
 	
 	@Test 
@@ -297,6 +394,93 @@ public class TunnellerProtocolTest {
 		Assert.assertEquals(tfile.getAbsolutePath(), writer.rpath);
 	}
 
+	@Test(timeout = 30000)
+	public void test_verified_file_push() throws IOException, InterruptedException {
+		
+		TextWriter writer = new TextWriter();
+		String path = "target/test-verified-file.dat";
+		File tfile = new File(path);
+		deleteAll(tfile);
+		
+		byte[] data = new byte[100 * "Tunneller test file\n".length()];
+		for(int i = 0; i != 100; ++i) {
+			byte[] line = "Tunneller test file\n".getBytes();
+			System.arraycopy(line, 0, data, i * line.length, line.length);
+		}
+		connection.pushFile(path, data.length, StreamHelper.digest(data, "SHA-1"), writer);
+		writer.done.await();
+		
+		Assert.assertEquals(null, writer.error);
+		Assert.assertEquals(data.length, tfile.length());
+	}
+
+	@Test(timeout = 30000)
+	public void test_incomplete_file_push_is_discarded() throws IOException, InterruptedException {
+		
+		TextWriter writer = new TextWriter();
+		String path = "target/test-incomplete-file.dat";
+		final File tfile = new File(path);
+		deleteAll(tfile);
+		
+		// sender "disconnects" before whole file is sent
+		connection.pushFile(path, 101 * "Tunneller test file\n".length(), "", writer);
+		writer.done.await();
+		
+		Assert.assertNotNull(writer.error);
+		Assert.assertTrue(writer.error.contains("Incomplete transfer"));
+		Assert.assertFalse(tfile.exists());
+		Assert.assertEquals(0, tfile.getParentFile().list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(tfile.getName());
+			}
+		}).length);
+	}
+
+	@Test(timeout = 30000)
+	public void test_corrupted_file_push_is_discarded() throws IOException, InterruptedException {
+		
+		TextWriter writer = new TextWriter();
+		String path = "target/test-corrupted-file.dat";
+		File tfile = new File(path);
+		deleteAll(tfile);
+		
+		connection.pushFile(path, 100 * "Tunneller test file\n".length(), StreamHelper.digest("other content".getBytes(), "SHA-1"), writer);
+		writer.done.await();
+		
+		Assert.assertNotNull(writer.error);
+		Assert.assertTrue(writer.error.contains("Hash mismatch"));
+		Assert.assertFalse(tfile.exists());
+	}
+
+	@Test(timeout = 30000)
+	public void test_large_file_push() throws IOException, InterruptedException {
+		
+		TextWriter writer = new TextWriter();
+		// should be sent using large frames
+		writer.repeat = 200000;
+		String path = "target/test-large-file.dat";
+		File tfile = new File(path);
+		deleteAll(tfile);
+		
+		connection.pushFile(path, writer);
+		
+		writer.done.await();
+		
+		Assert.assertEquals(null, writer.error);
+		Assert.assertEquals(200000 * "Tunneller test file\n".length(), tfile.length());
+		Assert.assertEquals(tfile.length(), writer.size);
+		BufferedReader reader = new BufferedReader(new FileReader(tfile));
+		try {
+			for(int i = 0; i != 200000; ++i) {
+				Assert.assertEquals("Tunneller test file", reader.readLine());
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
 	@Test(timeout = 30000)
 	public void test_user_home_file_push() throws IOException, InterruptedException {
 		
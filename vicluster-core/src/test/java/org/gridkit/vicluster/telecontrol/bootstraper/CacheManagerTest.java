@@ -0,0 +1,160 @@
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheManagerTest {
+
+	private static final long MINUTE = 60000;
+
+	private File root;
+	private long now = System.currentTimeMillis();
+
+	@Before
+	public void initRoot() throws IOException {
+		root = File.createTempFile("cache", "", new File("target"));
+		root.delete();
+		root.mkdirs();
+	}
+
+	@After
+	public void removeRoot() {
+		rmrf(root);
+	}
+
+	@Test
+	public void verify_least_recently_used_entries_are_evicted() throws IOException {
+		entry("a", 1000, now - 40 * MINUTE);
+		entry("b", 1000, now - 30 * MINUTE);
+		entry("c", 1000, now - 20 * MINUTE);
+		entry("d", 1000, now - 10 * MINUTE);
+
+		CacheManager cm = new CacheManager(root, 2500);
+		assertEquals(2000, cm.evict());
+		assertFalse(new File(root, "a").exists());
+		assertFalse(new File(root, "b").exists());
+		assertTrue(new File(root, "c").exists());
+		assertTrue(new File(root, "d").exists());
+		cm.close();
+	}
+
+	@Test
+	public void verify_access_index_is_used() throws IOException {
+		entry("a", 1000, now - 40 * MINUTE);
+		entry("b", 1000, now - 30 * MINUTE);
+		entry("c", 1000, now - 20 * MINUTE);
+		write(new File(root, CacheManager.ACCESS_INDEX), "a " + (now - 5 * MINUTE) + "\n");
+
+		CacheManager cm = new CacheManager(root, 2000);
+		assertEquals(1000, cm.evict());
+		assertTrue(new File(root, "a").exists());
+		assertFalse(new File(root, "b").exists());
+		cm.close();
+	}
+
+	@Test
+	public void verify_recent_entries_are_kept_over_limit() throws IOException {
+		entry("a", 1000, now - 40 * MINUTE);
+		entry("b", 1000, now);
+
+		CacheManager cm = new CacheManager(root, 100);
+		assertEquals(1000, cm.evict());
+		assertTrue(new File(root, "b").exists());
+		cm.close();
+	}
+
+	@Test
+	public void verify_pinned_entries_are_not_evicted() throws IOException {
+		File a = entry("a", 1000, now - 40 * MINUTE);
+		entry("b", 1000, now - 30 * MINUTE);
+
+		CacheManager user = new CacheManager(root, 0);
+		user.touch(a);
+		// pretend that pin is old
+		write(new File(root, CacheManager.ACCESS_INDEX), "");
+
+		CacheManager evictor = new CacheManager(root, 100);
+		assertEquals(1000, evictor.evict());
+		assertTrue(new File(root, "a").exists());
+		assertFalse(new File(root, "b").exists());
+
+		user.close();
+		assertEquals(1000, evictor.evict());
+		assertFalse(new File(root, "a").exists());
+		evictor.close();
+	}
+
+	@Test
+	public void verify_released_hold_unpins_entries() throws IOException {
+		File a = entry("a", 1000, now - 40 * MINUTE);
+		File b = entry("b", 1000, now - 30 * MINUTE);
+		File c = entry("c", 1000, now - 20 * MINUTE);
+
+		CacheManager user = new CacheManager(root, 0);
+		user.touch(a);
+		CacheManager.Hold h1 = user.hold();
+		user.touch(b);
+		CacheManager.Hold h2 = user.hold();
+		// touched after last hold, used by process not started yet
+		user.touch(c);
+		write(new File(root, CacheManager.ACCESS_INDEX), "");
+
+		CacheManager evictor = new CacheManager(root, 100);
+		user.release(h1);
+		// a is still covered by second hold
+		assertEquals(0, evictor.evict());
+
+		user.release(h2);
+		assertEquals(2000, evictor.evict());
+		assertFalse(new File(root, "a").exists());
+		assertFalse(new File(root, "b").exists());
+		assertTrue(new File(root, "c").exists());
+
+		user.close();
+		evictor.close();
+	}
+
+	@Test
+	public void verify_parse_size() {
+		assertEquals(100, CacheManager.parseSize("100"));
+		assertEquals(2 << 10, CacheManager.parseSize("2k"));
+		assertEquals(512l << 20, CacheManager.parseSize("512M"));
+		assertEquals(4l << 30, CacheManager.parseSize("4gb"));
+	}
+
+	private File entry(String hash, int size, long time) throws IOException {
+		File dir = new File(root, hash);
+		dir.mkdirs();
+		File file = new File(dir, "file.jar");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(new byte[size]);
+		fos.close();
+		file.setLastModified(time);
+		return file;
+	}
+
+	private static void write(File file, String text) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(text.getBytes("UTF-8"));
+		fos.close();
+	}
+
+	private static void rmrf(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for(File f: files) {
+				rmrf(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,117 @@
+package org.gridkit.vicluster.telecontrol.bootstraper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FileDeltaTest {
+
+	private Random rnd = new Random(1);
+
+	@Test
+	public void verify_identical_content() throws IOException {
+		byte[] basis = random(100 << 10);
+		long literal = verifyRoundTrip(basis, basis);
+		// only tail shorter than block
+		assertTrue(literal < FileDelta.blockSize(basis.length));
+	}
+
+	@Test
+	public void verify_insertion_and_removal() throws IOException {
+		byte[] basis = random(300 << 10);
+		byte[] data = new byte[basis.length - 1000 + 37];
+		// 1000 bytes are removed at 10K, 37 bytes are inserted at 200K
+		System.arraycopy(basis, 0, data, 0, 10 << 10);
+		System.arraycopy(basis, (10 << 10) + 1000, data, 10 << 10, (190 << 10) - 1000);
+		System.arraycopy(random(37), 0, data, (200 << 10) - 1000, 37);
+		System.arraycopy(basis, 200 << 10, data, (200 << 10) - 1000 + 37, basis.length - (200 << 10));
+
+		long literal = verifyRoundTrip(basis, data);
+		assertTrue("Literal bytes " + literal, literal < 4 * FileDelta.blockSize(basis.length));
+	}
+
+	@Test
+	public void verify_unrelated_content() throws IOException {
+		byte[] data = random(50 << 10);
+		long literal = verifyRoundTrip(random(70 << 10), data);
+		assertTrue(literal == data.length);
+	}
+
+	@Test
+	public void verify_short_content() throws IOException {
+		verifyRoundTrip(random(10 << 10), new byte[0]);
+		verifyRoundTrip(random(10 << 10), random(100));
+	}
+
+	@Test
+	public void verify_streamed_content() throws IOException {
+		byte[] basis = random(1 << 20);
+		byte[] data = basis.clone();
+		// changes are spread wider than encoder's window
+		for(int i = 1; i != 8; ++i) {
+			data[i * (128 << 10)] ^= 1;
+		}
+		File basisFile = File.createTempFile("basis", ".bin", new File("target"));
+		try {
+			FileOutputStream fos = new FileOutputStream(basisFile);
+			fos.write(basis);
+			fos.close();
+
+			FileDelta.Signature sig = FileDelta.signature(basisFile, FileDelta.blockSize(basis.length));
+			ByteArrayOutputStream delta = new ByteArrayOutputStream();
+			// stream returns short reads, so blocks span buffer refills
+			long literal = FileDelta.encode(new FilterInputStream(new ByteArrayInputStream(data)) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return super.read(b, off, Math.min(len, 1000));
+				}
+			}, sig, delta);
+			assertEquals(literal, FileDelta.encode(data, sig, new ByteArrayOutputStream()));
+			assertTrue("Literal bytes " + literal, literal <= 7 * sig.blockSize);
+
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			FileDelta.apply(new ByteArrayInputStream(delta.toByteArray()), basisFile, sig.blockSize, result);
+			assertArrayEquals(data, result.toByteArray());
+		}
+		finally {
+			basisFile.delete();
+		}
+	}
+
+	private long verifyRoundTrip(byte[] basis, byte[] data) throws IOException {
+		File basisFile = File.createTempFile("basis", ".bin", new File("target"));
+		try {
+			FileOutputStream fos = new FileOutputStream(basisFile);
+			fos.write(basis);
+			fos.close();
+
+			FileDelta.Signature sig = FileDelta.signature(basisFile, FileDelta.blockSize(basis.length));
+			ByteArrayOutputStream delta = new ByteArrayOutputStream();
+			long literal = FileDelta.encode(data, sig, delta);
+
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			FileDelta.apply(new ByteArrayInputStream(delta.toByteArray()), basisFile, sig.blockSize, result);
+			assertArrayEquals(data, result.toByteArray());
+			return literal;
+		}
+		finally {
+			basisFile.delete();
+		}
+	}
+
+	private byte[] random(int size) {
+		byte[] data = new byte[size];
+		rnd.nextBytes(data);
+		return data;
+	}
+}